@@ -0,0 +1,138 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableString;
+
+import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
+import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexing 50k backlog messages on a device, in backlog sized pages like they come from the core,
+ * then searching them. Needs SQLite with FTS4, so it runs as an instrumented test. Prints the
+ * numbers, the assertions only catch a return to one transaction per message.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSearchIndexBenchmark {
+    private static final int MESSAGES = 50000;
+    private static final int PAGE = 500;
+    private static final int SEARCHES = 100;
+    private static final String[] WORDS = {"quassel", "droid", "backlog", "core", "network", "buffer",
+            "channel", "message", "search", "index", "android", "client", "server", "topic", "nick"};
+
+    private MessageSearchIndex index;
+    // A core no real one will have, so left over rows from an aborted run are never counted as ignored
+    private long coreId;
+    private SharedPreferences preferences;
+    private String key;
+    private boolean wasEnabled;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        key = context.getString(R.string.preference_search_index);
+        wasEnabled = preferences.getBoolean(key, false);
+        // Before the index reads it, the change listener would be called later on the main thread
+        preferences.edit().putBoolean(key, true).commit();
+        index = MessageSearchIndex.getInstance(context);
+        coreId = -System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        index.deleteCore(coreId);
+        preferences.edit().putBoolean(key, wasEnabled).commit();
+    }
+
+    @Test
+    public void indexAndSearch() {
+        assertTrue(index.isEnabled());
+        MessageSearchIndex.Stats before = index.getStats();
+
+        long start = System.nanoTime();
+        for (int page = 0; page < MESSAGES / PAGE; page++) {
+            List<IrcMessage> messages = new ArrayList<>(PAGE);
+            for (int i = 0; i < PAGE; i++) {
+                messages.add(message(page * PAGE + i));
+            }
+            index.add(coreId, messages);
+        }
+        // Searching writes out whatever is still queued
+        List<MessageSearchIndex.Result> results = index.search(coreId, "quassel droid", null, -1, 0, Long.MAX_VALUE, 10);
+        long addMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(10, results.size());
+
+        MessageSearchIndex.Stats after = index.getStats();
+        long indexed = after.indexedMessages - before.indexedMessages;
+        long indexingMillis = Math.max(1, after.indexingMillis - before.indexingMillis);
+        assertEquals(MESSAGES, indexed);
+
+        start = System.nanoTime();
+        for (int i = 0; i < SEARCHES; i++) {
+            index.search(coreId, WORDS[i % WORDS.length] + " " + WORDS[(i + 3) % WORDS.length], null, -1, 0, Long.MAX_VALUE, 100);
+        }
+        long searchMicros = (System.nanoTime() - start) / 1000 / SEARCHES;
+
+        System.out.println(String.format("Search index: %d messages in %d ms (%d messages/s while writing), %d us per search, %s",
+                indexed, addMillis, indexed * 1000 / indexingMillis, searchMicros, after));
+        assertTrue("indexing took " + addMillis + " ms", addMillis < 60000);
+    }
+
+    private static IrcMessage message(int id) {
+        IrcMessage message = new IrcMessage();
+        message.messageId = id;
+        message.bufferInfo = new BufferInfo();
+        message.bufferInfo.id = id % 20;
+        message.timestamp = new Date(1500000000000L + id * 1000L);
+        message.type = IrcMessage.Type.Plain;
+        message.setSender("nick" + (id % 50) + "!user@host");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            if (i > 0)
+                content.append(' ');
+            content.append(WORDS[(id * 7 + i * 13) % WORDS.length]);
+        }
+        message.content = new SpannableString(content);
+        return message;
+    }
+}
@@ -0,0 +1,573 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.debug;
+
+import android.content.Context;
+import android.text.SpannableString;
+import android.util.Log;
+
+import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.io.SwitchableDeflaterOutputStream;
+import com.iskrembilen.quasseldroid.io.SwitchableInflaterInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.HeartBeat;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.InitData;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.InitRequest;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.RequestType;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.RpcCall;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SignalProxyCodec;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SignalProxyMessage;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SyncMessage;
+import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
+import com.iskrembilen.quasseldroid.protocol.state.CoreFeature;
+import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A minimal in-process Quassel core for load testing the client on localhost. It speaks the
+ * probe, both wire protocols, the ClientInit/ClientLogin/SessionInit handshake, the InitData of
+ * Network, BufferSyncer, BufferViewManager and BufferViewConfig, the BacklogManager requests and
+ * displayMsg, optionally with TLS and deflate.
+ * <p/>
+ * The session is generated from a {@link Scenario}, and the live messages are spread over the
+ * buffers with a fixed random seed, so two runs with the same scenario send the same stream.
+ * Only debug builds contain this class.
+ */
+public class FakeCore {
+    private static final String TAG = FakeCore.class.getSimpleName();
+
+    private static final long MAGIC = 0x42b33f00;
+    private static final int HEARTBEAT_INTERVAL = 30000;
+    private static final String DEBUG_KEYSTORE_PASSWORD = "fakecore";
+
+    /**
+     * Describes the session the fake core serves
+     */
+    public static class Scenario {
+        public int networks = 2;
+        public int buffersPerNetwork = 20;
+        public int usersPerNetwork = 50;
+        public int backlogPerBuffer = 50;
+        /**
+         * Live messages sent with displayMsg once the client finished its init
+         */
+        public int messageCount = 1000;
+        public int messagesPerSecond = 50;
+        public boolean compression = false;
+        /**
+         * Context holding the server certificate, TLS is only offered when this is set, see
+         * {@link #createDebugSslContext(Context)}
+         */
+        public SSLContext sslContext = null;
+        public long seed = 42;
+    }
+
+    public interface Listener {
+        /**
+         * Called once the client requested the buffer view, which is the last step of its init
+         */
+        void onSessionReady(List<BufferInfo> buffers);
+
+        /**
+         * Called right before a live message is written to the client
+         *
+         * @param emittedAt {@link System#nanoTime()} at emission
+         */
+        void onMessageEmitted(IrcMessage message, long emittedAt);
+
+        void onFinished();
+    }
+
+    private final Scenario scenario;
+    private final Listener listener;
+    private final List<BufferInfo> bufferInfos = new ArrayList<>();
+    private final Random random;
+
+    private ServerSocket serverSocket;
+    private Socket socket;
+    private QDataOutputStream outStream;
+    private QDataInputStream inStream;
+    private SwitchableDeflaterOutputStream deflater;
+    private SwitchableInflaterInputStream inflater;
+    private SignalProxyCodec codec = SignalProxyCodec.LEGACY;
+    private Thread emitter;
+    private volatile boolean running;
+
+    public FakeCore(Scenario scenario, Listener listener) {
+        this.scenario = scenario;
+        this.listener = listener;
+        this.random = new Random(scenario.seed);
+
+        int bufferId = 1;
+        for (int network = 1; network <= scenario.networks; network++) {
+            bufferInfos.add(createBufferInfo(bufferId++, network, BufferInfo.Type.StatusBuffer, ""));
+            for (int channel = 0; channel < scenario.buffersPerNetwork; channel++) {
+                bufferInfos.add(createBufferInfo(bufferId++, network, BufferInfo.Type.ChannelBuffer, "#channel" + channel));
+            }
+        }
+    }
+
+    /**
+     * Starts listening on the loopback interface and serves one client at a time.
+     *
+     * @param port the port to listen on, 0 for any free port
+     * @return the port the core listens on
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        socket = serverSocket.accept();
+                        serve();
+                    } catch (IOException | EmptyQVariantException e) {
+                        if (running) Log.e(TAG, "Client connection failed", e);
+                    } finally {
+                        stopEmitter();
+                        closeClient();
+                    }
+                }
+            }
+        }, TAG);
+        acceptThread.start();
+        Log.i(TAG, "Fake core listening on port " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        stopEmitter();
+        closeClient();
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket", e);
+        }
+    }
+
+    /**
+     * Creates a context with the self-signed certificate for 127.0.0.1 bundled with debug builds.
+     * The client asks to accept it like any other unknown certificate.
+     */
+    public static SSLContext createDebugSslContext(Context context) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = context.getResources().openRawResource(R.raw.fake_core);
+        try {
+            keyStore.load(in, DEBUG_KEYSTORE_PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, DEBUG_KEYSTORE_PASSWORD.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    private void serve() throws IOException, EmptyQVariantException {
+        InputStream rawIn = socket.getInputStream();
+        OutputStream rawOut = socket.getOutputStream();
+        inStream = new QDataInputStream(rawIn);
+        outStream = new QDataOutputStream(rawOut);
+
+        // Probe
+        long magic = inStream.readUInt(32);
+        if ((magic & 0xffffff00L) != MAGIC) {
+            throw new IOException("Client did not send the probe");
+        }
+        boolean dataStream = false;
+        long protocol;
+        do {
+            protocol = inStream.readUInt(32);
+            if ((protocol & 0xff) == SignalProxyCodec.PROTOCOL_DATASTREAM) dataStream = true;
+        } while ((protocol & (1L << 31)) == 0);
+        codec = dataStream ? SignalProxyCodec.DATASTREAM : SignalProxyCodec.LEGACY;
+
+        boolean useSsl = scenario.sslContext != null && (magic & 0x01) != 0;
+        boolean useCompression = scenario.compression && (magic & 0x02) != 0;
+        int connectionFeatures = (useSsl ? 0x01 : 0) | (useCompression ? 0x02 : 0);
+        outStream.writeUInt(codec.getProtocol() | (connectionFeatures << 24), 32);
+        outStream.flush();
+
+        if (useCompression) {
+            deflater = new SwitchableDeflaterOutputStream(rawOut);
+            inflater = new SwitchableInflaterInputStream(rawIn);
+            outStream = new QDataOutputStream(deflater);
+            inStream = new QDataInputStream(inflater);
+        }
+
+        // Handshake, the client only starts TLS after ClientInitAck
+        expect(readHandshake(), "ClientInit");
+        Map<String, QVariant<?>> initAck = new HashMap<>();
+        initAck.put("MsgType", new QVariant<>("ClientInitAck", QVariantType.String));
+        initAck.put("Configured", new QVariant<>(true, QVariantType.Bool));
+        initAck.put("LoginEnabled", new QVariant<>(true, QVariantType.Bool));
+        initAck.put("CoreFeatures", new QVariant<>(CoreFeature.toLegacyFeatures(CoreFeature.CLIENT_FEATURES), QVariantType.UInt));
+        if (!dataStream) {
+            initAck.put("CoreInfo", new QVariant<>("Fake core", QVariantType.String));
+            initAck.put("SupportSsl", new QVariant<>(useSsl, QVariantType.Bool));
+            initAck.put("SupportsCompression", new QVariant<>(false, QVariantType.Bool));
+            initAck.put("ProtocolVersion", new QVariant<>(10L, QVariantType.UInt));
+        }
+        sendHandshake(initAck);
+
+        if (useSsl) {
+            SSLSocket sslSocket = (SSLSocket) scenario.sslContext.getSocketFactory().createSocket(socket, "127.0.0.1", socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.startHandshake();
+            if (useCompression) {
+                deflater.setOutputStream(sslSocket.getOutputStream());
+                inflater.setInputStream(sslSocket.getInputStream());
+            } else {
+                outStream = new QDataOutputStream(sslSocket.getOutputStream());
+                inStream = new QDataInputStream(sslSocket.getInputStream());
+            }
+            socket = sslSocket;
+        }
+
+        expect(readHandshake(), "ClientLogin");
+        Map<String, QVariant<?>> loginAck = new HashMap<>();
+        loginAck.put("MsgType", new QVariant<>("ClientLoginAck", QVariantType.String));
+        sendHandshake(loginAck);
+
+        sendHandshake(createSessionInit());
+
+        // SignalProxy
+        while (running) {
+            inStream.readUInt(32); // Length
+            SignalProxyMessage message = codec.read(inStream);
+            if (message == null) continue;
+
+            if (message.getType() == RequestType.InitRequest) {
+                handleInitRequest((InitRequest) message);
+            } else if (message.getType() == RequestType.Sync) {
+                handleSync((SyncMessage) message);
+            } else if (message.getType() == RequestType.HeartBeat) {
+                send(new HeartBeat(((HeartBeat) message).timestamp, true));
+            }
+        }
+    }
+
+    private void handleInitRequest(InitRequest request) throws IOException {
+        Map<String, QVariant<?>> properties = new HashMap<>();
+        switch (request.className) {
+            case "Network":
+                properties = createNetwork(Integer.parseInt(request.objectName));
+                break;
+            case "BufferSyncer": {
+                List<QVariant<?>> lastSeen = new ArrayList<>();
+                for (BufferInfo info : bufferInfos) {
+                    lastSeen.add(new QVariant<>(info.id, "BufferId"));
+                    lastSeen.add(new QVariant<>(lastBacklogId(info), "MsgId"));
+                }
+                properties.put("LastSeenMsg", new QVariant<>(lastSeen, QVariantType.List));
+                properties.put("MarkerLines", new QVariant<>(lastSeen, QVariantType.List));
+                break;
+            }
+            case "BufferViewManager": {
+                List<QVariant<?>> ids = new ArrayList<>();
+                ids.add(new QVariant<>(0, QVariantType.Int));
+                properties.put("BufferViewIds", new QVariant<>(ids, QVariantType.List));
+                break;
+            }
+            case "BufferViewConfig": {
+                List<QVariant<?>> order = new ArrayList<>();
+                for (BufferInfo info : bufferInfos) {
+                    order.add(new QVariant<>(info.id, "BufferId"));
+                }
+                properties.put("BufferList", new QVariant<>(order, QVariantType.List));
+                properties.put("TemporarilyRemovedBuffers", new QVariant<>(new ArrayList<QVariant<?>>(), QVariantType.List));
+                properties.put("RemovedBuffers", new QVariant<>(new ArrayList<QVariant<?>>(), QVariantType.List));
+                properties.put("sortAlphabetically", new QVariant<>(false, QVariantType.Bool));
+                break;
+            }
+            default:
+                Log.d(TAG, "Not answering InitRequest for " + request.className);
+                return;
+        }
+        send(new InitData(request.className, request.objectName, new QVariant<>(properties, QVariantType.Map)));
+
+        if (request.className.equals("BufferViewConfig")) {
+            listener.onSessionReady(Collections.unmodifiableList(bufferInfos));
+            startEmitter();
+        }
+    }
+
+    private void handleSync(SyncMessage sync) throws IOException {
+        if (!sync.className.equals("BacklogManager")) return;
+        try {
+            if (sync.slotName.equals("requestBacklog")) {
+                int bufferId = (Integer) sync.next().getData();
+                int first = (Integer) sync.next().getData();
+                int last = (Integer) sync.next().getData();
+                int limit = (Integer) sync.next().getData();
+                int additional = (Integer) sync.next().getData();
+                BufferInfo info = bufferInfos.get(bufferId - 1);
+                send(new SyncMessage("BacklogManager", "", "receiveBacklog",
+                        new QVariant<>(bufferId, "BufferId"),
+                        new QVariant<>(first, "MsgId"),
+                        new QVariant<>(last, "MsgId"),
+                        new QVariant<>(limit, QVariantType.Int),
+                        new QVariant<>(additional, QVariantType.Int),
+                        new QVariant<>(createBacklog(info, first, limit), QVariantType.List)));
+            } else if (sync.slotName.equals("requestBacklogAll")) {
+                int first = (Integer) sync.next().getData();
+                int last = (Integer) sync.next().getData();
+                int limit = (Integer) sync.next().getData();
+                int additional = (Integer) sync.next().getData();
+                List<QVariant<?>> messages = new ArrayList<>();
+                for (BufferInfo info : bufferInfos) {
+                    messages.addAll(createBacklog(info, first, limit));
+                }
+                send(new SyncMessage("BacklogManager", "", "receiveBacklogAll",
+                        new QVariant<>(first, "MsgId"),
+                        new QVariant<>(last, "MsgId"),
+                        new QVariant<>(limit, QVariantType.Int),
+                        new QVariant<>(additional, QVariantType.Int),
+                        new QVariant<>(messages, QVariantType.List)));
+            }
+        } catch (EmptyQVariantException e) {
+            Log.e(TAG, "Malformed backlog request", e);
+        }
+    }
+
+    private Map<String, QVariant<?>> createSessionInit() {
+        List<QVariant<?>> networkIds = new ArrayList<>();
+        for (int network = 1; network <= scenario.networks; network++) {
+            networkIds.add(new QVariant<>(network, "NetworkId"));
+        }
+        List<QVariant<?>> infos = new ArrayList<>();
+        for (BufferInfo info : bufferInfos) {
+            infos.add(new QVariant<>(info, "BufferInfo"));
+        }
+        Map<String, QVariant<?>> sessionState = new HashMap<>();
+        sessionState.put("NetworkIds", new QVariant<>(networkIds, QVariantType.List));
+        sessionState.put("BufferInfos", new QVariant<>(infos, QVariantType.List));
+        sessionState.put("Identities", new QVariant<>(new ArrayList<QVariant<?>>(), QVariantType.List));
+
+        Map<String, QVariant<?>> sessionInit = new HashMap<>();
+        sessionInit.put("MsgType", new QVariant<>("SessionInit", QVariantType.String));
+        sessionInit.put("SessionState", new QVariant<>(sessionState, QVariantType.Map));
+        return sessionInit;
+    }
+
+    private Map<String, QVariant<?>> createNetwork(int networkId) {
+        List<String> channelNames = new ArrayList<>();
+        for (BufferInfo info : bufferInfos) {
+            if (info.networkId == networkId && info.type == BufferInfo.Type.ChannelBuffer) {
+                channelNames.add(info.name);
+            }
+        }
+
+        Map<String, QVariant<?>> users = new HashMap<>();
+        Map<String, QVariant<?>> userModes = new HashMap<>();
+        for (int i = 0; i < scenario.usersPerNetwork; i++) {
+            String nick = "user" + i;
+            Map<String, QVariant<?>> user = new HashMap<>();
+            user.put("nick", new QVariant<>(nick, QVariantType.String));
+            user.put("user", new QVariant<>("fake", QVariantType.String));
+            user.put("host", new QVariant<>("fake.example", QVariantType.String));
+            user.put("realName", new QVariant<>("Fake user " + i, QVariantType.String));
+            user.put("away", new QVariant<>(false, QVariantType.Bool));
+            user.put("awayMessage", new QVariant<>("", QVariantType.String));
+            user.put("ircOperator", new QVariant<>("", QVariantType.String));
+            user.put("server", new QVariant<>("fake.example", QVariantType.String));
+            user.put("channels", new QVariant<>(channelNames, QVariantType.StringList));
+            users.put(nick + "!fake@fake.example", new QVariant<>(user, QVariantType.Map));
+            userModes.put(nick, new QVariant<>(i == 0 ? "o" : "", QVariantType.String));
+        }
+
+        Map<String, QVariant<?>> channels = new HashMap<>();
+        for (String name : channelNames) {
+            Map<String, QVariant<?>> channel = new HashMap<>();
+            channel.put("name", new QVariant<>(name, QVariantType.String));
+            channel.put("topic", new QVariant<>("Topic of " + name, QVariantType.String));
+            channel.put("UserModes", new QVariant<>(userModes, QVariantType.Map));
+            channels.put(name, new QVariant<>(channel, QVariantType.Map));
+        }
+
+        Map<String, QVariant<?>> usersAndChannels = new HashMap<>();
+        usersAndChannels.put("users", new QVariant<>(users, QVariantType.Map));
+        usersAndChannels.put("channels", new QVariant<>(channels, QVariantType.Map));
+
+        Map<String, QVariant<?>> network = new HashMap<>();
+        network.put("networkName", new QVariant<>("Fake network " + networkId, QVariantType.String));
+        network.put("myNick", new QVariant<>("user0", QVariantType.String));
+        network.put("latency", new QVariant<>(0, QVariantType.Int));
+        network.put("currentServer", new QVariant<>("fake.example", QVariantType.String));
+        network.put("identityId", new QVariant<>(1, "IdentityId"));
+        network.put("isConnected", new QVariant<>(true, QVariantType.Bool));
+        network.put("IrcUsersAndChannels", new QVariant<>(usersAndChannels, QVariantType.Map));
+        return network;
+    }
+
+    /**
+     * Backlog ids are laid out per buffer below the ids of the live messages, newest first like a real core sends them
+     */
+    private List<QVariant<?>> createBacklog(BufferInfo info, int first, int limit) {
+        int firstId = (info.id - 1) * scenario.backlogPerBuffer + 1;
+        int count = scenario.backlogPerBuffer;
+        if (first > 0) count = Math.min(count, lastBacklogId(info) - first + 1);
+        if (limit > 0) count = Math.min(count, limit);
+
+        List<QVariant<?>> messages = new ArrayList<>(Math.max(count, 0));
+        for (int id = lastBacklogId(info); id > lastBacklogId(info) - count && id >= firstId; id--) {
+            messages.add(new QVariant<>(createMessage(id, info), "Message"));
+        }
+        return messages;
+    }
+
+    private int lastBacklogId(BufferInfo info) {
+        return info.id * scenario.backlogPerBuffer;
+    }
+
+    private IrcMessage createMessage(int id, BufferInfo info) {
+        IrcMessage message = new IrcMessage();
+        message.messageId = id;
+        message.timestamp = new Date();
+        message.type = IrcMessage.Type.Plain;
+        message.bufferInfo = info;
+        message.setSender("user" + (id % Math.max(scenario.usersPerNetwork, 1)) + "!fake@fake.example");
+        message.content = SpannableString.valueOf("Message " + id + " in " + info.name);
+        return message;
+    }
+
+    private void startEmitter() {
+        stopEmitter();
+        emitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(scenario.messagesPerSecond, 1);
+                long next = System.nanoTime();
+                int id = bufferInfos.size() * scenario.backlogPerBuffer + 1;
+                try {
+                    for (int i = 0; i < scenario.messageCount && running; i++) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                        next += interval;
+
+                        BufferInfo info = bufferInfos.get(random.nextInt(bufferInfos.size()));
+                        IrcMessage message = createMessage(id++, info);
+                        listener.onMessageEmitted(message, System.nanoTime());
+                        send(new RpcCall("2displayMsg(Message)", new QVariant<>(message, "Message")));
+                    }
+                    listener.onFinished();
+                    // Keep the client from timing out while the results are looked at
+                    while (running) {
+                        Thread.sleep(HEARTBEAT_INTERVAL);
+                        send(new HeartBeat(System.currentTimeMillis(), false));
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (IOException e) {
+                    Log.e(TAG, "Lost client while sending messages", e);
+                }
+            }
+        }, TAG + "-emitter");
+        emitter.start();
+    }
+
+    private void stopEmitter() {
+        if (emitter != null) {
+            emitter.interrupt();
+            emitter = null;
+        }
+    }
+
+    private void closeClient() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close client socket", e);
+        }
+        socket = null;
+    }
+
+    private Map<String, QVariant<?>> readHandshake() throws IOException, EmptyQVariantException {
+        inStream.readUInt(32); // Length
+        return codec.readHandshake(inStream);
+    }
+
+    private static void expect(Map<String, QVariant<?>> message, String msgType) throws IOException {
+        QVariant<?> type = message.get("MsgType");
+        if (type == null || !msgType.equals(type.toString())) {
+            throw new IOException("Expected " + msgType + ", got " + type);
+        }
+    }
+
+    private synchronized void sendHandshake(Map<String, QVariant<?>> message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeHandshake(new QDataOutputStream(baos), message);
+        writePacket(baos);
+    }
+
+    private synchronized void send(SignalProxyMessage message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.write(new QDataOutputStream(baos), message);
+        writePacket(baos);
+    }
+
+    private void writePacket(ByteArrayOutputStream baos) throws IOException {
+        outStream.writeUInt(baos.size(), 32);
+        outStream.write(baos.toByteArray());
+        outStream.flush();
+    }
+
+    private static BufferInfo createBufferInfo(int id, int networkId, BufferInfo.Type type, String name) {
+        BufferInfo info = new BufferInfo();
+        info.id = id;
+        info.networkId = networkId;
+        info.type = type;
+        info.name = name;
+        return info;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.debug;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Starts and stops a {@link LoadTestRunner} from adb, e.g.
+ * <pre>
+ * adb shell am broadcast -n com.iskrembilen.quasseldroid.debug/com.iskrembilen.quasseldroid.debug.FakeCoreReceiver \
+ *     -a com.iskrembilen.quasseldroid.debug.START_FAKE_CORE --ei port 4242 \
+ *     --ei networks 5 --ei buffers 100 --ei users 500 --ei messages 5000 --ei rate 200 --ez ssl true
+ * adb shell am broadcast -n com.iskrembilen.quasseldroid.debug/com.iskrembilen.quasseldroid.debug.FakeCoreReceiver \
+ *     -a com.iskrembilen.quasseldroid.debug.STOP_FAKE_CORE
+ * </pre>
+ * and then connect to 127.0.0.1 on the given port with any user name and password. With
+ * {@code ssl} the core offers TLS with the certificate bundled in debug builds. The receiver
+ * requires the DUMP permission, so only the shell can send these.
+ */
+public class FakeCoreReceiver extends BroadcastReceiver {
+    private static final String TAG = FakeCoreReceiver.class.getSimpleName();
+
+    public static final String ACTION_START = "com.iskrembilen.quasseldroid.debug.START_FAKE_CORE";
+    public static final String ACTION_STOP = "com.iskrembilen.quasseldroid.debug.STOP_FAKE_CORE";
+
+    private static LoadTestRunner runner;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (runner != null) {
+            runner.stop();
+            runner = null;
+        }
+        if (!ACTION_START.equals(intent.getAction())) return;
+
+        FakeCore.Scenario scenario = new FakeCore.Scenario();
+        scenario.networks = intent.getIntExtra("networks", scenario.networks);
+        scenario.buffersPerNetwork = intent.getIntExtra("buffers", scenario.buffersPerNetwork);
+        scenario.usersPerNetwork = intent.getIntExtra("users", scenario.usersPerNetwork);
+        scenario.backlogPerBuffer = intent.getIntExtra("backlog", scenario.backlogPerBuffer);
+        scenario.messageCount = intent.getIntExtra("messages", scenario.messageCount);
+        scenario.messagesPerSecond = intent.getIntExtra("rate", scenario.messagesPerSecond);
+        scenario.compression = intent.getBooleanExtra("compression", scenario.compression);
+        if (intent.getBooleanExtra("ssl", false)) {
+            try {
+                scenario.sslContext = FakeCore.createDebugSslContext(context);
+            } catch (IOException | GeneralSecurityException e) {
+                Log.e(TAG, "Failed to load the debug keystore", e);
+                return;
+            }
+        }
+
+        runner = new LoadTestRunner(scenario);
+        try {
+            int port = runner.start(intent.getIntExtra("port", 4242));
+            Log.i(TAG, "Fake core ready, connect to 127.0.0.1:" + port);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start fake core", e);
+            runner = null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.debug;
+
+import android.util.Log;
+
+import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.protocol.state.Buffer;
+import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
+import com.iskrembilen.quasseldroid.protocol.state.Client;
+import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link FakeCore} scenario and measures the latency from the core emitting a live message
+ * to the message being inserted into its {@link Buffer} in the client, by observing the buffers.
+ * The percentiles are logged once all messages were sent and the stragglers had time to arrive.
+ */
+public class LoadTestRunner implements FakeCore.Listener, Observer {
+    private static final String TAG = LoadTestRunner.class.getSimpleName();
+
+    /**
+     * How long to wait for the last messages after the core sent them
+     */
+    private static final long SETTLE_TIME = 5000;
+
+    private final FakeCore core;
+    private final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+    private final Set<Integer> observedBuffers = new HashSet<>();
+    private final List<Long> latencies = new ArrayList<>();
+    private int emitted;
+    private int unobserved;
+
+    public LoadTestRunner(FakeCore.Scenario scenario) {
+        core = new FakeCore(scenario, this);
+    }
+
+    /**
+     * @return the port the fake core listens on, connect the client to 127.0.0.1 on this port
+     */
+    public int start(int port) throws IOException {
+        return core.start(port);
+    }
+
+    public void stop() {
+        core.stop();
+        for (Integer bufferId : observedBuffers) {
+            Buffer buffer = Client.getInstance().getNetworks().getBufferById(bufferId);
+            if (buffer != null) buffer.deleteObserver(this);
+        }
+    }
+
+    @Override
+    public void onSessionReady(List<BufferInfo> buffers) {
+        Log.i(TAG, "Client finished init, " + buffers.size() + " buffers");
+        for (BufferInfo info : buffers) {
+            observe(info.id);
+        }
+    }
+
+    @Override
+    public void onMessageEmitted(IrcMessage message, long emittedAt) {
+        emitted++;
+        // The service may add the networks after the core saw the init requests
+        if (observe(message.bufferInfo.id)) {
+            pending.put(message.messageId, emittedAt);
+        } else {
+            unobserved++;
+        }
+    }
+
+    @Override
+    public void onFinished() {
+        try {
+            Thread.sleep(SETTLE_TIME);
+        } catch (InterruptedException e) {
+            return;
+        }
+        report();
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        if (!(data instanceof Integer) || (Integer) data != R.id.BUFFERUPDATE_NEWMESSAGE) return;
+        long now = System.nanoTime();
+        Buffer buffer = (Buffer) observable;
+        IrcMessage message = buffer.getUnfilteredBacklogEntry(buffer.getUnfilteredSize() - 1);
+        Long emittedAt = pending.remove(message.messageId);
+        if (emittedAt != null) {
+            synchronized (latencies) {
+                latencies.add(now - emittedAt);
+            }
+        }
+    }
+
+    private synchronized boolean observe(int bufferId) {
+        if (observedBuffers.contains(bufferId)) return true;
+        Buffer buffer = Client.getInstance().getNetworks().getBufferById(bufferId);
+        if (buffer == null) return false;
+        buffer.addObserver(this);
+        observedBuffers.add(bufferId);
+        return true;
+    }
+
+    private void report() {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        Log.i(TAG, String.format(Locale.US, "Emitted %d, received %d, lost %d, unobserved %d",
+                emitted, sorted.length, pending.size(), unobserved));
+        if (sorted.length == 0) return;
+        Log.i(TAG, String.format(Locale.US, "Emission to buffer insertion: p50 %.2fms, p95 %.2fms, p99 %.2fms, max %.2fms",
+                toMillis(percentile(sorted, 50)), toMillis(percentile(sorted, 95)),
+                toMillis(percentile(sorted, 99)), toMillis(sorted[sorted.length - 1])));
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
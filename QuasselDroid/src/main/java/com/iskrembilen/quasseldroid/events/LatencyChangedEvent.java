@@ -23,11 +23,22 @@
 
 package com.iskrembilen.quasseldroid.events;
 
+import com.iskrembilen.quasseldroid.io.LatencyHistogram;
+
 public class LatencyChangedEvent {
 
     public final int latency;
+    /**
+     * Percentiles of the recent samples, null if there are none yet
+     */
+    public final LatencyHistogram.Snapshot percentiles;
 
     public LatencyChangedEvent(int latency) {
+        this(latency, null);
+    }
+
+    public LatencyChangedEvent(int latency, LatencyHistogram.Snapshot percentiles) {
         this.latency = latency;
+        this.percentiles = percentiles;
     }
 }
@@ -58,12 +58,16 @@ import com.iskrembilen.quasseldroid.gui.dialogs.TopicViewDialog;
 import com.iskrembilen.quasseldroid.gui.fragments.*;
 import com.iskrembilen.quasseldroid.gui.settings.SettingsActivity;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
+import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
+import com.iskrembilen.quasseldroid.protocol.state.Network;
 import com.iskrembilen.quasseldroid.protocol.state.NetworkCollection;
 import com.iskrembilen.quasseldroid.service.InFocus;
 import com.iskrembilen.quasseldroid.util.BusProvider;
+import com.iskrembilen.quasseldroid.util.FrameMonitor;
 import com.iskrembilen.quasseldroid.util.Helper;
 import com.iskrembilen.quasseldroid.util.MessageUtil;
+import com.iskrembilen.quasseldroid.util.StateThread;
 import com.iskrembilen.quasseldroid.util.ThemeUtil;
 import com.squareup.otto.Produce;
 import com.squareup.otto.Subscribe;
@@ -87,6 +91,10 @@ public class MainActivity extends AppCompatActivity {
     private Side openedDrawer = Side.NONE;
     private CharSequence topic;
     private boolean bufferHasTopic;
+    /**
+     * What the action bar shows, null if no buffer is open
+     */
+    private BufferTitle title;
     private boolean connectionEstablished = false;
     private ServiceConnection focusConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName cn, IBinder service) {
@@ -157,7 +165,6 @@ public class MainActivity extends AppCompatActivity {
     @Subscribe
     public void onBufferDetailsChanged(BufferDetailsChangedEvent event) {
         if (event.bufferId == openedBuffer) {
-            topic = Client.getInstance().getNetworks().getBufferById(openedBuffer).getTopic();
             setTitleAndMenu();
         }
     }
@@ -220,6 +227,7 @@ public class MainActivity extends AppCompatActivity {
         manager.setupDrawer();
 
         BusProvider.getInstance().register(this);
+        FrameMonitor.start();
 
         if (ThemeUtil.themeNoActionBarDrawStatusBar != currentTheme) {
             Log.d(TAG, "Changing theme");
@@ -248,25 +256,40 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void loadBufferAndDrawerState() {
-        NetworkCollection networks = Client.getInstance().getNetworks();
-        if (networks != null) {
-            if (openedBuffer == -1 || networks.getBufferById(openedBuffer) == null) {
-                Log.d(TAG, "Loading state: Empty");
-                openedBuffer = -1;
-                BusProvider.getInstance().post(new BufferOpenedEvent(-1, false));
-                manager.openDrawer(Side.LEFT);
-            } else {
-                Log.d(TAG, "Loading state: " + openedBuffer);
-                manager.openDrawer(openedDrawer);
-                BusProvider.getInstance().post(new BufferOpenedEvent(openedBuffer, true));
+        final NetworkCollection networks = Client.getInstance().getNetworks();
+        if (networks == null)
+            return;
+        final int bufferId = openedBuffer;
+        StateThread.query(new StateThread.Query<Boolean>() {
+            @Override
+            public Boolean read() {
+                return bufferId != -1 && networks.getBufferById(bufferId) != null;
             }
-        }
+        }, new StateThread.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean exists) {
+                if (bufferId != openedBuffer)
+                    return;
+                if (!exists) {
+                    Log.d(TAG, "Loading state: Empty");
+                    openedBuffer = -1;
+                    BusProvider.getInstance().post(new BufferOpenedEvent(-1, false));
+                    manager.openDrawer(Side.LEFT);
+                    setTitleAndMenu();
+                } else {
+                    Log.d(TAG, "Loading state: " + openedBuffer);
+                    manager.openDrawer(openedDrawer);
+                    BusProvider.getInstance().post(new BufferOpenedEvent(openedBuffer, true));
+                }
+            }
+        });
     }
 
     @Override
     protected void onPause() {
         Log.d(TAG, "Pausing activity");
         BusProvider.getInstance().unregister(this);
+        FrameMonitor.stop();
         manager.cleanupMenus();
         super.onPause();
     }
@@ -386,7 +409,9 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void showDetailPopup() {
-        TopicViewDialog.newInstance(openedBuffer).show(getSupportFragmentManager(), TAG);
+        if (title == null)
+            return;
+        TopicViewDialog.newInstance(openedBuffer, title.type, title.title, title.topic).show(getSupportFragmentManager(), TAG);
     }
 
     @Subscribe
@@ -418,29 +443,89 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Subscribe
-    public void onBufferOpened(BufferOpenedEvent event) {
-        NetworkCollection networks = Client.getInstance().getNetworks();
-
-        if (event.bufferId != -1
-                && networks.getBufferById(event.bufferId) != null
-                && networks.getNetworkById(networks.getBufferById(event.bufferId).getInfo().networkId) != null) {
-            openedBuffer = event.bufferId;
-            ((ChatFragment) manager.chatFragment).setBuffer(event.bufferId);
-            if (event.switchToBuffer) {
-                manager.closeDrawer(Side.BOTH);
-                ((BufferFragment) manager.bufferFragment).finishActionMode();
-                updateBufferRead();
-                setTitleAndMenu();
-            }
-        } else {
+    public void onBufferOpened(final BufferOpenedEvent event) {
+        final NetworkCollection networks = Client.getInstance().getNetworks();
+        if (event.bufferId == -1 || networks == null) {
             Log.d(TAG, "Buffer Opened Event was faulty");
+            return;
+        }
+
+        StateThread.query(new StateThread.Query<Boolean>() {
+            @Override
+            public Boolean read() {
+                Buffer buffer = networks.getBufferById(event.bufferId);
+                return buffer != null && networks.getNetworkById(buffer.getInfo().networkId) != null;
+            }
+        }, new StateThread.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean exists) {
+                if (!exists) {
+                    Log.d(TAG, "Buffer Opened Event was faulty");
+                    return;
+                }
+                openedBuffer = event.bufferId;
+                ((ChatFragment) manager.chatFragment).setBuffer(event.bufferId);
+                if (event.switchToBuffer) {
+                    manager.closeDrawer(Side.BOTH);
+                    ((BufferFragment) manager.bufferFragment).finishActionMode();
+                    updateBufferRead();
+                    setTitleAndMenu();
+                }
+            }
+        });
+    }
+
+    /**
+     * What the action bar shows for a buffer, copied on the state thread
+     */
+    private static class BufferTitle {
+        final BufferInfo.Type type;
+        final String title;
+        final String topic;
+
+        BufferTitle(BufferInfo.Type type, String title, String topic) {
+            this.type = type;
+            this.title = title;
+            this.topic = topic;
+        }
+
+        /**
+         * @return null if the buffer doesn't exist, only call on the state thread
+         */
+        static BufferTitle read(NetworkCollection networks, int bufferId) {
+            Buffer buffer = networks == null ? null : networks.getBufferById(bufferId);
+            if (buffer == null)
+                return null;
+            String title = buffer.getInfo().name;
+            if (buffer.getInfo().type == BufferInfo.Type.StatusBuffer) {
+                Network network = networks.getNetworkById(buffer.getInfo().networkId);
+                if (network != null)
+                    title = network.getName();
+            }
+            return new BufferTitle(buffer.getInfo().type, title, buffer.getTopic());
         }
     }
 
     private void setTitleAndMenu() {
-        NetworkCollection networks = Client.getInstance().getNetworks();
-        Buffer buffer = networks.getBufferById(openedBuffer);
+        final NetworkCollection networks = Client.getInstance().getNetworks();
+        final int bufferId = openedBuffer;
+        StateThread.query(new StateThread.Query<BufferTitle>() {
+            @Override
+            public BufferTitle read() {
+                return BufferTitle.read(networks, bufferId);
+            }
+        }, new StateThread.Callback<BufferTitle>() {
+            @Override
+            public void onResult(BufferTitle title) {
+                // Another buffer was opened in the meantime, its own title follows
+                if (bufferId == openedBuffer)
+                    showTitleAndMenu(title);
+            }
+        });
+    }
 
+    private void showTitleAndMenu(BufferTitle buffer) {
+        title = buffer;
         manager.chatFragment.setMenuVisibility(true);
 
         if (buffer == null) {
@@ -448,32 +533,32 @@ public class MainActivity extends AppCompatActivity {
             actionbar.setTitle(getResources().getString(R.string.app_name));
             topic = null;
         } else {
-            switch (buffer.getInfo().type) {
+            switch (buffer.type) {
                 case QueryBuffer:
                     bufferHasTopic = false;
                     manager.setFragment(R.id.right_drawer, manager.detailFragment);
                     manager.lockDrawer(Side.RIGHT, DrawerLayout.LOCK_MODE_UNLOCKED);
-                    actionbar.setTitle(buffer.getInfo().name);
-                    topic = buffer.getTopic();
+                    actionbar.setTitle(buffer.title);
+                    topic = buffer.topic;
                     break;
                 case StatusBuffer:
                     bufferHasTopic = true;
                     manager.lockDrawer(Side.RIGHT, DrawerLayout.LOCK_MODE_LOCKED_CLOSED);
-                    actionbar.setTitle(networks.getNetworkById(buffer.getInfo().networkId).getName());
-                    topic = buffer.getTopic();
+                    actionbar.setTitle(buffer.title);
+                    topic = buffer.topic;
                     break;
                 case ChannelBuffer:
                     bufferHasTopic = true;
                     manager.setFragment(R.id.right_drawer, manager.nickFragment);
                     manager.lockDrawer(Side.RIGHT, DrawerLayout.LOCK_MODE_UNLOCKED);
-                    actionbar.setTitle(buffer.getInfo().name);
-                    topic = buffer.getTopic();
+                    actionbar.setTitle(buffer.title);
+                    topic = buffer.topic;
                     break;
                 default:
                     bufferHasTopic = false;
-                    actionbar.setTitle(buffer.getInfo().name);
+                    actionbar.setTitle(buffer.title);
                     manager.lockDrawer(Side.RIGHT, DrawerLayout.LOCK_MODE_LOCKED_CLOSED);
-                    topic = buffer.getTopic();
+                    topic = buffer.topic;
             }
             if (topic != null)
                 topic = MessageUtil.parseStyleCodes(this, topic.toString(), preferences.getBoolean(getResources().getString(R.string.preference_colored_text), true));
@@ -38,8 +38,6 @@ import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.events.FilterMessagesEvent;
 import com.iskrembilen.quasseldroid.util.BusProvider;
 
-import java.util.ArrayList;
-
 public class HideEventsDialog extends DialogFragment {
 
     public static @NonNull HideEventsDialog newInstance(Buffer buffer) {
@@ -47,9 +45,9 @@ public class HideEventsDialog extends DialogFragment {
 
         String[] filterList = IrcMessage.Type.getFilterList();
         boolean[] checked = new boolean[filterList.length];
-        ArrayList<IrcMessage.Type> filters = buffer.getFilters();
+        int filterMask = buffer.getFilterMask();
         for (int i = 0; i < checked.length; i++) {
-            checked[i] = (filters.contains(IrcMessage.Type.valueOf(filterList[i])));
+            checked[i] = (filterMask & IrcMessage.Type.valueOf(filterList[i]).getValue()) != 0;
         }
 
         Bundle args = new Bundle();
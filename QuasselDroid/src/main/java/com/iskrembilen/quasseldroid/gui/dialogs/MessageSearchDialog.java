@@ -0,0 +1,173 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.gui.dialogs;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.DialogFragment;
+import android.text.format.DateUtils;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.events.BufferOpenedEvent;
+import com.iskrembilen.quasseldroid.io.MessageSearchIndex;
+import com.iskrembilen.quasseldroid.util.BusProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Searches the messages kept by {@link MessageSearchIndex} for the current core, picking a result
+ * opens its buffer
+ */
+public class MessageSearchDialog extends DialogFragment {
+
+    private static final int MAX_RESULTS = 100;
+
+    // Queries go to disk, keep them off the UI thread and in order
+    private static final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+
+    private EditText searchField;
+    private TextView statusView;
+    private ArrayAdapter<String> adapter;
+    private final List<MessageSearchIndex.Result> results = new ArrayList<>();
+
+    public static MessageSearchDialog newInstance(long coreId) {
+        MessageSearchDialog fragment = new MessageSearchDialog();
+        Bundle args = new Bundle();
+        args.putLong("coreid", coreId);
+        fragment.setArguments(args);
+
+        return fragment;
+    }
+
+    @Override
+    public @NonNull Dialog onCreateDialog(@NonNull Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+
+        View dialog = getActivity().getLayoutInflater().inflate(R.layout.dialog_search_messages, null);
+
+        searchField = (EditText) dialog.findViewById(R.id.dialog_search_messages_field);
+        statusView = (TextView) dialog.findViewById(R.id.dialog_search_messages_status);
+        ListView resultList = (ListView) dialog.findViewById(R.id.dialog_search_messages_results);
+
+        adapter = new ArrayAdapter<>(getActivity(), android.R.layout.simple_list_item_1);
+        resultList.setAdapter(adapter);
+        resultList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                BusProvider.getInstance().post(new BufferOpenedEvent(results.get(position).bufferId, true));
+                dismiss();
+            }
+        });
+
+        final MessageSearchIndex index = MessageSearchIndex.getInstance(getActivity());
+        if (index.isEnabled()) {
+            searchField.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+                @Override
+                public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                    if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                        search(index, searchField.getText().toString());
+                        return true;
+                    }
+                    return false;
+                }
+            });
+            showStats(index);
+        } else {
+            searchField.setEnabled(false);
+            statusView.setText(R.string.dialog_message_search_disabled);
+        }
+
+        builder.setView(dialog)
+                .setTitle(getResources().getString(R.string.dialog_title_search_messages))
+                .setNegativeButton(getResources().getString(R.string.action_close), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        getDialog().dismiss();
+                    }
+                });
+        return builder.create();
+    }
+
+    private void showStats(final MessageSearchIndex index) {
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MessageSearchIndex.Stats stats = index.getStats();
+                statusView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded())
+                            statusView.setText(getString(R.string.dialog_message_search_stats, stats.messages));
+                    }
+                });
+            }
+        });
+    }
+
+    private void search(final MessageSearchIndex index, final String text) {
+        if (text.trim().isEmpty())
+            return;
+        final long coreId = getArguments().getLong("coreid");
+        final Context context = getActivity().getApplicationContext();
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MessageSearchIndex.Result> found = index.search(coreId, text, null, -1, 0, Long.MAX_VALUE, MAX_RESULTS);
+                final List<String> lines = new ArrayList<>(found.size());
+                for (MessageSearchIndex.Result result : found) {
+                    lines.add(String.format("%s <%s> %s",
+                            DateUtils.formatDateTime(context, result.time, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL),
+                            result.nick, result.content));
+                }
+                statusView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isAdded())
+                            return;
+                        results.clear();
+                        results.addAll(found);
+                        adapter.clear();
+                        adapter.addAll(lines);
+                        statusView.setText(getString(R.string.dialog_message_search_results, found.size()));
+                    }
+                });
+            }
+        });
+    }
+}
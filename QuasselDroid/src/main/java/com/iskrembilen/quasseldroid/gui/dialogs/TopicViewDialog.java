@@ -40,10 +40,12 @@ import android.widget.TextView;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
+import com.iskrembilen.quasseldroid.protocol.state.NetworkCollection;
 import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.events.BufferDetailsChangedEvent;
 import com.iskrembilen.quasseldroid.util.BusProvider;
 import com.iskrembilen.quasseldroid.util.MessageUtil;
+import com.iskrembilen.quasseldroid.util.StateThread;
 import com.squareup.otto.Subscribe;
 
 public class TopicViewDialog extends DialogFragment {
@@ -51,14 +53,22 @@ public class TopicViewDialog extends DialogFragment {
     private static final String TAG = TopicViewDialog.class.getSimpleName();
 
     private int id;
+    private BufferInfo.Type type;
+    private String title;
+    private String topic;
 
     private AlertDialog mDialog;
-    private Buffer mBuffer;
 
-    public static TopicViewDialog newInstance(int id) {
+    /**
+     * @param title the name of the buffer, or of the network for status buffers
+     */
+    public static TopicViewDialog newInstance(int id, BufferInfo.Type type, String title, String topic) {
         TopicViewDialog fragment = new TopicViewDialog();
         Bundle args = new Bundle();
         args.putInt("id", id);
+        args.putSerializable("type", type);
+        args.putString("title", title);
+        args.putString("topic", topic);
         fragment.setArguments(args);
 
         return fragment;
@@ -72,16 +82,39 @@ public class TopicViewDialog extends DialogFragment {
 
     @Subscribe
     public void onBufferDetailsChanged(BufferDetailsChangedEvent event) {
-        if (event.bufferId == id && mBuffer != null) {
-            mDialog.setTitle(mBuffer.getInfo().name);
-            setTopic(mBuffer.getTopic());
-        }
-        if (Client.getInstance() == null || Client.getInstance().getNetworks() == null || Client.getInstance().getNetworks().getBufferById(event.bufferId) == null) {
+        if (event.bufferId != id)
+            return;
+        final NetworkCollection networks = Client.getInstance() == null ? null : Client.getInstance().getNetworks();
+        if (networks == null) {
             dismiss();
-        } else {
-            Buffer buffer = Client.getInstance().getNetworks().getBufferById(event.bufferId);
-            setTopic(buffer.getTopic());
+            return;
         }
+        StateThread.query(new StateThread.Query<String[]>() {
+            @Override
+            public String[] read() {
+                Buffer buffer = networks.getBufferById(id);
+                if (buffer == null)
+                    return null;
+                String title = buffer.getInfo().name;
+                if (buffer.getInfo().type == BufferInfo.Type.StatusBuffer && networks.getNetworkById(buffer.getInfo().networkId) != null)
+                    title = networks.getNetworkById(buffer.getInfo().networkId).getName();
+                return new String[]{title, buffer.getTopic()};
+            }
+        }, new StateThread.Callback<String[]>() {
+            @Override
+            public void onResult(String[] details) {
+                if (mDialog == null)
+                    return;
+                if (details == null) {
+                    dismiss();
+                    return;
+                }
+                title = details[0];
+                topic = details[1];
+                mDialog.setTitle(title);
+                setTopic(topic);
+            }
+        });
     }
 
     public void setTopic(CharSequence topic) {
@@ -96,7 +129,9 @@ public class TopicViewDialog extends DialogFragment {
     @Override
     public @NonNull Dialog onCreateDialog(@Nullable Bundle savedInstanceState) {
         id = getArguments().getInt("id");
-        mBuffer = Client.getInstance().getNetworks().getBufferById(id);
+        type = (BufferInfo.Type) getArguments().getSerializable("type");
+        title = getArguments().getString("title");
+        topic = getArguments().getString("topic");
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         LayoutInflater inflater = getActivity().getLayoutInflater();
@@ -105,19 +140,13 @@ public class TopicViewDialog extends DialogFragment {
 
         View view = getActivity().getLayoutInflater().inflate(R.layout.dialog_simple_view, null);
         TextView topicField = (TextView) view.findViewById(R.id.dialog_simple_text);
-        topicField.setText(MessageUtil.parseStyleCodes(getActivity(), mBuffer.getTopic(), preferences.getBoolean(getResources().getString(R.string.preference_colored_text),true)));
+        topicField.setText(MessageUtil.parseStyleCodes(getActivity(), topic, preferences.getBoolean(getResources().getString(R.string.preference_colored_text),true)));
         if (preferences.getBoolean(getString(R.string.preference_monospace), false)) {
             topicField.setTypeface(Typeface.MONOSPACE);
         }
 
-        String bufferName;
-        if (mBuffer.getInfo().type== BufferInfo.Type.StatusBuffer)
-            bufferName = Client.getInstance().getNetworks().getNetworkById(mBuffer.getInfo().networkId).getName();
-        else
-            bufferName = mBuffer.getInfo().name;
-
         builder.setView(view)
-                .setTitle(bufferName)
+                .setTitle(title)
                 .setPositiveButton(getString(R.string.action_close), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
@@ -127,7 +156,8 @@ public class TopicViewDialog extends DialogFragment {
                 .setNeutralButton(getString(R.string.action_edit), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        TopicEditDialog.newInstance(mBuffer.getTopic(),mBuffer.getInfo().name,id).show(getFragmentManager(),TAG);
+                        // Only channels can be edited, their title is the buffer name
+                        TopicEditDialog.newInstance(topic,title,id).show(getFragmentManager(),TAG);
                     }
                 });
 
@@ -136,7 +166,7 @@ public class TopicViewDialog extends DialogFragment {
         mDialog.setOnShowListener(new DialogInterface.OnShowListener() {
             @Override
             public void onShow(DialogInterface dialog) {
-                if (mBuffer.getInfo().type != BufferInfo.Type.ChannelBuffer) {
+                if (type != BufferInfo.Type.ChannelBuffer) {
                     mDialog.getButton(AlertDialog.BUTTON_NEUTRAL).setEnabled(false);
                 }
             }
@@ -49,9 +49,15 @@ import com.iskrembilen.quasseldroid.protocol.state.*;
 import com.iskrembilen.quasseldroid.util.BufferCollectionHelper;
 import com.iskrembilen.quasseldroid.util.BufferHelper;
 import com.iskrembilen.quasseldroid.util.BusProvider;
+import com.iskrembilen.quasseldroid.util.CoalescingObserver;
+import com.iskrembilen.quasseldroid.util.SnapshotPublisher;
+import com.iskrembilen.quasseldroid.util.StateThread;
 import com.squareup.otto.Subscribe;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
@@ -422,7 +428,6 @@ public class BufferFragment extends Fragment implements Serializable {
     @Subscribe
     public void onNetworksAvailable(NetworksAvailableEvent event) {
         if (event.networks != null) {
-            event.networks.addObserver(bufferListAdapter);
             bufferListAdapter.setNetworks(event.networks);
         }
     }
@@ -450,6 +455,7 @@ public class BufferFragment extends Fragment implements Serializable {
 
     public static class ViewHolderChild {
         public TextView bufferView;
+        public TextView countView;
         public ImageView stateView;
     }
 
@@ -464,12 +470,49 @@ public class BufferFragment extends Fragment implements Serializable {
         if (bufferListAdapter!=null) bufferListAdapter.setNetworks(networks);
     }
 
-    public class BufferListAdapter extends AnimatedExpandableListView.AnimatedExpandableListAdapter implements Observer {
-        private NetworkCollection networks;
+    public class BufferListAdapter extends AnimatedExpandableListView.AnimatedExpandableListAdapter {
+        private volatile NetworkCollection networks;
         private final LayoutInflater inflater;
         private final Activity activity;
 
-        private Set<Predicate<Buffer>> filters = DEFAULT_FITLERS;
+        private volatile Set<Predicate<Buffer>> filters = DEFAULT_FITLERS;
+        /**
+         * What the list shows, copied on the state thread
+         */
+        private ListSnapshot snapshot = ListSnapshot.EMPTY;
+        /**
+         * Copies the list again when networks or buffers come and go or are reordered, at most once per frame
+         */
+        private final SnapshotPublisher<ListSnapshot> networksObserver = new SnapshotPublisher<ListSnapshot>() {
+            @Override
+            protected ListSnapshot build() {
+                return ListSnapshot.of(networks, filters);
+            }
+
+            @Override
+            protected void publish(ListSnapshot snapshot) {
+                show(snapshot);
+            }
+        };
+        /**
+         * Rows and groups that only need to be bound again, collected over a frame
+         */
+        private final Set<Integer> dirtyBuffers = new HashSet<>();
+        private final Set<Integer> dirtyNetworks = new HashSet<>();
+        /**
+         * Gets the changes of every buffer and network, a flood of them is handled once per frame
+         */
+        private final CoalescingObserver changeObserver = new CoalescingObserver(new Observer() {
+            @Override
+            public void update(Observable observable, Object data) {
+                onChange(data);
+            }
+        }) {
+            @Override
+            protected void onDelivered() {
+                rebindChanged();
+            }
+        };
 
         public BufferListAdapter(Activity activity) {
             this.inflater = LayoutInflater.from(activity);
@@ -480,36 +523,113 @@ public class BufferFragment extends Fragment implements Serializable {
             update(networks);
         }
 
-        @Override
-        public void update(Observable observable, Object data) {
-            update(Client.getInstance().getNetworks());
-        }
-
         public void update(NetworkCollection networks) {
-            if (this.networks!=null) this.networks.deleteObserver(this);
+            if (this.networks!=null) this.networks.deleteObserver(changeObserver);
+            changeObserver.clear();
 
             this.networks = networks;
-            if (networks != null)
-                networks.addObserver(this);
+            if (networks != null) {
+                networks.addObserver(changeObserver);
+                networksObserver.request();
+            } else {
+                networksObserver.cancel();
+                show(ListSnapshot.EMPTY);
+            }
+        }
 
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    notifyDataSetChanged();
-                    for (int group = 0; group < getGroupCount(); group++) {
-                        if (getGroup(group).isOpen()) bufferList.expandGroup(group);
-                        else bufferList.collapseGroup(group);
+        private void show(ListSnapshot snapshot) {
+            this.snapshot = snapshot;
+            dirtyBuffers.clear();
+            dirtyNetworks.clear();
+            notifyDataSetChanged();
+            for (int group = 0; group < getGroupCount(); group++) {
+                updateExpanded(group);
+            }
+        }
+
+        private void updateExpanded(int group) {
+            boolean open = getGroup(group).isOpen();
+            if (open != bufferList.isGroupExpanded(group)) {
+                if (open) bufferList.expandGroup(group);
+                else bufferList.collapseGroup(group);
+            }
+        }
+
+        /**
+         * Sorts a change into the rows to bind again, or asks for a new copy of the list if
+         * it changes what rows there are. Called on the UI thread
+         */
+        private void onChange(Object data) {
+            if (!(data instanceof BufferListChange)) {
+                networksObserver.request();
+                return;
+            }
+            BufferListChange change = (BufferListChange) data;
+            switch (change.type) {
+                case BUFFER_ACTIVITY:
+                    if (BufferCollectionHelper.filtersOnActivity(filters)) {
+                        networksObserver.request();
+                    } else {
+                        dirtyBuffers.add(change.bufferId);
                     }
+                    break;
+                case BUFFER:
+                    dirtyBuffers.add(change.bufferId);
+                    break;
+                case NETWORK:
+                    dirtyNetworks.add(change.networkId);
+                    break;
+                case NETWORK_BUFFERS:
+                    networksObserver.request();
+                    break;
+            }
+        }
+
+        /**
+         * Binds the visible rows of the changed buffers and networks again, without touching the rest of the list
+         */
+        private void rebindChanged() {
+            if (bufferList == null || (dirtyBuffers.isEmpty() && dirtyNetworks.isEmpty()))
+                return;
+            int first = bufferList.getFirstVisiblePosition();
+            for (int i = 0; i < bufferList.getChildCount(); i++) {
+                View view = bufferList.getChildAt(i);
+                long position = bufferList.getExpandableListPosition(first + i);
+                int group = ExpandableListView.getPackedPositionGroup(position);
+                switch (ExpandableListView.getPackedPositionType(position)) {
+                    case ExpandableListView.PACKED_POSITION_TYPE_GROUP:
+                        if (group < getGroupCount() && view.getTag() instanceof ViewHolderGroup && isGroupChanged(getGroup(group)))
+                            getGroupView(group, bufferList.isGroupExpanded(group), view, bufferList);
+                        break;
+                    case ExpandableListView.PACKED_POSITION_TYPE_CHILD:
+                        int child = ExpandableListView.getPackedPositionChild(position);
+                        Buffer buffer = getChild(group, child);
+                        if (buffer != null && view.getTag() instanceof ViewHolderChild
+                                && (dirtyBuffers.contains(buffer.getInfo().id) || dirtyNetworks.contains(buffer.getInfo().networkId)))
+                            getRealChildView(group, child, false, view, bufferList);
+                        break;
                 }
-            });
+            }
+            for (int group = 0; group < getGroupCount(); group++) {
+                if (dirtyNetworks.contains(getGroup(group).getId()))
+                    updateExpanded(group);
+            }
+            dirtyBuffers.clear();
+            dirtyNetworks.clear();
+        }
+
+        private boolean isGroupChanged(Network network) {
+            Buffer statusBuffer = network.getStatusBuffer();
+            return dirtyNetworks.contains(network.getId())
+                    || (statusBuffer != null && dirtyBuffers.contains(statusBuffer.getInfo().id));
         }
 
         @Override
         public Buffer getChild(int groupPosition, int childPosition) {
-            if (networks.getNetworkList().size() <= groupPosition) return null;
-            if (networks.getNetwork(groupPosition) == null) return null;
-            if (networks.getNetwork(groupPosition).getBuffers() == null) return null;
-            return networks.getNetwork(groupPosition).getBuffers().getPos(filters,childPosition);
+            if (snapshot.networks.size() <= groupPosition) return null;
+            List<Buffer> buffers = snapshot.buffers.get(groupPosition);
+            if (buffers.size() <= childPosition) return null;
+            return buffers.get(childPosition);
         }
 
         @Override
@@ -533,6 +653,7 @@ public class BufferFragment extends Fragment implements Serializable {
             holder.bufferView.setText((entry == null) ? "" : entry.getInfo().name);
 
             BufferUtils.setBufferViewStatus(getActivity(), entry, holder.bufferView);
+            BufferUtils.setBufferCountView(getActivity(), entry, holder.countView);
             return convertView;
         }
 
@@ -540,6 +661,7 @@ public class BufferFragment extends Fragment implements Serializable {
             View convertView = inflater.inflate(R.layout.widget_buffer_single, parent, false);
             ViewHolderChild holder = new ViewHolderChild();
             holder.bufferView = (TextView) convertView.findViewById(R.id.buffer_list_item_name);
+            holder.countView = (TextView) convertView.findViewById(R.id.buffer_list_item_count);
             holder.stateView = (ImageView) convertView.findViewById(R.id.buffer_status);
             convertView.setTag(holder);
             return convertView;
@@ -547,29 +669,23 @@ public class BufferFragment extends Fragment implements Serializable {
 
         @Override
         public int getRealChildrenCount(int groupPosition) {
-            if (networks != null) {
-                return networks.getNetwork(groupPosition).getBuffers().getBufferCount(filters);
-            }
-            return 0;
+            if (snapshot.buffers.size() <= groupPosition) return 0;
+            return snapshot.buffers.get(groupPosition).size();
         }
 
         @Override
         public Network getGroup(int groupPosition) {
-            return networks.getNetwork(groupPosition);
+            return snapshot.networks.get(groupPosition);
         }
 
         @Override
         public int getGroupCount() {
-            if (networks == null) {
-                return 0;
-            } else {
-                return networks.size();
-            }
+            return snapshot.networks.size();
         }
 
         @Override
         public long getGroupId(int groupPosition) {
-            return networks.getNetwork(groupPosition).getId();
+            return getGroup(groupPosition).getId();
         }
 
         @Override
@@ -647,23 +763,34 @@ public class BufferFragment extends Fragment implements Serializable {
         }
 
         public void clearBuffers() {
+            if (networks != null) networks.deleteObserver(changeObserver);
+            changeObserver.clear();
             networks = null;
+            networksObserver.cancel();
+            snapshot = ListSnapshot.EMPTY;
             notifyDataSetChanged();
         }
 
         public void stopObserving() {
             if (networks == null) return;
-            for (Network network : networks.getNetworkList())
-                network.deleteObserver(this);
+            networks.deleteObserver(changeObserver);
+            changeObserver.clear();
+            networksObserver.cancel();
         }
 
         public void init() {
-            if (this.networks != null)
-            for (Network network : this.networks.getNetworkList()) {
-                for (Buffer buffer : network.getBuffers().getBufferList(BufferCollectionHelper.FILTER_SET_ALL)) {
-                    BufferUtils.setBufferActive(buffer);
-                }
-            }
+            final NetworkCollection networks = this.networks;
+            if (networks != null)
+                StateThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Network network : networks.getNetworkList()) {
+                            for (Buffer buffer : network.getBuffers().getBufferList(BufferCollectionHelper.FILTER_SET_ALL)) {
+                                BufferUtils.setBufferActive(buffer);
+                            }
+                        }
+                    }
+                });
         }
 
         public void setFilters(Set<Predicate<Buffer>> filters) {
@@ -677,6 +804,38 @@ public class BufferFragment extends Fragment implements Serializable {
         bufferListAdapter.setFilters(bufferListAdapter.filters);
     }
 
+    /**
+     * The networks and the buffers the list shows for each of them, at one point in time
+     */
+    private static class ListSnapshot {
+        static final ListSnapshot EMPTY = new ListSnapshot(Collections.<Network>emptyList(), Collections.<List<Buffer>>emptyList());
+
+        final List<Network> networks;
+        final List<List<Buffer>> buffers;
+
+        ListSnapshot(List<Network> networks, List<List<Buffer>> buffers) {
+            this.networks = networks;
+            this.buffers = buffers;
+        }
+
+        /**
+         * Copy the networks and their filtered buffers, only call on the state thread
+         */
+        static ListSnapshot of(NetworkCollection collection, Set<Predicate<Buffer>> filters) {
+            if (collection == null)
+                return EMPTY;
+            List<Network> networks = new ArrayList<>(collection.getNetworkList());
+            List<List<Buffer>> buffers = new ArrayList<>(networks.size());
+            for (Network network : networks) {
+                if (network.getBuffers() == null)
+                    buffers.add(Collections.<Buffer>emptyList());
+                else
+                    buffers.add(new ArrayList<>(network.getBuffers().getBufferList(filters)));
+            }
+            return new ListSnapshot(networks, buffers);
+        }
+    }
+
     class ActionModeData {
         public int id;
         public int index;
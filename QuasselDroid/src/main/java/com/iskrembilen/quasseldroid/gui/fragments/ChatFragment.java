@@ -23,24 +23,27 @@
 
 package com.iskrembilen.quasseldroid.gui.fragments;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.graphics.Typeface;
-import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.renderscript.ScriptGroup;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v4.util.LruCache;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
+import android.text.Layout;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
-import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.text.style.StyleSpan;
@@ -55,20 +58,14 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
-import android.widget.AbsListView;
-import android.widget.AbsListView.OnScrollListener;
-import android.widget.ArrayAdapter;
-import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
-import android.widget.ListAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
 
-import com.iskrembilen.quasseldroid.gui.settings.IgnoreListFragment;
+import com.iskrembilen.quasseldroid.protocol.state.BacklogSnapshot;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
 import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
@@ -87,13 +84,17 @@ import com.iskrembilen.quasseldroid.events.NetworksAvailableEvent;
 import com.iskrembilen.quasseldroid.events.SendMessageEvent;
 import com.iskrembilen.quasseldroid.events.UpdateReadBufferEvent;
 import com.iskrembilen.quasseldroid.gui.dialogs.HideEventsDialog;
+import com.iskrembilen.quasseldroid.gui.dialogs.MessageSearchDialog;
 import com.iskrembilen.quasseldroid.util.BusProvider;
+import com.iskrembilen.quasseldroid.util.CoalescingObserver;
 import com.iskrembilen.quasseldroid.util.InputHistoryHelper;
 import com.iskrembilen.quasseldroid.util.MessageUtil;
 import com.iskrembilen.quasseldroid.util.NetsplitHelper;
 import com.iskrembilen.quasseldroid.util.NickCompletionHelper;
 import com.iskrembilen.quasseldroid.util.MessageFormattingHelper;
+import com.iskrembilen.quasseldroid.util.SortedListDiff;
 import com.iskrembilen.quasseldroid.util.SpanUtils;
+import com.iskrembilen.quasseldroid.util.StateThread;
 import com.iskrembilen.quasseldroid.util.ThemeUtil;
 import com.squareup.otto.Subscribe;
 
@@ -106,7 +107,9 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.kuschku.util.HelperUtils;
 
@@ -117,21 +120,24 @@ public class ChatFragment extends Fragment implements Serializable {
     private static final String BUFFER_ID = "bufferid";
     private static final String TAG = ChatFragment.class.getSimpleName();
     private static final String BUFFER_NAME = "buffername";
+    private static final int TEXT_CACHE_SIZE = 500;
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final ExecutorService textPrefetchExecutor = Executors.newSingleThreadExecutor();
     private SharedPreferences preferences;
     public BacklogAdapter adapter;
-    private ListView backlogList;
+    private RecyclerView backlogList;
+    private LinearLayoutManager layoutManager;
+    private final MessageTextCache textCache = new MessageTextCache();
     private EditText inputField;
     private ImageButton autoCompleteButton;
     private int dynamicBacklogAmount;
     private NickCompletionHelper nickCompletionHelper;
+    private InputHistoryHelper inputHistory;
     private int bufferId = -1;
     private boolean connected;
     private NetworkCollection networks;
     private String userFormat;
 
-    private boolean detailedActions;
-    private boolean nickBrackets;
-    private boolean parseColors;
     private boolean monospace;
     private SharedPreferences.OnSharedPreferenceChangeListener sharedPreferenceChangeListener;
 
@@ -145,7 +151,7 @@ public class ChatFragment extends Fragment implements Serializable {
         Log.d(TAG, "Creating fragment");
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
-        adapter = new BacklogAdapter(getActivity(), null);
+        adapter = new BacklogAdapter(getActivity());
         if (savedInstanceState != null && savedInstanceState.containsKey(BUFFER_ID)) {
             bufferId = savedInstanceState.getInt(BUFFER_ID);
         }
@@ -181,11 +187,13 @@ public class ChatFragment extends Fragment implements Serializable {
     }
 
     private void initPreferences() {
-        detailedActions = preferences.getBoolean(getString(R.string.preference_hostname),false);
-        parseColors = preferences.getBoolean(getResources().getString(R.string.preference_colored_text),true);
-        nickBrackets = preferences.getBoolean(getString(R.string.preference_nickbrackets), false);
+        TextStyle style = new TextStyle(
+                preferences.getBoolean(getResources().getString(R.string.preference_colored_text),true),
+                preferences.getBoolean(getString(R.string.preference_hostname),false),
+                preferences.getBoolean(getString(R.string.preference_nickbrackets), false));
         monospace = preferences.getBoolean(getString(R.string.preference_monospace), false);
         userFormat = preferences.getString(getResources().getString(R.string.preference_timestamp),"");
+        textCache.clear(style);
     }
 
     private void updateInputField() {
@@ -206,16 +214,21 @@ public class ChatFragment extends Fragment implements Serializable {
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         View root = inflater.inflate(R.layout.fragment_chat, container, false);
-        backlogList = (ListView) root.findViewById(R.id.chat_backlog_list_view);
+        backlogList = (RecyclerView) root.findViewById(R.id.chat_backlog_list_view);
         inputField = (EditText) root.findViewById(R.id.chat_input_view);
         autoCompleteButton = (ImageButton) root.findViewById(R.id.chat_auto_complete_button);
 
         initPreferences();
         updateInputField();
 
+        layoutManager = new LinearLayoutManager(getActivity());
+        layoutManager.setStackFromEnd(true);
+        backlogList.setLayoutManager(layoutManager);
+        backlogList.setHasFixedSize(true);
+        // Rows only change in place for the marker line, that shouldn't cross fade
+        ((SimpleItemAnimator) backlogList.getItemAnimator()).setSupportsChangeAnimations(false);
         backlogList.setAdapter(adapter);
-        backlogList.setOnScrollListener(new BacklogScrollListener(5));
-        backlogList.setSelection(backlogList.getChildCount());
+        backlogList.addOnScrollListener(new BacklogScrollListener(5));
 
         // TODO: Add a feature to autocomplete nickname of a double-clicked message
         // Does not work with selectable text yet
@@ -263,9 +276,8 @@ public class ChatFragment extends Fragment implements Serializable {
                         for (CharSequence line : HelperUtils.split(inputField.getText(), "\n")) {
                             BusProvider.getInstance().post(new SendMessageEvent(adapter.buffer.getInfo().id, line.toString()));
                         }
-                        InputHistoryHelper.addHistoryEntry(inputField.getText().toString());
+                        inputHistory.addHistoryEntry(inputField.getText().toString());
                         inputField.setText("");
-                        InputHistoryHelper.tempStoreCurrentEntry("");
                     }
 
                     return true;
@@ -276,25 +288,28 @@ public class ChatFragment extends Fragment implements Serializable {
 
         inputField.setOnKeyListener(new View.OnKeyListener() {
             public boolean onKey(View v, int keyCode, KeyEvent event) {
+                if (inputHistory == null) {
+                    return false;
+                }
                 if (keyCode == KeyEvent.KEYCODE_TAB && event.getAction() == KeyEvent.ACTION_DOWN) {
                     onNickComplete();
                     return true;
                 }
                 if (keyCode == KeyEvent.KEYCODE_DPAD_UP && event.getAction() == KeyEvent.ACTION_DOWN) {
                     EditText text = (EditText) v;
-                    InputHistoryHelper.tempStoreCurrentEntry(text.getText().toString());
-                    text.setText(InputHistoryHelper.getNextHistoryEntry());
+                    inputHistory.tempStoreCurrentEntry(text.getText().toString());
+                    text.setText(inputHistory.getNextHistoryEntry());
                     text.setSelection(text.getText().length());
                     return true;
                 }
                 if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN && event.getAction() == KeyEvent.ACTION_DOWN) {
                     EditText text = (EditText) v;
-                    if (InputHistoryHelper.isViewingHistory()) {
+                    if (inputHistory.isViewingHistory()) {
                         // Currently viewing history, so progress back down towards "entry zero"
-                        text.setText(InputHistoryHelper.getPreviousHistoryEntry());
+                        text.setText(inputHistory.getPreviousHistoryEntry());
                     } else if (!text.getText().toString().equals("")) {
                         // Not viewing history, so push the current input text into the history and clear the input
-                        InputHistoryHelper.addHistoryEntry(text.getText().toString());
+                        inputHistory.addHistoryEntry(text.getText().toString());
                         text.setText("");
                     }
                     text.setSelection(text.getText().length());
@@ -307,17 +322,26 @@ public class ChatFragment extends Fragment implements Serializable {
         autoCompleteButton.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
             public boolean onLongClick(View v) {
-                // Add current input to history if it’s not already the latest entry
+                if (inputHistory == null) {
+                    return false;
+                }
+                // Show current input above the history if it’s not already the latest entry
                 String temporaryEntry = inputField.getText().toString();
-                final boolean hasTemporary = !temporaryEntry.isEmpty() && !(InputHistoryHelper.getHistory().length > 0 && temporaryEntry.equals(InputHistoryHelper.getHistory()[0]));
+                String[] history = inputHistory.getHistory();
+                final boolean hasTemporary = !temporaryEntry.isEmpty() && !(history.length > 0 && temporaryEntry.equals(history[0]));
 
                 // Empty the input field
                 inputField.setText("");
 
                 // Get all history entries, add temporaryEntry at beginning
-                if (hasTemporary) InputHistoryHelper.addHistoryEntry(temporaryEntry);
-                final String[] items = InputHistoryHelper.getHistory();
-                if (hasTemporary) InputHistoryHelper.removeItem();
+                final String[] items;
+                if (hasTemporary) {
+                    items = new String[history.length + 1];
+                    items[0] = temporaryEntry;
+                    System.arraycopy(history, 0, items, 1, history.length);
+                } else {
+                    items = history;
+                }
 
                 // Build history dialog
                 AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
@@ -370,6 +394,9 @@ public class ChatFragment extends Fragment implements Serializable {
                     Toast.makeText(getActivity(), getString(R.string.not_available), Toast.LENGTH_SHORT).show();
                 else showHideEventsDialog();
                 return true;
+            case R.id.menu_search_messages:
+                showMessageSearchDialog();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -448,6 +475,18 @@ public class ChatFragment extends Fragment implements Serializable {
         newFragment.show(ft, "dialog");
     }
 
+    private void showMessageSearchDialog() {
+        FragmentTransaction ft = getFragmentManager().beginTransaction();
+        Fragment prev = getFragmentManager().findFragmentByTag("dialog");
+        if (prev != null) {
+            ft.remove(prev);
+        }
+        ft.addToBackStack(null);
+
+        DialogFragment newFragment = MessageSearchDialog.newInstance(Client.getInstance().getCoreId());
+        newFragment.show(ft, "dialog");
+    }
+
     @Override
     public void setUserVisibleHint(boolean isVisibleToUser) {
         super.setUserVisibleHint(isVisibleToUser);
@@ -471,7 +510,7 @@ public class ChatFragment extends Fragment implements Serializable {
         BusProvider.getInstance().post(new ManageMessageEvent(adapter.getBufferId(), adapter.buffer.getLastSeenMessage(), MessageAction.MARKER_LINE));
     }
 
-    public void setBuffer(int bufferId) {
+    public void setBuffer(final int bufferId) {
         Log.d(TAG, "Setting buffer and chat is visible: " + getUserVisibleHint());
         this.bufferId = bufferId;
         if (adapter != null && networks != null) {
@@ -483,25 +522,39 @@ public class ChatFragment extends Fragment implements Serializable {
                 adapter.storeScrollState();
             }
             adapter.clearBuffer();
-            Buffer buffer = networks.getBufferById(bufferId);
-            if (buffer != null) {
-                adapter.setBuffer(buffer, networks);
-                nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                autoCompleteButton.setEnabled(true);
-                inputField.setEnabled(true);
-                buffer.setDisplayed(true);
-                Log.d(TAG, String.format("Marking highlights for buffer %d read", buffer.getInfo().id));
-                BusProvider.getInstance().post(new ManageChannelEvent(buffer.getInfo().id, ChannelAction.HIGHLIGHTS_READ));
-
-                adapter.notifyDataSetInvalidated();
-
-            } else {
-                resetFragment();
-            }
+            final NetworkCollection networks = this.networks;
+            StateThread.query(new StateThread.Query<Buffer>() {
+                @Override
+                public Buffer read() {
+                    return networks.getBufferById(bufferId);
+                }
+            }, new StateThread.Callback<Buffer>() {
+                @Override
+                public void onResult(Buffer buffer) {
+                    // Another buffer was set in the meantime, it shows once its lookup is done
+                    if (bufferId == ChatFragment.this.bufferId && adapter != null)
+                        showBuffer(buffer);
+                }
+            });
+        }
+    }
 
-            //Move list to correct position
-            adapter.loadScrollState();
+    private void showBuffer(Buffer buffer) {
+        if (buffer != null) {
+            adapter.setBuffer(buffer, networks);
+            nickCompletionHelper = new NickCompletionHelper(buffer);
+            inputHistory = InputHistoryHelper.getInstance(getActivity(), Client.getInstance().getCoreId(), bufferId);
+            autoCompleteButton.setEnabled(true);
+            inputField.setEnabled(true);
+            buffer.setDisplayed(true);
+            Log.d(TAG, String.format("Marking highlights for buffer %d read", buffer.getInfo().id));
+            BusProvider.getInstance().post(new ManageChannelEvent(buffer.getInfo().id, ChannelAction.HIGHLIGHTS_READ));
+        } else {
+            resetFragment();
         }
+
+        //Move list to correct position
+        adapter.loadScrollState();
     }
 
     private void onNickComplete() {
@@ -561,7 +614,7 @@ public class ChatFragment extends Fragment implements Serializable {
         return networks;
     }
 
-    public static class ViewHolder {
+    public static class ViewHolder extends RecyclerView.ViewHolder {
         public TextView timeView;
         public TextView msgView;
         public TextView separatorView;
@@ -569,23 +622,60 @@ public class ChatFragment extends Fragment implements Serializable {
         public View parent;
 
         public int messageID;
+
+        public ViewHolder(View itemView) {
+            super(itemView);
+            parent = itemView;
+            timeView = (TextView) itemView.findViewById(R.id.backlog_time_view);
+            timeView.setTextColor(ThemeUtil.Color.chatTimestamp);
+            msgView = (TextView) itemView.findViewById(R.id.backlog_msg_view);
+            separatorView = (TextView) itemView.findViewById(R.id.backlog_list_separator);
+            item_layout = (LinearLayout) itemView.findViewById(R.id.backlog_item_linearlayout);
+        }
     }
 
-    public class BacklogAdapter extends BaseAdapter implements Observer {
+    public class BacklogAdapter extends RecyclerView.Adapter<ViewHolder> implements Observer {
 
         private LayoutInflater inflater;
         private Buffer buffer;
-        public List<IrcMessage> backlogData;
+        public BacklogSnapshot backlogData;
+        /**
+         * Delivers buffer changes at most once per frame, so a backlog flood doesn't refresh the list for every message
+         */
+        private final CoalescingObserver bufferObserver = new CoalescingObserver(this);
+        /**
+         * Id of the message the marker line is drawn below, -1 if there is none
+         */
+        private int markerLineRowId = -1;
+
+        private final SortedListDiff.Callback rowUpdates = new SortedListDiff.Callback() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+            }
 
-        public BacklogAdapter(Context context, ArrayList<IrcMessage> backlog) {
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(position, count);
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+                notifyItemRangeChanged(position, count);
+            }
+        };
+
+        public BacklogAdapter(Context context) {
             inflater = LayoutInflater.from(context);
+            setHasStableIds(true);
         }
 
         public void setBuffer(Buffer buffer, NetworkCollection networks) {
             this.buffer = buffer;
-            buffer.addObserver(this);
+            buffer.addObserver(bufferObserver);
+            backlogData = buffer.getBacklogSnapshot();
+            markerLineRowId = findMarkerLineRowId();
             notifyDataSetChanged();
-            backlogList.scrollTo(backlogList.getScrollX(), backlogList.getScrollY());
         }
 
         public void storeScrollState(int position, int scroll) {
@@ -596,46 +686,48 @@ public class ChatFragment extends Fragment implements Serializable {
         }
 
         public void storeScrollState() {
-            if (backlogList.getLastVisiblePosition() == getCount() - 1) {
+            if (isAtBottom()) {
                 storeScrollState(0, 0);
             } else {
                 storeScrollState(getListTopMessageId(), getOffset());
             }
         }
 
+        private boolean isAtBottom() {
+            return layoutManager.findLastVisibleItemPosition() >= getItemCount() - 1;
+        }
+
         private int getOffset() {
-            View v = backlogList.getChildAt(0);
+            View v = layoutManager.findViewByPosition(layoutManager.findFirstVisibleItemPosition());
             return (v == null) ? 0 : (v.getTop() - backlogList.getPaddingTop());
         }
 
         public void loadScrollState() {
-            String parent = Thread.currentThread().getStackTrace()[3].getMethodName();
-            int i = 4;
-            while (parent.equals("loadScrollState"))
-                parent = Thread.currentThread().getStackTrace()[i++].getMethodName();
-
             if (buffer != null) {
                 if (buffer.getTopMessageShown() == 0) {
-                    backlogList.setSelection(getCount() - 1);
-                    Log.e(TAG, "Error loading state -1 from "+ parent);
+                    scrollToBottom();
+                    Log.d(TAG, "No scroll state stored, showing newest messages");
                 } else {
                     setListTopMessage(buffer.getTopMessageShown(),buffer.getScrollState());
-                    Log.d(TAG, "Success loading state " + buffer.getTopMessageShown() + " from "+ parent);
+                    Log.d(TAG, "Success loading state " + buffer.getTopMessageShown());
                 }
             }
 
         }
 
+        private void scrollToBottom() {
+            if (getItemCount() > 0)
+                backlogList.scrollToPosition(getItemCount() - 1);
+        }
+
         @Override
-        public int getCount() {
+        public int getItemCount() {
             int count = 0;
             if (this.backlogData != null) count = backlogData.size();
             return count;
         }
 
-        @Override
         public IrcMessage getItem(int position) {
-            //TODO: PriorityQueue is fucked, we don't want to convert to array here, so change later
             return backlogData.get(position);
         }
 
@@ -644,29 +736,19 @@ public class ChatFragment extends Fragment implements Serializable {
             return getItem(position).messageId;
         }
 
-        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
         @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            ViewHolder holder;
-
-            if (convertView == null) {
-                convertView = inflater.inflate(R.layout.widget_backlog, null);
-                holder = new ViewHolder();
-                holder.parent = convertView;
-                holder.timeView = (TextView) convertView.findViewById(R.id.backlog_time_view);
-                holder.timeView.setTextColor(ThemeUtil.Color.chatTimestamp);
-                holder.msgView = (TextView) convertView.findViewById(R.id.backlog_msg_view);
-                holder.separatorView = (TextView) convertView.findViewById(R.id.backlog_list_separator);
-                holder.item_layout = (LinearLayout) convertView.findViewById(R.id.backlog_item_linearlayout);
-                convertView.setTag(holder);
-            } else {
-                holder = (ViewHolder) convertView.getTag();
-            }
+        public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new ViewHolder(inflater.inflate(R.layout.widget_backlog, parent, false));
+        }
 
-            if (buffer == null) return convertView;
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            if (buffer == null) return;
+
+            IrcMessage entry = this.getItem(position);
 
             //Set separator line here
-            if (position != (getCount() - 1) && (buffer.getMarkerLineMessage() == getItem(position).messageId || (buffer.isMarkerLineFiltered() && getItem(position).messageId < buffer.getMarkerLineMessage() && getItem(position + 1).messageId > buffer.getMarkerLineMessage()))) {
+            if (entry.messageId == markerLineRowId) {
                 holder.separatorView.getLayoutParams().height = Math.round(getResources().getDimension(R.dimen.markerline_height));
             } else {
                 holder.separatorView.getLayoutParams().height = 0;
@@ -676,22 +758,11 @@ public class ChatFragment extends Fragment implements Serializable {
             holder.msgView.setTextSize(TypedValue.COMPLEX_UNIT_SP, fontsize);
             holder.timeView.setTextSize(TypedValue.COMPLEX_UNIT_SP, fontsize);
 
-            IrcMessage entry = this.getItem(position);
             holder.messageID = entry.messageId;
             holder.timeView.setText(entry.getTime(getTimeFormatter()));
 
             holder.timeView.setTextColor(entry.isFiltered() ? getResources().getColor(R.color.ircmessage_red) : ThemeUtil.Color.chatTimestamp);
 
-            if (!preferences.getBoolean(getString(R.string.preference_colored_text), false)) {
-                entry.content = new SpannableString(entry.content.toString());
-            }
-
-            Spannable spannable;
-            String rawText;
-            String nick;
-            String hostmask = "";
-
-
             if (monospace) {
                 holder.msgView.setTypeface(Typeface.MONOSPACE);
                 holder.timeView.setTypeface(Typeface.MONOSPACE);
@@ -700,228 +771,126 @@ public class ChatFragment extends Fragment implements Serializable {
                 holder.timeView.setTypeface(Typeface.DEFAULT);
             }
 
-            if (detailedActions)
-                hostmask = " ("+entry.getHostmask()+") ";
-
-            MessageFormattingHelper.NickFormatter formatter = new MessageFormattingHelper.NickFormatter(nickBrackets, new String[] {"<", ">"});
-
+            holder.msgView.setText(textCache.get(entry));
             switch (entry.type) {
                 case Action:
                     holder.msgView.setTextColor(ThemeUtil.Color.chatAction);
                     holder.parent.setBackgroundColor(ThemeUtil.Color.chatPlainBg);
-
-                    CharSequence contentSpan = MessageUtil.parseStyleCodes(getActivity(), entry.content.toString(), parseColors);
-                    contentSpan = SpanFormatter.format(getString(R.string.message_action), formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), contentSpan);
-                    SpanUtils.setFullSpan(new SpannableString(contentSpan), new StyleSpan(Typeface.ITALIC));
-                    holder.msgView.setText(contentSpan);
                     break;
                 case Error:
-                    holder.msgView.setText(MessageUtil.parseStyleCodes(getContext(), entry.content.toString(), parseColors));
                     holder.msgView.setTextColor(ThemeUtil.Color.chatError);
                     holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
                     break;
-                case Server:
-                case Info:
-                    holder.msgView.setText(MessageUtil.parseStyleCodes(getContext(), entry.content.toString(), parseColors));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    break;
-                case Topic:
-                    holder.msgView.setText(MessageUtil.parseStyleCodes(getContext(), entry.content.toString(), parseColors));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    break;
-                case Notice:
-                    holder.msgView.setText(TextUtils.concat(
-                            formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted(), new String[] {"[","]"}),
-                            " ",
-                            MessageUtil.parseStyleCodes(getActivity(),entry.content.toString(),parseColors)));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    break;
-                case Join:
-                    nick = entry.getNick();
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_join),
-                            TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask)));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case Part:
-                    nick = entry.getNick();
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_leave),
-                            TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
-                            MessageUtil.parseStyleCodes(getActivity(), entry.content.toString(), parseColors)));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case Quit:
-                    nick = entry.getNick();
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_quit),
-                            TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
-                            MessageUtil.parseStyleCodes(getActivity(),entry.content.toString(),parseColors)));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case Kill:
-                    nick = entry.getNick();
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_kill),
-                            TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
-                            MessageUtil.parseStyleCodes(getActivity(), entry.content.toString(), parseColors)));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case Kick:
-                    CharSequence reasonSequence;
-                    int nickEnd = entry.content.toString().indexOf(" ");
-                    if (nickEnd >= 0) {
-                        nick = entry.content.subSequence(0, nickEnd).toString();
-                        reasonSequence = MessageUtil.parseStyleCodes(getActivity(), entry.content.subSequence(nickEnd, entry.content.length()).toString(), parseColors);
-                    } else {
-                        nick = entry.content.toString();
-                        reasonSequence = "";
-                    }
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_kick),
-                            TextUtils.concat(formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), hostmask),
-                            formatter.formatNick(nick, entry.isHighlighted()),
-                            reasonSequence));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case Mode:
-                    String[] raw = entry.content.toString().split(" ");
-                    SpannableStringBuilder builder = new SpannableStringBuilder();
-                    CharSequence nickSpannable = MessageFormattingHelper.formatNick(getActivity(), entry.getNick(), entry.isSelf(), true);
-                    if (raw.length==2) {
-                        builder.append(raw[0]).append(" ");
-                        builder.append(raw[1]).append(" ");
-                        spannable = new SpannableString(builder);
-                    } else {
-                        builder.append(raw[0]).append(" ");
-                        builder.append(raw[1]).append(" ");
-                        for (String s : Arrays.copyOfRange(raw, 2, raw.length)) {
-                            builder.append(MessageFormattingHelper.formatNick(getActivity(), s, entry.isSelf(), true)).append(", ");
-                        }
-                        spannable = new SpannableString(builder.subSequence(0,builder.length()-", ".length()));
-                    }
-
-                    holder.msgView.setText(SpanFormatter.format(getString(R.string.message_mode), spannable, nickSpannable));
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    break;
-                case Nick:
-                    if (entry.getNick().equals(entry.content.toString())) {
-                        rawText = String.format(getString(R.string.message_nick_self), entry.content.toString());
-                        holder.msgView.setText(new SpannableString(rawText));
-                    } else {
-                        CharSequence text = SpanFormatter.format(getString(R.string.message_nick_other),
-                                formatter.formatNick(entry.getNick(), false), formatter.formatNick(entry.content.toString(), false));
-
-                        holder.msgView.setText(text);
-                    }
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case NetsplitJoin:
-                    holder.msgView.setText(new NetsplitHelper(entry.content.toString()).formatJoinMessage());
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case NetsplitQuit:
-                    holder.msgView.setText(new NetsplitHelper(entry.content.toString()).formatQuitMessage());
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    nickCompletionHelper = new NickCompletionHelper(buffer.getUsers().getUniqueUsers());
-                    break;
-                case DayChange:
-                    SpannableString s = new SpannableString(String.format(getString(R.string.message_daychange), entry.content.toString()));
-                    s.setSpan(new StyleSpan(Typeface.ITALIC),0,s.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                    holder.msgView.setText(s);
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                case Invite:
-                    holder.msgView.setText(entry.content);
-                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
-                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
-                    break;
                 case Plain:
-                default:
                     holder.msgView.setTextColor(ThemeUtil.Color.chatPlain);
-
-                    holder.msgView.setText(TextUtils.concat(formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), " ", MessageUtil.parseStyleCodes(getActivity(),entry.content.toString(),parseColors)));
-
                     holder.parent.setBackgroundColor(android.graphics.Color.TRANSPARENT);
                     break;
+                default:
+                    holder.msgView.setTextColor(ThemeUtil.Color.chatServer);
+                    holder.parent.setBackgroundColor(ThemeUtil.Color.chatServerBg);
+                    break;
             }
             if (entry.isHighlighted()) {
                 holder.item_layout.setBackgroundColor(ThemeUtil.Color.chatHighlight);
             } else {
                 holder.item_layout.setBackgroundResource(0);
             }
-            //Log.i(TAG, "CONTENT:" + entry.content);
-            return convertView;
+            textCache.setLayoutParams(holder.msgView);
         }
 
         @Override
         public void update(Observable observable, Object data) {
-            if (data == null) {
-                backlogData = buffer.getBacklog();
-                notifyDataSetChanged();
+            if (buffer == null) {
                 return;
             }
-            switch ((Integer) data) {
-                case R.id.BUFFERUPDATE_NEWMESSAGE:
+            // The state thread keeps changing the buffer, the list only ever shows a snapshot
+            boolean atBottom = isAtBottom();
+            BacklogSnapshot previous = backlogData;
+            BacklogSnapshot snapshot = buffer.getBacklogSnapshot();
+            BacklogSnapshot.Diff diff = snapshot.diffFrom(previous);
+            backlogData = snapshot;
+            applyDiff(previous, diff);
+            updateMarkerLineRow();
+
+            if (diff.appended > 0 && atBottom) {
+                scrollToBottom();
+            }
+            if (data != null && (Integer) data == R.id.BUFFERUPDATE_NEWMESSAGE && getUserVisibleHint()) {
+                updateRead();
+            }
+        }
+
+        /**
+         * Tell the list which rows changed, new backlog and new messages are inserted at the ends
+         * and everything else, like a filter change, goes through a merge of the two snapshots
+         */
+        private void applyDiff(BacklogSnapshot previous, BacklogSnapshot.Diff diff) {
+            if (diff.reset) {
+                if (previous == null)
                     notifyDataSetChanged();
-                    if (getUserVisibleHint()) {
-                        updateRead();
-                    }
-                    break;
-                case R.id.BUFFERUPDATE_BACKLOG:
-                    int topId = getListTopMessageId();
+                else
+                    SortedListDiff.diff(previous, backlogData, rowUpdates);
+            } else {
+                if (diff.prepended > 0) {
+                    // Older messages went in above, keep the same message on top
+                    int position = layoutManager.findFirstVisibleItemPosition();
                     int scroll = getOffset();
-                    notifyDataSetChanged();
-                    setListTopMessage(topId, scroll);
-                    break;
-                case R.id.BUFFERUPDATE_TOPICCHANGED:
-                    notifyDataSetChanged();
-                    break;
-                default:
-                    notifyDataSetChanged();
+                    notifyItemRangeInserted(0, diff.prepended);
+                    if (position != RecyclerView.NO_POSITION)
+                        layoutManager.scrollToPositionWithOffset(position + diff.prepended, scroll);
+                }
+                if (diff.appended > 0)
+                    notifyItemRangeInserted(getItemCount() - diff.appended, diff.appended);
             }
+        }
 
+        private void updateMarkerLineRow() {
+            int rowId = findMarkerLineRowId();
+            if (rowId == markerLineRowId)
+                return;
+            notifyRowChanged(markerLineRowId);
+            notifyRowChanged(rowId);
+            markerLineRowId = rowId;
+        }
+
+        private void notifyRowChanged(int messageId) {
+            int position = indexOf(messageId);
+            if (position != -1)
+                notifyItemChanged(position);
+        }
+
+        /**
+         * The marker line goes below the marker message, or below the last message before it if
+         * the marker message itself is filtered, but never below the newest message
+         */
+        private int findMarkerLineRowId() {
+            if (buffer == null || backlogData == null)
+                return -1;
+            int markerLine = buffer.getMarkerLineMessage();
+            int position = backlogData.floorIndex(markerLine);
+            if (position < 0 || position >= backlogData.size() - 1)
+                return -1;
+            IrcMessage row = backlogData.get(position);
+            if (row.messageId != markerLine && !buffer.isMarkerLineFiltered())
+                return -1;
+            return row.messageId;
         }
 
         private int indexOf(int messageid) {
-            for (int i = 0; i < adapter.getCount(); i++) {
-                if (adapter.getItemId(i) == messageid) {
-                    return i;
-                }
-            }
-            return -1;
+            if (backlogData == null)
+                return -1;
+            return backlogData.indexOfMessage(messageid);
         }
 
         /**
          * Returns the messageid for the ircmessage that is currently at the top of the screen
          */
         public int getListTopMessageId() {
-            int topId;
-            if (backlogList.getChildCount() == 0) {
-                topId = -1;
-            } else {
-                topId = ((ViewHolder) backlogList.getChildAt(0).getTag()).messageID;
+            int position = layoutManager.findFirstVisibleItemPosition();
+            if (position == RecyclerView.NO_POSITION || position >= getItemCount()) {
+                return -1;
             }
-            return topId;
+            return (int) getItemId(position);
         }
 
         /**
@@ -932,31 +901,39 @@ public class ChatFragment extends Fragment implements Serializable {
         }
 
         public void setListTopMessage(int messageid, int scroll) {
-            backlogList.setAdapter(adapter);
-            for (int i = 0; i < adapter.getCount(); i++) {
-                if (adapter.getItemId(i) == messageid) {
-                    backlogList.setSelectionFromTop(i, scroll);
-                    break;
-                }
+            int position = indexOf(messageid);
+            if (position != -1) {
+                layoutManager.scrollToPositionWithOffset(position, scroll);
             }
         }
 
         public void scrollToFirstUnread() {
-            int messageid = buffer.getLastSeenMessage();
-            for (int i = 0; i < adapter.getCount(); i++) {
-                if (adapter.getItemId(i) == messageid) {
-                    backlogList.smoothScrollToPosition(i);
-                    break;
-                }
+            int position = indexOf(buffer.getLastSeenMessage());
+            if (position != -1) {
+                backlogList.smoothScrollToPosition(position);
             }
         }
 
+        /**
+         * Format the messages around the visible rows before they are scrolled in
+         */
+        private void prefetch(int from, int to) {
+            if (backlogData == null)
+                return;
+            from = Math.max(0, from);
+            to = Math.min(backlogData.size(), to);
+            if (from < to)
+                textCache.prefetch(backlogData.subList(from, to));
+        }
+
         public void clearBuffer() {
             if (buffer != null) {
-                buffer.deleteObserver(this);
+                buffer.deleteObserver(bufferObserver);
+                bufferObserver.clear();
                 buffer.setDisplayed(false);
                 buffer = null;
                 backlogData = null;
+                markerLineRowId = -1;
                 notifyDataSetChanged();
             }
         }
@@ -973,18 +950,247 @@ public class ChatFragment extends Fragment implements Serializable {
             BusProvider.getInstance().post(new GetBacklogEvent(getBufferId(), dynamicBacklogAmount));
         }
 
-        public void removeFilter(Type type) {
-            buffer.removeFilterType(type);
+        public void removeFilter(final Type type) {
+            final Buffer buffer = this.buffer;
+            StateThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    buffer.removeFilterType(type);
+                }
+            });
+        }
+
+        public void addFilter(final Type type) {
+            final Buffer buffer = this.buffer;
+            StateThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    buffer.addFilterType(type);
+                }
+            });
+        }
+    }
+
+    /**
+     * Formatted message texts by message id. Building the spans is the expensive part of binding
+     * a row, so the rows just outside the screen are formatted ahead of time on a background
+     * thread. There the text is also laid out once with the paint and width of the rows, which
+     * fills the platform's text measuring caches the same way PrecomputedText does.
+     */
+    /**
+     * The preferences a message text depends on, read once so a prefetch in flight keeps
+     * formatting with the values it started with
+     */
+    private static class TextStyle {
+        final boolean parseColors;
+        final boolean detailedActions;
+        final boolean nickBrackets;
+
+        TextStyle(boolean parseColors, boolean detailedActions, boolean nickBrackets) {
+            this.parseColors = parseColors;
+            this.detailedActions = detailedActions;
+            this.nickBrackets = nickBrackets;
+        }
+    }
+
+    /**
+     * Messages to prefetch, along with the cache generation and style they were requested with
+     */
+    private static class PrefetchJob {
+        final List<IrcMessage> messages;
+        final int generation;
+        final TextStyle style;
+
+        PrefetchJob(List<IrcMessage> messages, int generation, TextStyle style) {
+            this.messages = messages;
+            this.generation = generation;
+            this.style = style;
+        }
+    }
+
+    private class MessageTextCache {
+        private final LruCache<Integer, CharSequence> texts = new LruCache<>(TEXT_CACHE_SIZE);
+        private final AtomicReference<PrefetchJob> pending = new AtomicReference<>();
+        private volatile TextPaint paint;
+        private volatile int width;
+        /**
+         * Bumped on every clear, prefetched text from an older generation is dropped
+         */
+        private int generation;
+        private TextStyle style = new TextStyle(true, false, false);
+
+        private final Runnable prefetchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                PrefetchJob job = pending.getAndSet(null);
+                Context context = getActivity();
+                if (job == null || context == null)
+                    return;
+                for (IrcMessage message : job.messages) {
+                    if (texts.get(message.messageId) != null)
+                        continue;
+                    CharSequence text = formatMessage(context, message, job.style);
+                    synchronized (MessageTextCache.this) {
+                        if (generation != job.generation)
+                            return;
+                        texts.put(message.messageId, text);
+                    }
+                    TextPaint layoutPaint = paint;
+                    if (layoutPaint != null && width > 0)
+                        new StaticLayout(text, layoutPaint, width, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+                }
+            }
+        };
+
+        public CharSequence get(IrcMessage message) {
+            CharSequence text = texts.get(message.messageId);
+            if (text == null) {
+                text = formatMessage(getActivity(), message, getStyle());
+                texts.put(message.messageId, text);
+            }
+            return text;
+        }
+
+        /**
+         * Remember how rows are measured, so prefetched text is laid out the same way
+         */
+        public void setLayoutParams(TextView view) {
+            int viewWidth = view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
+            if (viewWidth > 0 && (viewWidth != width || paint == null || paint.getTextSize() != view.getTextSize() || paint.getTypeface() != view.getTypeface())) {
+                paint = new TextPaint(view.getPaint());
+                width = viewWidth;
+            }
+        }
 
+        public void prefetch(List<IrcMessage> messages) {
+            PrefetchJob job;
+            synchronized (this) {
+                job = new PrefetchJob(new ArrayList<>(messages), generation, style);
+            }
+            // Only the latest range matters while flinging, so an older request is replaced
+            if (pending.getAndSet(job) == null)
+                textPrefetchExecutor.execute(prefetchRunnable);
         }
 
-        public void addFilter(Type type) {
-            buffer.addFilterType(type);
+        private synchronized TextStyle getStyle() {
+            return style;
+        }
 
+        /**
+         * Drops all texts, and formats new ones with the given style
+         */
+        public synchronized void clear(TextStyle newStyle) {
+            generation++;
+            style = newStyle;
+            texts.evictAll();
         }
     }
 
-    private class BacklogScrollListener implements OnScrollListener {
+    /**
+     * Builds the text of a message row, safe to call off the UI thread
+     */
+    private CharSequence formatMessage(Context context, IrcMessage entry, TextStyle style) {
+        boolean parseColors = style.parseColors;
+        // Without colors only the plain text of the message is shown
+        CharSequence content = parseColors ? entry.content : entry.content.toString();
+        String nick;
+        String hostmask = "";
+
+        if (style.detailedActions)
+            hostmask = " ("+entry.getHostmask()+") ";
+
+        MessageFormattingHelper.NickFormatter formatter = new MessageFormattingHelper.NickFormatter(style.nickBrackets, new String[] {"<", ">"});
+
+        switch (entry.type) {
+            case Action:
+                CharSequence contentSpan = MessageUtil.parseStyleCodes(context, content.toString(), parseColors);
+                contentSpan = SpanFormatter.format(context.getString(R.string.message_action), formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), contentSpan);
+                SpanUtils.setFullSpan(new SpannableString(contentSpan), new StyleSpan(Typeface.ITALIC));
+                return contentSpan;
+            case Error:
+            case Server:
+            case Info:
+            case Topic:
+                return MessageUtil.parseStyleCodes(context, content.toString(), parseColors);
+            case Notice:
+                return TextUtils.concat(
+                        formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted(), new String[] {"[","]"}),
+                        " ",
+                        MessageUtil.parseStyleCodes(context, content.toString(), parseColors));
+            case Join:
+                nick = entry.getNick();
+                return SpanFormatter.format(context.getString(R.string.message_join),
+                        TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask));
+            case Part:
+                nick = entry.getNick();
+                return SpanFormatter.format(context.getString(R.string.message_leave),
+                        TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
+                        MessageUtil.parseStyleCodes(context, content.toString(), parseColors));
+            case Quit:
+                nick = entry.getNick();
+                return SpanFormatter.format(context.getString(R.string.message_quit),
+                        TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
+                        MessageUtil.parseStyleCodes(context, content.toString(), parseColors));
+            case Kill:
+                nick = entry.getNick();
+                return SpanFormatter.format(context.getString(R.string.message_kill),
+                        TextUtils.concat(formatter.formatNick(nick, entry.isSelf() || entry.isHighlighted()), hostmask),
+                        MessageUtil.parseStyleCodes(context, content.toString(), parseColors));
+            case Kick:
+                CharSequence reasonSequence;
+                int nickEnd = content.toString().indexOf(" ");
+                if (nickEnd >= 0) {
+                    nick = content.subSequence(0, nickEnd).toString();
+                    reasonSequence = MessageUtil.parseStyleCodes(context, content.subSequence(nickEnd, content.length()).toString(), parseColors);
+                } else {
+                    nick = content.toString();
+                    reasonSequence = "";
+                }
+
+                return SpanFormatter.format(context.getString(R.string.message_kick),
+                        TextUtils.concat(formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), hostmask),
+                        formatter.formatNick(nick, entry.isHighlighted()),
+                        reasonSequence);
+            case Mode:
+                Spannable spannable;
+                String[] raw = content.toString().split(" ");
+                SpannableStringBuilder builder = new SpannableStringBuilder();
+                CharSequence nickSpannable = MessageFormattingHelper.formatNick(context, entry.getNick(), entry.isSelf(), true);
+                if (raw.length==2) {
+                    builder.append(raw[0]).append(" ");
+                    builder.append(raw[1]).append(" ");
+                    spannable = new SpannableString(builder);
+                } else {
+                    builder.append(raw[0]).append(" ");
+                    builder.append(raw[1]).append(" ");
+                    for (String s : Arrays.copyOfRange(raw, 2, raw.length)) {
+                        builder.append(MessageFormattingHelper.formatNick(context, s, entry.isSelf(), true)).append(", ");
+                    }
+                    spannable = new SpannableString(builder.subSequence(0,builder.length()-", ".length()));
+                }
+
+                return SpanFormatter.format(context.getString(R.string.message_mode), spannable, nickSpannable);
+            case Nick:
+                if (entry.getNick().equals(content.toString())) {
+                    return new SpannableString(String.format(context.getString(R.string.message_nick_self), content.toString()));
+                } else {
+                    return SpanFormatter.format(context.getString(R.string.message_nick_other),
+                            formatter.formatNick(entry.getNick(), false), formatter.formatNick(content.toString(), false));
+                }
+            case NetsplitJoin:
+                return new NetsplitHelper(content.toString()).formatJoinMessage();
+            case NetsplitQuit:
+                return new NetsplitHelper(content.toString()).formatQuitMessage();
+            case DayChange:
+            case Invite:
+                return content;
+            case Plain:
+            default:
+                return TextUtils.concat(formatter.formatNick(entry.getNick(), entry.isSelf() || entry.isHighlighted()), " ", MessageUtil.parseStyleCodes(context, content.toString(), parseColors));
+        }
+    }
+
+    private class BacklogScrollListener extends RecyclerView.OnScrollListener {
 
         private int visibleThreshold;
 
@@ -993,16 +1199,19 @@ public class ChatFragment extends Fragment implements Serializable {
         }
 
         @Override
-        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-            //			Log.d(TAG, "loading: "+ Boolean.toString(loading) +"totalItemCount: "+totalItemCount+ "visibleItemCount: " +visibleItemCount+"firstVisibleItem: "+firstVisibleItem+ "visibleThreshold: "+visibleThreshold);
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+            if (firstVisibleItem == RecyclerView.NO_POSITION)
+                return;
             if (adapter.buffer != null && !adapter.buffer.hasPendingBacklog() && (firstVisibleItem <= visibleThreshold)) {
                 adapter.getMoreBacklog();
             }
-        }
-
-        @Override
-        public void onScrollStateChanged(AbsListView view, int scrollState) {
-            // Not interesting for us to use
+            if (dy < 0) {
+                adapter.prefetch(firstVisibleItem - PREFETCH_DISTANCE, firstVisibleItem);
+            } else if (dy > 0) {
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                adapter.prefetch(lastVisibleItem + 1, lastVisibleItem + 1 + PREFETCH_DISTANCE);
+            }
         }
     }
 }
@@ -40,6 +40,7 @@ import com.iskrembilen.quasseldroid.events.BufferOpenedEvent;
 import com.iskrembilen.quasseldroid.events.NetworksAvailableEvent;
 import com.iskrembilen.quasseldroid.events.UserClickedEvent;
 import com.iskrembilen.quasseldroid.util.BusProvider;
+import com.iskrembilen.quasseldroid.util.CoalescingObserver;
 import com.squareup.otto.Subscribe;
 
 import java.io.Serializable;
@@ -173,11 +174,16 @@ public class DetailFragment extends Fragment implements Serializable {
     public class NicksObserver implements Observer {
 
         private IrcUser user;
+        /**
+         * Users change on the state thread, the view is only updated on the UI thread
+         */
+        private final CoalescingObserver userObserver = new CoalescingObserver(this);
 
         public void setUser(IrcUser user) {
-            if (this.user!=null) this.user.deleteObserver(this);
+            if (this.user!=null) this.user.deleteObserver(userObserver);
+            userObserver.clear();
             this.user = user;
-            if (this.user!=null) this.user.addObserver(this);
+            if (this.user!=null) this.user.addObserver(userObserver);
         }
 
         @Override
@@ -25,36 +25,42 @@ package com.iskrembilen.quasseldroid.gui.fragments;
 
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
-import android.util.Pair;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ExpandableListView;
 import android.widget.TextView;
 
-import com.idunnololz.widgets.AnimatedExpandableListView;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.IrcMode;
 import com.iskrembilen.quasseldroid.protocol.state.IrcUser;
 import com.iskrembilen.quasseldroid.protocol.state.NetworkCollection;
 import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.protocol.state.UserCollection;
+import com.iskrembilen.quasseldroid.protocol.state.UserListChange;
 import com.iskrembilen.quasseldroid.events.BufferDetailsChangedEvent;
 import com.iskrembilen.quasseldroid.events.BufferOpenedEvent;
 import com.iskrembilen.quasseldroid.events.NetworksAvailableEvent;
 import com.iskrembilen.quasseldroid.events.UserClickedEvent;
+import com.iskrembilen.quasseldroid.util.BackgroundMode;
 import com.iskrembilen.quasseldroid.util.BusProvider;
+import com.iskrembilen.quasseldroid.util.FrameScheduler;
+import com.iskrembilen.quasseldroid.util.StateThread;
 import com.iskrembilen.quasseldroid.util.ThemeUtil;
 import com.squareup.otto.Subscribe;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
 public class NickListFragment extends Fragment implements Serializable {
     private NicksAdapter adapter;
-    private AnimatedExpandableListView list;
+    private RecyclerView list;
     private int bufferId = -1;
     private NetworkCollection networks;
     private final String TAG = NickListFragment.class.getSimpleName();
@@ -79,18 +85,10 @@ public class NickListFragment extends Fragment implements Serializable {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View root = inflater.inflate(R.layout.fragment_nicks, container, false);
-        list = (AnimatedExpandableListView) root.findViewById(R.id.userList);
-        list.setOnGroupClickListener(new ExpandableListView.OnGroupClickListener() {
-            @Override
-            public boolean onGroupClick(ExpandableListView parent, View v, int groupPosition, long id) {
-                if (list.isGroupExpanded(groupPosition)) {
-                    list.collapseGroupWithAnimation(groupPosition);
-                } else {
-                    list.expandGroupWithAnimation(groupPosition);
-                }
-                return true;
-            }
-        });
+        list = (RecyclerView) root.findViewById(R.id.userList);
+        list.setLayoutManager(new LinearLayoutManager(getActivity()));
+        // Only the group counts change in place, fading them is just noise
+        ((SimpleItemAnimator) list.getItemAnimator()).setSupportsChangeAnimations(false);
         return root;
     }
 
@@ -128,168 +126,445 @@ public class NickListFragment extends Fragment implements Serializable {
         this.networks = networks;
     }
 
-    public class NicksAdapter extends AnimatedExpandableListView.AnimatedExpandableListAdapter implements Observer {
+    /**
+     * Shows the users by mode, a header row for every mode that has users followed by their nicks.
+     *
+     * The adapter copies the users once on the state thread, and from then on replays the
+     * {@link UserListChange}s of the collection on its copy, so a join or a mode change only
+     * inserts, removes or moves the rows it touches. Changes are applied once per frame.
+     */
+    public class NicksAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        private static final int TYPE_GROUP = 0;
+        private static final int TYPE_NICK = 1;
 
         private LayoutInflater inflater;
-        private UserCollection users;
+        private volatile UserCollection users;
+        /**
+         * The users of every mode as the list shows them, by the ordinal of the mode
+         */
+        private List<List<IrcUser>> groups = emptyGroups();
+        private final boolean[] collapsed = new boolean[IrcMode.values().length];
+
+        /**
+         * Copies and changes that wait for the next frame, in the order they were made on the state thread
+         */
+        private final List<PendingUsers> pending = new ArrayList<>();
+        /**
+         * Bumped when the list switches to another collection, so what was queued for the old one is dropped
+         */
+        private int generation = 0;
+        private boolean applyScheduled = false;
+        /**
+         * Changes are dropped until a new copy arrives, they would not match what the list shows
+         */
+        private boolean waitingForCopy = false;
+
+        private final Observer usersObserver = new Observer() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void update(Observable observable, Object data) {
+                if (observable == users && data instanceof List)
+                    enqueueChanges((List<UserListChange>) data);
+            }
+        };
+
+        private final Runnable applyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                applyPending();
+            }
+        };
+
+        /**
+         * Without focus the changes are dropped, the list is copied again once focus returns
+         */
+        private final Runnable resyncRunnable = new Runnable() {
+            @Override
+            public void run() {
+                BackgroundMode.recordReplayed(1);
+                requestCopy();
+            }
+        };
 
         public NicksAdapter() {
             inflater = getActivity().getLayoutInflater();
             this.users = null;
         }
 
-        public void setUsers(UserCollection users) {
-            users.addObserver(this);
+        public void setUsers(final UserCollection users) {
+            if (this.users != null)
+                this.users.deleteObserver(usersObserver);
             this.users = users;
+            final int generation;
+            synchronized (pending) {
+                generation = ++this.generation;
+                pending.clear();
+                waitingForCopy = true;
+            }
+            groups = emptyGroups();
             notifyDataSetChanged();
-            for (int i = 0; i < getGroupCount(); i++) {
-                list.expandGroup(i);
+            StateThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pending) {
+                        if (generation != NicksAdapter.this.generation)
+                            return;
+                        users.addObserver(usersObserver);
+                    }
+                    enqueueCopy(generation, copyGroups(users));
+                }
+            });
+        }
+
+        public void stopObserving() {
+            synchronized (pending) {
+                generation++;
+                pending.clear();
             }
+            if (users != null)
+                users.deleteObserver(usersObserver);
+            BackgroundMode.cancel(resyncRunnable);
         }
 
-        @Override
-        public void update(Observable observable, Object data) {
-            if (data == null) {
+        /**
+         * Copy the users again, after which only changes made after the copy are applied
+         */
+        private void requestCopy() {
+            final UserCollection users = this.users;
+            if (users == null)
                 return;
+            final int generation;
+            synchronized (pending) {
+                generation = this.generation;
+                pending.clear();
+                waitingForCopy = true;
             }
-            switch ((Integer) data) {
-                case R.id.BUFFERUPDATE_USERSCHANGED:
-                    notifyDataSetChanged();
-                    break;
+            StateThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    enqueueCopy(generation, copyGroups(users));
+                }
+            });
+        }
+
+        /**
+         * Copy the users of every mode, only call on the state thread
+         */
+        private List<List<IrcUser>> copyGroups(UserCollection users) {
+            List<List<IrcUser>> groups = new ArrayList<>(IrcMode.values().length);
+            for (IrcMode mode : IrcMode.values()) {
+                groups.add(new ArrayList<>(users.getUniqueUsersWithMode(mode)));
             }
+            return groups;
         }
 
-        public void stopObserving() {
-            if (users != null)
-                users.deleteObserver(this);
+        private void enqueueCopy(int generation, List<List<IrcUser>> copy) {
+            synchronized (pending) {
+                if (generation != this.generation)
+                    return;
+                pending.clear();
+                waitingForCopy = false;
+                pending.add(new PendingUsers(generation, copy, null));
+                if (applyScheduled)
+                    return;
+                applyScheduled = true;
+            }
+            FrameScheduler.getDefault().postFrameCallback(applyRunnable);
+        }
 
+        /**
+         * Queue changes of the collection, called on the state thread
+         */
+        private void enqueueChanges(List<UserListChange> changes) {
+            synchronized (pending) {
+                if (waitingForCopy)
+                    return;
+                if (BackgroundMode.isActive()) {
+                    BackgroundMode.recordDeferred();
+                    if (BackgroundMode.defer(resyncRunnable)) {
+                        waitingForCopy = true;
+                        return;
+                    }
+                }
+                pending.add(new PendingUsers(generation, null, changes));
+                if (applyScheduled)
+                    return;
+                applyScheduled = true;
+            }
+            FrameScheduler.getDefault().postFrameCallback(applyRunnable);
         }
 
-        @Override
-        public IrcUser getChild(int groupPosition, int childPosition) {
-            return getGroup(groupPosition).second.get(childPosition);
+        private void applyPending() {
+            List<PendingUsers> entries;
+            int current;
+            synchronized (pending) {
+                entries = new ArrayList<>(pending);
+                pending.clear();
+                applyScheduled = false;
+                current = generation;
+            }
+            for (PendingUsers entry : entries) {
+                if (entry.generation != current)
+                    continue;
+                if (entry.copy != null) {
+                    groups = entry.copy;
+                    notifyDataSetChanged();
+                    continue;
+                }
+                for (UserListChange change : entry.changes) {
+                    if (!applyChange(change)) {
+                        Log.w(TAG, "Nick list out of step at " + change + ", copying it again");
+                        requestCopy();
+                        return;
+                    }
+                }
+            }
         }
 
-        @Override
-        public long getChildId(int groupPosition, int childPosition) {
-            return groupPosition * Integer.MAX_VALUE + childPosition;
+        /**
+         * Applies one change to the shown users and tells the list which rows it touched
+         *
+         * @return false if the change does not fit what the list shows
+         */
+        private boolean applyChange(UserListChange change) {
+            switch (change.type) {
+                case ADDED:
+                    return insertRow(change.toMode.ordinal(), change.toIndex, change.user);
+                case REMOVED:
+                    return removeRow(change.fromMode.ordinal(), change.fromIndex, change.user);
+                case MOVED:
+                    if (change.fromMode == change.toMode)
+                        return moveRow(change.toMode.ordinal(), change.fromIndex, change.toIndex, change.user);
+                    return removeRow(change.fromMode.ordinal(), change.fromIndex, change.user)
+                            && insertRow(change.toMode.ordinal(), change.toIndex, change.user);
+                case CHANGED:
+                    int group = change.toMode.ordinal();
+                    if (!isAt(group, change.toIndex, change.user))
+                        return false;
+                    if (!collapsed[group])
+                        notifyItemChanged(getGroupPosition(group) + 1 + change.toIndex);
+                    return true;
+                default:
+                    return false;
+            }
         }
 
-        @Override
-        public View getRealChildView(int groupPosition, int childPosition, boolean isLastChild, View convertView, ViewGroup parent) {
-            ViewHolderChild holder = null;
-
-            if (convertView == null) {
-                convertView = inflater.inflate(R.layout.widget_nick_single, null);
-                holder = new ViewHolderChild();
-                holder.nickView = (TextView) convertView.findViewById(R.id.nicklist_nick_view);
-                convertView.setTag(holder);
+        private boolean isAt(int group, int index, IrcUser user) {
+            List<IrcUser> users = groups.get(group);
+            return index >= 0 && index < users.size() && users.get(index) == user;
+        }
+
+        private boolean insertRow(int group, int index, IrcUser user) {
+            List<IrcUser> users = groups.get(group);
+            if (index < 0 || index > users.size())
+                return false;
+            int header = getGroupPosition(group);
+            users.add(index, user);
+            if (users.size() == 1) {
+                notifyItemRangeInserted(header, getRowCount(group));
             } else {
-                holder = (ViewHolderChild) convertView.getTag();
+                notifyItemChanged(header);
+                if (!collapsed[group])
+                    notifyItemInserted(header + 1 + index);
             }
-            final IrcUser entry = getChild(groupPosition, childPosition);
-            final IrcMode mode = getGroup(groupPosition).first;
-            convertView.setBackgroundColor(ThemeUtil.getNickBg(mode));
+            return true;
+        }
 
-            holder.nickView.setText(entry.nick);
-            if (entry.away) {
-                holder.nickView.setTextColor(ThemeUtil.Color.bufferParted);
+        private boolean removeRow(int group, int index, IrcUser user) {
+            if (!isAt(group, index, user))
+                return false;
+            List<IrcUser> users = groups.get(group);
+            int header = getGroupPosition(group);
+            if (users.size() == 1) {
+                int rows = getRowCount(group);
+                users.remove(index);
+                notifyItemRangeRemoved(header, rows);
             } else {
-                holder.nickView.setTextColor(ThemeUtil.Color.bufferRead);
+                users.remove(index);
+                notifyItemChanged(header);
+                if (!collapsed[group])
+                    notifyItemRemoved(header + 1 + index);
             }
+            return true;
+        }
 
-            holder.nickView.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    queryUser(entry.nick);
-                }
-            });
+        private boolean moveRow(int group, int from, int to, IrcUser user) {
+            if (!isAt(group, from, user))
+                return false;
+            List<IrcUser> users = groups.get(group);
+            users.remove(from);
+            if (to < 0 || to > users.size()) {
+                users.add(from, user);
+                return false;
+            }
+            users.add(to, user);
+            if (!collapsed[group]) {
+                int first = getGroupPosition(group) + 1;
+                if (from != to)
+                    notifyItemMoved(first + from, first + to);
+                notifyItemChanged(first + to);
+            }
+            return true;
+        }
 
-            return convertView;
+        private void toggleGroup(int group) {
+            int size = groups.get(group).size();
+            int first = getGroupPosition(group) + 1;
+            collapsed[group] = !collapsed[group];
+            if (collapsed[group])
+                notifyItemRangeRemoved(first, size);
+            else
+                notifyItemRangeInserted(first, size);
         }
 
-        @Override
-        public int getRealChildrenCount(int groupPosition) {
-            if (this.users == null) return 0;
-            return getGroup(groupPosition).second.size();
+        /**
+         * @return the number of rows of the group, nothing if it has no users
+         */
+        private int getRowCount(int group) {
+            int size = groups.get(group).size();
+            if (size == 0)
+                return 0;
+            return collapsed[group] ? 1 : 1 + size;
         }
 
-        @Override
-        public Pair<IrcMode, List<IrcUser>> getGroup(int groupPosition) {
-            int counter = 0;
-            for (IrcMode mode : IrcMode.values()) {
-                if (counter == groupPosition) {
-                    return new Pair<IrcMode, List<IrcUser>>(mode, users.getUniqueUsersWithMode(mode));
-                } else {
-                    counter++;
-                }
+        /**
+         * @return the position of the header row of the group
+         */
+        private int getGroupPosition(int group) {
+            int position = 0;
+            for (int i = 0; i < group; i++) {
+                position += getRowCount(i);
             }
-            return null;
+            return position;
+        }
+
+        /**
+         * @return the group the row at the position belongs to
+         */
+        private int getGroupAt(int position) {
+            for (int group = 0; group < groups.size(); group++) {
+                int rows = getRowCount(group);
+                if (position < rows)
+                    return group;
+                position -= rows;
+            }
+            return -1;
+        }
+
+        private IrcUser getUserAt(int position) {
+            int group = getGroupAt(position);
+            return groups.get(group).get(position - getGroupPosition(group) - 1);
         }
 
         @Override
-        public int getGroupCount() {
-            if (users == null) return 0;
-            return IrcMode.values().length;
+        public int getItemCount() {
+            int count = 0;
+            for (int group = 0; group < groups.size(); group++) {
+                count += getRowCount(group);
+            }
+            return count;
         }
 
         @Override
-        public long getGroupId(int groupPosition) {
-            return groupPosition;
+        public int getItemViewType(int position) {
+            int group = getGroupAt(position);
+            return getGroupPosition(group) == position ? TYPE_GROUP : TYPE_NICK;
         }
 
         @Override
-        public View getGroupView(int groupPosition, boolean isExpanded,
-                                 View convertView, ViewGroup parent) {
-            ViewHolderGroup holder = null;
-
-            if (convertView == null) {
-                convertView = inflater.inflate(R.layout.widget_nick_group, null);
-                holder = new ViewHolderGroup();
-                holder.nameView = (TextView) convertView.findViewById(R.id.nicklist_group_name_view);
-                holder.countView = (TextView) convertView.findViewById(R.id.nicklist_group_count_view);
-                convertView.setTag(holder);
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            if (viewType == TYPE_GROUP) {
+                final ViewHolderGroup holder = new ViewHolderGroup(inflater.inflate(R.layout.widget_nick_group, parent, false));
+                holder.itemView.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        int position = holder.getAdapterPosition();
+                        if (position != RecyclerView.NO_POSITION)
+                            toggleGroup(getGroupAt(position));
+                    }
+                });
+                return holder;
             } else {
-                holder = (ViewHolderGroup) convertView.getTag();
+                final ViewHolderChild holder = new ViewHolderChild(inflater.inflate(R.layout.widget_nick_single, parent, false));
+                holder.nickView.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        int position = holder.getAdapterPosition();
+                        if (position != RecyclerView.NO_POSITION)
+                            queryUser(getUserAt(position).nick);
+                    }
+                });
+                return holder;
             }
-            Pair<IrcMode, List<IrcUser>> group = getGroup(groupPosition);
-            convertView.setBackgroundColor(ThemeUtil.getNickBg(group.first));
-            holder.nameView.setTextColor(ThemeUtil.getModeColor(group.first));
-            holder.countView.setTextColor(ThemeUtil.getModeColor(group.first));
-
-            if (group.second.size() < 1) {
-                convertView.setVisibility(View.GONE);
-                holder.nameView.setVisibility(View.GONE);
-                holder.countView.setVisibility(View.GONE);
-            } else {
-                convertView.setVisibility(View.VISIBLE);
-                holder.nameView.setVisibility(View.VISIBLE);
-                holder.countView.setVisibility(View.VISIBLE);
-                holder.nameView.setText(getResources().getQuantityString(group.first.modeName, group.second.size()));
-                holder.countView.setText(group.first.icon + " " + group.second.size());
-            }
-            return convertView;
         }
 
         @Override
-        public boolean hasStableIds() {
-            return false;
+        public void onBindViewHolder(RecyclerView.ViewHolder viewHolder, int position) {
+            IrcMode mode = IrcMode.values()[getGroupAt(position)];
+            if (viewHolder instanceof ViewHolderGroup) {
+                ViewHolderGroup holder = (ViewHolderGroup) viewHolder;
+                int size = groups.get(mode.ordinal()).size();
+                holder.itemView.setBackgroundColor(ThemeUtil.getNickBg(mode));
+                holder.nameView.setTextColor(ThemeUtil.getModeColor(mode));
+                holder.countView.setTextColor(ThemeUtil.getModeColor(mode));
+                holder.nameView.setText(getResources().getQuantityString(mode.modeName, size));
+                holder.countView.setText(mode.icon + " " + size);
+            } else {
+                ViewHolderChild holder = (ViewHolderChild) viewHolder;
+                IrcUser entry = getUserAt(position);
+                holder.itemView.setBackgroundColor(ThemeUtil.getNickBg(mode));
+
+                holder.nickView.setText(entry.nick);
+                if (entry.away) {
+                    holder.nickView.setTextColor(ThemeUtil.Color.bufferParted);
+                } else {
+                    holder.nickView.setTextColor(ThemeUtil.Color.bufferRead);
+                }
+            }
         }
+    }
 
-        @Override
-        public boolean isChildSelectable(int groupPosition, int childPosition) {
-            return false;
+    private static List<List<IrcUser>> emptyGroups() {
+        List<List<IrcUser>> groups = new ArrayList<>(IrcMode.values().length);
+        for (IrcMode mode : IrcMode.values()) {
+            groups.add(new ArrayList<IrcUser>());
         }
+        return groups;
     }
 
+    /**
+     * A copy of the users, or changes made after it, waiting to be shown
+     */
+    private static class PendingUsers {
+        final int generation;
+        final List<List<IrcUser>> copy;
+        final List<UserListChange> changes;
+
+        PendingUsers(int generation, List<List<IrcUser>> copy, List<UserListChange> changes) {
+            this.generation = generation;
+            this.copy = copy;
+            this.changes = changes;
+        }
+    }
 
-    public static class ViewHolderChild {
+    public static class ViewHolderChild extends RecyclerView.ViewHolder {
         public TextView nickView;
+
+        public ViewHolderChild(View itemView) {
+            super(itemView);
+            nickView = (TextView) itemView.findViewById(R.id.nicklist_nick_view);
+        }
     }
 
-    public static class ViewHolderGroup {
+    public static class ViewHolderGroup extends RecyclerView.ViewHolder {
         public TextView nameView;
         public TextView countView;
+
+        public ViewHolderGroup(View itemView) {
+            super(itemView);
+            nameView = (TextView) itemView.findViewById(R.id.nicklist_group_name_view);
+            countView = (TextView) itemView.findViewById(R.id.nicklist_group_count_view);
+        }
     }
 
     @Subscribe
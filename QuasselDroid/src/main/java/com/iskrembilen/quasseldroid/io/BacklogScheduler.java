@@ -0,0 +1,324 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Orders the initial backlog requests so the buffers the user is most likely to read
+ * arrive first, and limits how many requests are outstanding at the same time so the
+ * core doesn't answer all of them in one big burst.
+ * <p>
+ * With cores that support it, the remaining normal priority requests for the latest messages
+ * are sent as one requestBacklogAll. The core answers that with the newest messages of all
+ * buffers together, so busy buffers can take up the whole amount. Buffers that got less than
+ * they asked for are topped up with their own request afterwards.
+ */
+public class BacklogScheduler {
+    private static final String TAG = BacklogScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_OPEN = 0;
+    public static final int PRIORITY_HIGHLIGHT = 1;
+    public static final int PRIORITY_UNREAD = 2;
+    public static final int PRIORITY_NORMAL = 3;
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    /**
+     * Only worth replacing per-buffer requests with one requestBacklogAll if there are this many left
+     */
+    private static final int MIN_BACKLOG_ALL_BATCH = 8;
+
+    public interface Requester {
+        void sendBacklogRequest(int bufferId, int firstMsgId, int lastMsgId, int amount);
+
+        void sendBacklogAllRequest(int firstMsgId, int lastMsgId, int amount);
+    }
+
+    private static class Request implements Comparable<Request> {
+        final int bufferId;
+        final int firstMsgId;
+        final int lastMsgId;
+        final int amount;
+        final long sequence;
+        int priority;
+        /**
+         * Can be folded into a requestBacklogAll, top-ups can't or they would starve again
+         */
+        final boolean batchable;
+        /**
+         * While in a requestBacklogAll, the messages it brought for this buffer and the oldest of them
+         */
+        int received = 0;
+        int oldestReceived = -1;
+
+        Request(int bufferId, int firstMsgId, int lastMsgId, int amount, int priority, long sequence, boolean batchable) {
+            this.bufferId = bufferId;
+            this.firstMsgId = firstMsgId;
+            this.lastMsgId = lastMsgId;
+            this.amount = amount;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.batchable = batchable;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Requester requester;
+    private final int maxInFlight;
+
+    private final PriorityQueue<Request> queue = new PriorityQueue<>();
+    private final Map<Integer, Request> pending = new HashMap<>();
+    private final Set<Integer> inFlight = new HashSet<>();
+    /**
+     * The requests answered by the requestBacklogAll in flight, by buffer
+     */
+    private final Map<Integer, Request> batch = new HashMap<>();
+    private boolean backlogAllInFlight = false;
+    private boolean backlogAllSupported = false;
+    private boolean started = false;
+    private long sequence = 0;
+
+    private int preferredBufferId = -1;
+    private long startTime = -1;
+    private long firstReadableTime = -1;
+
+    public BacklogScheduler(Requester requester) {
+        this(requester, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public BacklogScheduler(Requester requester, int maxInFlight) {
+        this.requester = requester;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Set whether the core understands BacklogManager::requestBacklogAll
+     */
+    public synchronized void setBacklogAllSupported(boolean backlogAllSupported) {
+        this.backlogAllSupported = backlogAllSupported;
+    }
+
+    /**
+     * Queue a backlog request. If the buffer already has a queued request, the one with the higher priority is kept.
+     */
+    public synchronized void enqueue(int bufferId, int firstMsgId, int lastMsgId, int amount, int priority) {
+        if (bufferId == preferredBufferId)
+            priority = PRIORITY_OPEN;
+
+        Request existing = pending.get(bufferId);
+        if (existing != null) {
+            if (existing.priority <= priority)
+                return;
+            queue.remove(existing);
+        }
+        Request request = new Request(bufferId, firstMsgId, lastMsgId, amount, priority, sequence++, true);
+        pending.put(bufferId, request);
+        queue.add(request);
+        dispatch();
+    }
+
+    /**
+     * Start sending the queued requests
+     */
+    public synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        startTime = SystemClock.elapsedRealtime();
+        dispatch();
+    }
+
+    /**
+     * Raise the priority of a buffer that still waits for its backlog. Used when the buffer
+     * gets activity while waiting.
+     */
+    public synchronized void raisePriority(int bufferId, int priority) {
+        Request batched = batch.get(bufferId);
+        if (batched != null && batched.priority > priority)
+            batched.priority = priority;
+        Request request = pending.get(bufferId);
+        if (request == null || request.priority <= priority)
+            return;
+        queue.remove(request);
+        request.priority = priority;
+        queue.add(request);
+    }
+
+    /**
+     * The user opened this buffer, so its backlog is sent right away even if that exceeds the limit
+     */
+    public synchronized void promote(int bufferId) {
+        preferredBufferId = bufferId;
+        Request request = pending.remove(bufferId);
+        if (request == null) {
+            // Still waiting in a requestBacklogAll, which may not bring it anything
+            Request batched = batch.get(bufferId);
+            if (batched == null || inFlight.contains(bufferId))
+                return;
+            batch.remove(bufferId);
+            send(new Request(bufferId, batched.firstMsgId, batched.lastMsgId, batched.amount,
+                    PRIORITY_OPEN, sequence++, false));
+            return;
+        }
+        queue.remove(request);
+        request.priority = PRIORITY_OPEN;
+        if (started)
+            send(request);
+        else
+            requeue(request);
+    }
+
+    public synchronized void onBacklogReceived(int bufferId) {
+        if (!inFlight.remove(bufferId))
+            return;
+        if (firstReadableTime == -1 && (bufferId == preferredBufferId || preferredBufferId == -1)) {
+            firstReadableTime = SystemClock.elapsedRealtime();
+            Log.d(TAG, "First buffer readable after " + getTimeToFirstReadable() + "ms");
+        }
+        dispatch();
+    }
+
+    /**
+     * Count a message that came with the answer to requestBacklogAll, call for each of them
+     * before {@link #onBacklogAllReceived()}
+     */
+    public synchronized void onBacklogAllMessage(int bufferId, int messageId) {
+        Request request = batch.get(bufferId);
+        if (request == null)
+            return;
+        request.received++;
+        if (request.oldestReceived == -1 || messageId < request.oldestReceived)
+            request.oldestReceived = messageId;
+    }
+
+    /**
+     * The requestBacklogAll was answered, buffers that got less than they asked for are queued
+     * for the rest, older than what they got
+     */
+    public synchronized void onBacklogAllReceived() {
+        backlogAllInFlight = false;
+        int topUps = 0;
+        for (Request request : batch.values()) {
+            if (request.received >= request.amount)
+                continue;
+            Request topUp = new Request(request.bufferId, -1, request.oldestReceived,
+                    request.amount - request.received, request.priority, sequence++, false);
+            if (!pending.containsKey(topUp.bufferId)) {
+                requeue(topUp);
+                topUps++;
+            }
+        }
+        if (topUps > 0)
+            Log.d(TAG, "Topping up the backlog of " + topUps + " of " + batch.size() + " buffers");
+        batch.clear();
+        dispatch();
+    }
+
+    /**
+     * @return the time from {@link #start()} until the backlog of the open buffer arrived, or -1 if it didn't yet
+     */
+    public synchronized long getTimeToFirstReadable() {
+        if (firstReadableTime == -1)
+            return -1;
+        return firstReadableTime - startTime;
+    }
+
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && inFlight.isEmpty() && !backlogAllInFlight;
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+        pending.clear();
+        inFlight.clear();
+        batch.clear();
+        backlogAllInFlight = false;
+        started = false;
+    }
+
+    private void requeue(Request request) {
+        pending.put(request.bufferId, request);
+        queue.add(request);
+    }
+
+    private void dispatch() {
+        if (!started)
+            return;
+
+        while (!queue.isEmpty() && inFlight.size() + (backlogAllInFlight ? 1 : 0) < maxInFlight) {
+            if (queue.peek().priority == PRIORITY_NORMAL && sendRemainingAsBacklogAll())
+                continue;
+
+            Request request = queue.poll();
+            pending.remove(request.bufferId);
+            send(request);
+        }
+    }
+
+    private void send(Request request) {
+        inFlight.add(request.bufferId);
+        requester.sendBacklogRequest(request.bufferId, request.firstMsgId, request.lastMsgId, request.amount);
+    }
+
+    /**
+     * Once only normal priority requests are left, and they all ask for the latest messages,
+     * they can be answered by the core with a single requestBacklogAll
+     */
+    private boolean sendRemainingAsBacklogAll() {
+        if (!backlogAllSupported || backlogAllInFlight || queue.size() < MIN_BACKLOG_ALL_BATCH)
+            return false;
+
+        int amount = 0;
+        for (Request request : queue) {
+            if (!request.batchable || request.firstMsgId != -1 || request.lastMsgId != -1 || request.amount <= 0)
+                return false;
+            amount += request.amount;
+        }
+
+        List<Request> requests = new ArrayList<>(queue);
+        queue.clear();
+        for (Request request : requests) {
+            pending.remove(request.bufferId);
+            batch.put(request.bufferId, request);
+        }
+        backlogAllInFlight = true;
+        requester.sendBacklogAllRequest(-1, -1, amount);
+        return true;
+    }
+}
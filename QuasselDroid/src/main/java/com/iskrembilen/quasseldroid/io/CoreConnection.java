@@ -26,22 +26,32 @@ package com.iskrembilen.quasseldroid.io;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.iskrembilen.quasseldroid.events.RequestRemoteSyncEvent;
 import com.iskrembilen.quasseldroid.protocol.packets.ObjectRenamedRequest;
 import com.iskrembilen.quasseldroid.protocol.packets.RpcRequest;
 import com.iskrembilen.quasseldroid.protocol.packets.SyncMethodMessage;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.HeartBeat;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.InitData;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.InitRequest;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.RequestType;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.RpcCall;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SignalProxyCodec;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SignalProxyMessage;
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SyncMessage;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.BufferCollection;
 import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
+import com.iskrembilen.quasseldroid.protocol.state.BufferViewSnapshot;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
+import com.iskrembilen.quasseldroid.protocol.state.CoreFeature;
 import com.iskrembilen.quasseldroid.protocol.state.CoreInfo;
 import com.iskrembilen.quasseldroid.protocol.state.Identity;
 import com.iskrembilen.quasseldroid.protocol.state.IdentityCollection;
@@ -49,14 +59,14 @@ import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
 import com.iskrembilen.quasseldroid.protocol.state.IrcUser;
 import com.iskrembilen.quasseldroid.protocol.state.Network;
 import com.iskrembilen.quasseldroid.protocol.state.Network.ConnectionState;
+import com.iskrembilen.quasseldroid.protocol.state.NetworkResume;
 import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.exceptions.UnsupportedProtocolException;
 import com.iskrembilen.quasseldroid.io.CustomTrustManager.NewCertificateException;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
-import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaType;
-import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeRegistry;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDateTimeCodec;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
 import de.kuschku.util.BetterSparseArray;
@@ -75,17 +85,15 @@ import java.security.cert.CertificateException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -118,7 +126,8 @@ public final class CoreConnection {
     private Handler handler;
     public Context applicationContext;
     private QuasseldroidNotificationManager notificationManager;
-    private Timer heartbeatTimer;
+    private MessageSearchIndex searchIndex;
+    private LivenessMonitor liveness;
     private ReadThread readThread;
 
     private boolean initComplete;
@@ -133,12 +142,43 @@ public final class CoreConnection {
 
     private boolean usingSSL = false;
     private boolean usingCompression = false;
+    private SignalProxyCodec codec = SignalProxyCodec.LEGACY;
 
     private ExecutorService outputExecutor;
 
+    private BacklogScheduler backlogScheduler;
+    private boolean fetchToLastSeen;
+
+    // State of a dropped connection to the same core, reused instead of built again
+    private BetterSparseArray<Network> resumeNetworks;
+    private BetterSparseArray<Buffer> resumeBuffers;
+    private SparseBooleanArray resumedNetworks = new SparseBooleanArray();
+    private SparseBooleanArray resumedBuffers = new SparseBooleanArray();
+    private long connectStart;
+
     public CoreConnection(long coreId, String address, int port, String username,
                           String password, String clientVersion, Handler serviceHandler,
                           Context appContext, QuasseldroidNotificationManager notificationManager) {
+        this(coreId, address, port, username, password, clientVersion, serviceHandler, appContext, notificationManager, null);
+    }
+
+    /**
+     * Creates a connection that resumes the session of a dropped connection to the same core. The
+     * networks, buffers and users of the old connection are kept and updated in place from the new
+     * session state, and only messages newer than what the buffers already hold are fetched.
+     *
+     * @param previous the dropped connection, or null to start from scratch
+     */
+    public CoreConnection(long coreId, String address, int port, String username,
+                          String password, String clientVersion, Handler serviceHandler,
+                          Context appContext, QuasseldroidNotificationManager notificationManager,
+                          CoreConnection previous) {
+        if (previous != null && previous.initComplete && previous.coreId == coreId) {
+            this.resumeNetworks = previous.networks;
+            this.resumeBuffers = previous.buffers;
+        }
+        LatencyHistogram latencyHistogram = previous != null && previous.coreId == coreId
+                ? previous.liveness.getHistogram() : new LatencyHistogram();
         this.coreId = coreId;
         this.address = address;
         this.port = port;
@@ -148,12 +188,55 @@ public final class CoreConnection {
         this.clientVersion = clientVersion;
         this.applicationContext = appContext;
         this.notificationManager = notificationManager;
+        this.searchIndex = MessageSearchIndex.getInstance(appContext);
         outputExecutor = Executors.newSingleThreadExecutor();
+        backlogScheduler = new BacklogScheduler(new BacklogScheduler.Requester() {
+            @Override
+            public void sendBacklogRequest(int bufferId, int firstMsgId, int lastMsgId, int amount) {
+                requestBacklog(bufferId, firstMsgId, lastMsgId, amount);
+            }
+
+            @Override
+            public void sendBacklogAllRequest(int firstMsgId, int lastMsgId, int amount) {
+                requestBacklogAll(firstMsgId, lastMsgId, amount);
+            }
+        });
+
+        liveness = new LivenessMonitor(new LivenessMonitor.Callback() {
+            @Override
+            public void sendHeartBeat() {
+                try {
+                    sendSignalProxyMessage(new HeartBeat(System.currentTimeMillis(), false));
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException while sending ping", e);
+                    onDisconnected("Lost connection");
+                }
+            }
+
+            @Override
+            public void onTimeout() {
+                onDisconnected("Timed out");
+            }
+        }, latencyHistogram);
 
         readThread = new ReadThread();
         readThread.start();
     }
 
+    /**
+     * Heartbeats are sent less often while the app is in the background
+     */
+    public void setInForeground(boolean inForeground) {
+        liveness.setInForeground(inForeground);
+    }
+
+    /**
+     * @return the latency percentiles of this core, kept across resumed connections
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return liveness.getHistogram().getSnapshot();
+    }
+
     /**
      * Checks whether the core is available.
      */
@@ -167,15 +250,11 @@ public final class CoreConnection {
      * @param buffer the buffer id to set as read
      */
     public void requestMarkBufferAsRead(int buffer) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferSyncer", QVariantType.String));
-        retFunc.add(new QVariant<String>("", QVariantType.String));
-        retFunc.add(new QVariant<String>("requestMarkBufferAsRead", QVariantType.ByteArray));
-        retFunc.add(new QVariant<Integer>(buffer, "BufferId"));
+        SyncMessage sync = new SyncMessage("BufferSyncer", "", "requestMarkBufferAsRead",
+                new QVariant<Integer>(buffer, "BufferId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -183,15 +262,11 @@ public final class CoreConnection {
     }
 
     public void requestRemoveBuffer(int buffer) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferSyncer", QVariantType.String));
-        retFunc.add(new QVariant<String>("", QVariantType.String));
-        retFunc.add(new QVariant<String>("requestRemoveBuffer", QVariantType.ByteArray));
-        retFunc.add(new QVariant<Integer>(buffer, "BufferId"));
+        SyncMessage sync = new SyncMessage("BufferSyncer", "", "requestRemoveBuffer",
+                new QVariant<Integer>(buffer, "BufferId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -199,15 +274,11 @@ public final class CoreConnection {
     }
 
     public void requestTempHideBuffer(int bufferId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferViewConfig", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(bufferViewId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestRemoveBuffer", QVariantType.String));
-        retFunc.add(new QVariant<Integer>(bufferId, "BufferId"));
+        SyncMessage sync = new SyncMessage("BufferViewConfig", Integer.toString(bufferViewId), "requestRemoveBuffer",
+                new QVariant<Integer>(bufferId, "BufferId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requestRemoveBuffer", e);
             onDisconnected("Lost connection");
@@ -215,15 +286,11 @@ public final class CoreConnection {
     }
 
     public void requestPermHideBuffer(int bufferId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferViewConfig", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(bufferViewId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestRemoveBufferPermanently", QVariantType.String));
-        retFunc.add(new QVariant<Integer>(bufferId, "BufferId"));
+        SyncMessage sync = new SyncMessage("BufferViewConfig", Integer.toString(bufferViewId), "requestRemoveBufferPermanently",
+                new QVariant<Integer>(bufferId, "BufferId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requestRemoveBufferPermanently", e);
             onDisconnected("Lost connection");
@@ -231,14 +298,10 @@ public final class CoreConnection {
     }
 
     public void requestDisconnectNetwork(int networkId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("Network", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(networkId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestDisconnect", QVariantType.ByteArray));
+        SyncMessage sync = new SyncMessage("Network", Integer.toString(networkId), "requestDisconnect");
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -246,14 +309,10 @@ public final class CoreConnection {
     }
 
     public void requestConnectNetwork(int networkId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("Network", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(networkId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestConnect", QVariantType.ByteArray));
+        SyncMessage sync = new SyncMessage("Network", Integer.toString(networkId), "requestConnect");
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -261,16 +320,12 @@ public final class CoreConnection {
     }
 
     public void requestSetLastMsgRead(int buffer, int msgid) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferSyncer", QVariantType.String));
-        retFunc.add(new QVariant<String>("", QVariantType.String));
-        retFunc.add(new QVariant<String>("requestSetLastSeenMsg", QVariantType.ByteArray));
-        retFunc.add(new QVariant<Integer>(buffer, "BufferId"));
-        retFunc.add(new QVariant<Integer>(msgid, "MsgId"));
+        SyncMessage sync = new SyncMessage("BufferSyncer", "", "requestSetLastSeenMsg",
+                new QVariant<Integer>(buffer, "BufferId"),
+                new QVariant<Integer>(msgid, "MsgId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -278,16 +333,12 @@ public final class CoreConnection {
     }
 
     public void requestSetMarkerLine(int buffer, int msgid) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferSyncer", QVariantType.String));
-        retFunc.add(new QVariant<String>("", QVariantType.String));
-        retFunc.add(new QVariant<String>("requestSetMarkerLine", QVariantType.ByteArray));
-        retFunc.add(new QVariant<Integer>(buffer, "BufferId"));
-        retFunc.add(new QVariant<Integer>(msgid, "MsgId"));
+        SyncMessage sync = new SyncMessage("BufferSyncer", "", "requestSetMarkerLine",
+                new QVariant<Integer>(buffer, "BufferId"),
+                new QVariant<Integer>(msgid, "MsgId"));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException", e);
             onDisconnected("Lost connection");
@@ -299,16 +350,12 @@ public final class CoreConnection {
      * Requests to unhide a temporarily hidden buffer
      */
     public void requestUnhideTempHiddenBuffer(int bufferId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferViewConfig", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(bufferViewId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestAddBuffer", QVariantType.String));
-        retFunc.add(new QVariant<Integer>(bufferId, "BufferId"));
-        retFunc.add(new QVariant<Integer>(networks.get(buffers.get(bufferId).getInfo().networkId).getBufferCount(), QVariantType.Int));
+        SyncMessage sync = new SyncMessage("BufferViewConfig", Integer.toString(bufferViewId), "requestAddBuffer",
+                new QVariant<Integer>(bufferId, "BufferId"),
+                new QVariant<Integer>(networks.get(buffers.get(bufferId).getInfo().networkId).getBufferCount(), QVariantType.Int));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requesting backlog", e);
             onDisconnected("Lost connection");
@@ -319,16 +366,12 @@ public final class CoreConnection {
      * Requests to unhide a permanently hidden buffer
      */
     public void requestUnhidePermHiddenBuffer(int bufferId) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BufferViewConfig", QVariantType.String));
-        retFunc.add(new QVariant<String>(Integer.toString(bufferViewId), QVariantType.String));
-        retFunc.add(new QVariant<String>("requestAddBuffer", QVariantType.String));
-        retFunc.add(new QVariant<Integer>(bufferId, "BufferId"));
-        retFunc.add(new QVariant<Integer>(networks.get(buffers.get(bufferId).getInfo().networkId).getBufferCount(), QVariantType.Int));
+        SyncMessage sync = new SyncMessage("BufferViewConfig", Integer.toString(bufferViewId), "requestAddBuffer",
+                new QVariant<Integer>(bufferId, "BufferId"),
+                new QVariant<Integer>(networks.get(buffers.get(bufferId).getInfo().networkId).getBufferCount(), QVariantType.Int));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requesting backlog", e);
             onDisconnected("Lost connection");
@@ -349,33 +392,82 @@ public final class CoreConnection {
     }
 
     /**
-     * Requests all backlog from a given message ID until the current.
+     * Fetch the initial backlog of the given buffer before the others, used when the user opens it
      */
-    private void requestBacklog(int buffer, int firstMsgId) {
-        requestBacklog(buffer, firstMsgId, -1);
+    public void promoteBacklog(int buffer) {
+        backlogScheduler.promote(buffer);
+    }
+
+    private void requestBacklog(int buffer, int firstMsgId, int lastMsgId, int maxAmount) {
+        SyncMessage sync = new SyncMessage("BacklogManager", "", "requestBacklog",
+                new QVariant<Integer>(buffer, "BufferId"),
+                new QVariant<Integer>(firstMsgId, "MsgId"),
+                new QVariant<Integer>(lastMsgId, "MsgId"),
+                new QVariant<Integer>(maxAmount, QVariantType.Int),
+                new QVariant<Integer>(0, QVariantType.Int));
+
+        try {
+            sendSignalProxyMessage(sync);
+        } catch (IOException e) {
+            Log.e(TAG, "IOException while requesting backlog", e);
+            onDisconnected("Lost connection");
+        }
     }
 
     /**
-     * Requests backlog between two given message IDs.
+     * Adds received backlog messages to their buffers, or hands them to the service once init is done.
      */
-    private void requestBacklog(int buffer, int firstMsgId, int lastMsgId) {
-        requestBacklog(buffer, firstMsgId, lastMsgId, -1);
+    private void handleBacklog(List<QVariant<?>> data) {
+        Collections.reverse(data); // Apparently, we receive them in the wrong order
+
+        if (!initComplete) { //We are still initializing backlog for the first time
+            updateInitProgress("Receiving backlog");
+            boolean preferenceParseColors = PreferenceManager.getDefaultSharedPreferences(applicationContext).getBoolean(applicationContext.getString(R.string.preference_colored_text), false);
+            for (QVariant<?> message : data) {
+                IrcMessage msg = (IrcMessage) message.getData();
+                Buffer buffer = buffers.get(msg.bufferInfo.id);
+
+                if (buffer == null) {
+                    Log.e(TAG, "A message buffer is null:" + msg);
+                    continue;
+                }
+
+                if (!buffer.hasMessage(msg)) {
+                    /**
+                     * Check if we are highlighted in the message
+                     */
+                    MessageUtil.processMessage(applicationContext, notificationManager, msg);
+                    buffer.addBacklogMessage(msg);
+                    searchIndex.add(coreId, msg);
+                } else {
+                    Log.e(TAG, "Getting message buffer already have " + buffer.getInfo().name);
+                }
+            }
+        } else {
+            // Send our the backlog messages to our listeners
+            List<IrcMessage> messageList = new ArrayList<IrcMessage>();
+            for (QVariant<?> message : data) {
+                messageList.add((IrcMessage) message.getData());
+            }
+            searchIndex.add(coreId, messageList);
+            Message msg = handler.obtainMessage(R.id.NEW_BACKLOGITEM_TO_SERVICE);
+            msg.obj = messageList;
+            msg.sendToTarget();
+        }
     }
 
-    private void requestBacklog(int buffer, int firstMsgId, int lastMsgId, int maxAmount) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("BacklogManager", QVariantType.String));
-        retFunc.add(new QVariant<String>("", QVariantType.String));
-        retFunc.add(new QVariant<String>("requestBacklog", QVariantType.String));
-        retFunc.add(new QVariant<Integer>(buffer, "BufferId"));
-        retFunc.add(new QVariant<Integer>(firstMsgId, "MsgId"));
-        retFunc.add(new QVariant<Integer>(lastMsgId, "MsgId"));
-        retFunc.add(new QVariant<Integer>(maxAmount, QVariantType.Int));
-        retFunc.add(new QVariant<Integer>(0, QVariantType.Int));
+    /**
+     * Requests the latest backlog of all buffers at once.
+     */
+    private void requestBacklogAll(int firstMsgId, int lastMsgId, int maxAmount) {
+        SyncMessage sync = new SyncMessage("BacklogManager", "", "requestBacklogAll",
+                new QVariant<Integer>(firstMsgId, "MsgId"),
+                new QVariant<Integer>(lastMsgId, "MsgId"),
+                new QVariant<Integer>(maxAmount, QVariantType.Int),
+                new QVariant<Integer>(0, QVariantType.Int));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requesting backlog", e);
             onDisconnected("Lost connection");
@@ -384,15 +476,11 @@ public final class CoreConnection {
 
     public void requestRemoteSync(RequestRemoteSyncEvent event) {
         Log.d(TAG,"Requesting remote sync: "+event.className + "::" + event.functionName);
-        List<QVariant<?>> retFunc = new LinkedList<>();
-        retFunc.add(new QVariant<>(RequestType.Sync.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<>(event.className, QVariantType.String));
-        retFunc.add(new QVariant<>(event.objectName, QVariantType.String));
-        retFunc.add(new QVariant<>(event.functionName, QVariantType.String));
-        retFunc.add(event.args);
+        SyncMessage sync = new SyncMessage(event.className, event.objectName, event.functionName,
+                event.args);
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(sync);
         } catch (IOException e) {
             Log.e(TAG, "IOException while requesting remote sync", e);
             onDisconnected("Lost connection");
@@ -400,16 +488,13 @@ public final class CoreConnection {
     }
 
     public void requestCreateIdentity(int identityId, QVariant<?> identity, QVariant<?> ssldata) {
-        List<QVariant<?>> retFunc = new LinkedList<>();
-        retFunc.add(new QVariant<>(RequestType.RpcCall.getValue(), QVariantType.Int));
-
-        retFunc.add(new QVariant<>("2identityCreated(Identity)", QVariantType.String));
-        retFunc.add(new QVariant<>(new HashMap<String,Object>(),"Identity"));
+        RpcCall rpcCall = new RpcCall("2identityCreated(Identity)",
+                new QVariant<>(new HashMap<String,Object>(),"Identity"));
 
-        Log.d(TAG,retFunc.toString());
+        Log.d(TAG, rpcCall.toString());
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(rpcCall);
         } catch (IOException e) {
             Log.e(TAG, "IOException while updating identity", e);
             onDisconnected("Lost connection");
@@ -417,13 +502,11 @@ public final class CoreConnection {
     }
 
     public void requestRemoveIdentity(int identityId) {
-        List<QVariant<?>> retFunc = new LinkedList<>();
-        retFunc.add(new QVariant<>(RequestType.RpcCall.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<>("2identityRemoved(IdentityId)", QVariantType.String));
-        retFunc.add(new QVariant<>(identityId, QVariantType.Int));
+        RpcCall rpcCall = new RpcCall("2identityRemoved(IdentityId)",
+                new QVariant<>(identityId, QVariantType.Int));
 
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(rpcCall);
         } catch (IOException e) {
             Log.e(TAG, "IOException while updating identity", e);
             onDisconnected("Lost connection");
@@ -437,13 +520,12 @@ public final class CoreConnection {
      * @param message content of message
      */
     public void sendMessage(int buffer, String message) {
-        List<QVariant<?>> retFunc = new LinkedList<QVariant<?>>();
-        retFunc.add(new QVariant<Integer>(RequestType.RpcCall.getValue(), QVariantType.Int));
-        retFunc.add(new QVariant<String>("2sendInput(BufferInfo,QString)", QVariantType.String));
-        retFunc.add(new QVariant<BufferInfo>(buffers.get(buffer).getInfo(), "BufferInfo"));
-        retFunc.add(new QVariant<String>(message, QVariantType.String));
+        RpcCall rpcCall = new RpcCall("2sendInput(BufferInfo,QString)",
+                new QVariant<BufferInfo>(buffers.get(buffer).getInfo(), "BufferInfo"),
+                new QVariant<String>(message, QVariantType.String));
+
         try {
-            sendQVariantList(retFunc);
+            sendSignalProxyMessage(rpcCall);
         } catch (IOException e) {
             Log.e(TAG, "IOException while sending message", e);
             onDisconnected("Lost connection");
@@ -473,7 +555,8 @@ public final class CoreConnection {
      */
     @SuppressWarnings("unchecked")
     public void connect() throws UnknownHostException, IOException, GeneralSecurityException, CertificateException, NewCertificateException, EmptyQVariantException, UnsupportedProtocolException {
-        updateInitProgress("Connecting...");
+        connectStart = SystemClock.elapsedRealtime();
+        updateInitProgress(resumeNetworks != null ? "Resuming session..." : "Connecting...");
         // START CREATE SOCKETS
         //SocketFactory factory = (SocketFactory) SocketFactory.getDefault();
         socket = new Socket();
@@ -494,18 +577,21 @@ public final class CoreConnection {
 
         outStream.writeUInt(magic, 32);
 
-        //Send supported protocols
-        outStream.writeUInt(0x01, 32);      //0x01 is Legacy Protocol
-        outStream.writeUInt(0x01 << 31, 32); //Bit 31 set to indicate end of list
+        //Send supported protocols, the preferred one first
+        outStream.writeUInt(SignalProxyCodec.PROTOCOL_DATASTREAM, 32);
+        outStream.writeUInt(SignalProxyCodec.PROTOCOL_LEGACY | (0x01 << 31), 32); //Bit 31 set to indicate end of list
 
         //Attempt to read core's response
         try {
             long responseValue = inStream.readUInt(32);
 
-            //Check to make sure legacy protocol is in use
-            if ((responseValue & 0x01) == 0) {
-                throw new UnsupportedProtocolException("Core claims not to support legacy protocol!");
+            //The low byte is the protocol the core picked from our list
+            int protocol = (int) (responseValue & 0xff);
+            codec = SignalProxyCodec.forProtocol(protocol);
+            if (codec == null) {
+                throw new UnsupportedProtocolException("Core picked unsupported protocol " + protocol);
             }
+            Log.d(TAG, "Using protocol " + protocol);
 
             //Check if Encryption should be used
             if (((responseValue >> 24) & 0x01) > 0) {
@@ -520,6 +606,7 @@ public final class CoreConnection {
             //This means that the core supports only the legacy handshake, so reopen the connection
             //and try again.
             updateInitProgress("Legacy core detected, falling back to legacy handshake...");
+            codec = SignalProxyCodec.LEGACY;
             socket = new Socket();
             socket.setKeepAlive(true);
             socket.connect(new InetSocketAddress(address, port), 10000);
@@ -547,6 +634,12 @@ public final class CoreConnection {
         initial.put("UseCompression", new QVariant<Boolean>(false, QVariantType.Bool));
         initial.put("MsgType", new QVariant<String>("ClientInit", QVariantType.String));
         initial.put("ProtocolVersion", new QVariant<Integer>(10, QVariantType.Int));
+        initial.put("Features", new QVariant<Long>(CoreFeature.toLegacyFeatures(CoreFeature.CLIENT_FEATURES), QVariantType.UInt));
+        List<String> featureList = new ArrayList<String>();
+        for (CoreFeature feature : CoreFeature.CLIENT_FEATURES) {
+            featureList.add(feature.name());
+        }
+        initial.put("FeatureList", new QVariant<List<String>>(featureList, QVariantType.StringList));
 
         sendQVariantMap(initial);
         // END CLIENT INFO
@@ -556,13 +649,28 @@ public final class CoreConnection {
         Map<String, QVariant<?>> reply = readQVariantMap();
         if(reply.get("MsgType").toString().equals("ClientInitAck")){
             coreInfo = new CoreInfo();
-            coreInfo.setCoreInfo((String) reply.get("CoreInfo").getData());
-            coreInfo.setSupportSsl((Boolean) reply.get("SupportSsl").getData());
+            coreInfo.setProtocol(codec.getProtocol());
+            //CoreInfo, SupportSsl and ProtocolVersion are only sent by legacy cores
+            if (reply.containsKey("CoreInfo"))
+                coreInfo.setCoreInfo((String) reply.get("CoreInfo").getData());
+            if (reply.containsKey("SupportSsl"))
+                coreInfo.setSupportSsl((Boolean) reply.get("SupportSsl").getData());
             coreInfo.setConfigured((Boolean) reply.get("Configured").getData());
             coreInfo.setLoginEnabled((Boolean) reply.get("LoginEnabled").getData());
             coreInfo.setMsgType((String) reply.get("MsgType").getData());
-            coreInfo.setProtocolVersion(((Long) reply.get("ProtocolVersion").getData()).intValue());
-            coreInfo.setSupportsCompression((Boolean) reply.get("SupportsCompression").getData());
+            if (reply.containsKey("ProtocolVersion"))
+                coreInfo.setProtocolVersion(((Number) reply.get("ProtocolVersion").getData()).intValue());
+            if (reply.containsKey("SupportsCompression"))
+                coreInfo.setSupportsCompression((Boolean) reply.get("SupportsCompression").getData());
+
+            EnumSet<CoreFeature> coreFeatures = EnumSet.noneOf(CoreFeature.class);
+            if (reply.containsKey("CoreFeatures"))
+                coreFeatures.addAll(CoreFeature.fromLegacyFeatures(((Number) reply.get("CoreFeatures").getData()).longValue()));
+            if (reply.containsKey("FeatureList"))
+                CoreFeature.addFromNames(coreFeatures, (List<String>) reply.get("FeatureList").getData());
+            Log.d(TAG, "Core features: " + coreFeatures);
+            coreFeatures.retainAll(CoreFeature.CLIENT_FEATURES);
+            coreInfo.setFeatures(coreFeatures);
         }else{
             if(reply.get("MsgType").toString().equals("ClientInitReject")){
                 throw new IOException((String) reply.get("Error").getData());
@@ -575,9 +683,12 @@ public final class CoreConnection {
             usingSSL = true;
         }
 
-        //Check that the protocol version is at least 10
-        if (coreInfo.getProtocolVersion() < 10)
+        //Check that the protocol version is at least 10, the DataStream protocol doesn't send it
+        if (!coreInfo.isDataStream() && coreInfo.getProtocolVersion() < 10)
             throw new UnsupportedProtocolException("Protocol version is old: " + coreInfo.getProtocolVersion());
+
+        //DataStream cores are new enough to answer a single request for the backlog of all buffers
+        backlogScheduler.setBacklogAllSupported(coreInfo.isDataStream());
         // END CORE INFO
 
         // START SSL CONNECTION
@@ -637,7 +748,20 @@ public final class CoreConnection {
         networks = new BetterSparseArray<>(networkIds.size());
         for (QVariant<?> networkId : networkIds) {
             Integer id = (Integer) networkId.getData();
-            networks.put(id, new Network(id));
+            Network network = resumeNetworks != null ? resumeNetworks.get(id) : null;
+            if (network != null) {
+                resumedNetworks.put(id, true);
+            } else {
+                network = new Network(id);
+            }
+            networks.put(id, network);
+        }
+        if (resumeNetworks != null) {
+            for (Network network : resumeNetworks.values()) {
+                if (!networks.containsKey(network.getId())) {
+                    handler.obtainMessage(R.id.NETWORK_REMOVED, network.getId(), 0).sendToTarget();
+                }
+            }
         }
 
         List<QVariant<?>> identities = (List<QVariant<?>>) sessionState.get("Identities").getData();
@@ -654,11 +778,23 @@ public final class CoreConnection {
         List<QVariant<?>> bufferInfos = (List<QVariant<?>>) sessionState.get("BufferInfos").getData();
         buffers = new BetterSparseArray<>(bufferInfos.size());
 
-        QuasselDbHelper dbHelper = new QuasselDbHelper(applicationContext);
+        QuasselDbHelper dbHelper = QuasselDbHelper.getInstance(applicationContext);
+        dbHelper.loadHiddenEvents();
         ArrayList<Integer> bufferIds = new ArrayList<Integer>();
         for (QVariant<?> bufferInfoQV : bufferInfos) {
             BufferInfo bufferInfo = (BufferInfo) bufferInfoQV.getData();
-            Buffer buffer = new Buffer(bufferInfo, dbHelper);
+            Buffer buffer = resumeBuffers != null ? resumeBuffers.get(bufferInfo.id) : null;
+            if (buffer != null && resumedNetworks.get(bufferInfo.networkId)) {
+                // Keep the buffer and its messages, the name is the only thing that can change.
+                // The buffer is live, so it is renamed on the state thread.
+                if (!buffer.getInfo().name.equals(bufferInfo.name)) {
+                    handler.obtainMessage(R.id.RENAME_BUFFER, bufferInfo.id, 0, bufferInfo.name).sendToTarget();
+                }
+                buffers.put(bufferInfo.id, buffer);
+                bufferIds.add(bufferInfo.id);
+                continue;
+            }
+            buffer = new Buffer(bufferInfo, dbHelper);
             buffers.put(bufferInfo.id, buffer);
             if (bufferInfo.type == BufferInfo.Type.StatusBuffer) {
                 networks.get(bufferInfo.networkId).setStatusBuffer(buffer);
@@ -667,9 +803,15 @@ public final class CoreConnection {
             }
             bufferIds.add(bufferInfo.id);
         }
-        dbHelper.open();
+        if (resumeBuffers != null) {
+            for (Buffer buffer : resumeBuffers.values()) {
+                int networkId = buffer.getInfo().networkId;
+                if (!buffers.containsKey(buffer.getInfo().id) && resumedNetworks.get(networkId)) {
+                    handler.obtainMessage(R.id.REMOVE_BUFFER, networkId, buffer.getInfo().id).sendToTarget();
+                }
+            }
+        }
         dbHelper.cleanupEvents(bufferIds.toArray(new Integer[bufferIds.size()]));
-        dbHelper.close();
 
         // END SESSION INIT
 
@@ -689,30 +831,28 @@ public final class CoreConnection {
         sendInitRequest("BufferViewManager", "");
         SharedPreferences options = PreferenceManager.getDefaultSharedPreferences(applicationContext);
 
-        //Get backlog if user selected a fixed amount
-        if (!options.getBoolean(applicationContext.getString(R.string.preference_fetch_to_last_seen), false)) {
-            int backlogAmount = Integer.parseInt(options.getString(applicationContext.getString(R.string.preference_initial_backlog_limit), "1"));
-            for (Buffer buffer : buffers.values()) {
-                requestMoreBacklog(buffer.getInfo().id, backlogAmount);
+        //Resumed buffers only need the messages that arrived while we were gone
+        for (Buffer buffer : buffers.values()) {
+            int lastMessageId = buffer.getLastMessageId();
+            if (lastMessageId != -1) {
+                resumedBuffers.put(buffer.getInfo().id, true);
+                backlogScheduler.enqueue(buffer.getInfo().id, lastMessageId, -1, -1, BacklogScheduler.PRIORITY_NORMAL);
             }
         }
 
-        TimerTask sendPingAction = new TimerTask() {
-            public void run() {
-                List<QVariant<?>> packedFunc = new LinkedList<QVariant<?>>();
-                packedFunc.add(new QVariant<Integer>(RequestType.HeartBeat.getValue(), QVariantType.Int));
-                packedFunc.add(new QVariant<Calendar>(Calendar.getInstance(), QVariantType.Time));
-                Log.d(TAG, "Sending heartbeat");
-                try {
-                    sendQVariantList(packedFunc);
-                } catch (IOException e) {
-                    Log.e(TAG, "IOException while sending ping", e);
-                    onDisconnected("Lost connection");
+        //Get backlog if user selected a fixed amount, otherwise it is queued when the last seen messages arrive
+        fetchToLastSeen = options.getBoolean(applicationContext.getString(R.string.preference_fetch_to_last_seen), false);
+        if (!fetchToLastSeen) {
+            int backlogAmount = Integer.parseInt(options.getString(applicationContext.getString(R.string.preference_initial_backlog_limit), "1"));
+            for (Buffer buffer : buffers.values()) {
+                if (!resumedBuffers.get(buffer.getInfo().id)) {
+                    backlogScheduler.enqueue(buffer.getInfo().id, -1, -1, backlogAmount, BacklogScheduler.PRIORITY_NORMAL);
                 }
             }
-        };
-        heartbeatTimer = new Timer();
-        heartbeatTimer.schedule(sendPingAction, 30000, 30000); // Send heartbeats every 30 seconds
+        }
+        backlogScheduler.start();
+
+        liveness.start();
 
         // END SIGNAL PROXY
         updateInitProgress("Connection established, waiting on networks...");
@@ -749,54 +889,24 @@ public final class CoreConnection {
     }
 
     /**
-     * Type of a given request (should be pretty self-explanatory).
-     */
-    private enum RequestType {
-        Invalid(0),
-        Sync(1),
-        RpcCall(2),
-        InitRequest(3),
-        InitData(4),
-        HeartBeat(5),
-        HeartBeatReply(6);
-
-        static SparseArray<RequestType> types = new SparseArray<>(6);
-        static {
-            for (RequestType t : RequestType.values()) {
-                types.put(t.value,t);
-            }
-        }
-
-        // Below this line; java sucks. Hard.
-        int value;
-
-        RequestType(int value) {
-            this.value = value;
-        }
-
-        public int getValue() {
-            return value;
-        }
-
-        public static RequestType getForVal(int val) {
-            return types.get(val,Invalid);
-        }
-    }
-
-    /**
-     * Convenience function to send a given QVariant.
+     * Sends a SignalProxy message, encoded straight to the stream without building a QVariantList first.
      *
-     * @param data QVariant to send.
+     * @param message message to send.
      */
-    private synchronized void sendQVariant(QVariant<?> data) throws IOException {
-        outputExecutor.execute(new OutputRunnable(data));
+    private synchronized void sendSignalProxyMessage(SignalProxyMessage message) throws IOException {
+        outputExecutor.execute(new OutputRunnable(message));
     }
 
     private class OutputRunnable implements Runnable {
-        private QVariant<?> data;
+        private Map<String, QVariant<?>> handshake;
+        private SignalProxyMessage message;
 
-        public OutputRunnable(QVariant<?> data) {
-            this.data = data;
+        public OutputRunnable(Map<String, QVariant<?>> handshake) {
+            this.handshake = handshake;
+        }
+
+        public OutputRunnable(SignalProxyMessage message) {
+            this.message = message;
         }
 
         @Override
@@ -807,7 +917,11 @@ public final class CoreConnection {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 QDataOutputStream bos = new QDataOutputStream(baos);
 
-                QMetaTypeRegistry.serialize(QMetaType.Type.QVariant, bos, data);
+                if (message != null) {
+                    codec.write(bos, message);
+                } else {
+                    codec.writeHandshake(bos, handshake);
+                }
                 // Tell the other end how much data to expect
                 outStream.writeUInt(bos.size(), 32);
 
@@ -833,19 +947,8 @@ public final class CoreConnection {
      *
      * @param data the given QVariantMap to send.
      */
-    private void sendQVariantMap(Map<String, QVariant<?>> data) throws IOException {
-        QVariant<Map<String, QVariant<?>>> bufstruct = new QVariant<Map<String, QVariant<?>>>(data, QVariantType.Map);
-        sendQVariant(bufstruct);
-    }
-
-    /**
-     * A convenience function to send a given QVariantList.
-     *
-     * @param data The QVariantList to send.
-     */
-    private void sendQVariantList(List<QVariant<?>> data) throws IOException {
-        QVariant<List<QVariant<?>>> bufstruct = new QVariant<List<QVariant<?>>>(data, QVariantType.List);
-        sendQVariant(bufstruct);
+    private synchronized void sendQVariantMap(Map<String, QVariant<?>> data) throws IOException {
+        outputExecutor.execute(new OutputRunnable(data));
     }
 
     /**
@@ -856,9 +959,7 @@ public final class CoreConnection {
     private Map<String, QVariant<?>> readQVariantMap() throws IOException, EmptyQVariantException {
         // Length of this packet (why do they send this? no-one knows!).
         inStream.readUInt(32);
-        QVariant<Map<String, QVariant<?>>> v = (QVariant<Map<String, QVariant<?>>>) QMetaTypeRegistry.unserialize(QMetaType.Type.QVariant, inStream);
-
-        Map<String, QVariant<?>> ret = v.getData();
+        Map<String, QVariant<?>> ret = codec.readHandshake(inStream);
 
         if (!readThread.running)
             throw new IOException(); //Stops crashing while connecting if we are told to disconnect, so 2 instances are not reading the network
@@ -866,17 +967,13 @@ public final class CoreConnection {
     }
 
     /**
-     * A convenience function to read a QVariantList.
+     * A convenience function to read a SignalProxy message.
      *
      * @throws EmptyQVariantException
      */
-    private List<QVariant<?>> readQVariantList() throws IOException, EmptyQVariantException {
+    private SignalProxyMessage readSignalProxyMessage() throws IOException, EmptyQVariantException {
         inStream.readUInt(32); // Length
-        QVariant<List<QVariant<?>>> v = (QVariant<List<QVariant<?>>>) QMetaTypeRegistry.unserialize(QMetaType.Type.QVariant, inStream);
-
-        List<QVariant<?>> ret = v.getData();
-
-        return ret;
+        return codec.read(inStream);
     }
 
     /**
@@ -886,11 +983,7 @@ public final class CoreConnection {
      * @param objectName The name of the object we want.
      */
     private void sendInitRequest(String className, String objectName) throws IOException {
-        List<QVariant<?>> packedFunc = new LinkedList<QVariant<?>>();
-        packedFunc.add(new QVariant<Integer>(RequestType.InitRequest.getValue(), QVariantType.Int));
-        packedFunc.add(new QVariant<String>(className, QVariantType.String));
-        packedFunc.add(new QVariant<String>(objectName, QVariantType.String));
-        sendQVariantList(packedFunc);
+        sendSignalProxyMessage(new InitRequest(className, objectName));
     }
 
     private void updateInitProgress(String message) {
@@ -904,30 +997,140 @@ public final class CoreConnection {
     }
 
     private void updateInitDone() {
+        Log.i(TAG, "Session usable after " + (SystemClock.elapsedRealtime() - connectStart) + "ms"
+                + (resumeNetworks != null ? ", resumed " + resumedBuffers.size() + " buffers" : ""));
+        resumeNetworks = null;
+        resumeBuffers = null;
         initComplete = true;
         handler.obtainMessage(R.id.INIT_DONE).sendToTarget();
     }
 
+    /**
+     * Fills in a network we created for this connection from its InitData and hands it to the
+     * service. It isn't shared with the state thread yet, so it is changed right here.
+     */
+    @SuppressWarnings("unchecked")
+    private void initNetwork(Network network, Map<String, QVariant<?>> initMap) throws EmptyQVariantException {
+        int networkId = network.getId();
+
+        // Store the network name and associated myNick for "our" user
+        network.setMyNick((String) initMap.get("myNick").getData());
+        network.setNetworkName((String) initMap.get("networkName").getData());
+        network.setLatency((Integer) initMap.get("latency").getData());
+        network.setCurrentServer((String) initMap.get("currentServer").getData());
+        network.setIdentity((Integer) initMap.get("identityId").getData());
+        boolean isConnected = (Boolean) initMap.get("isConnected").getData();
+        if (isConnected) network.setConnected(true);
+        else network.setConnectionState(ConnectionState.Disconnected);
+        if (network.getStatusBuffer() != null)
+            network.getStatusBuffer().setActive(isConnected);
+
+        //we got enough info to tell service we are parsing network
+        Log.i(TAG, "Started parsing network " + network.getName());
+
+        // Horribly nested maps
+        Map<String, QVariant<?>> usersAndChans = (Map<String, QVariant<?>>) initMap.get("IrcUsersAndChannels").getData();
+        Map<String, QVariant<?>> channels = (Map<String, QVariant<?>>) usersAndChans.get("channels").getData();
+
+        //Parse out user objects for network
+        Map<String, QVariant<?>> userObjs = (Map<String, QVariant<?>>) usersAndChans.get("users").getData();
+        ArrayList<IrcUser> ircUsers = new ArrayList<IrcUser>();
+        HashMap<String, IrcUser> userTempMap = new HashMap<String, IrcUser>();
+        for (Map.Entry<String, QVariant<?>> element : userObjs.entrySet()) {
+            IrcUser user = new IrcUser();
+            user.name = element.getKey();
+            user.fromVariantMap((QVariant<Map<String, QVariant<?>>>) element.getValue());
+            user.networkId = networkId;
+
+            ircUsers.add(user);
+            userTempMap.put(user.nick, user);
+        }
+        for (IrcUser user : ircUsers) {
+            user.register();
+        }
+        network.setUserList(ircUsers);
+
+        // Parse out the topics
+        for (QVariant<?> channel : channels.values()) {
+            Map<String, QVariant<?>> chan = (Map<String, QVariant<?>>) channel.getData();
+            String chanName = (String) chan.get("name").getData();
+            Map<String, QVariant<?>> userModes = (Map<String, QVariant<?>>) chan.get("UserModes").getData();
+            String topic = (String) chan.get("topic").getData();
+
+            boolean foundChannel = false;
+            for (Buffer buffer : network.getBuffers().getBufferList(BufferCollectionHelper.FILTER_SET_ALL)) {
+                if (buffer.getInfo().name.equalsIgnoreCase(chanName)) {
+                    buffer.setTopic(topic);
+                    buffer.setActive(true);
+                    ArrayList<Pair<IrcUser, String>> usersToAdd = new ArrayList<Pair<IrcUser, String>>();
+                    for (Entry<String, QVariant<?>> nick : userModes.entrySet()) {
+                        IrcUser user = userTempMap.get(nick.getKey());
+                        // TODO: Replace this with a less ugly hack
+                        if (user == null)
+                            user = userTempMap.get(nick.getKey().replace("(^[\\\\d-]+|[^A-Za-z0-9\\x5b-\\x60\\x7b-\\x7d])",""));
+
+                        // If the user is still null, switch to the next
+                        if (user == null)
+                            continue;
+
+                        usersToAdd.add(new Pair<IrcUser, String>(user, (String) nick.getValue().getData()));
+                    }
+                    buffer.getUsers().addUsers(usersToAdd);
+                    foundChannel = true;
+                    break;
+                }
+            }
+            if (!foundChannel)
+                Log.e(TAG, "A channel in a network has no corresponding buffer object " + chanName);
+        }
+
+        Log.i(TAG, "Sending network " + network.getName() + " to service");
+        handler.obtainMessage(R.id.ADD_NETWORK, network).sendToTarget();
+    }
+
+    /**
+     * Parses the InitData of a network kept from the dropped connection, which the state thread
+     * then applies with {@link Network#resume(NetworkResume)}
+     */
+    @SuppressWarnings("unchecked")
+    private NetworkResume parseNetworkResume(int networkId, Map<String, QVariant<?>> initMap) throws EmptyQVariantException {
+        NetworkResume state = new NetworkResume(networkId);
+        state.myNick = (String) initMap.get("myNick").getData();
+        state.networkName = (String) initMap.get("networkName").getData();
+        state.latency = (Integer) initMap.get("latency").getData();
+        state.currentServer = (String) initMap.get("currentServer").getData();
+        state.identityId = (Integer) initMap.get("identityId").getData();
+        state.connected = (Boolean) initMap.get("isConnected").getData();
+
+        Map<String, QVariant<?>> usersAndChans = (Map<String, QVariant<?>>) initMap.get("IrcUsersAndChannels").getData();
+        Map<String, QVariant<?>> userObjs = (Map<String, QVariant<?>>) usersAndChans.get("users").getData();
+        for (Map.Entry<String, QVariant<?>> element : userObjs.entrySet()) {
+            IrcUser user = new IrcUser();
+            user.name = element.getKey();
+            user.fromVariantMap((QVariant<Map<String, QVariant<?>>>) element.getValue());
+            user.networkId = networkId;
+            state.users.add(user);
+        }
+
+        Map<String, QVariant<?>> channels = (Map<String, QVariant<?>>) usersAndChans.get("channels").getData();
+        for (QVariant<?> channel : channels.values()) {
+            Map<String, QVariant<?>> chan = (Map<String, QVariant<?>>) channel.getData();
+            NetworkResume.Channel resumed = new NetworkResume.Channel((String) chan.get("name").getData(), (String) chan.get("topic").getData());
+            Map<String, QVariant<?>> userModes = (Map<String, QVariant<?>>) chan.get("UserModes").getData();
+            for (Entry<String, QVariant<?>> nick : userModes.entrySet()) {
+                resumed.userModes.put(nick.getKey(), (String) nick.getValue().getData());
+            }
+            state.channels.add(resumed);
+        }
+        return state;
+    }
+
     // FIXME: FIX THIS MONSTER
     // TODO: Abandon hope all ye who enter this place.
 
     private class ReadThread extends Thread {
-        public static final int TIMEOUT = 45000;
         private boolean running = false;
 
-        private CountDownTimer checkAlive = new CountDownTimer(TIMEOUT, TIMEOUT) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                //Do nothing, no use
-            }
-
-            @Override
-            public void onFinish() {
-                Log.i(TAG, "Timer finished, disconnection from core");
-                CoreConnection.this.onDisconnected("Timed out");
-            }
-        };
-
 
         public void run() {
             try {
@@ -939,9 +1142,8 @@ public final class CoreConnection {
             }
 
             //Close everything
-            if (heartbeatTimer != null) {
-                heartbeatTimer.cancel(); // Has this stopped executing now? Nobody knows.
-            }
+            backlogScheduler.clear();
+            liveness.stop();
 
             //Close streams and socket
             try {
@@ -973,7 +1175,7 @@ public final class CoreConnection {
         public String doRun() throws EmptyQVariantException {
             this.running = true;
             errorMessage = null;
-            LinkedList<List<QVariant<?>>> packageQueue = new LinkedList<List<QVariant<?>>>();
+            LinkedList<SignalProxyMessage> packageQueue = new LinkedList<SignalProxyMessage>();
 
             try {
                 connect();
@@ -1011,15 +1213,15 @@ public final class CoreConnection {
             // Connection is valid, send notification to activity:
             sendConnectingEvent();
 
-            List<QVariant<?>> packedFunc;
+            SignalProxyMessage proxyMessage;
             final long startWait = System.currentTimeMillis();
             while (running) {
                 try {
                     if (networkInitComplete && packageQueue.size() > 0) {
                         Log.e(TAG, "Queue not empty, retrieve element");
-                        packedFunc = packageQueue.poll();
+                        proxyMessage = packageQueue.poll();
                     } else {
-                        packedFunc = readQVariantList();
+                        proxyMessage = readSignalProxyMessage();
                     }
 
                     //Check if we where told to disconnect while reading qvariantlist
@@ -1028,22 +1230,25 @@ public final class CoreConnection {
                     }
                     //Log.i(TAG, "Slow core is slow: " + (System.currentTimeMillis() - startWait) + "ms");
 
-                    //We received a package, aka we are not disconnected, restart timer
-                    //Log.i(TAG, "Package received, resetting countdown");
-                    checkAlive.cancel();
-                    checkAlive.start();
+                    //We received a package, aka we are not disconnected
+                    liveness.onReceive();
+
+                    if (proxyMessage == null) {
+                        Log.e(TAG, "UNHANDLED: unknown request type");
+                        continue;
+                    }
 
                     //if network init is not complete and we receive anything but a network init object, queue it
                     if (!networkInitComplete) {
-                        if (RequestType.getForVal((Integer) packedFunc.get(0).getData()) != RequestType.InitData || !((String) packedFunc.get(1).getData()).equals("Network")) {
+                        if (proxyMessage.getType() != RequestType.InitData || !((InitData) proxyMessage).className.equals("Network")) {
                             Log.e(TAG, "Package not network, queueing it");
-                            packageQueue.add(packedFunc);
+                            packageQueue.add(proxyMessage);
                             continue; //Read next packageFunc
                         }
                     }
 
                     long start = System.currentTimeMillis();
-                    RequestType type = RequestType.getForVal((Integer) packedFunc.remove(0).getData());
+                    RequestType type = proxyMessage.getType();
                     String className = "", objectName;
 	
 					/*
@@ -1053,28 +1258,25 @@ public final class CoreConnection {
 					/*
 					 * A heartbeat is a simple request sent with fixed intervals,
 					 * to make sure that both ends are still connected (apparently, TCP isn't good enough).
-					 * TODO: We should use this, and disconnect automatically when the core has gone away.
+					 * The reply carries the timestamp of the heartbeat it answers.
 					 */
                         case HeartBeat:
                             Log.d(TAG, "Got heartbeat");
-                            List<QVariant<?>> packet = new LinkedList<QVariant<?>>();
-                            packet.add(new QVariant<Integer>(RequestType.HeartBeatReply.getValue(), QVariantType.Int));
-                            packet.add(new QVariant<Calendar>(Calendar.getInstance(), QVariantType.Time));
                             try {
-                                sendQVariantList(packet);
+                                long timestamp = ((HeartBeat) proxyMessage).timestamp;
+                                sendSignalProxyMessage(new HeartBeat(timestamp != QDateTimeCodec.INVALID ? timestamp : System.currentTimeMillis(), true));
                             } catch (IOException e) {
-                                // TODO Auto-generated catch block
-                                e.printStackTrace();
+                                Log.e(TAG, "IOException while answering heartbeat", e);
                             }
                             break;
                         case HeartBeatReply:
                             Log.d(TAG, "Got heartbeat reply");
-                            if (packedFunc.size() != 0) {
-                                Calendar calendarNow = Calendar.getInstance();
-                                Calendar calendarSent = (Calendar) packedFunc.remove(0).getData();
-                                int latency = (int) (calendarNow.getTimeInMillis() - calendarSent.getTimeInMillis()) / 2;
-                                Log.d(TAG, "Latency: " + latency);
-                                handler.obtainMessage(R.id.SET_CORE_LATENCY, latency, 0, null).sendToTarget();
+                            HeartBeat heartBeatReply = (HeartBeat) proxyMessage;
+                            if (heartBeatReply.timestamp != QDateTimeCodec.INVALID) {
+                                int latency = liveness.onHeartBeatReply(heartBeatReply.timestamp);
+                                LatencyHistogram.Snapshot snapshot = liveness.getHistogram().getSnapshot();
+                                Log.d(TAG, "Latency: " + snapshot);
+                                handler.obtainMessage(R.id.SET_CORE_LATENCY, latency, 0, snapshot).sendToTarget();
                             }
                             break;
 						/*
@@ -1084,8 +1286,9 @@ public final class CoreConnection {
 						 */
                         case InitData:
                             // The class name and name of the object we are about to create
-                            className = (String) packedFunc.remove(0).getData();
-                            objectName = (String) packedFunc.remove(0).getData();
+                            InitData initData = (InitData) proxyMessage;
+                            className = initData.className;
+                            objectName = initData.objectName;
 
 						/*
 						 * An object representing an IRC network, containing users and channels ("buffers"). 
@@ -1095,79 +1298,15 @@ public final class CoreConnection {
                                 int networkId = Integer.parseInt(objectName);
                                 Network network = networks.get(networkId);
 
-                                Map<String, QVariant<?>> initMap = (Map<String, QVariant<?>>) packedFunc.remove(0).getData();
-
-                                // Store the network name and associated myNick for "our" user
-                                network.setMyNick((String) initMap.get("myNick").getData());
-                                network.setNetworkName((String) initMap.get("networkName").getData());
-                                network.setLatency((Integer) initMap.get("latency").getData());
-                                network.setCurrentServer((String) initMap.get("currentServer").getData());
-                                network.setIdentity((Integer) initMap.get("identityId").getData());
-                                boolean isConnected = (Boolean) initMap.get("isConnected").getData();
-                                if (isConnected) network.setConnected(true);
-                                else network.setConnectionState(ConnectionState.Disconnected);
-                                if (network.getStatusBuffer() != null)
-                                    network.getStatusBuffer().setActive(isConnected);
-
-                                //we got enough info to tell service we are parsing network
-                                Log.i(TAG, "Started parsing network " + network.getName());
-
-                                // Horribly nested maps
-                                Map<String, QVariant<?>> usersAndChans = (Map<String, QVariant<?>>) initMap.get("IrcUsersAndChannels").getData();
-                                Map<String, QVariant<?>> channels = (Map<String, QVariant<?>>) usersAndChans.get("channels").getData();
-
-                                //Parse out user objects for network
-                                Map<String, QVariant<?>> userObjs = (Map<String, QVariant<?>>) usersAndChans.get("users").getData();
-                                ArrayList<IrcUser> ircUsers = new ArrayList<IrcUser>();
-                                HashMap<String, IrcUser> userTempMap = new HashMap<String, IrcUser>();
-                                for (Map.Entry<String, QVariant<?>> element : userObjs.entrySet()) {
-                                    IrcUser user = new IrcUser();
-                                    user.name = element.getKey();
-                                    user.fromVariantMap((QVariant<Map<String, QVariant<?>>>) element.getValue());
-                                    user.networkId = networkId;
-
-                                    ircUsers.add(user);
-                                    userTempMap.put(user.nick, user);
-                                    user.register();
-                                }
-                                network.setUserList(ircUsers);
-
-                                // Parse out the topics
-                                for (QVariant<?> channel : channels.values()) {
-                                    Map<String, QVariant<?>> chan = (Map<String, QVariant<?>>) channel.getData();
-                                    String chanName = (String) chan.get("name").getData();
-                                    Map<String, QVariant<?>> userModes = (Map<String, QVariant<?>>) chan.get("UserModes").getData();
-                                    String topic = (String) chan.get("topic").getData();
-
-                                    boolean foundChannel = false;
-                                    for (Buffer buffer : network.getBuffers().getBufferList(BufferCollectionHelper.FILTER_SET_ALL)) {
-                                        if (buffer.getInfo().name.equalsIgnoreCase(chanName)) {
-                                            buffer.setTopic(topic);
-                                            buffer.setActive(true);
-                                            ArrayList<Pair<IrcUser, String>> usersToAdd = new ArrayList<Pair<IrcUser, String>>();
-                                            for (Entry<String, QVariant<?>> nick : userModes.entrySet()) {
-                                                IrcUser user = userTempMap.get(nick.getKey());
-                                                // TODO: Replace this with a less ugly hack
-                                                if (user == null)
-                                                    user = userTempMap.get(nick.getKey().replace("(^[\\\\d-]+|[^A-Za-z0-9\\x5b-\\x60\\x7b-\\x7d])",""));
-
-                                                // If the user is still null, switch to the next
-                                                if (user == null)
-                                                    continue;
-
-                                                usersToAdd.add(new Pair<IrcUser, String>(user, (String) nick.getValue().getData()));
-                                            }
-                                            buffer.getUsers().addUsers(usersToAdd);
-                                            foundChannel = true;
-                                            break;
-                                        }
-                                    }
-                                    if (!foundChannel)
-                                        Log.e(TAG, "A channel in a network has no corresponding buffer object " + chanName);
-                                }
+                                Map<String, QVariant<?>> initMap = (Map<String, QVariant<?>>) initData.next().getData();
 
-                                Log.i(TAG, "Sending network " + network.getName() + " to service");
-                                handler.obtainMessage(R.id.ADD_NETWORK, network).sendToTarget();
+                                if (resumedNetworks.get(networkId)) {
+                                    // The network is live, so only parse it here and let the state thread apply it
+                                    handler.obtainMessage(R.id.RESUME_NETWORK, parseNetworkResume(networkId, initMap)).sendToTarget();
+                                    Log.i(TAG, "Resumed network " + networkId);
+                                } else {
+                                    initNetwork(network, initMap);
+                                }
 
 
                                 //sendInitRequest("BufferSyncer", "");
@@ -1176,12 +1315,7 @@ public final class CoreConnection {
                                 //sendInitRequest("NetworkConfig", "GlobalNetworkConfig");
 								sendInitRequest("IgnoreListManager", "");
 
-                                List<QVariant<?>> reqPackedFunc = new LinkedList<QVariant<?>>();
-                                reqPackedFunc.add(new QVariant<Integer>(RequestType.Sync.getValue(), QVariantType.Int));
-                                reqPackedFunc.add(new QVariant<String>("BufferSyncer", QVariantType.String));
-                                reqPackedFunc.add(new QVariant<String>("", QVariantType.String));
-                                reqPackedFunc.add(new QVariant<String>("requestPurgeBufferIds", QVariantType.String));
-                                sendQVariantList(reqPackedFunc);
+                                sendSignalProxyMessage(new SyncMessage("BufferSyncer", "", "requestPurgeBufferIds"));
 
                                 if (!initComplete) {
                                     networkInitsLeft -= 1;
@@ -1201,12 +1335,12 @@ public final class CoreConnection {
                                 updateInitProgress("Receiving last seen and marker lines");
 
 
-                                List<QVariant<?>> lastSeen = (List<QVariant<?>>) ((Map<String, QVariant<?>>) packedFunc.get(0).getData()).get("LastSeenMsg").getData();
+                                List<QVariant<?>> lastSeen = (List<QVariant<?>>) ((Map<String, QVariant<?>>) initData.peek().getData()).get("LastSeenMsg").getData();
                                 for (int i = 0; i < lastSeen.size(); i += 2) {
                                     int bufferId = (Integer) lastSeen.get(i).getData();
                                     int msgId = (Integer) lastSeen.get(i + 1).getData();
-                                    if (PreferenceManager.getDefaultSharedPreferences(applicationContext).getBoolean(applicationContext.getString(R.string.preference_fetch_to_last_seen), false)) {
-                                        requestBacklog(bufferId, msgId);
+                                    if (fetchToLastSeen && !resumedBuffers.get(bufferId)) {
+                                        backlogScheduler.enqueue(bufferId, msgId, -1, -1, BacklogScheduler.PRIORITY_NORMAL);
                                     }
                                     Message msg = handler.obtainMessage(R.id.SET_LAST_SEEN_TO_SERVICE);
                                     msg.arg1 = bufferId;
@@ -1214,7 +1348,7 @@ public final class CoreConnection {
                                     msg.sendToTarget();
                                 }
                                 // Parse out the marker lines for buffers if the core supports them
-                                QVariant<?> rawMarkerLines = ((Map<String, QVariant<?>>) packedFunc.get(0).getData()).get("MarkerLines");
+                                QVariant<?> rawMarkerLines = ((Map<String, QVariant<?>>) initData.peek().getData()).get("MarkerLines");
                                 if (rawMarkerLines != null) {
                                     List<QVariant<?>> markerLines = (List<QVariant<?>>) rawMarkerLines.getData();
                                     for (int i = 0; i < markerLines.size(); i += 2) {
@@ -1234,7 +1368,7 @@ public final class CoreConnection {
 							 */
                             } else if (className.equals("IrcUser")) {
                                 Log.d(TAG, "InitData: IrcUser " + objectName);
-                                Map<String, QVariant<?>> userMap = (Map<String, QVariant<?>>) packedFunc.remove(0).getData();
+                                Map<String, QVariant<?>> userMap = (Map<String, QVariant<?>>) initData.next().getData();
                                 Bundle bundle = new Bundle();
                                 bundle.putString("awayMessage", (String) userMap.get("awayMessage").getData());
                                 bundle.putSerializable("channels", (ArrayList<String>) userMap.get("channels").getData());
@@ -1249,10 +1383,10 @@ public final class CoreConnection {
 
                             } else if (className.equals("IrcChannel")) {
                                 Log.d(TAG, "InitData: IrcChannel");
-                                //						System.out.println(packedFunc.toString() + " Object: "+objectName);
+                                //						System.out.println(initData.toString() + " Object: "+objectName);
                                 //						topic, UserModes, password, ChanModes, name
                                 //For now only topic seems useful here, rest is added other places
-                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) packedFunc.remove(0).getData();
+                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) initData.next().getData();
 
                                 String bufferName = (String) map.get("name").getData();
                                 String topic = (String) map.get("topic").getData();
@@ -1269,7 +1403,7 @@ public final class CoreConnection {
                                 }
                             } else if (className.equals("BufferViewManager")) {
                                 Log.d(TAG, "InitData: BufferViewManager");
-                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) packedFunc.remove(0).getData();
+                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) initData.next().getData();
                                 List<QVariant<?>> bufferViewList = (List<QVariant<?>>) map.get("BufferViewIds").getData();
 
                                 int id = 0;
@@ -1284,35 +1418,30 @@ public final class CoreConnection {
                                 bufferViewId = id;
                             } else if (className.equals("BufferViewConfig")) {
                                 Log.d(TAG, "InitData: BufferViewConfig");
-                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) packedFunc.remove(0).getData();
+                                Map<String, QVariant<?>> map = (Map<String, QVariant<?>>) initData.next().getData();
                                 List<QVariant<?>> tempList = (List<QVariant<?>>) map.get("TemporarilyRemovedBuffers").getData();
                                 List<QVariant<?>> permList = (List<QVariant<?>>) map.get("RemovedBuffers").getData();
                                 List<QVariant<?>> orderList = (List<QVariant<?>>) map.get("BufferList").getData();
                                 updateInitProgress("Receiving buffer list information");
-                                BufferCollection.orderAlphabetical = (Boolean) map.get("sortAlphabetically").getData();
-                                Log.w(TAG, "Setting alphabetical order to: "+Boolean.toString(BufferCollection.orderAlphabetical));
+                                boolean orderAlphabetical = (Boolean) map.get("sortAlphabetically").getData();
+                                Log.w(TAG, "Setting alphabetical order to: "+Boolean.toString(orderAlphabetical));
 
-                                //TODO: maybe send this in a bulk to the service so it wont sort and shit every time
+                                // Collect the whole view, so the service can apply it with a single sort
+                                BufferViewSnapshot snapshot = new BufferViewSnapshot(orderAlphabetical);
                                 for (QVariant bufferId : tempList) {
                                     if (!buffers.containsKey(bufferId.getData())) {
                                         Log.e(TAG, "TempList, don't have buffer: " + bufferId.getData());
                                         continue;
                                     }
-                                    Message msg = handler.obtainMessage(R.id.SET_BUFFER_TEMP_HIDDEN);
-                                    msg.arg1 = ((Integer) bufferId.getData());
-                                    msg.obj = true;
-                                    msg.sendToTarget();
+                                    snapshot.setTemporarilyHidden((Integer) bufferId.getData());
                                 }
 
                                 for (QVariant bufferId : permList) {
                                     if (!buffers.containsKey(bufferId.getData())) {
-                                        Log.e(TAG, "TempList, don't have buffer: " + bufferId.getData());
+                                        Log.e(TAG, "PermList, don't have buffer: " + bufferId.getData());
                                         continue;
                                     }
-                                    Message msg = handler.obtainMessage(R.id.SET_BUFFER_PERM_HIDDEN);
-                                    msg.arg1 = ((Integer) bufferId.getData());
-                                    msg.obj = true;
-                                    msg.sendToTarget();
+                                    snapshot.setPermanentlyHidden((Integer) bufferId.getData());
                                 }
 
                                 int order = 0;
@@ -1321,30 +1450,13 @@ public final class CoreConnection {
                                     if (id > maxBufferId) {
                                         maxBufferId = id;
                                     }
-
-                                    Message msg = handler.obtainMessage(R.id.SET_BUFFER_ORDER);
-                                    msg.arg1 = id;
-                                    msg.arg2 = order;
-
-                                    //FIXME: DEBUG PISS REMOVE
-                                    ArrayList<Integer> keysString = new ArrayList<Integer>();
-                                    ArrayList<Integer> buffersString = new ArrayList<Integer>();
-                                    for (Entry<Integer, Buffer> b : buffers.entrySet()) {
-                                        keysString.add(b.getKey());
-                                        buffersString.add(b.getValue().getInfo().id);
-                                    }
-                                    Bundle bundle = new Bundle();
-                                    bundle.putIntegerArrayList("keys", keysString);
-                                    bundle.putIntegerArrayList("buffers", buffersString);
-                                    msg.obj = bundle;
-
-                                    msg.sendToTarget();
-
+                                    snapshot.setOrder(id, order);
                                     order++;
                                 }
+                                handler.obtainMessage(R.id.SET_BUFFER_VIEW_SNAPSHOT, snapshot).sendToTarget();
                                 updateInitDone();
                             } else if (className.equals("IgnoreListManager")) {
-                                Client.getInstance().getIgnoreListManager().fromVariantMap((Map<String, QVariant<?>>) packedFunc.get(0).getData());
+                                Client.getInstance().getIgnoreListManager().fromVariantMap((Map<String, QVariant<?>>) initData.peek().getData());
                             }
 						/*
 						 * There are several objects that we don't care about (at the moment).
@@ -1361,19 +1473,10 @@ public final class CoreConnection {
 						/* See above; parse out information about object, 
 						 * and additionally a sync function name.
 						 */
-                            Object foo = packedFunc.remove(0).getData();
-                            //System.out.println("FUCK" + foo.toString() + " balle " + foo.getClass().getName());
-						/*if (foo.getClass().getName().equals("java.nio.ReadWriteHeapByteBuffer")) {
-							try {
-								System.out.println("faen i helvete: " + new String(((ByteBuffer)foo).array(), "UTF-8"));
-							} catch (UnsupportedEncodingException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}						
-						}*/
-                            className = (String) foo; // This is either a byte buffer or a string
-                            objectName = (String) packedFunc.remove(0).getData();
-                            String function = packedFunc.remove(0).toString();
+                            SyncMessage sync = (SyncMessage) proxyMessage;
+                            className = sync.className;
+                            objectName = sync.objectName;
+                            String function = sync.slotName;
 	
 						/*
 						 * The BacklogManager object is responsible for synchronizing backlog
@@ -1384,50 +1487,33 @@ public final class CoreConnection {
 						 */
                             if (className.equals("BacklogManager") && function.equals("receiveBacklog")) {
                                 Log.d(TAG, "Sync: BacklogManager -> receiveBacklog");
-							/* Here we first just dump some unused data;
-							 * the buffer id is embedded in the message itself (in a bufferinfo object),
-							 * the rest of the arguments aren't used at all, apparently.
+							/* The buffer id tells the scheduler which request was answered, the messages
+							 * carry their own bufferinfo. The rest of the arguments aren't used at all.
 							 */
-                                packedFunc.remove(0); // Buffer ID (Integer)
-                                packedFunc.remove(0); // first message
-                                packedFunc.remove(0); // last message
-                                packedFunc.remove(0); // limit to how many messages to fetch
-                                packedFunc.remove(0); // additional messages to fetch
-                                List<QVariant<?>> data = (List<QVariant<?>>) (packedFunc.remove(0).getData());
-                                Collections.reverse(data); // Apparently, we receive them in the wrong order
-
-                                if (!initComplete) { //We are still initializing backlog for the first time
-                                    updateInitProgress("Receiving backlog");
-                                    boolean preferenceParseColors = PreferenceManager.getDefaultSharedPreferences(applicationContext).getBoolean(applicationContext.getString(R.string.preference_colored_text), false);
-                                    for (QVariant<?> message : data) {
-                                        IrcMessage msg = (IrcMessage) message.getData();
-                                        Buffer buffer = buffers.get(msg.bufferInfo.id);
-
-                                        if (buffer == null) {
-                                            Log.e(TAG, "A message buffer is null:" + msg);
-                                            continue;
-                                        }
-
-                                        if (!buffer.hasMessage(msg)) {
-                                            /**
-                                             * Check if we are highlighted in the message
-                                             */
-                                            MessageUtil.processMessage(applicationContext, notificationManager, msg);
-                                            buffer.addBacklogMessage(msg);
-                                        } else {
-                                            Log.e(TAG, "Getting message buffer already have " + buffer.getInfo().name);
-                                        }
-                                    }
-                                } else {
-                                    // Send our the backlog messages to our listeners
-                                    List<IrcMessage> messageList = new ArrayList<IrcMessage>();
-                                    for (QVariant<?> message : data) {
-                                        messageList.add((IrcMessage) message.getData());
-                                    }
-                                    Message msg = handler.obtainMessage(R.id.NEW_BACKLOGITEM_TO_SERVICE);
-                                    msg.obj = messageList;
-                                    msg.sendToTarget();
+                                int bufferId = (Integer) sync.next().getData();
+                                sync.next(); // first message
+                                sync.next(); // last message
+                                sync.next(); // limit to how many messages to fetch
+                                sync.next(); // additional messages to fetch
+                                handleBacklog((List<QVariant<?>>) (sync.next().getData()));
+                                backlogScheduler.onBacklogReceived(bufferId);
+                            /*
+                             * Answer to requestBacklogAll, with the latest messages of any number of buffers.
+                             */
+                            } else if (className.equals("BacklogManager") && function.equals("receiveBacklogAll")) {
+                                Log.d(TAG, "Sync: BacklogManager -> receiveBacklogAll");
+                                sync.next(); // first message
+                                sync.next(); // last message
+                                sync.next(); // limit to how many messages to fetch
+                                sync.next(); // additional messages to fetch
+                                List<QVariant<?>> backlog = (List<QVariant<?>>) (sync.next().getData());
+                                // Counted per buffer, so the ones that came up short get their own request
+                                for (QVariant<?> message : backlog) {
+                                    IrcMessage msg = (IrcMessage) message.getData();
+                                    backlogScheduler.onBacklogAllMessage(msg.bufferInfo.id, msg.messageId);
                                 }
+                                handleBacklog(backlog);
+                                backlogScheduler.onBacklogAllReceived();
 							/* 
 							 * The addIrcUser function in the Network class is called whenever a new
 							 * IRC user appears on a given network. 
@@ -1435,7 +1521,7 @@ public final class CoreConnection {
                             } else if (className.equals("Network")) {
                                 switch(function) {
                                     case "addIrcUser":
-                                        String nick = (String) packedFunc.remove(0).getData();
+                                        String nick = (String) sync.next().getData();
                                         IrcUser user = new IrcUser();
                                         user.nick = nick.split("!")[0];
                                         user.networkId = Integer.parseInt(objectName);
@@ -1451,11 +1537,11 @@ public final class CoreConnection {
                                     case "setConnectionState":
                                         Log.d(TAG, "Sync: Network -> setConnectionState");
                                         int networkId = Integer.parseInt(objectName);
-                                        Network.ConnectionState state = ConnectionState.getForValue((Integer) packedFunc.remove(0).getData());
+                                        Network.ConnectionState state = ConnectionState.getForValue((Integer) sync.next().getData());
                                         //If network has no status buffer it is the first time we are connecting to it
                                         if (state == ConnectionState.Connecting && networks.get(networkId).getStatusBuffer() == null) {
                                             //Create the new buffer object for status buffer
-                                            QuasselDbHelper dbHelper = new QuasselDbHelper(applicationContext);
+                                            QuasselDbHelper dbHelper = QuasselDbHelper.getInstance(applicationContext);
                                             BufferInfo info = new BufferInfo();
                                             maxBufferId += 1;
                                             info.id = maxBufferId;
@@ -1470,13 +1556,13 @@ public final class CoreConnection {
                                     case "addIrcChannel":
                                         Log.d(TAG, "Sync: Network -> addIrcChannel");
                                         networkId = Integer.parseInt(objectName);
-                                        String bufferName = (String) packedFunc.remove(0).getData();
+                                        String bufferName = (String) sync.next().getData();
                                         System.out.println(bufferName);
                                         boolean hasBuffer = networks.get(networkId).getBuffers().hasBuffer(bufferName);
 
                                         if (!hasBuffer) {
                                             //Create the new buffer object
-                                            QuasselDbHelper dbHelper = new QuasselDbHelper(applicationContext);
+                                            QuasselDbHelper dbHelper = QuasselDbHelper.getInstance(applicationContext);
                                             BufferInfo info = new BufferInfo();
                                             info.name = bufferName;
                                             info.id = -1;
@@ -1496,7 +1582,7 @@ public final class CoreConnection {
                                     case "setCurrentServer":
                                         try {
                                             SyncMethodMessage p = new SyncMethodMessage();
-                                            p.from(className, objectName, function, packedFunc);
+                                            p.from(className, objectName, function, sync.getRemaining());
 
                                             Message msg = handler.obtainMessage(R.id.DIRECT_MESSAGE);
                                             msg.obj = (SyncMethodMessage) p;
@@ -1515,7 +1601,7 @@ public final class CoreConnection {
                                         String userName = tmp[1];
                                         Bundle bundle = new Bundle();
                                         bundle.putString("nick", userName);
-                                        bundle.putString("buffer", (String) packedFunc.remove(0).getData());
+                                        bundle.putString("buffer", (String) sync.next().getData());
                                         handler.obtainMessage(R.id.USER_PARTED, networkId, 0, bundle).sendToTarget();
                                         break;
                                     case "quit":
@@ -1533,7 +1619,7 @@ public final class CoreConnection {
                                         Log.d(TAG, "Sync: "+className+" -> "+function);
                                         try {
                                             SyncMethodMessage p = new SyncMethodMessage();
-                                            p.from(className, objectName, function, packedFunc);
+                                            p.from(className, objectName, function, sync.getRemaining());
 
                                             Message msg = handler.obtainMessage(R.id.DIRECT_MESSAGE);
                                             msg.obj = (SyncMethodMessage) p;
@@ -1545,8 +1631,8 @@ public final class CoreConnection {
                                 }
                             } else if (className.equals("IrcChannel") && function.equals("joinIrcUsers")) {
                                 Log.d(TAG, "Sync: IrcChannel -> joinIrcUsers");
-                                List<String> nicks = (List<String>) packedFunc.remove(0).getData();
-                                List<String> modes = (List<String>) packedFunc.remove(0).getData();
+                                List<String> nicks = (List<String>) sync.next().getData();
+                                List<String> modes = (List<String>) sync.next().getData();
                                 String[] tmp = objectName.split("/", 2);
                                 int networkId = Integer.parseInt(tmp[0]);
                                 String bufferName = tmp[1];
@@ -1564,8 +1650,8 @@ public final class CoreConnection {
                                 int networkId = Integer.parseInt(tmp[0]);
                                 String channel = tmp[1];
 
-                                String nick = (String) packedFunc.remove(0).getData();
-                                String changedMode = (String) packedFunc.remove(0).getData();
+                                String nick = (String) sync.next().getData();
+                                String changedMode = (String) sync.next().getData();
 
                                 Bundle bundle = new Bundle();
                                 bundle.putString("nick", nick);
@@ -1580,8 +1666,8 @@ public final class CoreConnection {
                                 int networkId = Integer.parseInt(tmp[0]);
                                 String channel = tmp[1];
 
-                                String nick = (String) packedFunc.remove(0).getData();
-                                String changedMode = (String) packedFunc.remove(0).getData();
+                                String nick = (String) sync.next().getData();
+                                String changedMode = (String) sync.next().getData();
 
                                 Bundle bundle = new Bundle();
                                 bundle.putString("nick", nick);
@@ -1595,7 +1681,7 @@ public final class CoreConnection {
                                 int networkId = Integer.parseInt(tmp[0]);
                                 String bufferName = tmp[1];
 
-                                String topic = (String) packedFunc.remove(0).getData();
+                                String topic = (String) sync.next().getData();
                                 if (networks.get(networkId).getBuffers().hasBuffer(bufferName)) {
                                     Buffer buffer = networks.get(networkId).getBuffers().getBuffer(bufferName);
                                     Message msg = handler.obtainMessage(R.id.CHANNEL_TOPIC_CHANGED, networkId, buffer.getInfo().id, topic);
@@ -1605,8 +1691,8 @@ public final class CoreConnection {
                                 }
                             } else if (className.equals("BufferSyncer") && function.equals("setLastSeenMsg")) {
                                 Log.d(TAG, "Sync: BufferSyncer -> setLastSeenMsg");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
-                                int msgId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
+                                int msgId = (Integer) sync.next().getData();
 
                                 Message msg = handler.obtainMessage(R.id.SET_LAST_SEEN_TO_SERVICE);
                                 msg.arg1 = bufferId;
@@ -1615,8 +1701,8 @@ public final class CoreConnection {
 
                             } else if (className.equals("BufferSyncer") && function.equals("setMarkerLine")) {
                                 Log.d(TAG, "Sync: BufferSyncer -> setMarkerLine");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
-                                int msgId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
+                                int msgId = (Integer) sync.next().getData();
                                 Message msg = handler.obtainMessage(R.id.SET_MARKERLINE_TO_SERVICE);
                                 msg.arg1 = bufferId;
                                 msg.arg2 = msgId;
@@ -1628,11 +1714,11 @@ public final class CoreConnection {
                             } else if (className.equals("BufferSyncer") && function.equals("markBufferAsRead")) {
                                 Log.d(TAG, "Sync: BufferSyncer -> markBufferAsRead");
                                 //TODO: this basically does shit. So find out if it effects anything and what it should do
-                                //int buffer = (Integer) packedFunc.remove(0).getData();
+                                //int buffer = (Integer) sync.next().getData();
                                 //buffers.get(buffer).setRead();
                             } else if (className.equals("BufferSyncer") && function.equals("removeBuffer")) {
                                 Log.d(TAG, "Sync: BufferSyncer -> removeBuffer");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
                                 if (buffers.containsKey(bufferId)) {
                                     int networkId = buffers.get(bufferId).getInfo().networkId;
                                     buffers.remove(bufferId);
@@ -1640,8 +1726,8 @@ public final class CoreConnection {
                                 }
                             } else if (className.equals("BufferSyncer") && function.equals("renameBuffer")) {
                                 Log.d(TAG, "Sync: BufferSyncer -> renameBuffer");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
-                                String newName = (String) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
+                                String newName = (String) sync.next().getData();
                                 Message msg = handler.obtainMessage(R.id.RENAME_BUFFER);
                                 msg.arg1 = bufferId;
                                 msg.arg2 = 0;
@@ -1650,7 +1736,7 @@ public final class CoreConnection {
 
                             } else if (className.equals("BufferViewConfig") && function.equals("addBuffer")) {
                                 Log.d(TAG, "Sync: BufferViewConfig -> addBuffer");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
 
                                 if (bufferId > maxBufferId) {
                                     maxBufferId = bufferId;
@@ -1669,11 +1755,11 @@ public final class CoreConnection {
 
                                 Message msg = handler.obtainMessage(R.id.SET_BUFFER_ORDER);
                                 msg.arg1 = bufferId;
-                                msg.arg2 = (Integer) packedFunc.remove(0).getData();
+                                msg.arg2 = (Integer) sync.next().getData();
                                 msg.sendToTarget();
                             } else if (className.equals("BufferViewConfig") && function.equals("removeBuffer")) {
                                 Log.d(TAG, "Sync: BufferViewConfig -> removeBuffer");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
                                 if (!buffers.containsKey(bufferId)) {
                                     Log.e(TAG, "Dont't have buffer: " + bufferId);
                                     continue;
@@ -1685,7 +1771,7 @@ public final class CoreConnection {
 
                             } else if (className.equals("BufferViewConfig") && function.equals("removeBufferPermanently")) {
                                 Log.d(TAG, "Sync: BufferViewConfig -> removeBufferPermanently");
-                                int bufferId = (Integer) packedFunc.remove(0).getData();
+                                int bufferId = (Integer) sync.next().getData();
                                 if (!buffers.containsKey(bufferId)) {
                                     Log.e(TAG, "Dont't have buffer: " + bufferId);
                                     continue;
@@ -1699,7 +1785,7 @@ public final class CoreConnection {
                                 Log.d(TAG, "Sync: "+className+" -> "+function);
                                 try {
                                     SyncMethodMessage p = new SyncMethodMessage();
-                                    p.from(className, objectName, function, packedFunc);
+                                    p.from(className, objectName, function, sync.getRemaining());
 
                                     Message msg = handler.obtainMessage(R.id.DIRECT_MESSAGE);
                                     msg.obj = (SyncMethodMessage) p;
@@ -1709,7 +1795,7 @@ public final class CoreConnection {
                                 }
                             } else if (className.equals("IgnoreListManager")) {
                                 SyncMethodMessage p = new SyncMethodMessage();
-                                p.from(Client.getInstance().getIgnoreListManager(), function, packedFunc);
+                                p.from(Client.getInstance().getIgnoreListManager(), function, sync.getRemaining());
 
                                 Message msg = handler.obtainMessage(R.id.DIRECT_MESSAGE);
                                 msg.obj = (SyncMethodMessage) p;
@@ -1726,19 +1812,19 @@ public final class CoreConnection {
                         case RpcCall:
 
                             // Contains a normalized function signature; see QMetaObject::normalizedSignature, I guess.
-                            String functionName = packedFunc.remove(0).toString();
+                            RpcCall rpcCall = (RpcCall) proxyMessage;
+                            String functionName = rpcCall.slotName;
 	
 						/*
 						 * This is called by the core when a new message should be displayed.
 						 */
                             if (functionName.equals("2displayMsg(Message)")) {
                                 //Log.d(TAG, "RpcCall: " + "2displayMsg(Message)");
-                                IrcMessage message = (IrcMessage) packedFunc.remove(0).getData();
+                                IrcMessage message = (IrcMessage) rpcCall.next().getData();
 
                                 if (!networks.get(message.bufferInfo.networkId).containsBuffer(message.bufferInfo.id) &&
                                         message.bufferInfo.type == BufferInfo.Type.QueryBuffer) {
-                                    // TODO: persist the db connections
-                                    Buffer buffer = new Buffer(message.bufferInfo, new QuasselDbHelper(applicationContext));
+                                    Buffer buffer = new Buffer(message.bufferInfo, QuasselDbHelper.getInstance(applicationContext));
                                     buffers.put(message.bufferInfo.id, buffer);
                                     Message msg = handler.obtainMessage(R.id.NEW_BUFFER_TO_SERVICE);
                                     msg.obj = buffer;
@@ -1771,35 +1857,44 @@ public final class CoreConnection {
                                     buffers.put((Integer) buffer.getInfo().id, buffer);
                                 }
 
+                                // Buffers with new activity are more interesting than quiet ones, so fetch their backlog sooner
+                                if (message.isHighlighted() || message.bufferInfo.type == BufferInfo.Type.QueryBuffer) {
+                                    backlogScheduler.raisePriority(message.bufferInfo.id, BacklogScheduler.PRIORITY_HIGHLIGHT);
+                                } else {
+                                    backlogScheduler.raisePriority(message.bufferInfo.id, BacklogScheduler.PRIORITY_UNREAD);
+                                }
+
+                                searchIndex.add(coreId, message);
+
                                 Message msg = handler.obtainMessage(R.id.NEW_MESSAGE_TO_SERVICE);
                                 msg.obj = message;
                                 msg.sendToTarget();
                                 //11-12 21:48:02.514: I/CoreConnection(277): Unhandled RpcCall: __objectRenamed__ ([IrcUser, 1/Kenji, 1/Kenj1]).
                             } else if (functionName.equals("2networkCreated(NetworkId)")) {
                                 Log.d(TAG, "RpcCall: " + "2networkCreated(NetworkId)");
-                                int networkId = ((Integer) packedFunc.remove(0).getData());
+                                int networkId = ((Integer) rpcCall.next().getData());
                                 Network network = new Network(networkId);
                                 networks.put(networkId, network);
                                 sendInitRequest("Network", Integer.toString(networkId));
                             } else if (functionName.equals("2networkRemoved(NetworkId)")) {
                                 Log.d(TAG, "RpcCall: " + "2networkRemoved(NetworkId)");
-                                int networkId = ((Integer) packedFunc.remove(0).getData());
+                                int networkId = ((Integer) rpcCall.next().getData());
                                 networks.remove(networkId);
                                 handler.obtainMessage(R.id.NETWORK_REMOVED, networkId, 0).sendToTarget();
                             } else if (functionName.equals("2identityCreated(Identity)")) {
                                 Log.d(TAG, "RpcCall: " + "2identityCreated(Identity)");
-                                Message msg = handler.obtainMessage(R.id.CREATE_IDENTITY, packedFunc.remove(0));
+                                Message msg = handler.obtainMessage(R.id.CREATE_IDENTITY, rpcCall.next());
                                 msg.sendToTarget();
                             } else if (functionName.equals("2identityRemoved(IdentityId)")) {
                                 Log.d(TAG, "RpcCall: " + "2identityRemoved(IdentityId)");
-                                Message msg = handler.obtainMessage(R.id.REMOVE_IDENTITY, packedFunc.remove(0));
+                                Message msg = handler.obtainMessage(R.id.REMOVE_IDENTITY, rpcCall.next());
                                 msg.sendToTarget();
                             } else if (functionName.equals("__objectRenamed__")) {
-                                Log.d(TAG, "RpcCall: " + "__objectRenamed__("+packedFunc+")");
+                                Log.d(TAG, "RpcCall: " + "__objectRenamed__("+rpcCall+")");
 
                                 RpcRequest p = new ObjectRenamedRequest();
                                 try {
-                                    p.setArgs(packedFunc.toArray(new QVariant[packedFunc.size()]));
+                                    p.setArgs(rpcCall.getRemaining().toArray(new QVariant[rpcCall.remaining()]));
                                 } catch (EmptyQVariantException e) {
                                     e.printStackTrace();
                                 }
@@ -1808,7 +1903,7 @@ public final class CoreConnection {
                                 msg.obj = (RpcRequest) p;
                                 msg.sendToTarget();
                             } else {
-                                Log.e(TAG, "UNHANDLED: RpcCall: " + functionName + " (" + packedFunc + ").");
+                                Log.e(TAG, "UNHANDLED: RpcCall: " + functionName + " (" + rpcCall + ").");
                             }
                             break;
                         default:
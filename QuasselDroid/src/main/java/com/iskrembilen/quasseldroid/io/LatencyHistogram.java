@@ -0,0 +1,111 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of a core so percentiles can be shown instead of
+ * only the last sample, which jumps around a lot on mobile networks.
+ */
+public class LatencyHistogram {
+    private static final int DEFAULT_CAPACITY = 128;
+
+    private final int[] samples;
+    private int next = 0;
+    private int count = 0;
+
+    public LatencyHistogram() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LatencyHistogram(int capacity) {
+        samples = new int[capacity];
+    }
+
+    /**
+     * Add a sample, replacing the oldest one once the window is full
+     */
+    public synchronized void add(int latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length)
+            count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the latest sample, or -1 if there is none
+     */
+    public synchronized int getLast() {
+        if (count == 0)
+            return -1;
+        return samples[(next - 1 + samples.length) % samples.length];
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        int[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return new Snapshot(getLast(), percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), count);
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    private static int percentile(int[] sorted, int percent) {
+        if (sorted.length == 0)
+            return -1;
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * The percentiles of the window at one point in time, all -1 while there are no samples
+     */
+    public static class Snapshot {
+        public final int last;
+        public final int p50;
+        public final int p95;
+        public final int p99;
+        public final int count;
+
+        public Snapshot(int last, int p50, int p95, int p99, int count) {
+            this.last = last;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return "last=" + last + "ms p50=" + p50 + "ms p95=" + p95 + "ms p99=" + p99 + "ms (" + count + " samples)";
+        }
+    }
+}
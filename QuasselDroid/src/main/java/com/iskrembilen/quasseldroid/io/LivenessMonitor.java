@@ -0,0 +1,188 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Decides when to send heartbeats and when the core is considered gone.
+ * <p>
+ * Every received packet only stores a timestamp, the timer wakes up when a heartbeat or the
+ * timeout is due. A heartbeat is sent after the connection has been quiet for the heartbeat
+ * interval, since any received packet already proves the core is there. On a busy connection one
+ * is still sent every max interval, so the latency histogram keeps getting samples. Both intervals
+ * are longer while the app is in the background to let the radio sleep.
+ */
+public class LivenessMonitor {
+    private static final String TAG = LivenessMonitor.class.getSimpleName();
+
+    public static final int FOREGROUND_INTERVAL = 30000;
+    public static final int BACKGROUND_INTERVAL = 120000;
+    /**
+     * Longest time between two heartbeats, no matter how much else is received
+     */
+    public static final int FOREGROUND_MAX_INTERVAL = 60000;
+    public static final int BACKGROUND_MAX_INTERVAL = 300000;
+    /**
+     * How long to wait for anything after a heartbeat was sent before the core is considered gone
+     */
+    public static final int REPLY_TIMEOUT = 15000;
+    private static final int MIN_WAKEUP = 1000;
+
+    public interface Callback {
+        void sendHeartBeat();
+
+        void onTimeout();
+    }
+
+    private final Callback callback;
+    private final LatencyHistogram histogram;
+
+    private volatile long lastReceive;
+    private long lastHeartBeat = -1;
+    private int interval = FOREGROUND_INTERVAL;
+    private int maxInterval = FOREGROUND_MAX_INTERVAL;
+
+    private Timer timer;
+    private TimerTask pendingCheck;
+
+    public LivenessMonitor(Callback callback, LatencyHistogram histogram) {
+        this.callback = callback;
+        this.histogram = histogram;
+        lastReceive = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called for every received packet, so this only stores the time
+     */
+    public void onReceive() {
+        lastReceive = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Add the round trip of a heartbeat reply to the latency histogram
+     *
+     * @return the latency sample that was added
+     */
+    public int onHeartBeatReply(long sentMillis) {
+        int latency = (int) (System.currentTimeMillis() - sentMillis) / 2;
+        histogram.add(latency);
+        return latency;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public synchronized void start() {
+        if (timer != null)
+            return;
+        timer = new Timer("LivenessMonitor", true);
+        lastReceive = SystemClock.elapsedRealtime();
+        // Start counting the max interval from here, the equal timestamps don't count as waiting for a reply
+        lastHeartBeat = lastReceive;
+        schedule(interval);
+    }
+
+    public synchronized void stop() {
+        if (timer == null)
+            return;
+        timer.cancel();
+        timer = null;
+        pendingCheck = null;
+    }
+
+    /**
+     * Switch between the foreground and background heartbeat interval. Coming back to the
+     * foreground checks right away, so a connection that died in the background is noticed
+     * as soon as the user looks at it.
+     */
+    public synchronized void setInForeground(boolean inForeground) {
+        int newInterval = inForeground ? FOREGROUND_INTERVAL : BACKGROUND_INTERVAL;
+        if (newInterval == interval)
+            return;
+        Log.d(TAG, "Heartbeat interval now " + newInterval + "ms");
+        interval = newInterval;
+        maxInterval = inForeground ? FOREGROUND_MAX_INTERVAL : BACKGROUND_MAX_INTERVAL;
+        if (timer != null)
+            schedule(0);
+    }
+
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    private void check() {
+        boolean timedOut = false;
+        boolean sendHeartBeat = false;
+        synchronized (this) {
+            if (timer == null)
+                return;
+            long now = SystemClock.elapsedRealtime();
+            long receivedAt = lastReceive;
+            if (lastHeartBeat > receivedAt) {
+                // Nothing arrived since the last heartbeat, not even its reply
+                if (now - lastHeartBeat >= REPLY_TIMEOUT) {
+                    Log.i(TAG, "Nothing received for " + (now - receivedAt) + "ms, disconnecting from core");
+                    stop();
+                    timedOut = true;
+                } else {
+                    schedule(lastHeartBeat + REPLY_TIMEOUT - now);
+                }
+            } else {
+                long due = Math.min(receivedAt + interval, lastHeartBeat + maxInterval);
+                if (now >= due) {
+                    lastHeartBeat = now;
+                    sendHeartBeat = true;
+                    schedule(REPLY_TIMEOUT);
+                } else {
+                    schedule(due - now);
+                }
+            }
+        }
+        // Callbacks run outside the lock, they take the connection's lock
+        if (timedOut) {
+            callback.onTimeout();
+        } else if (sendHeartBeat) {
+            Log.d(TAG, "Sending heartbeat");
+            callback.sendHeartBeat();
+        }
+    }
+
+    private void schedule(long delay) {
+        if (pendingCheck != null)
+            pendingCheck.cancel();
+        pendingCheck = new TimerTask() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+        timer.schedule(pendingCheck, Math.max(delay, MIN_WAKEUP));
+    }
+}
@@ -0,0 +1,527 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+import com.iskrembilen.quasseldroid.util.MircFormatParser;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device full-text index of the messages received from the cores, so old messages can be found
+ * after they are gone from the buffers. Messages are queued as they arrive and written in batches
+ * on a background thread, the text goes into an FTS4 table and buffer, nick and time into an
+ * indexed table with the same row ids.
+ * <p>
+ * Only runs while the search history preference is on. Turning it off drops what was queued and
+ * deletes the index.
+ */
+public class MessageSearchIndex {
+    private static final String TAG = MessageSearchIndex.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "search";
+    private static final int DATABASE_VERSION = 1;
+    public static final String MESSAGE_TABLE = "messages";
+    public static final String TEXT_TABLE = "messages_text";
+    private static final String DATABASE_CREATE_MESSAGES = "CREATE TABLE messages (_id integer primary key autoincrement, coreid integer not null, bufferid integer not null, messageid integer not null, time integer not null, type integer not null, nick text collate nocase, unique(coreid, messageid));";
+    private static final String DATABASE_CREATE_TEXT = "CREATE VIRTUAL TABLE messages_text USING fts4(content);";
+    private static final String DATABASE_CREATE_BUFFER_INDEX = "CREATE INDEX messages_buffer ON messages(coreid, bufferid, time);";
+    private static final String DATABASE_CREATE_NICK_INDEX = "CREATE INDEX messages_nick ON messages(coreid, nick, time);";
+    private static final String DATABASE_CREATE_TIME_INDEX = "CREATE INDEX messages_time ON messages(coreid, time);";
+
+    /**
+     * Only messages someone wrote are worth searching, joins, parts and mode changes are not indexed
+     */
+    private static final int INDEXED_TYPES = IrcMessage.Type.toMask(EnumSet.of(
+            IrcMessage.Type.Plain, IrcMessage.Type.Notice, IrcMessage.Type.Action, IrcMessage.Type.Topic));
+
+    /**
+     * Delay before queued messages are written, so a burst of messages ends up in one transaction
+     */
+    private static final long WRITE_DELAY_MS = 1000;
+    /**
+     * Queued messages are written right away once there are this many
+     */
+    private static final int MAX_BATCH = 2000;
+    /**
+     * The oldest messages are dropped once the index holds more than this
+     */
+    private static final int MAX_MESSAGES = 1000000;
+    private static final int PRUNE_SLACK = 50000;
+
+    private static MessageSearchIndex instance;
+
+    private final Context context;
+    private final DatabaseHelper helper;
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Object writeLock = new Object();
+    private List<Entry> pending = new ArrayList<>();
+    private boolean writeScheduled = false;
+    private volatile boolean enabled;
+    // Held here, the preferences only keep a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener;
+
+    // Only touched while holding writeLock
+    private SQLiteStatement insertMessageStatement;
+    private SQLiteStatement insertTextStatement;
+    /**
+     * Number of rows in the index, or -1 if it has to be counted
+     */
+    private long messageCount = -1;
+    private long indexedMessages;
+    private long indexingNanos;
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE_MESSAGES);
+            db.execSQL(DATABASE_CREATE_TEXT);
+            db.execSQL(DATABASE_CREATE_BUFFER_INDEX);
+            db.execSQL(DATABASE_CREATE_NICK_INDEX);
+            db.execSQL(DATABASE_CREATE_TIME_INDEX);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The index only holds copies of what the core has, so it can always be built again
+            db.execSQL("DROP TABLE IF EXISTS " + MESSAGE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TEXT_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private static class Entry {
+        final long coreId;
+        final int bufferId;
+        final int messageId;
+        final long time;
+        final int type;
+        final String nick;
+        final String content;
+
+        Entry(long coreId, IrcMessage message) {
+            this.coreId = coreId;
+            this.bufferId = message.bufferInfo.id;
+            this.messageId = message.messageId;
+            this.time = message.timestamp.getTime();
+            this.type = message.type.getValue();
+            this.nick = message.getNick();
+            this.content = message.content.toString();
+        }
+    }
+
+    /**
+     * A message found in the index
+     */
+    public static class Result {
+        public final int bufferId;
+        public final int messageId;
+        public final long time;
+        public final IrcMessage.Type type;
+        public final String nick;
+        public final String content;
+
+        Result(int bufferId, int messageId, long time, IrcMessage.Type type, String nick, String content) {
+            this.bufferId = bufferId;
+            this.messageId = messageId;
+            this.time = time;
+            this.type = type;
+            this.nick = nick;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Size of the index and how fast messages have been written to it
+     */
+    public static class Stats {
+        public final long messages;
+        public final long databaseBytes;
+        public final long indexedMessages;
+        public final long indexingMillis;
+
+        Stats(long messages, long databaseBytes, long indexedMessages, long indexingMillis) {
+            this.messages = messages;
+            this.databaseBytes = databaseBytes;
+            this.indexedMessages = indexedMessages;
+            this.indexingMillis = indexingMillis;
+        }
+
+        public long getMessagesPerSecond() {
+            return indexingMillis == 0 ? 0 : indexedMessages * 1000 / indexingMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d kB on disk, indexed %d messages in %d ms (%d/s)",
+                    messages, databaseBytes / 1024, indexedMessages, indexingMillis, getMessagesPerSecond());
+        }
+    }
+
+    private MessageSearchIndex(Context context) {
+        this.context = context;
+        this.helper = new DatabaseHelper(context);
+
+        final String key = context.getString(R.string.preference_search_index);
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        enabled = preferences.getBoolean(key, false);
+        preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences preferences, String changedKey) {
+                if (key.equals(changedKey))
+                    setEnabled(preferences.getBoolean(key, false));
+            }
+        };
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+    }
+
+    public static synchronized MessageSearchIndex getInstance(Context ctx) {
+        if (instance == null)
+            instance = new MessageSearchIndex(ctx.getApplicationContext());
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void setEnabled(boolean enabled) {
+        if (this.enabled == enabled)
+            return;
+        this.enabled = enabled;
+        if (!enabled) {
+            synchronized (this) {
+                pending = new ArrayList<>();
+            }
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteIndex();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a message from a core to be indexed, safe to call from any thread
+     */
+    public void add(long coreId, IrcMessage message) {
+        if (!enabled || (message.type.getValue() & INDEXED_TYPES) == 0)
+            return;
+        Entry entry = new Entry(coreId, message);
+        synchronized (this) {
+            pending.add(entry);
+            scheduleWrite();
+        }
+    }
+
+    public void add(long coreId, List<IrcMessage> messages) {
+        if (!enabled)
+            return;
+        List<Entry> entries = new ArrayList<>(messages.size());
+        for (IrcMessage message : messages) {
+            if ((message.type.getValue() & INDEXED_TYPES) != 0)
+                entries.add(new Entry(coreId, message));
+        }
+        if (entries.isEmpty())
+            return;
+        synchronized (this) {
+            pending.addAll(entries);
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (pending.size() >= MAX_BATCH) {
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } else if (!writeScheduled) {
+            writeScheduled = true;
+            writeExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes all queued messages in one transaction
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            List<Entry> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+                writeScheduled = false;
+            }
+            // Turned off while these were queued
+            if (batch.isEmpty() || !enabled)
+                return;
+
+            long start = System.nanoTime();
+            SQLiteDatabase database;
+            try {
+                database = helper.getWritableDatabase();
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not open the search index", e);
+                return;
+            }
+            if (insertMessageStatement == null) {
+                insertMessageStatement = database.compileStatement("INSERT OR IGNORE INTO " + MESSAGE_TABLE + " (coreid, bufferid, messageid, time, type, nick) VALUES (?, ?, ?, ?, ?, ?)");
+                insertTextStatement = database.compileStatement("INSERT INTO " + TEXT_TABLE + " (docid, content) VALUES (?, ?)");
+            }
+
+            int written = 0;
+            database.beginTransaction();
+            try {
+                for (Entry entry : batch) {
+                    insertMessageStatement.bindLong(1, entry.coreId);
+                    insertMessageStatement.bindLong(2, entry.bufferId);
+                    insertMessageStatement.bindLong(3, entry.messageId);
+                    insertMessageStatement.bindLong(4, entry.time);
+                    insertMessageStatement.bindLong(5, entry.type);
+                    if (entry.nick == null)
+                        insertMessageStatement.bindNull(6);
+                    else
+                        insertMessageStatement.bindString(6, entry.nick);
+                    long rowId = insertMessageStatement.executeInsert();
+                    // Backlog that was indexed before is ignored
+                    if (rowId == -1)
+                        continue;
+                    insertTextStatement.bindLong(1, rowId);
+                    insertTextStatement.bindString(2, MircFormatParser.strip(entry.content));
+                    insertTextStatement.executeInsert();
+                    written++;
+                }
+                if (written > 0)
+                    prune(database, written);
+                database.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not index messages", e);
+                return;
+            } finally {
+                database.endTransaction();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            indexedMessages += written;
+            indexingNanos += elapsed;
+            Log.d(TAG, String.format("Indexed %d of %d messages in %d ms", written, batch.size(), TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        }
+    }
+
+    /**
+     * Drops the oldest messages once there are too many, in large steps so it rarely runs
+     *
+     * @param written rows just inserted in the current transaction
+     */
+    private void prune(SQLiteDatabase database, int written) {
+        if (messageCount == -1) {
+            // Counted after the insert, so it already includes the new rows
+            messageCount = count(database);
+        } else {
+            messageCount += written;
+        }
+        if (messageCount < MAX_MESSAGES + PRUNE_SLACK)
+            return;
+        // Row ids have gaps where cores were deleted, so find the oldest row to keep by its position
+        Cursor cursor = database.rawQuery("SELECT _id FROM " + MESSAGE_TABLE + " ORDER BY _id LIMIT 1 OFFSET ?",
+                new String[]{Long.toString(messageCount - MAX_MESSAGES)});
+        try {
+            if (!cursor.moveToFirst())
+                return;
+            String[] args = {Long.toString(cursor.getLong(0))};
+            database.delete(MESSAGE_TABLE, "_id < ?", args);
+            database.delete(TEXT_TABLE, "docid < ?", args);
+        } finally {
+            cursor.close();
+        }
+        messageCount = MAX_MESSAGES;
+    }
+
+    private static long count(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + MESSAGE_TABLE, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the whole database, when indexing is turned off
+     */
+    private void deleteIndex() {
+        synchronized (writeLock) {
+            helper.close();
+            insertMessageStatement = null;
+            insertTextStatement = null;
+            messageCount = -1;
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Forgets everything indexed from a core, when the core is removed
+     */
+    public void deleteCore(final long coreId) {
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                synchronized (writeLock) {
+                    SQLiteDatabase database = helper.getWritableDatabase();
+                    String[] args = {Long.toString(coreId)};
+                    database.beginTransaction();
+                    try {
+                        database.delete(TEXT_TABLE, "docid IN (SELECT _id FROM " + MESSAGE_TABLE + " WHERE coreid = ?)", args);
+                        database.delete(MESSAGE_TABLE, "coreid = ?", args);
+                        database.setTransactionSuccessful();
+                    } catch (SQLException e) {
+                        Log.e(TAG, "Could not delete the index of core " + coreId, e);
+                    } finally {
+                        database.endTransaction();
+                    }
+                    messageCount = -1;
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches the messages of a core, newest first. Queued messages are written first, so
+     * everything received up to now is found. Blocks on the database, don't call on the UI thread.
+     *
+     * @param text     words that must all be in the message, the last one may be incomplete, or null
+     * @param nick     only messages from this nick, or null
+     * @param bufferId only messages in this buffer, or -1
+     * @param from     only messages at or after this time in epoch millis, or 0
+     * @param to       only messages at or before this time in epoch millis, or Long.MAX_VALUE
+     * @param limit    the maximum number of results
+     */
+    public List<Result> search(long coreId, String text, String nick, int bufferId, long from, long to, int limit) {
+        flush();
+
+        String match = text == null ? null : toMatchExpression(text);
+        StringBuilder sql = new StringBuilder("SELECT m.bufferid, m.messageid, m.time, m.type, m.nick, t.content FROM ");
+        List<String> args = new ArrayList<>();
+        if (match != null) {
+            sql.append(TEXT_TABLE).append(" t JOIN ").append(MESSAGE_TABLE).append(" m ON m._id = t.docid WHERE t.content MATCH ? AND ");
+            args.add(match);
+        } else {
+            sql.append(MESSAGE_TABLE).append(" m JOIN ").append(TEXT_TABLE).append(" t ON t.docid = m._id WHERE ");
+        }
+        sql.append("m.coreid = ?");
+        args.add(Long.toString(coreId));
+        if (nick != null) {
+            sql.append(" AND m.nick = ?");
+            args.add(nick);
+        }
+        if (bufferId != -1) {
+            sql.append(" AND m.bufferid = ?");
+            args.add(Integer.toString(bufferId));
+        }
+        if (from > 0) {
+            sql.append(" AND m.time >= ?");
+            args.add(Long.toString(from));
+        }
+        if (to < Long.MAX_VALUE) {
+            sql.append(" AND m.time <= ?");
+            args.add(Long.toString(to));
+        }
+        sql.append(" ORDER BY m.time DESC LIMIT ").append(limit);
+
+        List<Result> results = new ArrayList<>();
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = helper.getReadableDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                results.add(new Result(cursor.getInt(0), cursor.getInt(1), cursor.getLong(2),
+                        IrcMessage.Type.getForValue(cursor.getInt(3)), cursor.getString(4), cursor.getString(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, String.format("Found %d messages in %d ms", results.size(), SystemClock.elapsedRealtime() - start));
+        return results;
+    }
+
+    /**
+     * Turns what the user typed into an FTS query that needs every word, quoted so operators in the
+     * text are taken literally, with the last word matched as a prefix
+     */
+    static String toMatchExpression(String text) {
+        StringBuilder match = new StringBuilder();
+        for (String word : text.replace("\"", " ").trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append('"').append(word).append('"');
+        }
+        if (match.length() == 0)
+            return null;
+        match.insert(match.length() - 1, '*');
+        return match.toString();
+    }
+
+    /**
+     * Reports how large the index is and the indexing throughput since the app started
+     */
+    public Stats getStats() {
+        synchronized (writeLock) {
+            long messages = count(helper.getReadableDatabase());
+            return new Stats(messages, context.getDatabasePath(DATABASE_NAME).length(),
+                    indexedMessages, TimeUnit.NANOSECONDS.toMillis(indexingNanos));
+        }
+    }
+}
@@ -29,10 +29,21 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+import com.iskrembilen.quasseldroid.util.InputHistoryHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class QuasselDbHelper {
     public static final String KEY_ID = "_id";
@@ -41,13 +52,14 @@ public class QuasselDbHelper {
     public static final String KEY_PORT = "port";
     public static final String KEY_CERTIFICATE = "certificate";
     public static final String KEY_BUFFERID = "bufferid";
-    public static final String KEY_EVENT = "event";
+    public static final String KEY_EVENTS = "events";
     public static final String KEY_USERNAME = "username";
     public static final String KEY_PASSWORD = "password";
     public static final String KEY_COREIDREFERENCE = "coreid";
+    public static final String KEY_SEQUENCE = "sequence";
+    public static final String KEY_ENTRY = "entry";
 
 
-    private DatabaseHelper dbHelper;
     private SQLiteDatabase db;
 
     private static final String DATABASE_NAME = "data";
@@ -55,16 +67,78 @@ public class QuasselDbHelper {
     public static final String USER_TABLE = "user";
     public static final String CERTIFICATE_TABLE = "certificates";
     public static final String HIDDENEVENTS_TABLE = "hiddenevents";
+    public static final String INPUTHISTORY_TABLE = "inputhistory";
     private static final String DATABASE_CREATE_TABLE1 =
             "create table cores (_id integer primary key autoincrement, name text not null, server text not null, port integer not null);";
     private static final String DATABASE_CREATE_TABLE2 = "create table certificates (certificate text, coreid integer not null unique, foreign key(coreid) references cores(_id) ON DELETE CASCADE ON UPDATE CASCADE);";
-    private static final String DATABASE_CREATE_TABLE3 = "create table hiddenevents (bufferid integer not null, event text not null);";
+    private static final String DATABASE_CREATE_TABLE3 = "create table hiddenevents (bufferid integer primary key, events integer not null);";
     private static final String DATABASE_CREATE_TABLE4 = "CREATE TABLE user(userid integer primary key autoincrement, username text not null, password text not null, coreid integer not null unique, foreign key(coreid) references cores(_id) ON DELETE CASCADE ON UPDATE CASCADE)";
-    private static final int DATABASE_VERSION = 3;
+    private static final String DATABASE_CREATE_TABLE5 = "CREATE TABLE inputhistory(coreid integer not null, bufferid integer not null, sequence integer not null, entry text not null, primary key(coreid, bufferid, sequence))";
+    private static final int DATABASE_VERSION = 5;
 
     private static final String TAG = "DbHelper";
     private final Context context;
 
+    /**
+     * Delay before queued hidden event changes are written, so a burst of changes ends up in one transaction
+     */
+    private static final long HIDDEN_EVENTS_WRITE_DELAY_MS = 500;
+    /**
+     * Delay before queued input history entries are written
+     */
+    private static final long INPUT_HISTORY_WRITE_DELAY_MS = 2000;
+
+    /**
+     * Opening the database is expensive, so the whole process shares one open connection
+     */
+    private static DatabaseHelper sharedHelper;
+    private static QuasselDbHelper instance;
+
+    /**
+     * In-memory copy of the hidden events table, bufferid to bitmask
+     */
+    private SparseIntArray hiddenEvents;
+    private final SparseIntArray pendingHiddenEvents = new SparseIntArray();
+    private boolean hiddenEventsWriteScheduled = false;
+    private SQLiteStatement replaceHiddenEventsStatement;
+    private SQLiteStatement deleteHiddenEventsStatement;
+    /**
+     * The writes and the queued input history are shared by every helper, like the connection,
+     * so deleting a core from any of them also drops the entries queued by the others
+     */
+    private static ScheduledExecutorService writeExecutor;
+    private static final Object inputHistoryLock = new Object();
+    private static final List<InputHistoryEntry> pendingInputHistory = new ArrayList<>();
+    private static boolean inputHistoryWriteScheduled = false;
+    private static SQLiteStatement insertInputHistoryStatement;
+    private static SQLiteStatement trimInputHistoryStatement;
+
+    private static class InputHistoryEntry {
+        final long coreId;
+        final int bufferId;
+        final long sequence;
+        final String entry;
+        final int keep;
+
+        InputHistoryEntry(long coreId, int bufferId, long sequence, String entry, int keep) {
+            this.coreId = coreId;
+            this.bufferId = bufferId;
+            this.sequence = sequence;
+            this.entry = entry;
+            this.keep = keep;
+        }
+    }
+
+    public interface InputHistoryCallback {
+        /**
+         * Called on the database write thread
+         *
+         * @param entries      the latest entries, oldest first
+         * @param nextSequence the sequence number the next entry should get
+         */
+        void onInputHistoryLoaded(List<String> entries, long nextSequence);
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -77,6 +151,7 @@ public class QuasselDbHelper {
             db.execSQL(DATABASE_CREATE_TABLE2);
             db.execSQL(DATABASE_CREATE_TABLE3);
             db.execSQL(DATABASE_CREATE_TABLE4);
+            db.execSQL(DATABASE_CREATE_TABLE5);
         }
 
         @Override
@@ -88,6 +163,7 @@ public class QuasselDbHelper {
                 db.execSQL("DROP TABLE IF EXISTS " + CERTIFICATE_TABLE);
                 db.execSQL("DROP TABLE IF EXISTS " + HIDDENEVENTS_TABLE);
                 db.execSQL("DROP TABLE IF EXISTS " + USER_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + INPUTHISTORY_TABLE);
                 onCreate(db);
             } else if(oldVersion <= 2) {
                 db.execSQL("CREATE TEMPORARY TABLE cores_backup(_id, name, server, port);");
@@ -97,6 +173,25 @@ public class QuasselDbHelper {
                 db.execSQL("INSERT INTO cores SELECT _id,name,server,port FROM cores_backup;");
                 db.execSQL("DROP TABLE cores_backup;");
             }
+            if (oldVersion > 1 && oldVersion <= 3) {
+                // Hidden events used to be stored as one row per event name, fold them into a bitmask per buffer
+                StringBuilder eventValue = new StringBuilder("CASE event");
+                for (IrcMessage.Type type : IrcMessage.Type.values()) {
+                    eventValue.append(" WHEN '").append(type.name()).append("' THEN ").append(type.getValue());
+                }
+                eventValue.append(" ELSE 0 END");
+
+                db.execSQL("CREATE TEMPORARY TABLE hiddenevents_backup(bufferid, event);");
+                db.execSQL("INSERT INTO hiddenevents_backup SELECT bufferid,event FROM hiddenevents;");
+                db.execSQL("DROP TABLE hiddenevents;");
+                db.execSQL(DATABASE_CREATE_TABLE3);
+                db.execSQL("INSERT INTO hiddenevents SELECT bufferid, SUM(value) FROM (SELECT DISTINCT bufferid, "
+                        + eventValue + " AS value FROM hiddenevents_backup) GROUP BY bufferid;");
+                db.execSQL("DROP TABLE hiddenevents_backup;");
+            }
+            if (oldVersion > 1 && oldVersion <= 4) {
+                db.execSQL(DATABASE_CREATE_TABLE5);
+            }
         }
     }
 
@@ -104,16 +199,30 @@ public class QuasselDbHelper {
         this.context = ctx;
     }
 
+    /**
+     * Get the process-wide helper, which keeps the hidden events of all buffers in memory
+     */
+    public static synchronized QuasselDbHelper getInstance(Context ctx) {
+        if (instance == null)
+            instance = new QuasselDbHelper(ctx.getApplicationContext());
+        return instance;
+    }
+
+    private static synchronized SQLiteDatabase getDatabase(Context ctx) throws SQLException {
+        if (sharedHelper == null)
+            sharedHelper = new DatabaseHelper(ctx.getApplicationContext());
+        return sharedHelper.getWritableDatabase();
+    }
+
     public void open() throws SQLException {
-        dbHelper = new DatabaseHelper(context);
-        db = dbHelper.getWritableDatabase();
+        db = getDatabase(context);
     }
 
+    /**
+     * Releases this helper, the shared connection stays open for the next user
+     */
     public void close() {
-        db.close();
         db = null;
-        dbHelper.close();
-        dbHelper = null;
     }
 
     public void addCore(String name, String address, int port) throws SQLException {
@@ -125,8 +234,30 @@ public class QuasselDbHelper {
     }
 
 
-    public void deleteCore(long rowId) throws SQLException {
+    /**
+     * Deletes the core, its input history is deleted on the write executor after the entries
+     * already being written
+     */
+    public void deleteCore(final long rowId) throws SQLException {
         db.delete(CORE_TABLE, KEY_ID + "=" + rowId, null);
+        synchronized (inputHistoryLock) {
+            for (Iterator<InputHistoryEntry> it = pendingInputHistory.iterator(); it.hasNext(); ) {
+                if (it.next().coreId == rowId)
+                    it.remove();
+            }
+        }
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getDatabase(context).delete(INPUTHISTORY_TABLE, KEY_COREIDREFERENCE + "=" + rowId, null);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Could not delete the input history of core " + rowId, e);
+                }
+            }
+        });
+        InputHistoryHelper.deleteCore(rowId);
+        MessageSearchIndex.getInstance(context).deleteCore(rowId);
     }
 
     public boolean hasCores() {
@@ -185,13 +316,6 @@ public class QuasselDbHelper {
         return cert;
     }
 
-    public void addHiddenEvent(IrcMessage.Type event, int bufferId) throws SQLException {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_EVENT, event.name());
-        initialValues.put(KEY_BUFFERID, bufferId);
-        db.insert(HIDDENEVENTS_TABLE, null, initialValues);
-    }
-
     public void addUser(String userName, String password, long coreId) throws SQLException {
         db.delete(USER_TABLE, KEY_COREIDREFERENCE + "=" + coreId, null);
         ContentValues initialValues = new ContentValues();
@@ -221,39 +345,247 @@ public class QuasselDbHelper {
         db.delete(USER_TABLE, KEY_COREIDREFERENCE + "=" + coreId, null);
     }
 
-    public void cleanupEvents(Integer[] bufferids) {
+    /**
+     * Forgets the hidden events of every buffer not in the list, the rows are deleted on the write executor
+     */
+    public synchronized void cleanupEvents(Integer[] bufferids) {
         if (bufferids.length == 0)
             return;
         StringBuilder list = new StringBuilder("(");
+        SparseIntArray kept = new SparseIntArray(bufferids.length);
         for (int id : bufferids) {
             list.append(id);
             list.append(",");
+            if (hiddenEvents != null && hiddenEvents.get(id) != 0)
+                kept.put(id, hiddenEvents.get(id));
         }
         list.deleteCharAt(list.length() - 1);
         list.append(")");
-        db.delete(HIDDENEVENTS_TABLE, KEY_BUFFERID + " NOT IN " + list.toString(), null);
+        if (hiddenEvents != null)
+            hiddenEvents = kept;
+
+        final String whereClause = KEY_BUFFERID + " NOT IN " + list.toString();
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getDatabase(context).delete(HIDDENEVENTS_TABLE, whereClause, null);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Could not clean up hidden events", e);
+                }
+            }
+        });
     }
 
-    public void deleteHiddenEvent(IrcMessage.Type event, int bufferId) {
-        db.delete(HIDDENEVENTS_TABLE, KEY_EVENT + "='" + event.name() + "' AND " + KEY_BUFFERID + "=" + bufferId, null);
+    /**
+     * Loads the hidden events of every buffer with a single query, instead of one query per buffer
+     */
+    public synchronized void loadHiddenEvents() throws SQLException {
+        SparseIntArray events = new SparseIntArray();
+        Cursor cursor = getDatabase(context).query(HIDDENEVENTS_TABLE, new String[]{KEY_BUFFERID, KEY_EVENTS}, null, null, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                events.put(cursor.getInt(0), cursor.getInt(1));
+            }
+            cursor.close();
+        }
+        // Changes that are not written yet are newer than what is in the database
+        for (int i = 0; i < pendingHiddenEvents.size(); i++) {
+            events.put(pendingHiddenEvents.keyAt(i), pendingHiddenEvents.valueAt(i));
+        }
+        hiddenEvents = events;
     }
 
-    public IrcMessage.Type[] getHiddenEvents(int bufferId) throws SQLException {
-        Cursor cursor = db.query(true, HIDDENEVENTS_TABLE, new String[]{KEY_EVENT}, KEY_BUFFERID + "=" + bufferId, null, null, null, null, null);
-        IrcMessage.Type[] events = null;
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                events = new IrcMessage.Type[cursor.getCount()];
-                cursor.moveToFirst();
-                int i = 0;
-                while (!cursor.isAfterLast()) {
-                    events[i] = IrcMessage.Type.valueOf(cursor.getString(0));
-                    i++;
-                    cursor.moveToNext();
+    /**
+     * @return bitmask of hidden {@link IrcMessage.Type} values for the buffer, 0 if none are hidden
+     */
+    public synchronized int getHiddenEvents(int bufferId) throws SQLException {
+        if (hiddenEvents == null)
+            loadHiddenEvents();
+        return hiddenEvents.get(bufferId, 0);
+    }
+
+    /**
+     * Stores the hidden events of a buffer. The cache is updated right away, the database
+     * is written asynchronously together with any other changes made shortly after.
+     *
+     * @param events   bitmask of hidden {@link IrcMessage.Type} values
+     * @param bufferId the buffer the events are hidden in
+     */
+    public synchronized void setHiddenEvents(int events, int bufferId) {
+        if (hiddenEvents == null)
+            loadHiddenEvents();
+        hiddenEvents.put(bufferId, events);
+        pendingHiddenEvents.put(bufferId, events);
+
+        if (!hiddenEventsWriteScheduled) {
+            hiddenEventsWriteScheduled = true;
+            getWriteExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writeHiddenEvents();
+                }
+            }, HIDDEN_EVENTS_WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writeHiddenEvents() {
+        SparseIntArray batch;
+        synchronized (this) {
+            batch = pendingHiddenEvents.clone();
+            pendingHiddenEvents.clear();
+            hiddenEventsWriteScheduled = false;
+        }
+
+        SQLiteDatabase database = getDatabase(context);
+        if (replaceHiddenEventsStatement == null) {
+            replaceHiddenEventsStatement = database.compileStatement("INSERT OR REPLACE INTO " + HIDDENEVENTS_TABLE + " (" + KEY_BUFFERID + ", " + KEY_EVENTS + ") VALUES (?, ?)");
+            deleteHiddenEventsStatement = database.compileStatement("DELETE FROM " + HIDDENEVENTS_TABLE + " WHERE " + KEY_BUFFERID + " = ?");
+        }
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.valueAt(i) == 0) {
+                    deleteHiddenEventsStatement.bindLong(1, batch.keyAt(i));
+                    deleteHiddenEventsStatement.executeUpdateDelete();
+                } else {
+                    replaceHiddenEventsStatement.bindLong(1, batch.keyAt(i));
+                    replaceHiddenEventsStatement.bindLong(2, batch.valueAt(i));
+                    replaceHiddenEventsStatement.executeInsert();
                 }
             }
+            database.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not store hidden events", e);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Loads the latest input history entries of a buffer, oldest first
+     */
+    public List<String> getInputHistory(long coreId, int bufferId, int limit) throws SQLException {
+        List<String> entries = new ArrayList<>();
+        Cursor cursor = getDatabase(context).query(INPUTHISTORY_TABLE, new String[]{KEY_ENTRY},
+                KEY_COREIDREFERENCE + "=" + coreId + " AND " + KEY_BUFFERID + "=" + bufferId,
+                null, null, null, KEY_SEQUENCE + " DESC", Integer.toString(limit));
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                entries.add(cursor.getString(0));
+            }
             cursor.close();
         }
-        return events;
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    /**
+     * @return the sequence number the next input history entry of the buffer should get
+     */
+    public long getNextInputHistorySequence(long coreId, int bufferId) throws SQLException {
+        long sequence = 0;
+        Cursor cursor = getDatabase(context).rawQuery("SELECT MAX(" + KEY_SEQUENCE + ") FROM " + INPUTHISTORY_TABLE
+                + " WHERE " + KEY_COREIDREFERENCE + "=" + coreId + " AND " + KEY_BUFFERID + "=" + bufferId, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst() && !cursor.isNull(0))
+                sequence = cursor.getLong(0) + 1;
+            cursor.close();
+        }
+        synchronized (inputHistoryLock) {
+            for (InputHistoryEntry entry : pendingInputHistory) {
+                if (entry.coreId == coreId && entry.bufferId == bufferId)
+                    sequence = Math.max(sequence, entry.sequence + 1);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Loads the input history of a buffer on the write thread, so it sees the entries stored
+     * before and the UI thread doesn't wait for the disk
+     */
+    public void loadInputHistory(final long coreId, final int bufferId, final int limit, final InputHistoryCallback callback) {
+        getWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> entries = Collections.emptyList();
+                long nextSequence = 0;
+                try {
+                    entries = getInputHistory(coreId, bufferId, limit);
+                    nextSequence = getNextInputHistorySequence(coreId, bufferId);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Could not load input history", e);
+                }
+                callback.onInputHistoryLoaded(entries, nextSequence);
+            }
+        });
+    }
+
+    /**
+     * Stores an input history entry of a buffer asynchronously, together with any other entries
+     * added shortly after. Only the latest entries of the buffer are kept.
+     *
+     * @param sequence the position of the entry in the history of the buffer, increasing
+     * @param keep     how many of the latest entries of the buffer to keep
+     */
+    public void addInputHistoryEntry(long coreId, int bufferId, long sequence, String entry, int keep) {
+        synchronized (inputHistoryLock) {
+            pendingInputHistory.add(new InputHistoryEntry(coreId, bufferId, sequence, entry, keep));
+
+            if (!inputHistoryWriteScheduled) {
+                inputHistoryWriteScheduled = true;
+                getWriteExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeInputHistory();
+                    }
+                }, INPUT_HISTORY_WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void writeInputHistory() {
+        List<InputHistoryEntry> batch;
+        synchronized (inputHistoryLock) {
+            batch = new ArrayList<>(pendingInputHistory);
+            pendingInputHistory.clear();
+            inputHistoryWriteScheduled = false;
+        }
+
+        SQLiteDatabase database = getDatabase(context);
+        if (insertInputHistoryStatement == null) {
+            insertInputHistoryStatement = database.compileStatement("INSERT OR REPLACE INTO " + INPUTHISTORY_TABLE + " (" + KEY_COREIDREFERENCE + ", " + KEY_BUFFERID + ", " + KEY_SEQUENCE + ", " + KEY_ENTRY + ") VALUES (?, ?, ?, ?)");
+            trimInputHistoryStatement = database.compileStatement("DELETE FROM " + INPUTHISTORY_TABLE + " WHERE " + KEY_COREIDREFERENCE + " = ? AND " + KEY_BUFFERID + " = ? AND " + KEY_SEQUENCE + " <= ?");
+        }
+
+        database.beginTransaction();
+        try {
+            for (InputHistoryEntry entry : batch) {
+                insertInputHistoryStatement.bindLong(1, entry.coreId);
+                insertInputHistoryStatement.bindLong(2, entry.bufferId);
+                insertInputHistoryStatement.bindLong(3, entry.sequence);
+                insertInputHistoryStatement.bindString(4, entry.entry);
+                insertInputHistoryStatement.executeInsert();
+                if (entry.sequence >= entry.keep) {
+                    trimInputHistoryStatement.bindLong(1, entry.coreId);
+                    trimInputHistoryStatement.bindLong(2, entry.bufferId);
+                    trimInputHistoryStatement.bindLong(3, entry.sequence - entry.keep);
+                    trimInputHistoryStatement.executeUpdateDelete();
+                }
+            }
+            database.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not store input history", e);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getWriteExecutor() {
+        if (writeExecutor == null)
+            writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        return writeExecutor;
     }
 }
@@ -0,0 +1,143 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.qtcomm;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Converts Qt's QDateTime and QTime wire formats to and from epoch milliseconds with integer
+ * arithmetic, so timestamps like the ones in heartbeats never need a Calendar.
+ * <p>
+ * A QDateTime is sent as a quint32 julian day, a quint32 with the milliseconds since midnight and
+ * a quint8 time spec. A QTime is only the milliseconds since midnight.
+ */
+public final class QDateTimeCodec {
+    /**
+     * Returned for null dates and times
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    public static final int LOCAL_TIME = 0;
+    public static final int UTC = 1;
+
+    public static final long MSECS_PER_DAY = 86400000L;
+    /**
+     * Julian day of 1970-01-01
+     */
+    public static final long EPOCH_JULIAN_DAY = 2440588L;
+    /**
+     * What a null QTime is sent as
+     */
+    private static final long NULL_TIME = 0xFFFFFFFFL;
+
+    private QDateTimeCodec() {
+    }
+
+    /**
+     * @param julianDay  the day as sent in a QDate, 0 for a null date
+     * @param msecsOfDay milliseconds since midnight
+     * @param timeSpec   {@link #LOCAL_TIME} or {@link #UTC}
+     * @return the milliseconds since the epoch, or {@link #INVALID}
+     */
+    public static long toEpochMillis(long julianDay, long msecsOfDay, int timeSpec) {
+        if (julianDay == 0 || msecsOfDay >= MSECS_PER_DAY)
+            return INVALID;
+        long millis = (julianDay - EPOCH_JULIAN_DAY) * MSECS_PER_DAY + msecsOfDay;
+        if (timeSpec == LOCAL_TIME) {
+            TimeZone zone = TimeZone.getDefault();
+            millis -= zone.getOffset(millis - zone.getRawOffset());
+        }
+        return millis;
+    }
+
+    public static long toJulianDay(long epochMillis) {
+        long days = epochMillis / MSECS_PER_DAY;
+        if (epochMillis % MSECS_PER_DAY < 0)
+            days--;
+        return days + EPOCH_JULIAN_DAY;
+    }
+
+    /**
+     * @return the milliseconds since midnight UTC
+     */
+    public static long toMsecsOfDay(long epochMillis) {
+        long msecs = epochMillis % MSECS_PER_DAY;
+        return msecs < 0 ? msecs + MSECS_PER_DAY : msecs;
+    }
+
+    /**
+     * A QTime has no date, so take the instant closest to the reference that has this time of day.
+     * Works for timestamps that were sent by us and echoed back, which is what heartbeats do.
+     *
+     * @param msecsOfDay milliseconds since midnight UTC
+     * @param reference  usually the current time
+     */
+    public static long timeToEpochMillis(long msecsOfDay, long reference) {
+        if (msecsOfDay < 0 || msecsOfDay >= MSECS_PER_DAY)
+            return INVALID;
+        long millis = reference - toMsecsOfDay(reference) + msecsOfDay;
+        if (millis - reference > MSECS_PER_DAY / 2)
+            millis -= MSECS_PER_DAY;
+        else if (reference - millis > MSECS_PER_DAY / 2)
+            millis += MSECS_PER_DAY;
+        return millis;
+    }
+
+    public static long readDateTime(QDataInputStream stream) throws IOException {
+        long julianDay = stream.readUInt(32);
+        long msecsOfDay = stream.readUInt(32);
+        int timeSpec = stream.readUnsignedByte();
+        return toEpochMillis(julianDay, msecsOfDay, timeSpec);
+    }
+
+    /**
+     * Writes the time as a QDateTime in UTC
+     */
+    public static void writeDateTime(QDataOutputStream stream, long epochMillis) throws IOException {
+        if (epochMillis == INVALID) {
+            stream.writeUInt(0, 32);
+            stream.writeUInt(NULL_TIME, 32);
+        } else {
+            stream.writeUInt(toJulianDay(epochMillis), 32);
+            stream.writeUInt(toMsecsOfDay(epochMillis), 32);
+        }
+        stream.writeUInt(UTC, 8);
+    }
+
+    /**
+     * @return the milliseconds since midnight, or {@link #INVALID} for a null QTime
+     */
+    public static long readTime(QDataInputStream stream) throws IOException {
+        long msecsOfDay = stream.readUInt(32);
+        return msecsOfDay < MSECS_PER_DAY ? msecsOfDay : INVALID;
+    }
+
+    /**
+     * Writes the UTC time of day of the given time as a QTime
+     */
+    public static void writeTime(QDataOutputStream stream, long epochMillis) throws IOException {
+        stream.writeUInt(epochMillis == INVALID ? NULL_TIME : toMsecsOfDay(epochMillis), 32);
+    }
+}
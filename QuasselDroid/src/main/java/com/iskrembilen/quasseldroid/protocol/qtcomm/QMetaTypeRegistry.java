@@ -34,6 +34,7 @@ import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QDateTime;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QInteger;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QList;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QMap;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QShort;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QString;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.QTime;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.serializers.UnsignedInteger;
@@ -135,7 +136,7 @@ public class QMetaTypeRegistry {
 		/* All Metatype builtins */
         types.add(new QMetaType<Object>(QMetaType.Type.VoidStar.getValue(), "void*"));
         types.add(new QMetaType<Object>(QMetaType.Type.Long.getValue(), "long"));
-        types.add(new QMetaType<Object>(QMetaType.Type.Short.getValue(), "short"));
+        types.add(new QMetaType<Short>(QMetaType.Type.Short.getValue(), "short", new QShort()));
         types.add(new QMetaType<Object>(QMetaType.Type.Char.getValue(), "char"));
         types.add(new QMetaType<Object>(QMetaType.Type.ULong.getValue(), "ulong"));
         types.add(new QMetaType<Object>(QMetaType.Type.UChar.getValue(), "uchar"));
@@ -153,7 +154,7 @@ public class QMetaTypeRegistry {
         types.add(new QMetaType<Object>(QMetaType.Type.ULongLong.getValue(), "unsigned long long"));
         types.add(new QMetaType<Object>(QMetaType.Type.Char.getValue(), "qint8"));
         types.add(new QMetaType<Long>(QMetaType.Type.UChar.getValue(), "quint8", new UnsignedInteger(8)));
-        types.add(new QMetaType<Object>(QMetaType.Type.Short.getValue(), "qint16"));
+        types.add(new QMetaType<Short>(QMetaType.Type.Short.getValue(), "qint16", new QShort()));
         types.add(new QMetaType<Long>(QMetaType.Type.UShort.getValue(), "quint16", new UnsignedInteger(16)));
         types.add(new QMetaType<Object>(QMetaType.Type.Int.getValue(), "qint32"));
         types.add(new QMetaType<Long>(QMetaType.Type.UInt.getValue(), "quint32", new UnsignedInteger(32)));
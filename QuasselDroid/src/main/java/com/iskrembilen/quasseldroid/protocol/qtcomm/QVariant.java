@@ -190,7 +190,7 @@ public class QVariant<T> implements Serializable {
             case Time:
             case Date:
             case DateTime:
-                return ((Calendar) data).getTime().toGMTString();
+                return data == null ? "null" : ((Calendar) data).getTime().toGMTString();
             default:
                 return "/" + type.toString() + " [ " + data.toString() + " ]/";
         }
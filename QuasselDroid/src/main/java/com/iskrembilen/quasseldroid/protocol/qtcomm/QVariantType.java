@@ -99,6 +99,7 @@ public enum QVariantType {
     CString(12),
     PointArray(71),
     //#endif
+    Short(130, short.class),
     UShort(133),
     LastType(0xffffffff);
 
@@ -26,13 +26,35 @@ import com.iskrembilen.quasseldroid.protocol.qtcomm.DataStreamVersion;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeSerializer;
+import com.iskrembilen.quasseldroid.util.StringPool;
 import com.iskrembilen.quasseldroid.util.StringReaderUtil;
 
 import java.io.IOException;
 
 public class QByteArray implements QMetaTypeSerializer<String> {
 
-    StringReaderUtil stringReader = new StringReaderUtil("UTF-8");
+    /**
+     * Class, slot and property names that show up in nearly every packet, they are always decoded
+     * to these exact instances, so comparing them against the same literals is an identity check
+     */
+    static final String[] KNOWN_NAMES = {
+            "IrcUser", "IrcChannel", "Network", "BufferSyncer", "BufferViewConfig", "BufferViewManager",
+            "BacklogManager", "Identity", "IgnoreListManager", "CoreInfo", "__objectRenamed__",
+            "2displayMsg(Message)", "2networkCreated(NetworkId)", "2networkRemoved(NetworkId)",
+            "2identityCreated(Identity)", "2identityRemoved(IdentityId)",
+            "setAway", "setAwayMessage", "setNick", "setUser", "setHost", "setRealName", "setServer",
+            "setLoginTime", "setLastAwayMessage", "setIrcOperator", "setTopic", "setLatency", "setConnected",
+            "setConnectionState", "setCurrentServer", "setMyNick", "setNetworkName", "setIdentity",
+            "joinChannel", "partChannel", "quit", "update", "addUserMode", "removeUserMode", "joinIrcUsers",
+            "addIrcUser", "addIrcChannel", "setLastSeenMsg", "setMarkerLine", "markBufferAsRead",
+            "removeBuffer", "removeBufferPermanently", "renameBuffer", "addBuffer",
+            "receiveBacklog", "receiveBacklogAll", "requestBacklog", "requestBacklogAll",
+            "users", "channels", "nick", "user", "host", "realName", "away", "awayMessage", "userModes",
+            "topic", "name", "password", "encrypted", "chanModes", "UserModes", "BufferId", "MsgId",
+            "NetworkId", "IdentityId", "BufferInfo", "Message", "Network::Server"
+    };
+
+    StringReaderUtil stringReader = new StringReaderUtil("UTF-8", new StringPool("UTF-8", 1024, KNOWN_NAMES));
 
     @Override
     public String deserialize(QDataInputStream stream, DataStreamVersion version)
@@ -0,0 +1,44 @@
+/**
+ QuasselDroid - Quassel client for Android
+ Copyright (C) 2010 Frederik M. J. Vestre
+
+ This program is free software: you can redistribute it and/or modify it
+ under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option)
+ any later version, or under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either version 2.1 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License and the
+ GNU Lesser General Public License along with this program.  If not, see
+ <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.iskrembilen.quasseldroid.protocol.qtcomm.serializers;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.DataStreamVersion;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeSerializer;
+
+import java.io.IOException;
+
+public class QShort implements QMetaTypeSerializer<Short> {
+    @Override
+    public void serialize(QDataOutputStream stream, Short data,
+                          DataStreamVersion version) throws IOException {
+        stream.writeShort(data);
+    }
+
+    @Override
+    public Short deserialize(QDataInputStream stream, DataStreamVersion version)
+            throws IOException {
+        return stream.readShort();
+    }
+}
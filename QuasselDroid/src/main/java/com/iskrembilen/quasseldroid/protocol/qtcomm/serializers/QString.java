@@ -27,13 +27,14 @@ import com.iskrembilen.quasseldroid.protocol.qtcomm.DataStreamVersion;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeSerializer;
+import com.iskrembilen.quasseldroid.util.StringPool;
 import com.iskrembilen.quasseldroid.util.StringReaderUtil;
 
 import java.io.IOException;
 
 public class QString implements QMetaTypeSerializer<String> {
 
-    StringReaderUtil stringReader = new StringReaderUtil("UTF-16BE");
+    StringReaderUtil stringReader = new StringReaderUtil("UTF-16BE", new StringPool("UTF-16BE", 512, QByteArray.KNOWN_NAMES));
 
     @Override
     public void serialize(QDataOutputStream stream, String data,
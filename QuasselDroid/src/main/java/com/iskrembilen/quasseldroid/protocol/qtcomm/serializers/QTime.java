@@ -25,40 +25,35 @@ package com.iskrembilen.quasseldroid.protocol.qtcomm.serializers;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.DataStreamVersion;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDateTimeCodec;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeSerializer;
 
 import java.io.IOException;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
+/**
+ * QTime as a Calendar in UTC on the day closest to now, null for a null QTime. Code that only
+ * needs the time should use {@link QDateTimeCodec} directly.
+ */
 public class QTime implements QMetaTypeSerializer<Calendar> {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
 
     @Override
     public void serialize(QDataOutputStream stream, Calendar data,
                           DataStreamVersion version) throws IOException {
-        long sum = data.get(Calendar.HOUR) * 3600000L;
-        sum += data.get(Calendar.MINUTE) * 60000L;
-        sum += data.get(Calendar.SECOND) * 1000L;
-        sum += data.get(Calendar.MILLISECOND);
-        stream.writeUInt(sum, 32);
+        QDateTimeCodec.writeTime(stream, data == null ? QDateTimeCodec.INVALID : data.getTimeInMillis());
     }
 
     @Override
     public Calendar deserialize(QDataInputStream stream, DataStreamVersion version)
             throws IOException {
-        long millisSinceMidnight = stream.readUInt(32);
-        int hour = (int) (millisSinceMidnight / 3600000L);
-        int minute = (int) ((millisSinceMidnight - (hour * 3600000L)) / 60000L);
-        int second = (int) ((millisSinceMidnight - (hour * 3600000L) - (minute * 60000L)) / 1000L);
-        int millis = (int) ((millisSinceMidnight - (hour * 3600000L) - (minute * 60000L) - (second * 1000L)));
-
-        Calendar ret = new GregorianCalendar();
-        ret.set(Calendar.HOUR, hour);
-        ret.set(Calendar.MINUTE, minute);
-        ret.set(Calendar.SECOND, second);
-        ret.set(Calendar.MILLISECOND, millis);
-
-        return ret;
+        long millis = QDateTimeCodec.timeToEpochMillis(QDateTimeCodec.readTime(stream), System.currentTimeMillis());
+        if (millis == QDateTimeCodec.INVALID)
+            return null;
+        Calendar cal = Calendar.getInstance(UTC);
+        cal.setTimeInMillis(millis);
+        return cal;
     }
 
 }
@@ -29,9 +29,32 @@ import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeRegistry;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeSerializer;
 
+import android.util.SparseArray;
+
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
+/**
+ * Every message carries the full BufferInfo of its buffer, but a session only has a few
+ * hundred buffers. Decoded infos are interned by buffer id, so a message for a known buffer
+ * returns the same BufferInfo instance and only decodes the name when its bytes changed.
+ */
 public class BufferInfoSerializer implements QMetaTypeSerializer<BufferInfo> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final BufferInfo info;
+        final byte[] nameBytes;
+
+        Entry(BufferInfo info, byte[] nameBytes) {
+            this.info = info;
+            this.nameBytes = nameBytes;
+        }
+    }
+
+    private final SparseArray<Entry> interned = new SparseArray<Entry>();
+    private byte[] nameBuffer = new byte[64];
 
     @SuppressWarnings("unchecked")
     @Override
@@ -45,14 +68,44 @@ public class BufferInfoSerializer implements QMetaTypeSerializer<BufferInfo> {
     }
 
     @Override
-    public BufferInfo deserialize(QDataInputStream stream,
-                                  DataStreamVersion version) throws IOException, EmptyQVariantException {
+    public synchronized BufferInfo deserialize(QDataInputStream stream,
+                                               DataStreamVersion version) throws IOException, EmptyQVariantException {
+        int id = stream.readInt();
+        int networkId = stream.readInt();
+        BufferInfo.Type type = BufferInfo.Type.getType(stream.readShort());
+        long groupId = stream.readUInt(32);
+
+        int nameLength = (int) stream.readUInt(32);
+        if (nameLength == 0xFFFFFFFF)
+            nameLength = 0;
+        if (nameLength > nameBuffer.length)
+            nameBuffer = new byte[Math.max(nameLength, nameBuffer.length * 2)];
+        stream.readFully(nameBuffer, 0, nameLength);
+
+        Entry entry = interned.get(id);
+        if (entry != null && entry.info.networkId == networkId && entry.info.type == type
+                && entry.info.groupId == groupId && sameBytes(entry.nameBytes, nameBuffer, nameLength)) {
+            return entry.info;
+        }
+
+        // New buffer or the core changed it, the old instance stays as it is for whoever holds it
         BufferInfo ret = new BufferInfo();
-        ret.id = stream.readInt();
-        ret.networkId = stream.readInt();
-        ret.type = BufferInfo.Type.getType(stream.readShort());
-        ret.groupId = stream.readUInt(32);
-        ret.name = (String) QMetaTypeRegistry.instance().getTypeForName("QByteArray").getSerializer().deserialize(stream, version);
+        ret.id = id;
+        ret.networkId = networkId;
+        ret.type = type;
+        ret.groupId = groupId;
+        ret.name = new String(nameBuffer, 0, nameLength, UTF_8);
+        interned.put(id, new Entry(ret, Arrays.copyOf(nameBuffer, nameLength)));
         return ret;
     }
+
+    private static boolean sameBytes(byte[] known, byte[] read, int length) {
+        if (known.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (known[i] != read[i])
+                return false;
+        }
+        return true;
+    }
 }
@@ -44,8 +44,9 @@ public class MessageSerializer implements QMetaTypeSerializer<IrcMessage> {
         stream.writeUInt(data.timestamp.getTime() / 1000, 32);
         stream.writeUInt(data.type.getValue(), 32);
         stream.writeByte(data.flags);
-        stream.writeBytes(data.getSender());// TODO FIXME
-        stream.writeBytes(data.content.toString());//ditto
+        QMetaTypeRegistry.instance().getTypeForName("BufferInfo").getSerializer().serialize(stream, data.bufferInfo, version);
+        QMetaTypeRegistry.instance().getTypeForName("QByteArray").getSerializer().serialize(stream, data.getSender(), version);
+        QMetaTypeRegistry.instance().getTypeForName("QByteArray").getSerializer().serialize(stream, data.content.toString(), version);
     }
 
     @Override
@@ -0,0 +1,190 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDateTimeCodec;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The DataStream protocol. Every message is a bare QVariantList without the surrounding QVariant
+ * header, handshake maps are flattened into a list of alternating QByteArray keys and values,
+ * the request type is a qint16 and all names are sent as QByteArray.
+ * <p/>
+ * InitData is also flattened on the wire, it is folded back into a single QVariantMap parameter
+ * here so the messages look the same as with the legacy protocol.
+ */
+class DataStreamProtocolCodec extends SignalProxyCodec {
+
+    @Override
+    public int getProtocol() {
+        return PROTOCOL_DATASTREAM;
+    }
+
+    @Override
+    public Map<String, QVariant<?>> readHandshake(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        int size = (int) stream.readUInt(32);
+        if (size % 2 != 0) {
+            throw new IOException("Handshake message has an odd number of elements: " + size);
+        }
+        Map<String, QVariant<?>> message = new HashMap<>(size);
+        for (int i = 0; i < size; i += 2) {
+            String key = readString(stream);
+            message.put(key, readVariant(stream));
+        }
+        return message;
+    }
+
+    @Override
+    public void writeHandshake(QDataOutputStream stream, Map<String, QVariant<?>> message) throws IOException {
+        stream.writeUInt(message.size() * 2, 32);
+        for (Map.Entry<String, QVariant<?>> entry : message.entrySet()) {
+            writeByteArray(stream, entry.getKey());
+            writeVariant(stream, entry.getValue());
+        }
+    }
+
+    @Override
+    public SignalProxyMessage read(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        int size = (int) stream.readUInt(32);
+        if (size == 0) {
+            return null;
+        }
+
+        RequestType type = readRequestType(stream);
+        switch (type) {
+            case Sync: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                String slotName = readString(stream);
+                return new SyncMessage(className, objectName, slotName, readParams(stream, size - 4));
+            }
+            case RpcCall: {
+                String slotName = readString(stream);
+                return new RpcCall(slotName, readParams(stream, size - 2));
+            }
+            case InitRequest: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                return new InitRequest(className, objectName);
+            }
+            case InitData: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                int count = size - 3;
+                Map<String, QVariant<?>> properties = new HashMap<>(count);
+                for (int i = 0; i + 1 < count; i += 2) {
+                    String key = readString(stream);
+                    properties.put(key, readVariant(stream));
+                }
+                if (count % 2 != 0) {
+                    readVariant(stream);
+                }
+                return new InitData(className, objectName, new QVariant<Map<String, QVariant<?>>>(properties, QVariantType.Map));
+            }
+            case HeartBeat:
+            case HeartBeatReply: {
+                long timestamp = size > 1 ? readTimestamp(stream) : QDateTimeCodec.INVALID;
+                readParams(stream, size - 2);
+                return new HeartBeat(timestamp, type == RequestType.HeartBeatReply);
+            }
+            default:
+                readParams(stream, size - 1);
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void write(QDataOutputStream stream, SignalProxyMessage message) throws IOException {
+        switch (message.getType()) {
+            case Sync: {
+                SyncMessage sync = (SyncMessage) message;
+                stream.writeUInt(4 + sync.getParams().size(), 32);
+                writeShort(stream, RequestType.Sync.getValue());
+                writeByteArray(stream, sync.className);
+                writeByteArray(stream, sync.objectName);
+                writeByteArray(stream, sync.slotName);
+                writeParams(stream, sync.getParams());
+                break;
+            }
+            case RpcCall: {
+                RpcCall rpcCall = (RpcCall) message;
+                stream.writeUInt(2 + rpcCall.getParams().size(), 32);
+                writeShort(stream, RequestType.RpcCall.getValue());
+                writeByteArray(stream, rpcCall.slotName);
+                writeParams(stream, rpcCall.getParams());
+                break;
+            }
+            case InitRequest: {
+                InitRequest initRequest = (InitRequest) message;
+                stream.writeUInt(3, 32);
+                writeShort(stream, RequestType.InitRequest.getValue());
+                writeByteArray(stream, initRequest.className);
+                writeByteArray(stream, initRequest.objectName);
+                break;
+            }
+            case InitData: {
+                InitData initData = (InitData) message;
+                Map<String, QVariant<?>> properties = new HashMap<>();
+                for (QVariant<?> param : initData.getParams()) {
+                    if (param.getType() == QVariantType.Map && param.isValid()) {
+                        try {
+                            properties.putAll((Map<String, QVariant<?>>) param.getData());
+                        } catch (EmptyQVariantException e) {
+                            // isValid() already checked for this
+                        }
+                    }
+                }
+                stream.writeUInt(3 + properties.size() * 2, 32);
+                writeShort(stream, RequestType.InitData.getValue());
+                writeByteArray(stream, initData.className);
+                writeByteArray(stream, initData.objectName);
+                for (Map.Entry<String, QVariant<?>> entry : properties.entrySet()) {
+                    writeByteArray(stream, entry.getKey());
+                    writeVariant(stream, entry.getValue());
+                }
+                break;
+            }
+            case HeartBeat:
+            case HeartBeatReply: {
+                HeartBeat heartBeat = (HeartBeat) message;
+                stream.writeUInt(2, 32);
+                writeShort(stream, message.getType().getValue());
+                writeVariantHeader(stream, QVariantType.DateTime);
+                QDateTimeCodec.writeDateTime(stream, heartBeat.timestamp);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Can't write message of type " + message.getType());
+        }
+    }
+}
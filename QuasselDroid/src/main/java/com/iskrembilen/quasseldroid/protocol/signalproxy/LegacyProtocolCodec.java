@@ -0,0 +1,160 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDateTimeCodec;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The legacy protocol, where every message is wrapped in a QVariant: the handshake messages
+ * are QVariantMaps and the SignalProxy messages are QVariantLists.
+ */
+class LegacyProtocolCodec extends SignalProxyCodec {
+
+    @Override
+    public int getProtocol() {
+        return PROTOCOL_LEGACY;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, QVariant<?>> readHandshake(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        return (Map<String, QVariant<?>>) readVariant(stream).getData();
+    }
+
+    @Override
+    public void writeHandshake(QDataOutputStream stream, Map<String, QVariant<?>> message) throws IOException {
+        writeVariant(stream, new QVariant<Map<String, QVariant<?>>>(message, QVariantType.Map));
+    }
+
+    @Override
+    public SignalProxyMessage read(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        long listType = stream.readUInt(32);
+        if (listType != QVariantType.List.getValue()) {
+            throw new IOException("Expected a QVariantList, got type " + listType);
+        }
+        stream.readUnsignedByte(); // Null flag
+        int size = (int) stream.readUInt(32);
+        if (size == 0) {
+            return null;
+        }
+
+        RequestType type = readRequestType(stream);
+        switch (type) {
+            case Sync: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                String slotName = readString(stream);
+                return new SyncMessage(className, objectName, slotName, readParams(stream, size - 4));
+            }
+            case RpcCall: {
+                String slotName = readString(stream);
+                return new RpcCall(slotName, readParams(stream, size - 2));
+            }
+            case InitRequest: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                return new InitRequest(className, objectName);
+            }
+            case InitData: {
+                String className = readString(stream);
+                String objectName = readString(stream);
+                return new InitData(className, objectName, readParams(stream, size - 3));
+            }
+            case HeartBeat:
+            case HeartBeatReply: {
+                long timestamp = size > 1 ? readTimestamp(stream) : QDateTimeCodec.INVALID;
+                readParams(stream, size - 2);
+                return new HeartBeat(timestamp, type == RequestType.HeartBeatReply);
+            }
+            default:
+                readParams(stream, size - 1);
+                return null;
+        }
+    }
+
+    @Override
+    public void write(QDataOutputStream stream, SignalProxyMessage message) throws IOException {
+        switch (message.getType()) {
+            case Sync: {
+                SyncMessage sync = (SyncMessage) message;
+                writeListHeader(stream, 4 + sync.getParams().size());
+                writeInt(stream, RequestType.Sync.getValue());
+                writeByteArray(stream, sync.className);
+                writeByteArray(stream, sync.objectName);
+                writeByteArray(stream, sync.slotName);
+                writeParams(stream, sync.getParams());
+                break;
+            }
+            case RpcCall: {
+                RpcCall rpcCall = (RpcCall) message;
+                writeListHeader(stream, 2 + rpcCall.getParams().size());
+                writeInt(stream, RequestType.RpcCall.getValue());
+                writeByteArray(stream, rpcCall.slotName);
+                writeParams(stream, rpcCall.getParams());
+                break;
+            }
+            case InitRequest: {
+                InitRequest initRequest = (InitRequest) message;
+                writeListHeader(stream, 3);
+                writeInt(stream, RequestType.InitRequest.getValue());
+                writeByteArray(stream, initRequest.className);
+                writeString(stream, initRequest.objectName);
+                break;
+            }
+            case InitData: {
+                InitData initData = (InitData) message;
+                writeListHeader(stream, 3 + initData.getParams().size());
+                writeInt(stream, RequestType.InitData.getValue());
+                writeByteArray(stream, initData.className);
+                writeString(stream, initData.objectName);
+                writeParams(stream, initData.getParams());
+                break;
+            }
+            case HeartBeat:
+            case HeartBeatReply: {
+                HeartBeat heartBeat = (HeartBeat) message;
+                writeListHeader(stream, 2);
+                writeInt(stream, message.getType().getValue());
+                writeVariantHeader(stream, QVariantType.Time);
+                QDateTimeCodec.writeTime(stream, heartBeat.timestamp);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Can't write message of type " + message.getType());
+        }
+    }
+
+    private static void writeListHeader(QDataOutputStream stream, int size) throws IOException {
+        writeVariantHeader(stream, QVariantType.List);
+        stream.writeUInt(size, 32);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message carrying a list of parameters after its header fields. The parameters are read in
+ * order with {@link #next()}, which only moves a cursor instead of removing from the list.
+ */
+public abstract class ParameterizedMessage extends SignalProxyMessage {
+    private final List<QVariant<?>> params;
+    private int position = 0;
+
+    protected ParameterizedMessage(List<QVariant<?>> params) {
+        this.params = params;
+    }
+
+    protected ParameterizedMessage(QVariant<?>... params) {
+        this(new ArrayList<>(Arrays.asList(params)));
+    }
+
+    public List<QVariant<?>> getParams() {
+        return params;
+    }
+
+    public QVariant<?> next() {
+        return params.get(position++);
+    }
+
+    public QVariant<?> peek() {
+        return params.get(position);
+    }
+
+    public int remaining() {
+        return params.size() - position;
+    }
+
+    /**
+     * @return the parameters that were not read yet
+     */
+    public List<QVariant<?>> getRemaining() {
+        return params.subList(position, params.size());
+    }
+
+    @Override
+    public String toString() {
+        return getRemaining().toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import android.util.SparseArray;
+
+/**
+ * Type of a given request (should be pretty self-explanatory).
+ */
+public enum RequestType {
+    Invalid(0),
+    Sync(1),
+    RpcCall(2),
+    InitRequest(3),
+    InitData(4),
+    HeartBeat(5),
+    HeartBeatReply(6);
+
+    static SparseArray<RequestType> types = new SparseArray<>(6);
+    static {
+        for (RequestType t : RequestType.values()) {
+            types.put(t.value,t);
+        }
+    }
+
+    // Below this line; java sucks. Hard.
+    int value;
+
+    RequestType(int value) {
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public static RequestType getForVal(int val) {
+        return types.get(val,Invalid);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+
+import java.util.List;
+
+/**
+ * Calls a global signal or slot, identified by its normalized signature like "2displayMsg(Message)".
+ */
+public class RpcCall extends ParameterizedMessage {
+    public final String slotName;
+
+    public RpcCall(String slotName, List<QVariant<?>> params) {
+        super(params);
+        this.slotName = slotName;
+    }
+
+    public RpcCall(String slotName, QVariant<?>... params) {
+        super(params);
+        this.slotName = slotName;
+    }
+
+    @Override
+    public RequestType getType() {
+        return RequestType.RpcCall;
+    }
+
+    @Override
+    public String toString() {
+        return "RpcCall " + slotName + " " + super.toString();
+    }
+}
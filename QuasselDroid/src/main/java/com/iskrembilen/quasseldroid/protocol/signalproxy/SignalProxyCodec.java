@@ -0,0 +1,162 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.DataStreamVersion;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDateTimeCodec;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaType;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeRegistry;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the messages of one wire protocol, both the handshake maps and the
+ * SignalProxy messages. The header fields of a SignalProxy message are decoded straight from the
+ * stream into the message object, and only the slot parameters are kept as QVariants.
+ * <p/>
+ * None of the methods handle the leading packet length, that is done by the connection.
+ */
+public abstract class SignalProxyCodec {
+    public static final int PROTOCOL_LEGACY = 0x01;
+    public static final int PROTOCOL_DATASTREAM = 0x02;
+
+    public static final SignalProxyCodec LEGACY = new LegacyProtocolCodec();
+    public static final SignalProxyCodec DATASTREAM = new DataStreamProtocolCodec();
+
+    /**
+     * @return the codec for a protocol id sent in the probe, or null if we don't speak it
+     */
+    public static SignalProxyCodec forProtocol(int protocol) {
+        switch (protocol) {
+            case PROTOCOL_LEGACY:
+                return LEGACY;
+            case PROTOCOL_DATASTREAM:
+                return DATASTREAM;
+            default:
+                return null;
+        }
+    }
+
+    public abstract int getProtocol();
+
+    public abstract Map<String, QVariant<?>> readHandshake(QDataInputStream stream) throws IOException, EmptyQVariantException;
+
+    public abstract void writeHandshake(QDataOutputStream stream, Map<String, QVariant<?>> message) throws IOException;
+
+    /**
+     * Reads one message.
+     *
+     * @return the message, or null if the request type is unknown. The rest of the message is skipped in that case.
+     */
+    public abstract SignalProxyMessage read(QDataInputStream stream) throws IOException, EmptyQVariantException;
+
+    public abstract void write(QDataOutputStream stream, SignalProxyMessage message) throws IOException;
+
+    protected static QVariant<?> readVariant(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        return (QVariant<?>) QMetaTypeRegistry.unserialize(QMetaType.Type.QVariant, stream);
+    }
+
+    /**
+     * Names are sent as either QByteArray or QString depending on the sender, both decode to a String.
+     */
+    protected static String readString(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        return (String) readVariant(stream).getData();
+    }
+
+    /**
+     * The request type is a qint16 in the DataStream protocol and an int in the legacy one
+     */
+    protected static RequestType readRequestType(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        return RequestType.getForVal(((Number) readVariant(stream).getData()).intValue());
+    }
+
+    /**
+     * Reads a heartbeat timestamp as epoch milliseconds without going through a QVariant and a Calendar.
+     * Legacy cores send a QTime, DataStream ones a QDateTime.
+     */
+    protected static long readTimestamp(QDataInputStream stream) throws IOException, EmptyQVariantException {
+        int type = (int) stream.readUInt(32);
+        stream.readUnsignedByte(); // Null flag, a null time is encoded as invalid anyway
+        if (type == QVariantType.DateTime.getValue()) {
+            return QDateTimeCodec.readDateTime(stream);
+        } else if (type == QVariantType.Time.getValue()) {
+            return QDateTimeCodec.timeToEpochMillis(QDateTimeCodec.readTime(stream), System.currentTimeMillis());
+        } else {
+            // Skip whatever it is
+            QMetaTypeRegistry.instance().getTypeForId(type).getSerializer().deserialize(stream, DataStreamVersion.Qt_4_2);
+            return QDateTimeCodec.INVALID;
+        }
+    }
+
+    protected static List<QVariant<?>> readParams(QDataInputStream stream, int count) throws IOException, EmptyQVariantException {
+        List<QVariant<?>> params = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            params.add(readVariant(stream));
+        }
+        return params;
+    }
+
+    protected static void writeVariantHeader(QDataOutputStream stream, QVariantType type) throws IOException {
+        stream.writeUInt(type.getValue(), 32);
+        stream.writeByte(0); // Not null
+    }
+
+    protected static void writeInt(QDataOutputStream stream, int value) throws IOException {
+        writeVariantHeader(stream, QVariantType.Int);
+        QMetaTypeRegistry.serialize(QMetaType.Type.Int, stream, value);
+    }
+
+    protected static void writeShort(QDataOutputStream stream, int value) throws IOException {
+        writeVariantHeader(stream, QVariantType.Short);
+        QMetaTypeRegistry.serialize(QMetaType.Type.Short, stream, (short) value);
+    }
+
+    protected static void writeByteArray(QDataOutputStream stream, String value) throws IOException {
+        writeVariantHeader(stream, QVariantType.ByteArray);
+        QMetaTypeRegistry.serialize(QMetaType.Type.QByteArray, stream, value);
+    }
+
+    protected static void writeString(QDataOutputStream stream, String value) throws IOException {
+        writeVariantHeader(stream, QVariantType.String);
+        QMetaTypeRegistry.serialize(QMetaType.Type.QString, stream, value);
+    }
+
+    protected static void writeVariant(QDataOutputStream stream, QVariant<?> value) throws IOException {
+        QMetaTypeRegistry.serialize(QMetaType.Type.QVariant, stream, value);
+    }
+
+    protected static void writeParams(QDataOutputStream stream, List<QVariant<?>> params) throws IOException {
+        for (QVariant<?> param : params) {
+            writeVariant(stream, param);
+        }
+    }
+}
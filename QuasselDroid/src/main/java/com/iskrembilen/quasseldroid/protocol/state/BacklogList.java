@@ -0,0 +1,147 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Sorted message list of a buffer that can hand out {@link BacklogSnapshot}s in constant time.
+ *
+ * New messages arrive at the end and backlog at the front, so the items live in an array with
+ * room on both sides. Slots inside the range a snapshot covers are never written again, instead
+ * an insert in the middle, a removal or a clear copies the items into a new array and starts a
+ * new generation. Not thread safe, the owning buffer synchronizes access.
+ */
+public class BacklogList extends AbstractList<IrcMessage> implements RandomAccess {
+    private static final int MIN_CAPACITY = 16;
+
+    private IrcMessage[] items;
+    /**
+     * Array index of the first item
+     */
+    private int head;
+    private int size = 0;
+    /**
+     * Position of the first item relative to where the generation started, goes negative as
+     * messages are prepended
+     */
+    private int first = 0;
+    private int generation = 0;
+    private long version = 0;
+
+    public BacklogList() {
+        items = new IrcMessage[MIN_CAPACITY];
+        head = MIN_CAPACITY / 2;
+    }
+
+    @Override
+    public IrcMessage get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return items[head + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(int index, IrcMessage message) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        if (index == size) {
+            if (head + size == items.length)
+                grow();
+            items[head + size] = message;
+        } else if (index == 0) {
+            if (head == 0)
+                grow();
+            items[--head] = message;
+            first--;
+        } else {
+            IrcMessage[] copy = new IrcMessage[capacityFor(size + 1)];
+            int newHead = (copy.length - size - 1) / 2;
+            System.arraycopy(items, head, copy, newHead, index);
+            copy[newHead + index] = message;
+            System.arraycopy(items, head + index, copy, newHead + index + 1, size - index);
+            restart(copy, newHead);
+        }
+        size++;
+        version++;
+        modCount++;
+    }
+
+    @Override
+    public IrcMessage remove(int index) {
+        IrcMessage removed = get(index);
+        IrcMessage[] copy = new IrcMessage[capacityFor(size - 1)];
+        int newHead = (copy.length - size + 1) / 2;
+        System.arraycopy(items, head, copy, newHead, index);
+        System.arraycopy(items, head + index + 1, copy, newHead + index, size - index - 1);
+        restart(copy, newHead);
+        size--;
+        version++;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        restart(new IrcMessage[MIN_CAPACITY], MIN_CAPACITY / 2);
+        size = 0;
+        version++;
+        modCount++;
+    }
+
+    /**
+     * @return an immutable view of the current items, sharing the array with this list
+     */
+    public BacklogSnapshot snapshot() {
+        return new BacklogSnapshot(items, head, size, first, generation, version);
+    }
+
+    private void restart(IrcMessage[] newItems, int newHead) {
+        items = newItems;
+        head = newHead;
+        first = 0;
+        generation++;
+    }
+
+    /**
+     * Move the items to a bigger array, snapshots keep the old one and stay valid
+     */
+    private void grow() {
+        IrcMessage[] copy = new IrcMessage[capacityFor(size * 2)];
+        int newHead = (copy.length - size) / 2;
+        System.arraycopy(items, head, copy, newHead, size);
+        items = copy;
+        head = newHead;
+    }
+
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, size + size / 2 + 2);
+    }
+}
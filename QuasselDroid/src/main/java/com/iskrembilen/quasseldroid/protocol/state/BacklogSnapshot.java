@@ -0,0 +1,150 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Immutable view of the filtered backlog of a buffer at one point in time, see
+ * {@link Buffer#getBacklogSnapshot()}. Safe to read on any thread.
+ */
+public final class BacklogSnapshot extends AbstractList<IrcMessage> implements RandomAccess {
+    public static final BacklogSnapshot EMPTY = new BacklogSnapshot(new IrcMessage[0], 0, 0, 0, -1, 0);
+
+    private final IrcMessage[] items;
+    private final int offset;
+    private final int size;
+    private final int first;
+    private final int generation;
+    private final long version;
+
+    BacklogSnapshot(IrcMessage[] items, int offset, int size, int first, int generation, long version) {
+        this.items = items;
+        this.offset = offset;
+        this.size = size;
+        this.first = first;
+        this.generation = generation;
+        this.version = version;
+    }
+
+    @Override
+    public IrcMessage get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return items[offset + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a number that changes every time the backlog changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the position of the message with this id, or -1 if it isn't in the snapshot
+     */
+    public int indexOfMessage(int messageId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = items[offset + mid].messageId;
+            if (id < messageId)
+                low = mid + 1;
+            else if (id > messageId)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the newest message with an id of at most messageId, or -1 if all are newer
+     */
+    public int floorIndex(int messageId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (items[offset + mid].messageId <= messageId)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    /**
+     * @return what happened to the backlog between an older snapshot of the same buffer and this one
+     */
+    public Diff diffFrom(BacklogSnapshot older) {
+        if (older == null || older.generation != generation)
+            return Diff.RESET;
+        if (older.version == version)
+            return Diff.NONE;
+        return new Diff(older.first - first, (first + size) - (older.first + older.size), false);
+    }
+
+    /**
+     * Positional difference between two snapshots. Messages are only ever added at the front or the
+     * back of a backlog, anything else is a reset, after which all positions have to be reloaded.
+     */
+    public static final class Diff {
+        public static final Diff NONE = new Diff(0, 0, false);
+        public static final Diff RESET = new Diff(0, 0, true);
+
+        /**
+         * Number of messages inserted before the first position of the older snapshot
+         */
+        public final int prepended;
+        /**
+         * Number of messages inserted after the last position of the older snapshot
+         */
+        public final int appended;
+        public final boolean reset;
+
+        Diff(int prepended, int appended, boolean reset) {
+            this.prepended = prepended;
+            this.appended = appended;
+            this.reset = reset;
+        }
+
+        public boolean isEmpty() {
+            return !reset && prepended == 0 && appended == 0;
+        }
+
+        @Override
+        public String toString() {
+            return reset ? "reset" : "+" + prepended + " front, +" + appended + " back";
+        }
+    }
+}
@@ -28,12 +28,13 @@ import android.util.Log;
 
 import com.iskrembilen.quasseldroid.Quasseldroid;
 import com.iskrembilen.quasseldroid.R;
-import com.iskrembilen.quasseldroid.gui.fragments.ChatFragment;
 import com.iskrembilen.quasseldroid.io.QuasselDbHelper;
+import com.iskrembilen.quasseldroid.util.StateThread;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Observable;
 import java.util.concurrent.Executor;
@@ -52,9 +53,9 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      */
     private final ArrayList<IrcMessage> backlog;
     /**
-     * Filtered version of the backlog, without hidden messages
+     * Filtered version of the backlog, without hidden messages. Readers get snapshots of it
      */
-    private ArrayList<IrcMessage> filteredBacklog;
+    private final BacklogList filteredBacklog;
     /**
      * The message id of the message that was on top of the screen when this buffer was last displayed
      * used to remember position when going back to a buffer
@@ -80,10 +81,23 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * The id of the last message that was of type plain. Not join/part/mode/quits etc
      */
     private int lastPlainMessageId;
+    /**
+     * Number of messages after the last seen message that are not filtered, kept up to date on every insert
+     */
+    private int unreadCount;
+    /**
+     * Number of messages of type plain or action after the last seen message, not counting ignored ones
+     */
+    private int unreadPlainCount;
+    /**
+     * Number of highlights after the last seen message, not counting ignored ones
+     */
+    private int unreadHighlightCount;
     /**
      * List of the myNick of ppl on this buffer TODO: say something about what this is used for
      */
     private UserCollection users;
+    private final RecentSpeakers recentSpeakers = new RecentSpeakers();
     /**
      * The topic for this buffer
      */
@@ -102,9 +116,9 @@ public class Buffer extends Observable implements Comparable<Buffer> {
     private boolean temporarilyHidden = false;
     private boolean permanentlyHidden = false;
     /**
-     * List with all the message types that this buffer should filter
+     * Bitmask of all the message types that this buffer should filter
      */
-    private ArrayList<IrcMessage.Type> filterTypes;
+    private int filterMask;
 
     private int order = Integer.MAX_VALUE;
 
@@ -117,8 +131,7 @@ public class Buffer extends Observable implements Comparable<Buffer> {
     public Buffer(BufferInfo info, QuasselDbHelper dbHelper) {
         this.info = info;
         backlog = new ArrayList<>();
-        filteredBacklog = new ArrayList<>();
-        filterTypes = new ArrayList<>();
+        filteredBacklog = new BacklogList();
         users = new UserCollection();
         this.dbHelper = dbHelper;
 
@@ -131,8 +144,10 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @param message the message to add to the buffer
      */
     public synchronized void addMessage(IrcMessage message) {
+        int activity = getActivityState();
         newBufferEntry(message);
         notifyObservers(R.id.BUFFERUPDATE_NEWMESSAGE);
+        notifyActivityChanged(activity);
     }
 
     /**
@@ -150,7 +165,10 @@ public class Buffer extends Observable implements Comparable<Buffer> {
             lastPlainMessageId = message.messageId;
             this.setChanged();
         }
-        insertMessageInBufferList(backlog, message);
+        if (insertMessageInBufferList(backlog, message) && message.messageId > lastSeenMessage) {
+            countUnread(message);
+        }
+        recentSpeakers.add(message);
         if (!isMessageFiltered(message)) {
             if (isMarkerLineFiltered && getMarkerLineMessage() == message.messageId)
                 isMarkerLineFiltered = false;
@@ -162,8 +180,10 @@ public class Buffer extends Observable implements Comparable<Buffer> {
 
     /**
      * Inserts a message into the correct position in a buffer
+     *
+     * @return false if the list already had the message
      */
-    private synchronized void insertMessageInBufferList(final ArrayList<IrcMessage> list, IrcMessage msg) {
+    private synchronized boolean insertMessageInBufferList(final List<IrcMessage> list, IrcMessage msg) {
         if (list.isEmpty()) {
             list.add(msg);
             this.setChanged();
@@ -174,8 +194,61 @@ public class Buffer extends Observable implements Comparable<Buffer> {
                 this.setChanged();
             } else {
                 Log.e(TAG, "Getting message buffer already has");
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Adds an unread message to the unread counters
+     */
+    private synchronized void countUnread(IrcMessage msg) {
+        if (!isMessageFiltered(msg))
+            unreadCount++;
+        if (msg.isFiltered())
+            return;
+        if (msg.type == IrcMessage.Type.Plain || msg.type == IrcMessage.Type.Action)
+            unreadPlainCount++;
+        if (msg.isHighlighted())
+            unreadHighlightCount++;
+    }
+
+    /**
+     * Counts the unread messages again, walks back from the newest message so it only
+     * costs as much as there are unread messages
+     */
+    private synchronized void recountUnread() {
+        unreadCount = 0;
+        unreadPlainCount = 0;
+        unreadHighlightCount = 0;
+        for (int i = backlog.size() - 1; i >= 0 && backlog.get(i).messageId > lastSeenMessage; i--) {
+            countUnread(backlog.get(i));
+        }
+    }
+
+    /**
+     * @return bitmask of the activity filters this buffer matches, see {@link #notifyActivityChanged(int)}
+     */
+    private synchronized int getActivityState() {
+        int state = 0;
+        if (hasUnreadActivity()) state |= 1;
+        if (hasUnreadMessage()) state |= 2;
+        if (hasUnseenHighlight()) state |= 4;
+        return state;
+    }
+
+    /**
+     * Tells the observers if the buffer went in or out of one of the activity filters, so the
+     * filtered buffer lists can move just this buffer
+     *
+     * @param previousState the result of {@link #getActivityState()} before the change
+     */
+    private synchronized void notifyActivityChanged(int previousState) {
+        if (getActivityState() != previousState) {
+            this.setChanged();
+            notifyObservers(R.id.BUFFER_ACTIVITY_CHANGED);
+        }
     }
 
     /**
@@ -186,7 +259,7 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @return true if the message should be filtered, false if it shouldn't
      */
     public synchronized boolean isMessageFiltered(IrcMessage msg) {
-        return (filterTypes.contains(msg.type) || msg.isFiltered());
+        return ((filterMask & msg.type.value) != 0 || msg.isFiltered());
     }
 
     /**
@@ -195,8 +268,10 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @param message the backlog message to add
      */
     public synchronized void addBacklogMessage(IrcMessage message) {
+        int activity = getActivityState();
         newBufferEntry(message);
         notifyObservers(R.id.BUFFERUPDATE_BACKLOG);
+        notifyActivityChanged(activity);
     }
 
     /**
@@ -205,10 +280,12 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @param messageList the backlog messages to add
      */
     public synchronized void addBacklogMessages(List<IrcMessage> messageList) {
+        int activity = getActivityState();
         for (IrcMessage message : messageList) {
             newBufferEntry(message);
         }
         notifyObservers(R.id.BUFFERUPDATE_BACKLOG);
+        notifyActivityChanged(activity);
     }
 
     /**
@@ -235,14 +312,14 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @return true if buffer has unseen highlights, otherwise false
      */
     public synchronized boolean hasUnseenHighlight() {
-        return (filteredBacklog.size() != 0 && lastSeenMessage != 0 && lastHighlightMessageId > lastSeenMessage);
+        return (lastSeenMessage != 0 && unreadHighlightCount != 0);
     }
 
     /**
      * Checks if the buffer has any unread messages, not including joins/parts/quits etc
      */
     public synchronized boolean hasUnreadMessage() {
-        return (filteredBacklog.size() != 0 && lastSeenMessage != 0 && lastPlainMessageId > lastSeenMessage);
+        return (lastSeenMessage != 0 && unreadPlainCount != 0);
     }
 
     /**
@@ -251,9 +328,28 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @return true if buffer has unread activity, false otherwise
      */
     public synchronized boolean hasUnreadActivity() {
-        //Last message in the backlog has a bigger messageId than the last seen message
-        return ((filteredBacklog.size() != 0 && lastSeenMessage != 0 && lastSeenMessage < filteredBacklog.get(filteredBacklog.size() - 1).messageId) ||
-                (lastSeenMessage == -1));
+        return ((lastSeenMessage != 0 && unreadCount != 0) || (lastSeenMessage == -1));
+    }
+
+    /**
+     * @return number of unread messages that are not filtered, 0 if the last seen message is not known yet
+     */
+    public synchronized int getUnreadCount() {
+        return lastSeenMessage > 0 ? unreadCount : 0;
+    }
+
+    /**
+     * @return number of unread messages, not including joins/parts/quits etc
+     */
+    public synchronized int getUnreadPlainCount() {
+        return lastSeenMessage > 0 ? unreadPlainCount : 0;
+    }
+
+    /**
+     * @return number of unseen highlights
+     */
+    public synchronized int getUnreadHighlightCount() {
+        return lastSeenMessage > 0 ? unreadHighlightCount : 0;
     }
 
     /**
@@ -262,9 +358,18 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @param lastSeenMessage the msgid of the last seen message on te buffer
      */
     public synchronized void setLastSeenMessage(int lastSeenMessage) {
+        int activity = getActivityState();
         this.lastSeenMessage = lastSeenMessage;
+        if (lastSeenMessage >= getLastMessageId()) {
+            unreadCount = 0;
+            unreadPlainCount = 0;
+            unreadHighlightCount = 0;
+        } else {
+            recountUnread();
+        }
         this.setChanged();
         notifyObservers();
+        notifyActivityChanged(activity);
     }
 
     /**
@@ -313,8 +418,22 @@ public class Buffer extends Observable implements Comparable<Buffer> {
         return backlog.get(pos);
     }
 
-    public List<IrcMessage> getBacklog() {
-        return filteredBacklog;
+    /**
+     * Get the filtered backlog as it is now, the snapshot is immutable and costs nothing to take.
+     * Compare it with an earlier one using {@link BacklogSnapshot#diffFrom(BacklogSnapshot)}.
+     */
+    public synchronized BacklogSnapshot getBacklogSnapshot() {
+        return filteredBacklog.snapshot();
+    }
+
+    /**
+     * @return the id of the newest message in the buffer, or -1 if it has none
+     */
+    public synchronized int getLastMessageId() {
+        if (backlog.isEmpty()) {
+            return -1;
+        }
+        return backlog.get(backlog.size() - 1).messageId;
     }
 
     /**
@@ -371,7 +490,12 @@ public class Buffer extends Observable implements Comparable<Buffer> {
         if (backlog.isEmpty())
             return;
 
+        int activity = getActivityState();
         lastSeenMessage = backlog.get(backlog.size() - 1).messageId;
+        unreadCount = 0;
+        unreadPlainCount = 0;
+        unreadHighlightCount = 0;
+        notifyActivityChanged(activity);
     }
 
 //	/**
@@ -399,6 +523,13 @@ public class Buffer extends Observable implements Comparable<Buffer> {
         return users;
     }
 
+    /**
+     * Who spoke lately in this buffer, to rank nick completions
+     */
+    public RecentSpeakers getRecentSpeakers() {
+        return recentSpeakers;
+    }
+
     /**
      * Set the topic for this buffer
      *
@@ -485,14 +616,23 @@ public class Buffer extends Observable implements Comparable<Buffer> {
         return order;
     }
 
+    /**
+     * Applies the order and hidden state from a buffer view without notifying the observers,
+     * the caller is responsible for resorting the buffer lists and notifying once for all buffers
+     */
+    synchronized void applyViewSnapshot(BufferViewSnapshot snapshot) {
+        int id = info.id;
+        this.order = snapshot.getOrder(id);
+        this.temporarilyHidden = snapshot.isTemporarilyHidden(id);
+        this.permanentlyHidden = snapshot.isPermanentlyHidden(id);
+    }
+
     /**
      * Add a new IrcMessage type that this buffer should filter(hidden type)
      */
     public synchronized void addFilterType(IrcMessage.Type type) {
-        filterTypes.add(type);
-        dbHelper.open();
-        dbHelper.addHiddenEvent(type, getInfo().id);
-        dbHelper.close();
+        filterMask |= type.value;
+        dbHelper.setHiddenEvents(filterMask, getInfo().id);
         updateFilters();
     }
 
@@ -508,24 +648,28 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * @param type
      */
     public synchronized void removeFilterType(IrcMessage.Type type) {
-        filterTypes.remove(type);
-        dbHelper.open();
-        dbHelper.deleteHiddenEvent(type, getInfo().id);
-        dbHelper.close();
+        filterMask &= ~type.value;
+        dbHelper.setHiddenEvents(filterMask, getInfo().id);
         updateFilters();
     }
 
-    public synchronized ArrayList<IrcMessage.Type> getFilters() {
-        return filterTypes;
+    public synchronized EnumSet<IrcMessage.Type> getFilters() {
+        return IrcMessage.Type.fromMask(filterMask);
+    }
+
+    /**
+     * @return the bitmask of all filtered message types, see {@link IrcMessage.Type#getValue()}
+     */
+    public synchronized int getFilterMask() {
+        return filterMask;
+    }
+
+    public synchronized boolean isTypeFiltered(IrcMessage.Type type) {
+        return (filterMask & type.value) != 0;
     }
 
     private synchronized void loadFilters() {
-        dbHelper.open();
-        IrcMessage.Type[] filteredEvents = dbHelper.getHiddenEvents(getInfo().id);
-        if (filteredEvents != null) {
-            Collections.addAll(filterTypes,filteredEvents);
-        }
-        dbHelper.close();
+        filterMask = dbHelper.getHiddenEvents(getInfo().id);
         filterBuffer();
 
     }
@@ -535,6 +679,7 @@ public class Buffer extends Observable implements Comparable<Buffer> {
      * if some of the filter types have changed, so we can build the list again
      */
     public synchronized void filterBuffer() {
+        int activity = getActivityState();
         filteredBacklog.clear();
         for (IrcMessage msg : backlog) {
             if (!isMessageFiltered(msg)) {
@@ -542,7 +687,9 @@ public class Buffer extends Observable implements Comparable<Buffer> {
                 filteredBacklog.add(msg);
             } else if (getMarkerLineMessage() == msg.messageId) isMarkerLineFiltered = true;
         }
+        recountUnread();
         notifyObservers();
+        notifyActivityChanged(activity);
     }
 
     public void updateIgnore() {
@@ -572,14 +719,18 @@ public class Buffer extends Observable implements Comparable<Buffer> {
 
                 final boolean copy_of_newisMarkerLineFiltered = newisMarkerLineFiltered;
 
-                Client.getInstance().runOnUiThread(new Runnable() {
+                StateThread.post(new Runnable() {
                     @Override
                     public void run() {
-                        filteredBacklog = newBacklog;
-                        isMarkerLineFiltered = copy_of_newisMarkerLineFiltered;
-                        if (ChatFragment.chatFragment != null && ChatFragment.chatFragment.adapter != null) {
-                            ChatFragment.chatFragment.adapter.backlogData = newBacklog;
-                            ChatFragment.chatFragment.adapter.notifyDataSetChanged();
+                        synchronized (Buffer.this) {
+                            int activity = getActivityState();
+                            filteredBacklog.clear();
+                            filteredBacklog.addAll(newBacklog);
+                            isMarkerLineFiltered = copy_of_newisMarkerLineFiltered;
+                            recountUnread();
+                            setChanged();
+                            notifyObservers();
+                            notifyActivityChanged(activity);
                         }
                     }
                 });
@@ -30,13 +30,18 @@ import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.iskrembilen.quasseldroid.R;
+import com.iskrembilen.quasseldroid.util.BackgroundMode;
 import com.iskrembilen.quasseldroid.util.BufferCollectionHelper;
+import com.iskrembilen.quasseldroid.util.StateThread;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -51,8 +56,29 @@ public class BufferCollection extends Observable implements Observer {
     private Map<String, Buffer> buffersByName = new HashMap<>();
 
     private List<Buffer> cachedList = new ArrayList<>();
-    private List<Buffer> filteredList = new ArrayList<>();
-    private Set<Predicate<Buffer>> filters = BufferCollectionHelper.FILTER_SET_VISIBLE;
+    /**
+     * Sorted buffer list for every filter set that was asked for, dropped when the buffers or their order change.
+     * Lists filtered on activity are kept up to date one buffer at a time, see {@link #updateActivity(Buffer)}
+     */
+    private Map<Set<Predicate<Buffer>>, List<Buffer>> filteredLists = new IdentityHashMap<>();
+
+    /**
+     * Networks with buffer changes that were not passed on because the app has no focus, see
+     * {@link BackgroundMode}. Only used on the state thread
+     */
+    private final Set<Integer> deferredNetworks = new HashSet<>();
+    private final Runnable notifyDeferred = new Runnable() {
+        @Override
+        public void run() {
+            notifyDeferredChanges();
+        }
+    };
+    private final Runnable replayDeferred = new Runnable() {
+        @Override
+        public void run() {
+            StateThread.post(notifyDeferred);
+        }
+    };
 
     private static final String TAG = BufferCollection.class.getSimpleName();
 
@@ -63,7 +89,7 @@ public class BufferCollection extends Observable implements Observer {
         this.setChanged();
         updateBufferList();
         buffer.addObserver(this);
-        notifyObservers();
+        notifyObservers(BufferListChange.networkBuffers(buffer.getInfo().networkId));
     }
 
     private void putBuffer(Buffer buffer) {
@@ -121,14 +147,66 @@ public class BufferCollection extends Observable implements Observer {
 
     @Override
     public void update(Observable arg0, Object arg1) {
+        Buffer buffer = (Buffer) arg0;
+        // Hiding and moving buffers is passed on right away and topics aren't shown, the rest only changes rows
+        boolean listChanged = arg1 != null && ((Integer) arg1 == R.id.BUFFER_ORDER_CHANGED
+                || (Integer) arg1 == R.id.BUFFER_HIDDEN_CHANGED || (Integer) arg1 == R.id.BUFFERUPDATE_TOPICCHANGED);
+        if (!listChanged && deferChange(buffer, arg1 != null && (Integer) arg1 == R.id.BUFFER_ACTIVITY_CHANGED))
+            return;
+
+        long start = System.nanoTime();
+        BufferListChange change;
         if (arg1 != null && (Integer) arg1 == R.id.BUFFER_ORDER_CHANGED) {
             updateBufferList();
+            change = BufferListChange.networkBuffers(buffer.getInfo().networkId);
         } else if (arg1 != null && (Integer) arg1 == R.id.BUFFER_HIDDEN_CHANGED) {
             updateBufferList();
+            change = BufferListChange.networkBuffers(buffer.getInfo().networkId);
+        } else if (arg1 != null && (Integer) arg1 == R.id.BUFFER_ACTIVITY_CHANGED) {
+            updateActivity(buffer);
+            change = BufferListChange.activity(buffer);
+        } else if (arg1 != null && (Integer) arg1 == R.id.BUFFERUPDATE_TOPICCHANGED) {
+            // The buffer list does not show topics
+            return;
+        } else {
+            change = BufferListChange.buffer(buffer);
         }
         this.setChanged();
-        notifyObservers();
+        notifyObservers(change);
+        BackgroundMode.recordListWork(System.nanoTime() - start);
+    }
 
+    /**
+     * Without focus, remembers that the row of the buffer changed instead of moving it in the
+     * activity lists and passing the change on. The lists that filter on activity are dropped,
+     * so they are filtered and sorted once when they are asked for again.
+     *
+     * @return false if the app has focus and the change should be handled now
+     */
+    private boolean deferChange(Buffer buffer, boolean activity) {
+        if (!BackgroundMode.isActive() || !BackgroundMode.defer(replayDeferred))
+            return false;
+        if (activity) {
+            for (Iterator<Set<Predicate<Buffer>>> it = filteredLists.keySet().iterator(); it.hasNext(); ) {
+                if (BufferCollectionHelper.filtersOnActivity(it.next()))
+                    it.remove();
+            }
+        }
+        deferredNetworks.add(buffer.getInfo().networkId);
+        BackgroundMode.recordListWorkSkipped();
+        return true;
+    }
+
+    /**
+     * Focus returned, tell the observers once per network that its buffers changed
+     */
+    private void notifyDeferredChanges() {
+        List<Integer> networkIds = new ArrayList<>(deferredNetworks);
+        deferredNetworks.clear();
+        for (int networkId : networkIds) {
+            this.setChanged();
+            notifyObservers(BufferListChange.networkBuffers(networkId));
+        }
     }
 
     private List<Buffer> getListNotLazy() {
@@ -141,6 +219,7 @@ public class BufferCollection extends Observable implements Observer {
     }
 
     private List<Buffer> getFilteredNotLazy(Set<Predicate<Buffer>> filters) {
+        long start = System.nanoTime();
         Collection<Buffer> cache = cachedList;
 
         for (Predicate<Buffer> filter : filters) {
@@ -148,23 +227,66 @@ public class BufferCollection extends Observable implements Observer {
         }
 
         List<Buffer> list = new ArrayList<>(cache);
-        Collections.sort(list,
-                orderAlphabetical ? BufferCollectionHelper.COMPARATOR_ALPHABETICAL : BufferCollectionHelper.COMPARATOR_ORDER);
+        Collections.sort(list, getComparator());
+        BackgroundMode.recordListWork(System.nanoTime() - start);
         return list;
     }
 
+    private static Comparator<Buffer> getComparator() {
+        return orderAlphabetical ? BufferCollectionHelper.COMPARATOR_ALPHABETICAL : BufferCollectionHelper.COMPARATOR_ORDER;
+    }
+
     public List<Buffer> getBufferList(Set<Predicate<Buffer>> filters) {
-        if (filters != this.filters) {
-            this.filters = filters;
-            filteredList = getFilteredNotLazy(filters);
+        List<Buffer> list = filteredLists.get(filters);
+        if (list == null) {
+            list = getFilteredNotLazy(filters);
+            filteredLists.put(filters, list);
+        }
+        return list;
+    }
+
+    /**
+     * Moves a buffer whose activity changed in or out of the cached lists that filter on activity,
+     * without filtering and sorting them again
+     */
+    private void updateActivity(Buffer buffer) {
+        if (!hasBuffer(buffer))
+            return;
+        for (Map.Entry<Set<Predicate<Buffer>>, List<Buffer>> entry : filteredLists.entrySet()) {
+            if (!BufferCollectionHelper.filtersOnActivity(entry.getKey()))
+                continue;
+            List<Buffer> list = entry.getValue();
+            boolean matches = true;
+            for (Predicate<Buffer> filter : entry.getKey()) {
+                if (!filter.apply(buffer)) {
+                    matches = false;
+                    break;
+                }
+            }
+            int index = list.indexOf(buffer);
+            if (matches && index < 0) {
+                int insert = Collections.binarySearch(list, buffer, getComparator());
+                list.add(insert < 0 ? -insert - 1 : insert, buffer);
+            } else if (!matches && index >= 0) {
+                list.remove(index);
+            }
         }
+    }
 
-        return filteredList;
+    /**
+     * Applies the buffer view to all buffers and sorts the list once, without notifying the observers
+     */
+    void applyViewSnapshot(BufferViewSnapshot snapshot) {
+        for (Buffer buffer : buffersByName.values()) {
+            buffer.applyViewSnapshot(snapshot);
+        }
+        updateBufferList();
+        this.setChanged();
     }
 
     public void updateBufferList() {
         cachedList = getListNotLazy();
-        filteredList = getFilteredNotLazy(filters);
+        filteredLists.clear();
     }
 
     public void removeBuffer(int bufferId) {
@@ -176,7 +298,7 @@ public class BufferCollection extends Observable implements Observer {
         buffer.deleteObservers();
         updateBufferList();
         this.setChanged();
-        notifyObservers();
+        notifyObservers(BufferListChange.networkBuffers(buffer.getInfo().networkId));
     }
 
     public void updateIgnore() {
@@ -34,6 +34,7 @@ public class BufferInfo {
         ChannelBuffer(0x02),
         QueryBuffer(0x04),
         GroupBuffer(0x08);
+        private static final Type[] VALUES = values();
         int value;
 
         private Type(int value) {
@@ -45,7 +46,7 @@ public class BufferInfo {
         }
 
         public static Type getType(int value) {
-            for (Type t : values()) {
+            for (Type t : VALUES) {
                 if (t.value == value)
                     return t;
             }
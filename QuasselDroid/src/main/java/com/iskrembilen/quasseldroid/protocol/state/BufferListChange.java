@@ -0,0 +1,97 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+/**
+ * Observer argument that tells the buffer list what part of it changed, passed up from the
+ * {@link BufferCollection} through the {@link Network} to the {@link NetworkCollection}.
+ * A notification without one means anything may have changed.
+ */
+public final class BufferListChange {
+    public enum Type {
+        /**
+         * Something shown in the row of one buffer changed, like its name or unread count
+         */
+        BUFFER,
+        /**
+         * A buffer went in or out of one of the activity filters
+         */
+        BUFFER_ACTIVITY,
+        /**
+         * The network header changed, or something all its rows show, like the away state of users
+         */
+        NETWORK,
+        /**
+         * Buffers of the network were added, removed, hidden or reordered
+         */
+        NETWORK_BUFFERS
+    }
+
+    public final Type type;
+    public final int networkId;
+    /**
+     * The buffer that changed, -1 for the network types
+     */
+    public final int bufferId;
+
+    private BufferListChange(Type type, int networkId, int bufferId) {
+        this.type = type;
+        this.networkId = networkId;
+        this.bufferId = bufferId;
+    }
+
+    public static BufferListChange buffer(Buffer buffer) {
+        return new BufferListChange(Type.BUFFER, buffer.getInfo().networkId, buffer.getInfo().id);
+    }
+
+    public static BufferListChange activity(Buffer buffer) {
+        return new BufferListChange(Type.BUFFER_ACTIVITY, buffer.getInfo().networkId, buffer.getInfo().id);
+    }
+
+    public static BufferListChange network(int networkId) {
+        return new BufferListChange(Type.NETWORK, networkId, -1);
+    }
+
+    public static BufferListChange networkBuffers(int networkId) {
+        return new BufferListChange(Type.NETWORK_BUFFERS, networkId, -1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BufferListChange)) return false;
+        BufferListChange that = (BufferListChange) o;
+        return type == that.type && networkId == that.networkId && bufferId == that.bufferId;
+    }
+
+    @Override
+    public int hashCode() {
+        return (type.hashCode() * 31 + networkId) * 31 + bufferId;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferListChange{" + type + ", network " + networkId + ", buffer " + bufferId + "}";
+    }
+}
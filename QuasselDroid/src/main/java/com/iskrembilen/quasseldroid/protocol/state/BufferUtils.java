@@ -26,6 +26,7 @@ package com.iskrembilen.quasseldroid.protocol.state;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
+import android.view.View;
 import android.widget.TextView;
 
 import com.iskrembilen.quasseldroid.R;
@@ -83,6 +84,25 @@ public class BufferUtils {
         }
     }
 
+    /**
+     * Shows the number of unread messages next to the buffer name, and the number of highlights if there are any
+     */
+    public static void setBufferCountView(Context context, Buffer entry, TextView countView) {
+        int messages = entry == null ? 0 : entry.getUnreadPlainCount();
+        int highlights = entry == null ? 0 : entry.getUnreadHighlightCount();
+        if (entry == null || entry.isDisplayed() || messages == 0 && highlights == 0) {
+            countView.setVisibility(View.GONE);
+        } else if (highlights > 0) {
+            countView.setVisibility(View.VISIBLE);
+            countView.setText(context.getString(R.string.buffer_unread_count_highlights, messages, highlights));
+            countView.setTextColor(ThemeUtil.Color.bufferHighlight);
+        } else {
+            countView.setVisibility(View.VISIBLE);
+            countView.setText(context.getString(R.string.buffer_unread_count, messages));
+            countView.setTextColor(ThemeUtil.Color.bufferUnread);
+        }
+    }
+
     public static int getBufferIconColor(Context context, Buffer entry) {
         if (entry == null) return ThemeUtil.Color.bufferStateParted;
 
@@ -0,0 +1,77 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+/**
+ * Ordering and hidden state of all buffers in a buffer view, as sent by the core in the
+ * BufferViewConfig InitData. Applied in one go, so the buffer lists are only sorted once.
+ */
+public class BufferViewSnapshot {
+    private final SparseIntArray order = new SparseIntArray();
+    private final SparseBooleanArray temporarilyHidden = new SparseBooleanArray();
+    private final SparseBooleanArray permanentlyHidden = new SparseBooleanArray();
+    private final boolean orderAlphabetical;
+
+    public BufferViewSnapshot(boolean orderAlphabetical) {
+        this.orderAlphabetical = orderAlphabetical;
+    }
+
+    public void setOrder(int bufferId, int position) {
+        order.put(bufferId, position);
+    }
+
+    public void setTemporarilyHidden(int bufferId) {
+        temporarilyHidden.put(bufferId, true);
+    }
+
+    public void setPermanentlyHidden(int bufferId) {
+        permanentlyHidden.put(bufferId, true);
+    }
+
+    /**
+     * @return the position of the buffer, or Integer.MAX_VALUE if the view doesn't contain it
+     */
+    public int getOrder(int bufferId) {
+        return order.get(bufferId, Integer.MAX_VALUE);
+    }
+
+    public boolean isTemporarilyHidden(int bufferId) {
+        return temporarilyHidden.get(bufferId, false);
+    }
+
+    public boolean isPermanentlyHidden(int bufferId) {
+        return permanentlyHidden.get(bufferId, false);
+    }
+
+    public boolean isOrderAlphabetical() {
+        return orderAlphabetical;
+    }
+
+    public int size() {
+        return order.size();
+    }
+}
@@ -47,6 +47,7 @@ public class Client implements Observer {
     private IgnoreListManager ignoreListManager = new IgnoreListManager();
     private Activity activity;
     public ConnectionChangedEvent.Status status;
+    private volatile long coreId = -1;
 
     private Client() {
         ignoreListManager.addObserver(this);
@@ -79,6 +80,17 @@ public class Client implements Observer {
         return ignoreListManager;
     }
 
+    /**
+     * @return the row id of the core that is connected or being connected to, -1 if none
+     */
+    public long getCoreId() {
+        return coreId;
+    }
+
+    public void setCoreId(long coreId) {
+        this.coreId = coreId;
+    }
+
     /**
      * This method is called if the specified {@code Observable} object's
      * {@code notifyObservers} method is called (because the {@code Observable}
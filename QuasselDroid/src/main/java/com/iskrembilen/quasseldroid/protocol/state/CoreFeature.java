@@ -0,0 +1,116 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional features a core or client can support, negotiated in ClientInit/ClientInitAck.
+ * Features known to legacy cores have a bit in the "Features"/"CoreFeatures" bitmask, newer ones
+ * are only sent by name in the "FeatureList".
+ */
+public enum CoreFeature {
+    SynchronizedMarkerLine (0x0001),
+    SaslAuthentication     (0x0002),
+    SaslExternal           (0x0004),
+    HideInactiveNetworks   (0x0008),
+    PasswordChange         (0x0010),
+    CapNegotiation         (0x0020),
+    VerifyServerSSL        (0x0040),
+    CustomRateLimits       (0x0080),
+    DccFileTransfer        (0x0100),
+    AwayFormatTimestamp    (0x0200),
+    Authenticators         (0x0400),
+    BufferActivitySync     (0x0800),
+    CoreSideHighlights     (0x1000),
+    SenderPrefixes         (0x2000),
+    RemoteDisconnect       (0x4000),
+    ExtendedFeatures       (0x8000),
+    LongTime               (0),
+    RichMessages           (0),
+    BacklogFilterType      (0),
+    EcdsaCertfpKeys        (0),
+    LongMessageId          (0),
+    SyncedCoreInfo         (0);
+
+    /**
+     * The features this client can handle. Features that change the message format (LongMessageId,
+     * LongTime, RichMessages, SenderPrefixes) must not be added before the decoders understand them.
+     */
+    public static final EnumSet<CoreFeature> CLIENT_FEATURES = EnumSet.of(SynchronizedMarkerLine);
+
+    private static final Map<String, CoreFeature> byName = new HashMap<>();
+    static {
+        for (CoreFeature feature : CoreFeature.values()) {
+            byName.put(feature.name(), feature);
+        }
+    }
+
+    /**
+     * Bit in the legacy feature mask, 0 for features only known by name
+     */
+    public final int legacyBit;
+
+    CoreFeature(int legacyBit) {
+        this.legacyBit = legacyBit;
+    }
+
+    public static CoreFeature getForName(String name) {
+        return byName.get(name);
+    }
+
+    public static EnumSet<CoreFeature> fromLegacyFeatures(long features) {
+        EnumSet<CoreFeature> set = EnumSet.noneOf(CoreFeature.class);
+        for (CoreFeature feature : CoreFeature.values()) {
+            if (feature.legacyBit != 0 && (features & feature.legacyBit) != 0) {
+                set.add(feature);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Adds the features from a FeatureList, names we don't know are ignored
+     */
+    public static void addFromNames(EnumSet<CoreFeature> set, List<String> names) {
+        for (String name : names) {
+            CoreFeature feature = getForName(name);
+            if (feature != null) {
+                set.add(feature);
+            }
+        }
+    }
+
+    public static long toLegacyFeatures(Collection<CoreFeature> features) {
+        long bits = 0;
+        for (CoreFeature feature : features) {
+            bits |= feature.legacyBit;
+        }
+        return bits;
+    }
+}
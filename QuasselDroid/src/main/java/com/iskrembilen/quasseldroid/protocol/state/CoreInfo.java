@@ -23,6 +23,10 @@
 
 package com.iskrembilen.quasseldroid.protocol.state;
 
+import com.iskrembilen.quasseldroid.protocol.signalproxy.SignalProxyCodec;
+
+import java.util.EnumSet;
+
 public class CoreInfo {
 
     private String coreInfo;
@@ -32,6 +36,8 @@ public class CoreInfo {
     private String msgType;
     private int protocolVersion;
     private boolean supportsCompression;
+    private int protocol;
+    private EnumSet<CoreFeature> features = EnumSet.noneOf(CoreFeature.class);
 
     public String getCoreInfo() {
         return coreInfo;
@@ -89,5 +95,33 @@ public class CoreInfo {
         this.supportsCompression = supportsCompression;
     }
 
+    /**
+     * @return the wire protocol negotiated in the probe, see {@link SignalProxyCodec}
+     */
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    public boolean isDataStream() {
+        return protocol == SignalProxyCodec.PROTOCOL_DATASTREAM;
+    }
+
+    /**
+     * @return the features both the core and this client support
+     */
+    public EnumSet<CoreFeature> getFeatures() {
+        return features;
+    }
 
+    public void setFeatures(EnumSet<CoreFeature> features) {
+        this.features = features;
+    }
+
+    public boolean hasFeature(CoreFeature feature) {
+        return features.contains(feature);
+    }
 }
@@ -31,6 +31,7 @@ import com.iskrembilen.quasseldroid.util.MessageFormattingHelper;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 
 public class IrcMessage implements Comparable<IrcMessage> {
     private boolean filtered = false;
@@ -60,6 +61,16 @@ public class IrcMessage implements Comparable<IrcMessage> {
         Invite(0x20000);
         int value;
         static String[] filterList = {Type.Join.name(), Type.Part.name(), Type.Quit.name(), Type.Nick.name(), Type.Mode.name(), Type.Topic.name(), Type.DayChange.name()};
+        /**
+         * Every type is a single bit, so the bit position indexes directly into this table
+         */
+        private static final Type[] typesByBit = new Type[Integer.SIZE];
+
+        static {
+            for (Type type : values()) {
+                typesByBit[Integer.numberOfTrailingZeros(type.value)] = type;
+            }
+        }
 
         Type(int value) {
             this.value = value;
@@ -69,12 +80,36 @@ public class IrcMessage implements Comparable<IrcMessage> {
             return value;
         }
 
-        public static Type getForValue(int value) { //TODO: optimize hashmap
-            for (Type type : Type.values()) {
-                if (type.value == value)
-                    return type;
+        public static Type getForValue(int value) {
+            if (Integer.bitCount(value) != 1)
+                return Plain;
+            Type type = typesByBit[Integer.numberOfTrailingZeros(value)];
+            return (type != null) ? type : Plain;
+        }
+
+        /**
+         * @return the bitmask with the bits of all given types set
+         */
+        public static int toMask(Iterable<Type> types) {
+            int mask = 0;
+            for (Type type : types) {
+                mask |= type.value;
             }
-            return Plain;
+            return mask;
+        }
+
+        /**
+         * @return the set of all known types whose bit is set in mask
+         */
+        public static EnumSet<Type> fromMask(int mask) {
+            EnumSet<Type> types = EnumSet.noneOf(Type.class);
+            while (mask != 0) {
+                int bit = Integer.numberOfTrailingZeros(mask);
+                if (typesByBit[bit] != null)
+                    types.add(typesByBit[bit]);
+                mask &= mask - 1;
+            }
+            return types;
         }
 
         public static String[] getFilterList() {
@@ -105,6 +140,10 @@ public class IrcMessage implements Comparable<IrcMessage> {
     public BufferInfo bufferInfo;
     public Spannable content;
     private String sender;
+    private String nick;
+    private String user;
+    private String host;
+    private String hostmask;
     public Type type;
     public byte flags;
 
@@ -126,24 +165,54 @@ public class IrcMessage implements Comparable<IrcMessage> {
         return format.format(timestamp);
     }
 
+    /**
+     * Sets the sender and splits it into nick, user, host and hostmask once, so the
+     * getters don't have to re-parse it for every row that gets bound.
+     *
+     * @param sender the sender in the form nick!user@host, or a bare server or nick name
+     */
     public void setSender(String sender) {
         this.sender = sender;
+
+        int userStart = sender.indexOf('!');
+        if (userStart == -1) {
+            this.nick = sender.intern();
+            this.user = "";
+            this.host = "";
+            this.hostmask = "";
+        } else {
+            this.nick = sender.substring(0, userStart).intern();
+            int hostStart = sender.indexOf('@', userStart + 1);
+            if (hostStart == -1) {
+                this.user = sender.substring(userStart + 1).intern();
+                this.host = "";
+                this.hostmask = this.user;
+            } else {
+                this.user = sender.substring(userStart + 1, hostStart).intern();
+                this.host = sender.substring(hostStart + 1).intern();
+                this.hostmask = sender.substring(userStart + 1).intern();
+            }
+        }
     }
 
     public int getSenderColor() {
-        return MessageFormattingHelper.getSenderColor(getNick());
+        return MessageFormattingHelper.getSenderColor(nick);
     }
 
     public String getNick() {
-        return getSender().split("!")[0];
+        return nick;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getHost() {
+        return host;
     }
 
     public String getHostmask() {
-        try {
-            return getSender().split("!")[1];
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            return "";
-        }
+        return hostmask;
     }
 
     public void setFlag(Flag flag) {
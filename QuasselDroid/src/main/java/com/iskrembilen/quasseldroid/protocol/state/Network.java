@@ -24,6 +24,8 @@
 package com.iskrembilen.quasseldroid.protocol.state;
 
 import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Pair;
 
 import com.iskrembilen.quasseldroid.Quasseldroid;
 import com.iskrembilen.quasseldroid.R;
@@ -31,17 +33,22 @@ import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
 import com.iskrembilen.quasseldroid.protocol.state.serializers.Syncable;
 import com.iskrembilen.quasseldroid.protocol.state.serializers.SyncableObject;
 import de.kuschku.util.BetterSparseArray;
+import com.iskrembilen.quasseldroid.util.BackgroundMode;
 import com.iskrembilen.quasseldroid.util.BufferCollectionHelper;
 import com.iskrembilen.quasseldroid.util.Helper;
+import com.iskrembilen.quasseldroid.util.StateThread;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Set;
 
 public class Network extends SyncableObject implements Observer, Comparable<Network> {
+    private static final String TAG = Network.class.getSimpleName();
 
     public enum ConnectionState {
         Disconnected(0),
@@ -81,6 +88,24 @@ public class Network extends SyncableObject implements Observer, Comparable<Netw
 
     private boolean open;
 
+    /**
+     * Passes on the changes of the status buffer and the users that were held back without
+     * focus, once, see {@link BackgroundMode}
+     */
+    private final Runnable notifyDeferred = new Runnable() {
+        @Override
+        public void run() {
+            setChanged();
+            notifyObservers(BufferListChange.network(networkId));
+        }
+    };
+    private final Runnable replayDeferred = new Runnable() {
+        @Override
+        public void run() {
+            StateThread.post(notifyDeferred);
+        }
+    };
+
     @Syncable(type=QVariantType.String)
     private String          networkName;
 
@@ -214,6 +239,94 @@ public class Network extends SyncableObject implements Observer, Comparable<Netw
     }
 
 
+    /**
+     * Updates the user list from a new sync of the network, keeping the user objects we already
+     * have so their observers and the channel user lists stay valid. Users that are gone are dropped.
+     *
+     * @return the users of the network after the merge, by nick
+     */
+    public Map<String, IrcUser> mergeUserList(@NonNull List<IrcUser> incoming) {
+        Map<String, IrcUser> merged = new HashMap<String, IrcUser>();
+        for (IrcUser user : incoming) {
+            IrcUser existing = nickUserMap.get(user.nick);
+            if (existing != null) {
+                existing.fromOther(user);
+                existing.name = user.name;
+                merged.put(existing.nick, existing);
+            } else {
+                user.addObserver(this);
+                user.register();
+                merged.put(user.nick, user);
+            }
+        }
+        for (IrcUser user : userList) {
+            if (merged.get(user.nick) != user) {
+                user.deleteObserver(this);
+                user.unregister();
+            }
+        }
+        userList = new ArrayList<IrcUser>(merged.values());
+        nickUserMap.clear();
+        nickUserMap.putAll(merged);
+
+        updateTopic();
+        return merged;
+    }
+
+    /**
+     * Brings a network kept from a dropped connection up to date with the state the core sent
+     * for it. The users are merged, the channels we are still in get their users and topic back,
+     * and the ones we left in the meantime are emptied and marked inactive.
+     */
+    public void resume(NetworkResume state) {
+        setMyNick(state.myNick);
+        setNetworkName(state.networkName);
+        setLatency(state.latency);
+        setCurrentServer(state.currentServer);
+        setIdentity(state.identityId);
+        if (state.connected) setConnected(true);
+        else setConnectionState(ConnectionState.Disconnected);
+        if (statusBuffer != null)
+            statusBuffer.setActive(state.connected);
+
+        Map<String, IrcUser> users = mergeUserList(state.users);
+
+        Set<Buffer> joinedBuffers = new HashSet<Buffer>();
+        // A copy, changing the activity of a buffer can move it in the cached lists
+        List<Buffer> bufferList = new ArrayList<Buffer>(buffers.getBufferList(BufferCollectionHelper.FILTER_SET_ALL));
+        for (NetworkResume.Channel channel : state.channels) {
+            Buffer channelBuffer = null;
+            for (Buffer buffer : bufferList) {
+                if (buffer.getInfo().name.equalsIgnoreCase(channel.name)) {
+                    channelBuffer = buffer;
+                    break;
+                }
+            }
+            if (channelBuffer == null) {
+                Log.e(TAG, "A channel in a network has no corresponding buffer object " + channel.name);
+                continue;
+            }
+            channelBuffer.setTopic(channel.topic);
+            channelBuffer.setActive(true);
+            List<Pair<IrcUser, String>> channelUsers = new ArrayList<Pair<IrcUser, String>>(channel.userModes.size());
+            for (Map.Entry<String, String> nick : channel.userModes.entrySet()) {
+                IrcUser user = users.get(nick.getKey());
+                if (user != null)
+                    channelUsers.add(new Pair<IrcUser, String>(user, nick.getValue()));
+            }
+            channelBuffer.getUsers().setUsers(channelUsers);
+            joinedBuffers.add(channelBuffer);
+        }
+
+        // Channels we were in before the connection dropped but have left since
+        for (Buffer buffer : bufferList) {
+            if (buffer.getInfo().type == BufferInfo.Type.ChannelBuffer && !joinedBuffers.contains(buffer)) {
+                buffer.getUsers().setUsers(new ArrayList<Pair<IrcUser, String>>());
+                buffer.setActive(false);
+            }
+        }
+    }
+
     public List<IrcUser> getUserList() {
         return userList;
     }
@@ -221,6 +334,15 @@ public class Network extends SyncableObject implements Observer, Comparable<Netw
 
     @Override
     public void update(Observable observable, Object data) {
+        if (data instanceof BufferListChange) {
+            setChanged();
+            notifyObservers(data);
+            return;
+        }
+        if (observable == statusBuffer && data != null && (Integer) data == R.id.BUFFERUPDATE_TOPICCHANGED) {
+            // Latency and server changes end up here, the buffer list does not show them
+            return;
+        }
         if (data != null && ((Integer) data == R.id.USER_CHANGEDNICK)) {
             IrcUser changedUser = (IrcUser) observable;
             for (Map.Entry<String, IrcUser> entry : nickUserMap.entrySet()) {
@@ -231,8 +353,14 @@ public class Network extends SyncableObject implements Observer, Comparable<Netw
                 }
             }
         }
+        if (BackgroundMode.isActive() && BackgroundMode.defer(replayDeferred)) {
+            BackgroundMode.recordListWorkSkipped();
+            return;
+        }
+        long start = System.nanoTime();
         setChanged();
-        notifyObservers();
+        notifyObservers(BufferListChange.network(networkId));
+        BackgroundMode.recordListWork(System.nanoTime() - start);
     }
 
 
@@ -352,6 +480,13 @@ public class Network extends SyncableObject implements Observer, Comparable<Netw
     }
 
 
+    void applyViewSnapshot(BufferViewSnapshot snapshot) {
+        if (statusBuffer != null)
+            statusBuffer.applyViewSnapshot(snapshot);
+        buffers.applyViewSnapshot(snapshot);
+        this.setChanged();
+    }
+
     public void removeBuffer(int bufferId) {
         buffers.removeBuffer(bufferId);
 
@@ -77,6 +77,18 @@ public class NetworkCollection extends Observable implements Observer {
         throw new RuntimeException("Buffer + " + buffer.getInfo().name + " has no valid network id " + id);
     }
 
+    /**
+     * Applies the order and hidden state of every buffer at once, with a single notification afterwards
+     */
+    public void applyBufferViewSnapshot(BufferViewSnapshot snapshot) {
+        BufferCollection.orderAlphabetical = snapshot.isOrderAlphabetical();
+        for (Network network : networkList) {
+            network.applyViewSnapshot(snapshot);
+        }
+        setChanged();
+        notifyObservers();
+    }
+
     public List<Network> getNetworkList() {
         return networkList;
     }
@@ -87,11 +99,18 @@ public class NetworkCollection extends Observable implements Observer {
 
     @Override
     public void update(Observable observable, Object data) {
-        if (observable == Client.getInstance().getIgnoreListManager())
+        if (observable == Client.getInstance().getIgnoreListManager()) {
             updateIgnore();
+            setChanged();
+            notifyObservers();
+            return;
+        }
 
         setChanged();
-        notifyObservers();
+        if (data instanceof BufferListChange)
+            notifyObservers(data);
+        else
+            notifyObservers(BufferListChange.network(((Network) observable).getId()));
     }
 
     public void removeNetwork(int networkId) {
@@ -0,0 +1,64 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a resumed network as sent by the core in its Network InitData. Parsed on the read
+ * thread and applied to the live network on the state thread in one go, see
+ * {@link Network#resume(NetworkResume)}.
+ */
+public class NetworkResume {
+    public final int networkId;
+    public String myNick;
+    public String networkName;
+    public int latency;
+    public String currentServer;
+    public int identityId;
+    public boolean connected;
+    public final List<IrcUser> users = new ArrayList<IrcUser>();
+    public final List<Channel> channels = new ArrayList<Channel>();
+
+    public NetworkResume(int networkId) {
+        this.networkId = networkId;
+    }
+
+    public static class Channel {
+        public final String name;
+        public final String topic;
+        /**
+         * Modes of the users in the channel by nick
+         */
+        public final Map<String, String> userModes = new HashMap<String, String>();
+
+        public Channel(String name, String topic) {
+            this.name = name;
+            this.topic = topic;
+        }
+    }
+}
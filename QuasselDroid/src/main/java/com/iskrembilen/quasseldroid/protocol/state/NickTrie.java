@@ -0,0 +1,185 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prefix tree of the nicks in a channel, case folded, so completing a nick only walks the typed
+ * prefix and the matching users instead of every user. Updated on the state thread and read
+ * from the UI thread, so all methods are synchronized.
+ */
+public class NickTrie {
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class Node {
+        /**
+         * Sorted, so the users come out of a walk in alphabetical order
+         */
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        int childCount;
+        /**
+         * Users whose folded nick ends at this node, usually one
+         */
+        List<IrcUser> users;
+
+        Node child(char key) {
+            int i = Arrays.binarySearch(keys, 0, childCount, key);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(char key) {
+            int i = Arrays.binarySearch(keys, 0, childCount, key);
+            if (i >= 0)
+                return children[i];
+            i = -i - 1;
+            if (childCount == keys.length) {
+                int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            Node child = new Node();
+            keys[i] = key;
+            children[i] = child;
+            childCount++;
+            return child;
+        }
+
+        void removeChild(char key) {
+            int i = Arrays.binarySearch(keys, 0, childCount, key);
+            if (i < 0)
+                return;
+            System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+            System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+
+        boolean isEmpty() {
+            return childCount == 0 && (users == null || users.isEmpty());
+        }
+    }
+
+    private final Node root = new Node();
+    /**
+     * The key every user is stored under, to find it again after the nick changed
+     */
+    private final Map<IrcUser, String> keys = new HashMap<>();
+
+    static String fold(String nick) {
+        return nick.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Adds a user, or moves it if its nick changed since it was added
+     */
+    public synchronized void add(IrcUser user) {
+        if (user.nick == null)
+            return;
+        String key = fold(user.nick);
+        String oldKey = keys.put(user, key);
+        if (key.equals(oldKey))
+            return;
+        if (oldKey != null)
+            remove(root, oldKey, 0, user);
+
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.addChild(key.charAt(i));
+        }
+        if (node.users == null)
+            node.users = new ArrayList<>(1);
+        node.users.add(user);
+    }
+
+    public synchronized void remove(IrcUser user) {
+        String key = keys.remove(user);
+        if (key != null)
+            remove(root, key, 0, user);
+    }
+
+    /**
+     * Moves the user if it is in the tree and its nick changed
+     */
+    public synchronized void update(IrcUser user) {
+        if (keys.containsKey(user))
+            add(user);
+    }
+
+    public synchronized boolean contains(IrcUser user) {
+        return keys.containsKey(user);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return whether the node is empty afterwards and can be dropped
+     */
+    private static boolean remove(Node node, String key, int depth, IrcUser user) {
+        if (depth == key.length()) {
+            if (node.users != null)
+                node.users.remove(user);
+        } else {
+            char c = key.charAt(depth);
+            Node child = node.child(c);
+            if (child != null && remove(child, key, depth + 1, user))
+                node.removeChild(c);
+        }
+        return node.isEmpty();
+    }
+
+    /**
+     * @return the users whose nick starts with the prefix, ignoring case, in alphabetical order
+     */
+    public synchronized List<IrcUser> find(String prefix) {
+        String key = fold(prefix);
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        List<IrcUser> result = new ArrayList<>();
+        if (node != null)
+            collect(node, result);
+        return result;
+    }
+
+    private static void collect(Node node, List<IrcUser> result) {
+        if (node.users != null)
+            result.addAll(node.users);
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], result);
+        }
+    }
+}
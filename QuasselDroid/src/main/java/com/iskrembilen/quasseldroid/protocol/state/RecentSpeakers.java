@@ -0,0 +1,110 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who spoke last in a buffer, used to offer the most likely nick first when completing. Only
+ * the speakers of the latest messages are remembered.
+ */
+public class RecentSpeakers {
+    /**
+     * How many speakers are remembered, the oldest are forgotten in steps once there are twice as many
+     */
+    private static final int MAX_SPEAKERS = 50;
+
+    /**
+     * Folded nick to the id of the latest message from that nick
+     */
+    private final Map<String, Integer> lastMessage = new HashMap<>();
+
+    /**
+     * Records a message, in any order, older messages only count if they are newer than what is known
+     */
+    public synchronized void add(IrcMessage message) {
+        if (message.type != IrcMessage.Type.Plain && message.type != IrcMessage.Type.Action && message.type != IrcMessage.Type.Notice)
+            return;
+        String nick = message.getNick();
+        if (nick == null)
+            return;
+        String key = NickTrie.fold(nick);
+        Integer known = lastMessage.get(key);
+        if (known != null && known >= message.messageId)
+            return;
+        lastMessage.put(key, message.messageId);
+        if (lastMessage.size() > 2 * MAX_SPEAKERS)
+            forgetOldest();
+    }
+
+    private void forgetOldest() {
+        int[] ids = new int[lastMessage.size()];
+        int i = 0;
+        for (int id : lastMessage.values()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        int oldestKept = ids[ids.length - MAX_SPEAKERS];
+        for (Iterator<Integer> it = lastMessage.values().iterator(); it.hasNext(); ) {
+            if (it.next() < oldestKept)
+                it.remove();
+        }
+    }
+
+    /**
+     * Sorts users by how recently they spoke, users that didn't speak lately keep their order after them
+     */
+    public void rank(List<IrcUser> users) {
+        final Map<IrcUser, Integer> order = new HashMap<>();
+        synchronized (this) {
+            if (lastMessage.isEmpty())
+                return;
+            for (IrcUser user : users) {
+                Integer id = lastMessage.get(NickTrie.fold(user.nick));
+                if (id != null)
+                    order.put(user, id);
+            }
+        }
+        if (order.isEmpty())
+            return;
+        Collections.sort(users, new Comparator<IrcUser>() {
+            @Override
+            public int compare(IrcUser lhs, IrcUser rhs) {
+                Integer l = order.get(lhs);
+                Integer r = order.get(rhs);
+                if (l == null)
+                    return r == null ? 0 : 1;
+                if (r == null)
+                    return -1;
+                return r.compareTo(l);
+            }
+        });
+    }
+}
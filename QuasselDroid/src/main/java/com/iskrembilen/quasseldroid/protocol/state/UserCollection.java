@@ -27,117 +27,215 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Pair;
 
-import com.iskrembilen.quasseldroid.R;
-
 import java.util.*;
 
+/**
+ * The users of a channel and their modes. Every user is listed once, under the highest ranking
+ * mode they have, in lists that stay sorted by nick. Changes are made in place and the observers
+ * get them as a list of {@link UserListChange}s, one notification per operation.
+ */
 public class UserCollection extends Observable implements Observer {
 
     private static final String TAG = UserCollection.class.getSimpleName();
-    private Map<IrcMode, ArrayList<IrcUser>> users = new HashMap<>();
+    /**
+     * The users that have each mode
+     */
+    private Map<IrcMode, Set<IrcUser>> users = new HashMap<>();
+    /**
+     * The users by the highest ranking mode they have, sorted by nick
+     */
     private Map<IrcMode, ArrayList<IrcUser>> uniqueUsers = new HashMap<>();
+    /**
+     * Every user in the channel by nick, for nick completion
+     */
+    private final NickTrie nickTrie = new NickTrie();
+    /**
+     * Changes made by the current operation, handed to the observers when it is done
+     */
+    private final List<UserListChange> changes = new ArrayList<>();
 
     public UserCollection() {
         for (IrcMode mode : IrcMode.values()) {
-            users.put(mode, new ArrayList<IrcUser>());
+            users.put(mode, new HashSet<IrcUser>());
             uniqueUsers.put(mode, new ArrayList<IrcUser>());
         }
     }
 
     public void addUser(@NonNull IrcUser user, @NonNull String modes) {
-        for (IrcMode mode : IrcMode.values()) {
-            if (modes.contains(mode.shortModeName)) {
-                addUserToModeList(mode, user);
-            }
-        }
-        updateUniqueUsersSortedByMode();
-        user.addObserver(this);
-        update(null, null);
+        addModes(user, modes);
+        publishChanges();
     }
 
     public void addUsers(List<Pair<IrcUser, String>> usersWithModes) {
         for (Pair<IrcUser, String> user : usersWithModes) {
+            addModes(user.first, user.second);
+        }
+        publishChanges();
+    }
+
+    /**
+     * Brings the collection to exactly the given users and modes, only touching the entries that
+     * differ. Used when a channel is synced again after a reconnect.
+     */
+    public void setUsers(List<Pair<IrcUser, String>> usersWithModes) {
+        Map<IrcUser, String> wanted = new LinkedHashMap<>();
+        for (Pair<IrcUser, String> user : usersWithModes) {
+            if (user.first == null) continue;
+            wanted.put(user.first, user.second);
+        }
+
+        for (IrcUser user : getUniqueUsers()) {
+            if (!wanted.containsKey(user)) {
+                removeModes(user);
+            }
+        }
+        for (Map.Entry<IrcUser, String> user : wanted.entrySet()) {
+            IrcMode from = getTopMode(user.getKey());
             for (IrcMode mode : IrcMode.values()) {
-                if (user.second.contains(mode.shortModeName)) {
-                    addUserToModeList(mode, user.first);
+                if (user.getValue().contains(mode.shortModeName)) {
+                    addUserToModeList(mode, user.getKey());
+                } else {
+                    users.get(mode).remove(user.getKey());
                 }
             }
-            user.first.addObserver(this);
+            relocate(user.getKey(), from);
+        }
+        publishChanges();
+    }
+
+    private void addModes(IrcUser user, String modes) {
+        if (user == null) {
+            Log.e(TAG, "NULL user added with modes " + modes);
+            return;
+        }
+        IrcMode from = getTopMode(user);
+        for (IrcMode mode : IrcMode.values()) {
+            if (modes.contains(mode.shortModeName)) {
+                addUserToModeList(mode, user);
+            }
         }
-        updateUniqueUsersSortedByMode();
-        update(null, null);
+        relocate(user, from);
+    }
+
+    private void removeModes(IrcUser user) {
+        IrcMode from = getTopMode(user);
+        for (IrcMode mode : IrcMode.values()) {
+            users.get(mode).remove(user);
+        }
+        relocate(user, from);
     }
 
     private boolean addUserToModeList(IrcMode mode, IrcUser user) {
         if (user==null) {
             Log.e(TAG, "NULL user added with mode " + mode.name());
             return false;
-        } else if (users.get(mode).contains(user)) {
-            return false;
+        }
+        return users.get(mode).add(user);
+    }
+
+    /**
+     * Moves the user to the list of the highest ranking mode they have now, and records the change
+     *
+     * @param from the highest ranking mode of the user before the change, null if they were not in the channel
+     */
+    private void relocate(IrcUser user, IrcMode from) {
+        IrcMode to = getTopMode(user);
+        if (from == to)
+            return;
+        int fromIndex = from == null ? -1 : removeUnique(from, user);
+        int toIndex = to == null ? -1 : insertUnique(to, user);
+        if (from == null) {
+            nickTrie.add(user);
+            user.addObserver(this);
+            changes.add(UserListChange.added(user, to, toIndex));
+        } else if (to == null) {
+            nickTrie.remove(user);
+            user.deleteObserver(this);
+            changes.add(UserListChange.removed(user, from, fromIndex));
         } else {
-            users.get(mode).add(user);
-            Collections.sort(users.get(mode));
-            this.setChanged();
-            return true;
+            changes.add(UserListChange.moved(user, from, fromIndex, to, toIndex));
         }
     }
 
-    public void removeUser(IrcUser user) {
-        for (IrcMode mode : IrcMode.values()) {
-            removeUserFromModeList(mode, user);
+    private int insertUnique(IrcMode mode, IrcUser user) {
+        ArrayList<IrcUser> list = uniqueUsers.get(mode);
+        int index = Collections.binarySearch(list, user);
+        if (index < 0)
+            index = -index - 1;
+        list.add(index, user);
+        return index;
+    }
+
+    private int removeUnique(IrcMode mode, IrcUser user) {
+        ArrayList<IrcUser> list = uniqueUsers.get(mode);
+        int index = indexOfUnique(list, user);
+        if (index >= 0)
+            list.remove(index);
+        return index;
+    }
+
+    /**
+     * Finds the user with a binary search, or by walking the list if their nick changed since they were sorted in
+     */
+    private static int indexOfUnique(List<IrcUser> list, IrcUser user) {
+        int index = Collections.binarySearch(list, user);
+        if (index >= 0 && list.get(index) == user)
+            return index;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == user)
+                return i;
         }
-        notifyObservers(R.id.BUFFERUPDATE_USERSCHANGED);
+        return -1;
+    }
+
+    private void publishChanges() {
+        if (changes.isEmpty())
+            return;
+        List<UserListChange> published = Collections.unmodifiableList(new ArrayList<>(changes));
+        changes.clear();
+        this.setChanged();
+        notifyObservers(published);
+    }
+
+    public void removeUser(IrcUser user) {
+        removeModes(user);
+        publishChanges();
     }
 
     public void removeUsers(List<IrcUser> users) {
         for (IrcUser user : users) {
-            for (IrcMode mode : IrcMode.values()) {
-                removeUserFromModeList(mode, user);
-            }
+            removeModes(user);
         }
-        notifyObservers(R.id.BUFFERUPDATE_USERSCHANGED);
+        publishChanges();
     }
 
     public void removeUserByNick(String nick) {
-        for (IrcMode mode : IrcMode.values()) {
-            for (IrcUser user : users.get(mode)) {
-                if (user.nick.equals(nick)) {
-                    if (removeUserFromModeList(mode, user)) {
-                        break;
-                    }
-                }
-            }
-        }
-        notifyObservers(R.id.BUFFERUPDATE_USERSCHANGED);
+        IrcUser user = getUserByNick(nick);
+        if (user != null)
+            removeModes(user);
+        publishChanges();
     }
 
     public void removeUsersByNick(List<String> nicks) {
         for (String nick : nicks) {
-            for (IrcMode mode : IrcMode.values()) {
-                for (IrcUser user : users.get(mode)) {
-                    if (user.nick.equals(nick)) {
-                        if (removeUserFromModeList(mode, user)) {
-                            break;
-                        }
-                    }
-                }
-            }
+            IrcUser user = getUserByNick(nick);
+            if (user != null)
+                removeModes(user);
         }
-        notifyObservers(R.id.BUFFERUPDATE_USERSCHANGED);
+        publishChanges();
 
     }
 
-    private boolean removeUserFromModeList(IrcMode mode, IrcUser user) {
-        if (users.get(mode).remove(user)) {
-            uniqueUsers.get(mode).remove(user);
-            this.setChanged();
-            return true;
-        } else {
-            return false;
+    private IrcUser getUserByNick(String nick) {
+        for (IrcUser user : nickTrie.find(nick)) {
+            if (user.nick.equals(nick))
+                return user;
         }
+        return null;
     }
 
     public void addModeToUser(IrcUser user, String mode) {
+        IrcMode from = getTopMode(user);
         for (IrcMode ircMode : IrcMode.values()) {
             if (mode.equals(ircMode.shortModeName)) {
                 if (addUserToModeList(ircMode, user)) {
@@ -145,8 +243,8 @@ public class UserCollection extends Observable implements Observer {
                 }
             }
         }
-        updateUniqueUsersSortedByMode();
-        update(null,null);
+        relocate(user, from);
+        publishChanges();
     }
 
     public void removeModeFromUser(IrcUser user, String mode) {
@@ -154,96 +252,74 @@ public class UserCollection extends Observable implements Observer {
             //Log.e(TAG,"Cannot remove empty mode from user "+user.myNick+".");
             return;
         }
+        IrcMode from = getTopMode(user);
         for (IrcMode ircMode : IrcMode.values()) {
             if (mode.equals(ircMode.shortModeName)) {
-                if (removeUserFromModeList(ircMode, user)) {
+                if (users.get(ircMode).remove(user)) {
                     break;
                 }
             }
         }
-        updateUniqueUsersSortedByMode();
-        update(null,null);
+        relocate(user, from);
+        publishChanges();
     }
 
-    public ArrayList<IrcUser> getUniqueUsers() {
-        /*
-        * Because IrcMode.values() starts at the first declaration and moves down,
-        * we can be sure that users get added to the list with the highest ranking mode first.
-        */
-        ArrayList<IrcUser> uniqueUsers = new ArrayList<IrcUser>();
+    /**
+     * @return the highest ranking mode of the user, or null if they are not in the channel
+     */
+    private IrcMode getTopMode(IrcUser user) {
         for (IrcMode mode : IrcMode.values()) {
-            for (IrcUser user : users.get(mode)) {
-                if (!uniqueUsers.contains(user)) {
-                    uniqueUsers.add(user);
-                }
-            }
+            if (users.get(mode).contains(user))
+                return mode;
         }
-        return uniqueUsers;
+        return null;
     }
 
-    public ArrayList<IrcUser> getUniqueUsersWithMode(IrcMode mode) {
-        return uniqueUsers.get(mode);
+    /**
+     * Finds the users whose nick starts with the prefix, ignoring case, in alphabetical order.
+     * Safe to call from any thread.
+     */
+    public List<IrcUser> findUsersByNickPrefix(String prefix) {
+        return nickTrie.find(prefix);
     }
 
-    private void updateUniqueUsersSortedByMode() {
+    public ArrayList<IrcUser> getUniqueUsers() {
         /*
         * Because IrcMode.values() starts at the first declaration and moves down,
-        * we can be sure that users get added to the list with the highest ranking mode first.
+        * the users come with the highest ranking mode first.
         */
+        ArrayList<IrcUser> uniqueUsers = new ArrayList<IrcUser>();
         for (IrcMode mode : IrcMode.values()) {
-            for (IrcUser user : users.get(mode)) {
-                //Log.e(TAG, "Checking user "+user.myNick+" for mode "+mode.modeName+".");
-                if (!isIrcUserAlreadyAddedWithAHigherRankingMode(mode, user)) {
-                    //Log.e(TAG, "Adding unique user "+user.myNick+" with mode "+mode.modeName+".");
-                    uniqueUsers.get(mode).add(user);
-                    removeUserFromLowerRankingMode(mode, user);
-                }
-            }
-        }
-    }
-
-    private boolean isIrcUserAlreadyAddedWithAHigherRankingMode(IrcMode currentMode, IrcUser user) {
-        boolean found = false;
-        for (IrcMode mode : IrcMode.values()) {
-            if (uniqueUsers.get(mode).contains(user)) {
-                //Log.e(TAG, "Found user "+user.myNick+" in the list for mode "+mode.modeName+".");
-                found = true;
-                break;
-            }
-            if (mode == currentMode) {
-                break;
-            }
+            uniqueUsers.addAll(this.uniqueUsers.get(mode));
         }
-        return found;
+        return uniqueUsers;
     }
 
-    private void removeUserFromLowerRankingMode(IrcMode hasMode, IrcUser user) {
-        boolean lowerRank = false;
-        for (IrcMode mode : IrcMode.values()) {
-            if (lowerRank) {
-                uniqueUsers.get(mode).remove(user);
-            }
-            if (mode == hasMode) {
-                lowerRank = true;
-            }
-        }
+    public ArrayList<IrcUser> getUniqueUsersWithMode(IrcMode mode) {
+        return uniqueUsers.get(mode);
     }
 
     @Override
     public void update(Observable observable, Object data) {
-        for (IrcMode mode : IrcMode.values()) {
-            Collections.sort(users.get(mode));
-            Collections.sort(uniqueUsers.get(mode));
-            this.setChanged();
-        }
-        notifyObservers(R.id.BUFFERUPDATE_USERSCHANGED);
+        if (!(observable instanceof IrcUser))
+            return;
+        IrcUser user = (IrcUser) observable;
+        IrcMode mode = getTopMode(user);
+        if (mode == null)
+            return;
+        // The nick of a user may have changed, so sort them in again
+        nickTrie.update(user);
+        int from = removeUnique(mode, user);
+        int to = insertUnique(mode, user);
+        if (from == to)
+            changes.add(UserListChange.changed(user, mode, to));
+        else
+            changes.add(UserListChange.moved(user, mode, from, mode, to));
+        publishChanges();
     }
 
     public IrcMode getMode(IrcUser user) {
-        for (IrcMode mode : IrcMode.values()) {
-            if (users.get(mode).contains(user))
-                return mode;
-        }
-        return IrcMode.USER;
+        IrcMode mode = getTopMode(user);
+        return mode == null ? IrcMode.USER : mode;
     }
 }
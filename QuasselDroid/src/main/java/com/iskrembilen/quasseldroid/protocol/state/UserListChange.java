@@ -0,0 +1,87 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+/**
+ * One change to the users of a {@link UserCollection}, as seen in its lists of unique users by mode.
+ * The positions are those in the lists right before and right after this change, so a list of
+ * changes can be replayed in order on a copy of the lists.
+ */
+public final class UserListChange {
+    public enum Type {
+        /**
+         * The user joined, and is now at toMode/toIndex
+         */
+        ADDED,
+        /**
+         * The user left, and was at fromMode/fromIndex
+         */
+        REMOVED,
+        /**
+         * The user went from one position to another, in the same or in another mode
+         */
+        MOVED,
+        /**
+         * Something shown for the user changed, like the away state, the position did not
+         */
+        CHANGED
+    }
+
+    public final Type type;
+    public final IrcUser user;
+    public final IrcMode fromMode;
+    public final int fromIndex;
+    public final IrcMode toMode;
+    public final int toIndex;
+
+    private UserListChange(Type type, IrcUser user, IrcMode fromMode, int fromIndex, IrcMode toMode, int toIndex) {
+        this.type = type;
+        this.user = user;
+        this.fromMode = fromMode;
+        this.fromIndex = fromIndex;
+        this.toMode = toMode;
+        this.toIndex = toIndex;
+    }
+
+    static UserListChange added(IrcUser user, IrcMode mode, int index) {
+        return new UserListChange(Type.ADDED, user, null, -1, mode, index);
+    }
+
+    static UserListChange removed(IrcUser user, IrcMode mode, int index) {
+        return new UserListChange(Type.REMOVED, user, mode, index, null, -1);
+    }
+
+    static UserListChange moved(IrcUser user, IrcMode fromMode, int fromIndex, IrcMode toMode, int toIndex) {
+        return new UserListChange(Type.MOVED, user, fromMode, fromIndex, toMode, toIndex);
+    }
+
+    static UserListChange changed(IrcUser user, IrcMode mode, int index) {
+        return new UserListChange(Type.CHANGED, user, mode, index, mode, index);
+    }
+
+    @Override
+    public String toString() {
+        return "UserListChange{" + type + " " + user.nick + ", " + fromMode + " " + fromIndex + " -> " + toMode + " " + toIndex + "}";
+    }
+}
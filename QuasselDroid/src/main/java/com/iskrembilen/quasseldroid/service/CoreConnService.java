@@ -44,6 +44,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -51,11 +52,13 @@ import android.widget.Toast;
 import com.iskrembilen.quasseldroid.events.RequestRemoteSyncEvent;
 import com.iskrembilen.quasseldroid.protocol.packets.Request;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
+import com.iskrembilen.quasseldroid.protocol.state.BufferViewSnapshot;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
 import com.iskrembilen.quasseldroid.protocol.state.Identity;
 import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
 import com.iskrembilen.quasseldroid.protocol.state.IrcUser;
 import com.iskrembilen.quasseldroid.protocol.state.Network;
+import com.iskrembilen.quasseldroid.protocol.state.NetworkResume;
 import com.iskrembilen.quasseldroid.protocol.state.Network.ConnectionState;
 import com.iskrembilen.quasseldroid.protocol.state.NetworkCollection;
 import com.iskrembilen.quasseldroid.Quasseldroid;
@@ -86,6 +89,7 @@ import com.iskrembilen.quasseldroid.events.SendMessageEvent;
 import com.iskrembilen.quasseldroid.events.UnsupportedProtocolEvent;
 import com.iskrembilen.quasseldroid.events.UpdateIdentityEvent;
 import com.iskrembilen.quasseldroid.io.CoreConnection;
+import com.iskrembilen.quasseldroid.io.LatencyHistogram;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
 import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
@@ -127,12 +131,15 @@ public class CoreConnService extends Service {
 
     public static final String LATENCY_CORE_KEY = "latency";
 
-    private CoreConnection coreConn;
+    private volatile CoreConnection coreConn;
+    // Last fully synced connection that dropped, a reconnect to the same core resumes from it
+    private CoreConnection resumableConnection;
     private final IBinder binder = new LocalBinder();
     private boolean requestedDisconnect;
 
     private IncomingHandler incomingHandler;
     private Handler reconnectHandler;
+    private Handler mainHandler;
 
     private SharedPreferences preferences;
 
@@ -144,11 +151,13 @@ public class CoreConnService extends Service {
 
     private OnSharedPreferenceChangeListener preferenceListener;
 
-    private int latency;
-    private boolean isConnecting = false;
-    private boolean initDone = false;
-    private String initReason = "";
-    private boolean hasBeenConnected = false;
+    // Written on the state thread by the IncomingHandler, read on the UI thread
+    private volatile int latency;
+    private volatile LatencyHistogram.Snapshot latencyPercentiles;
+    private volatile boolean isConnecting = false;
+    private volatile boolean initDone = false;
+    private volatile String initReason = "";
+    private volatile boolean hasBeenConnected = false;
 
     private boolean preferenceUseWakeLock;
     private WakeLock wakeLock;
@@ -165,12 +174,15 @@ public class CoreConnService extends Service {
     private String username;
     private String password;
 
-    private int reconnectDelay = 0;
+    private volatile int reconnectDelay = 0;
     private int preferenceReconnectInterval;
 
     // On a QueryUserEvent save those to be able to open the added buffer
-    private int networkToSwitchTo;
-    private String bufferNameToSwitchTo;
+    private volatile int networkToSwitchTo;
+    private volatile String bufferNameToSwitchTo;
+
+    // The buffer the user looks at, its backlog is fetched first when connecting
+    private int openedBufferId = -1;
 
 
     /**
@@ -193,6 +205,7 @@ public class CoreConnService extends Service {
         super.onCreate();
         Log.i(TAG, "Service created");
         reconnectHandler = new Handler();
+        mainHandler = new Handler();
         preferences = PreferenceManager.getDefaultSharedPreferences(this);
         preferenceParseColors = preferences.getBoolean(getString(R.string.preference_colored_text), false);
         preferenceUseWakeLock = preferences.getBoolean(getString(R.string.preference_wake_lock), false);
@@ -218,10 +231,16 @@ public class CoreConnService extends Service {
                     preferenceReconnectInterval = Integer.parseInt(preferences.getString(getString(R.string.preference_reconnect_interval), "5")) * 1000 * 60;
                 } else if(key.equals(getString(R.string.preference_reconnect_metered))) {
                     preferenceReconnectMeteredWifi = preferences.getBoolean(getString(R.string.preference_reconnect_metered), false);
+                } else if (key.equals(getString(R.string.has_focus))) {
+                    boolean hasFocus = preferences.getBoolean(getString(R.string.has_focus), true);
+                    BackgroundMode.setFocused(hasFocus);
+                    if (coreConn != null)
+                        coreConn.setInForeground(hasFocus);
                 }
             }
         };
         preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        BackgroundMode.setFocused(preferences.getBoolean(getString(R.string.has_focus), true));
         BusProvider.getInstance().register(this);
         registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
@@ -255,17 +274,19 @@ public class CoreConnService extends Service {
         if (coreConn != null) {
             this.disconnectFromCore();
         }
+        resumableConnection = null;
         Bundle connectData = intent.getExtras();
         if (!connectData.containsKey("disconnect")) {
             requestedDisconnect = false;
             hasBeenConnected = false;
             coreId = connectData.getLong("id");
+            Client.getInstance().setCoreId(coreId);
             address = connectData.getString("address");
             port = connectData.getInt("port");
             username = connectData.getString("username");
             password = connectData.getString("password");
             networks = Client.getInstance().getNetworks();
-            networks.clear();
+            clearNetworks();
 
             acquireWakeLockIfEnabled();
 
@@ -276,6 +297,20 @@ public class CoreConnService extends Service {
         }
     }
 
+    /**
+     * The network graph belongs to the state thread, so it is cleared there once the messages
+     * of the old connection are handled
+     */
+    private void clearNetworks() {
+        final NetworkCollection networks = this.networks;
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                networks.clear();
+            }
+        });
+    }
+
     private void acquireWakeLockIfEnabled() {
         if (preferenceUseWakeLock) {
             PowerManager pm = (PowerManager) getApplicationContext().getSystemService(Context.POWER_SERVICE);
@@ -313,6 +348,16 @@ public class CoreConnService extends Service {
         coreConn.requestRemoteSync(event);
     }
 
+    @Subscribe
+    public void onBufferOpened(BufferOpenedEvent event) {
+        if (event.bufferId == -1)
+            return;
+        openedBufferId = event.bufferId;
+        if (coreConn != null) {
+            coreConn.promoteBacklog(event.bufferId);
+        }
+    }
+
     @Subscribe
     public void onRequestCreateIdentity(RequestCreateIdentityEvent event) {
         coreConn.requestCreateIdentity(event.identityId, event.identity, null);
@@ -323,26 +368,49 @@ public class CoreConnService extends Service {
         coreConn.requestRemoveIdentity(event.identityId);
     }
 
-    public void queryUser(int bufferId, String nick) {
+    public void queryUser(final int bufferId, final String nick) {
+        // Set the buffer to switch to on the state thread before the core can answer with it
+        final NetworkCollection networks = this.networks;
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                Buffer buffer = networks.getBufferById(bufferId);
+                if (buffer == null)
+                    return;
+                networkToSwitchTo = buffer.getInfo().networkId;
+                bufferNameToSwitchTo = nick;
+            }
+        });
         coreConn.sendMessage(bufferId, String.format("/query %s", nick));
-        networkToSwitchTo = networks.getBufferById(bufferId).getInfo().networkId;
-        bufferNameToSwitchTo = nick;
     }
 
-    public void unhideTempHiddenBuffer(int bufferId) {
+    public void unhideTempHiddenBuffer(final int bufferId) {
         coreConn.requestUnhideTempHiddenBuffer(bufferId);
-        networks.getBufferById(bufferId).setTemporarilyHidden(false);
+        final NetworkCollection networks = this.networks;
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                Buffer buffer = networks.getBufferById(bufferId);
+                if (buffer != null)
+                    buffer.setTemporarilyHidden(false);
+            }
+        });
     }
 
     public void unhidePermHiddenBuffer(int bufferId) {
         coreConn.requestUnhidePermHiddenBuffer(bufferId);
     }
 
-    public Buffer getBuffer(int bufferId, Observer obs) {
-        Buffer buffer = networks.getBufferById(bufferId);
-        if (obs != null && buffer != null)
-            buffer.addObserver(obs);
-        return buffer;
+    public void observeBuffer(final int bufferId, final Observer obs) {
+        final NetworkCollection networks = this.networks;
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                Buffer buffer = networks.getBufferById(bufferId);
+                if (obs != null && buffer != null)
+                    buffer.addObserver(obs);
+            }
+        });
     }
 
     public QuasseldroidNotificationManager getNotificicationManager() {
@@ -355,8 +423,10 @@ public class CoreConnService extends Service {
 
     public void disconnectFromCore() {
         releaseWakeLockIfExists();
-        if (coreConn != null)
+        if (coreConn != null) {
             coreConn.closeConnection();
+            resumableConnection = coreConn.isInitComplete() ? coreConn : null;
+        }
         coreConn = null;
         networks = null;
         stopForeground(true);
@@ -368,7 +438,7 @@ public class CoreConnService extends Service {
         }
         if(incomingHandler != null) {
             incomingHandler.disabled = true;
-            incomingHandler.removeCallbacksAndMessages(null);
+            incomingHandler.removeAll();
         }
         incomingHandler = null;
         if(Client.getInstance().status != Status.Disconnected) {
@@ -380,6 +450,7 @@ public class CoreConnService extends Service {
             BusProvider.getInstance().post(new ConnectionChangedEvent(Status.Disconnected,"Connection failed!"));
         }
         if (requestedDisconnect) {
+            resumableConnection = null;
             Log.d(TAG, "Stopping Service");
             stopSelf();
         }
@@ -391,14 +462,23 @@ public class CoreConnService extends Service {
         if(coreConn != null) {
             disconnectFromCore();
         }
+        // After a dropped connection keep the old session state, the new connection only syncs what changed
+        CoreConnection previous = hasBeenConnected ? resumableConnection : null;
+        resumableConnection = null;
         notificationManager = new QuasseldroidNotificationManager(this);
         networks = Client.getInstance().getNetworks();
-        networks.clear();
+        if (previous == null) {
+            clearNetworks();
+        }
         incomingHandler = new IncomingHandler();
         acquireWakeLockIfEnabled();
         coreConn =  new CoreConnection(coreId, address, port, username, password,
                     this.getVersionName(), incomingHandler, this.getApplicationContext(),
-                    notificationManager);
+                    notificationManager, previous);
+        coreConn.setInForeground(preferences.getBoolean(getString(R.string.has_focus), true));
+        if (openedBufferId != -1) {
+            coreConn.promoteBacklog(openedBufferId);
+        }
         startForeground(R.id.NOTIFICATION, notificationManager.getConnectingNotification());
     }
 
@@ -408,10 +488,14 @@ public class CoreConnService extends Service {
 
     /**
      * Handler of incoming messages from CoreConnection, since it's in another
-     * read thread.
+     * read thread. Runs on the {@link StateThread}, which owns the network graph,
+     * anything that touches the connection itself is handed back to the UI thread.
      */
-    class IncomingHandler extends Handler {
-        public boolean disabled = false;
+    class IncomingHandler extends StateThread.StateHandler {
+        public volatile boolean disabled = false;
+        // The service drops these on disconnect, while this handler may still be working on a message
+        private final NetworkCollection networks = CoreConnService.this.networks;
+        private final QuasseldroidNotificationManager notificationManager = CoreConnService.this.notificationManager;
 
         @Override
         public void handleMessage(android.os.Message msg) {
@@ -503,9 +587,24 @@ public class CoreConnService extends Service {
                 case R.id.ADD_NETWORK:
                     networks.addNetwork((Network) msg.obj);
                     break;
+                case R.id.RESUME_NETWORK:
+                    /**
+                     * A network kept from the dropped connection got its new state from the core
+                     */
+                    NetworkResume resume = (NetworkResume) msg.obj;
+                    Network resumedNetwork = networks.getNetworkById(resume.networkId);
+                    if (resumedNetwork == null) {
+                        Log.w(TAG, "Got state for non-existent network id: " + resume.networkId);
+                        return;
+                    }
+                    resumedNetwork.resume(resume);
+                    break;
                 case R.id.NETWORK_REMOVED:
+                    Network removedNetwork = networks.getNetworkById(msg.arg1);
                     networks.removeNetwork(msg.arg1);
-                    BusProvider.getInstance().post(new BufferRemovedEvent(networks.getNetworkById(msg.arg1).getStatusBuffer().getInfo().id));
+                    if (removedNetwork != null && removedNetwork.getStatusBuffer() != null) {
+                        BusProvider.getInstance().post(new BufferRemovedEvent(removedNetwork.getStatusBuffer().getInfo().id));
+                    }
                     break;
                 case R.id.SET_CONNECTION_STATE:
                     if (networks.getNetworkById(msg.arg1) != null) {
@@ -562,7 +661,14 @@ public class CoreConnService extends Service {
                     } else {
                         BusProvider.getInstance().post(new ConnectionChangedEvent(Status.Disconnected));
                     }
-                    reconnect(errorMessage);
+                    final String reason = errorMessage;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!disabled)
+                                reconnect(reason);
+                        }
+                    });
                     break;
                 case R.id.NEW_USER_ADDED:
                     /**
@@ -606,6 +712,16 @@ public class CoreConnService extends Service {
                     }
                     break;
 
+                case R.id.SET_BUFFER_VIEW_SNAPSHOT:
+                    /**
+                     * Initial order and hidden state of all buffers
+                     */
+                    BufferViewSnapshot snapshot = (BufferViewSnapshot) msg.obj;
+                    long start = SystemClock.elapsedRealtime();
+                    networks.applyBufferViewSnapshot(snapshot);
+                    Log.d(TAG, "Applied buffer view with " + snapshot.size() + " buffers in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    break;
+
                 case R.id.SET_BUFFER_TEMP_HIDDEN:
                     /**
                      * Buffer has been marked as temporary hidden, update buffer
@@ -754,7 +870,8 @@ public class CoreConnService extends Service {
                     break;
                 case R.id.SET_CORE_LATENCY:
                     latency = msg.arg1;
-                    BusProvider.getInstance().post(new LatencyChangedEvent(latency));
+                    latencyPercentiles = (LatencyHistogram.Snapshot) msg.obj;
+                    BusProvider.getInstance().post(new LatencyChangedEvent(latency, latencyPercentiles));
                     break;
                 case R.id.SET_NETWORK_LATENCY:
                     networks.getNetworkById(msg.arg1).setLatency(msg.arg2);
@@ -911,7 +1028,7 @@ public class CoreConnService extends Service {
 
     @Produce
     public LatencyChangedEvent produceLatency() {
-        return new LatencyChangedEvent(latency);
+        return new LatencyChangedEvent(latency, latencyPercentiles);
     }
 
     @Produce
@@ -920,25 +1037,34 @@ public class CoreConnService extends Service {
     }
 
     @Subscribe
-    public void doJoinChannel(JoinChannelEvent event) {
+    public void doJoinChannel(final JoinChannelEvent event) {
         if (coreConn==null) {
             reconnect("");
             return;
         }
 
-        int networksStatusBufferId = -1;
-        for (Network network : networks.getNetworkList()) {
-            if (network.getName().equals(event.networkName)) {
-                networksStatusBufferId = network.getStatusBuffer().getInfo().id;
-                break;
+        final NetworkCollection networks = this.networks;
+        StateThread.query(new StateThread.Query<Integer>() {
+            @Override
+            public Integer read() {
+                for (Network network : networks.getNetworkList()) {
+                    if (network.getName().equals(event.networkName)) {
+                        return network.getStatusBuffer().getInfo().id;
+                    }
+                }
+                return -1;
             }
-        }
-        if (networksStatusBufferId != -1) {
-            sendMessage(networksStatusBufferId, "/join " + event.channelName);
-            Toast.makeText(getApplicationContext(), "Joining channel " + event.channelName, Toast.LENGTH_LONG).show();
-        } else {
-            Toast.makeText(getApplicationContext(), "Error joining channel", Toast.LENGTH_LONG).show();
-        }
+        }, new StateThread.Callback<Integer>() {
+            @Override
+            public void onResult(Integer networksStatusBufferId) {
+                if (networksStatusBufferId != -1 && coreConn != null) {
+                    sendMessage(networksStatusBufferId, "/join " + event.channelName);
+                    Toast.makeText(getApplicationContext(), "Joining channel " + event.channelName, Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(getApplicationContext(), "Error joining channel", Toast.LENGTH_LONG).show();
+                }
+            }
+        });
     }
 
     @Subscribe
@@ -958,7 +1084,7 @@ public class CoreConnService extends Service {
     }
 
     @Subscribe
-    public void doManageChannel(ManageChannelEvent event) {
+    public void doManageChannel(final ManageChannelEvent event) {
         if (coreConn==null) {
             reconnect("");
             return;
@@ -972,12 +1098,19 @@ public class CoreConnService extends Service {
         } else if (event.action == ChannelAction.TEMP_HIDE) {
             coreConn.requestTempHideBuffer(event.bufferId);
         } else if (event.action == ChannelAction.UNHIDE) {
-            Buffer buffer = networks.getBufferById(event.bufferId);
-            if(buffer != null && buffer.isPermanentlyHidden()) {
-                coreConn.requestUnhidePermHiddenBuffer(event.bufferId);
-            } else if(buffer != null && buffer.isTemporarilyHidden()) {
-                coreConn.requestUnhideTempHiddenBuffer(event.bufferId);
-            }
+            final NetworkCollection networks = this.networks;
+            final CoreConnection coreConn = this.coreConn;
+            StateThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    Buffer buffer = networks.getBufferById(event.bufferId);
+                    if(buffer != null && buffer.isPermanentlyHidden()) {
+                        coreConn.requestUnhidePermHiddenBuffer(event.bufferId);
+                    } else if(buffer != null && buffer.isTemporarilyHidden()) {
+                        coreConn.requestUnhideTempHiddenBuffer(event.bufferId);
+                    }
+                }
+            });
         } else if (event.action == ChannelAction.MARK_AS_READ) {
             coreConn.requestMarkBufferAsRead(event.bufferId);
         } else if (event.action == ChannelAction.HIGHLIGHTS_READ) {
@@ -1002,25 +1135,50 @@ public class CoreConnService extends Service {
     }
 
     @Subscribe
-    public void doManageMessage(ManageMessageEvent event) {
+    public void doManageMessage(final ManageMessageEvent event) {
         if (networks == null || coreConn == null) {
             reconnect("");
             return;
         }
 
-        Buffer buffer = networks.getBufferById(event.bufferId);
-        if (buffer != null) {
-            if (event.action == MessageAction.LAST_SEEN) {
-                // This is accessed sometimes even after we have disconnected from the core.
-                // In that case the notificationManager is already null
-                if (notificationManager!=null) notificationManager.notifyHighlightsRead(event.bufferId);
-                coreConn.requestSetLastMsgRead(event.bufferId, event.messageId);
-                networks.getBufferById(event.bufferId).setLastSeenMessage(event.messageId);
-            } else if (event.action == MessageAction.MARKER_LINE) {
-                coreConn.requestSetMarkerLine(event.bufferId, event.messageId);
-                networks.getBufferById(event.bufferId).setMarkerLineMessage(event.messageId);
+        final NetworkCollection networks = this.networks;
+        StateThread.query(new StateThread.Query<Boolean>() {
+            @Override
+            public Boolean read() {
+                return networks.getBufferById(event.bufferId) != null;
             }
-        }
+        }, new StateThread.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean exists) {
+                if (!exists || coreConn == null)
+                    return;
+                if (event.action == MessageAction.LAST_SEEN) {
+                    // This is accessed sometimes even after we have disconnected from the core.
+                    // In that case the notificationManager is already null
+                    if (notificationManager!=null) notificationManager.notifyHighlightsRead(event.bufferId);
+                    coreConn.requestSetLastMsgRead(event.bufferId, event.messageId);
+                } else if (event.action == MessageAction.MARKER_LINE) {
+                    coreConn.requestSetMarkerLine(event.bufferId, event.messageId);
+                }
+                applyMessageAction(networks, event);
+            }
+        });
+    }
+
+    private void applyMessageAction(final NetworkCollection networks, final ManageMessageEvent event) {
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                Buffer buffer = networks.getBufferById(event.bufferId);
+                if (buffer == null)
+                    return;
+                if (event.action == MessageAction.LAST_SEEN) {
+                    buffer.setLastSeenMessage(event.messageId);
+                } else if (event.action == MessageAction.MARKER_LINE) {
+                    buffer.setMarkerLineMessage(event.messageId);
+                }
+            }
+        });
     }
 
     @Subscribe
@@ -1039,16 +1197,25 @@ public class CoreConnService extends Service {
     }
 
     @Subscribe
-    public void onFilterMessages(FilterMessagesEvent event) {
+    public void onFilterMessages(final FilterMessagesEvent event) {
         if (coreConn==null) {
             reconnect("");
             return;
         }
 
-        if (event.filtered)
-            networks.getBufferById(event.bufferId).addFilterType(event.filterType);
-        else
-            networks.getBufferById(event.bufferId).removeFilterType(event.filterType);
+        final NetworkCollection networks = this.networks;
+        StateThread.post(new Runnable() {
+            @Override
+            public void run() {
+                Buffer buffer = networks.getBufferById(event.bufferId);
+                if (buffer == null)
+                    return;
+                if (event.filtered)
+                    buffer.addFilterType(event.filterType);
+                else
+                    buffer.removeFilterType(event.filterType);
+            }
+        });
     }
 
     @Subscribe
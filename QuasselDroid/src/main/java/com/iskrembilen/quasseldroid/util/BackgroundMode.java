@@ -0,0 +1,218 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks whether the app has focus, meaning the screen is on. Without focus nobody looks at the
+ * UI, so the observers that feed it hold their changes back and hand them over all at once when
+ * focus returns. The buffer lists on the state thread stop sorting buffers in and out of the
+ * activity filters and passing every change up to the UI. Messages are still added to the
+ * buffers, and highlights and notifications are still handled as they arrive.
+ *
+ * The counters show how much UI work was left out while in the background: every update that
+ * came in is counted, and on return only the compacted remainder is delivered. The buffer list
+ * work on the state thread is timed while it runs, so the time the skipped runs would have
+ * taken can be estimated from it.
+ */
+public final class BackgroundMode {
+    private static final String TAG = BackgroundMode.class.getSimpleName();
+
+    private static volatile boolean background = false;
+    private static long backgroundSince = 0;
+
+    /**
+     * Work to run when focus returns, each deferred observer is in here once
+     */
+    private static final Set<Runnable> deferred = new LinkedHashSet<>();
+
+    private static final AtomicLong deferredUpdates = new AtomicLong();
+    private static final AtomicLong replayedUpdates = new AtomicLong();
+    private static final AtomicLong backgroundMillis = new AtomicLong();
+    private static final AtomicLong listWorkNanos = new AtomicLong();
+    private static final AtomicLong listWorkRuns = new AtomicLong();
+    private static final AtomicLong listWorkSkipped = new AtomicLong();
+
+    private BackgroundMode() {
+        // No instances.
+    }
+
+    /**
+     * @return whether the app is unfocused and UI work should be deferred
+     */
+    public static boolean isActive() {
+        return background;
+    }
+
+    /**
+     * Switches the mode, when focus returns the deferred work is started, call on the UI thread
+     */
+    public static void setFocused(boolean focused) {
+        List<Runnable> replay;
+        synchronized (BackgroundMode.class) {
+            if (background != focused)
+                return;
+            background = !focused;
+            if (background) {
+                backgroundSince = SystemClock.elapsedRealtime();
+                Log.d(TAG, "Lost focus, deferring UI updates");
+                return;
+            }
+            backgroundMillis.addAndGet(SystemClock.elapsedRealtime() - backgroundSince);
+            replay = new ArrayList<>(deferred);
+            deferred.clear();
+        }
+        for (Runnable runnable : replay) {
+            runnable.run();
+        }
+        Log.i(TAG, getSummary());
+    }
+
+    /**
+     * Holds work back until focus returns
+     *
+     * @param replay started once when focus returns, adding it again before that has no effect
+     * @return false if the app has focus and the work should be done now
+     */
+    public static boolean defer(Runnable replay) {
+        synchronized (BackgroundMode.class) {
+            if (!background)
+                return false;
+            deferred.add(replay);
+            return true;
+        }
+    }
+
+    /**
+     * Drops work that was held back, for observers that stop before focus returns, so the set
+     * doesn't keep them and whatever they reference alive
+     */
+    public static void cancel(Runnable replay) {
+        synchronized (BackgroundMode.class) {
+            deferred.remove(replay);
+        }
+    }
+
+    /**
+     * Count an update that arrived while unfocused
+     */
+    public static void recordDeferred() {
+        deferredUpdates.incrementAndGet();
+    }
+
+    /**
+     * Count the updates a deferred observer is left with after compacting, when they are replayed
+     */
+    public static void recordReplayed(int updates) {
+        replayedUpdates.addAndGet(updates);
+    }
+
+    /**
+     * Count a run of buffer list work on the state thread, sorting, filtering and passing the
+     * change on to the observers
+     *
+     * @param nanos how long it took
+     */
+    public static void recordListWork(long nanos) {
+        listWorkNanos.addAndGet(nanos);
+        listWorkRuns.incrementAndGet();
+    }
+
+    /**
+     * Count a run of buffer list work that was left out because the app has no focus
+     */
+    public static void recordListWorkSkipped() {
+        listWorkSkipped.incrementAndGet();
+    }
+
+    public static long getListWorkNanos() {
+        return listWorkNanos.get();
+    }
+
+    public static long getListWorkRuns() {
+        return listWorkRuns.get();
+    }
+
+    public static long getListWorkSkipped() {
+        return listWorkSkipped.get();
+    }
+
+    /**
+     * @return how long the skipped buffer list work would have taken, from the average of the runs that were timed
+     */
+    public static long getSkippedListWorkNanos() {
+        long runs = getListWorkRuns();
+        if (runs == 0)
+            return 0;
+        return getListWorkSkipped() * (getListWorkNanos() / runs);
+    }
+
+    /**
+     * @return how many observers wait for focus to return
+     */
+    public static int getPendingCount() {
+        synchronized (BackgroundMode.class) {
+            return deferred.size();
+        }
+    }
+
+    public static long getDeferredCount() {
+        return deferredUpdates.get();
+    }
+
+    public static long getReplayedCount() {
+        return replayedUpdates.get();
+    }
+
+    /**
+     * @return how long the app has been without focus in total, in milliseconds
+     */
+    public static long getBackgroundMillis() {
+        synchronized (BackgroundMode.class) {
+            long total = backgroundMillis.get();
+            if (background)
+                total += SystemClock.elapsedRealtime() - backgroundSince;
+            return total;
+        }
+    }
+
+    public static String getSummary() {
+        long deferred = getDeferredCount();
+        long replayed = getReplayedCount();
+        return String.format("Background for %d s in total, %d UI updates deferred, %d replayed, %d skipped, "
+                        + "%d buffer list runs skipped, about %d ms of %d ms spent in %d runs",
+                getBackgroundMillis() / 1000, deferred, replayed, deferred - replayed,
+                getListWorkSkipped(), TimeUnit.NANOSECONDS.toMillis(getSkippedListWorkNanos()),
+                TimeUnit.NANOSECONDS.toMillis(getListWorkNanos()), getListWorkRuns());
+    }
+}
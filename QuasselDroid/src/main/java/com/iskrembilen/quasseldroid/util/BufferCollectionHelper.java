@@ -82,6 +82,17 @@ public class BufferCollectionHelper {
         };
     }
 
+    /**
+     * @return true if the buffers matching the filter set change with their unread activity
+     */
+    public static boolean filtersOnActivity(Set<Predicate<Buffer>> filters) {
+        for (Predicate<Buffer> filter : filters) {
+            if (filter instanceof ActivityFilter)
+                return true;
+        }
+        return false;
+    }
+
     public enum ActivityType {
         NONE,
         ACTIVITY,
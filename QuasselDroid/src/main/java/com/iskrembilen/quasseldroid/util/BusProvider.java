@@ -23,10 +23,13 @@
 
 package com.iskrembilen.quasseldroid.util;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import com.squareup.otto.Bus;
 
 public final class BusProvider {
-    private static final Bus BUS = new Bus();
+    private static final Bus BUS = new MainThreadBus();
 
     public static Bus getInstance() {
         return BUS;
@@ -35,4 +38,25 @@ public final class BusProvider {
     private BusProvider() {
         // No instances.
     }
-}
\ No newline at end of file
+
+    /**
+     * Subscribers all live on the UI thread, so events posted from the state thread are handed over to it
+     */
+    private static class MainThreadBus extends Bus {
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void post(final Object event) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                super.post(event);
+            } else {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        MainThreadBus.super.post(event);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Observer that collects the notifications it receives and passes them on to its delegate
+ * once per frame, on the UI thread.
+ *
+ * Every observable that changed during a frame is delivered once for every distinct argument
+ * it was notified with, so a flood of identical updates ends up as a single call. Without focus
+ * the changes pile up the same way until focus returns, see {@link BackgroundMode}.
+ */
+public class CoalescingObserver implements Observer {
+    private static final AtomicLong totalReceived = new AtomicLong();
+    private static final AtomicLong totalDelivered = new AtomicLong();
+
+    private final Observer delegate;
+    private final FrameScheduler scheduler;
+
+    /**
+     * Dirty observables, with the arguments they were notified with in first-seen order
+     */
+    private Map<Observable, Set<Object>> dirty = new IdentityHashMap<>();
+    private boolean scheduled = false;
+
+    private long received = 0;
+    private long delivered = 0;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private final Runnable replay = new Runnable() {
+        @Override
+        public void run() {
+            int updates = 0;
+            synchronized (CoalescingObserver.this) {
+                for (Set<Object> args : dirty.values()) {
+                    updates += args.size();
+                }
+            }
+            BackgroundMode.recordReplayed(updates);
+            scheduler.postFrameCallback(flush);
+        }
+    };
+
+    public CoalescingObserver(Observer delegate) {
+        this(delegate, FrameScheduler.getDefault());
+    }
+
+    public CoalescingObserver(Observer delegate, FrameScheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        totalReceived.incrementAndGet();
+        synchronized (this) {
+            received++;
+
+            Set<Object> args = dirty.get(observable);
+            if (args == null) {
+                args = new LinkedHashSet<>();
+                dirty.put(observable, args);
+            }
+            args.add(data);
+
+            if (BackgroundMode.isActive())
+                BackgroundMode.recordDeferred();
+            if (scheduled)
+                return;
+            scheduled = true;
+            if (BackgroundMode.defer(replay))
+                return;
+        }
+        scheduler.postFrameCallback(flush);
+    }
+
+    private void deliver() {
+        Map<Observable, Set<Object>> changes;
+        synchronized (this) {
+            changes = dirty;
+            dirty = new IdentityHashMap<>();
+            scheduled = false;
+        }
+        for (Map.Entry<Observable, Set<Object>> entry : changes.entrySet()) {
+            for (Object data : entry.getValue()) {
+                synchronized (this) {
+                    delivered++;
+                }
+                totalDelivered.incrementAndGet();
+                delegate.update(entry.getKey(), data);
+            }
+        }
+        onDelivered();
+    }
+
+    /**
+     * Called on the UI thread after the changes of a frame were passed to the delegate,
+     * so the delegate can apply everything it collected at once
+     */
+    protected void onDelivered() {
+    }
+
+    /**
+     * Drop everything that was not delivered yet, call after removing this observer from its observables
+     */
+    public synchronized void clear() {
+        dirty.clear();
+        // A flush that is still posted finds nothing, one that was dropped must not block the next
+        scheduled = false;
+        BackgroundMode.cancel(replay);
+    }
+
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return delivered;
+    }
+
+    public static long getTotalReceivedCount() {
+        return totalReceived.get();
+    }
+
+    public static long getTotalDeliveredCount() {
+        return totalDelivered.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.iskrembilen.quasseldroid.io.LatencyHistogram;
+
+/**
+ * Measures the time between UI frames while the app is on screen, together with the state thread
+ * queue this shows whether protocol work still holds up drawing.
+ *
+ * Only call {@link #start()} and {@link #stop()} on the UI thread.
+ */
+public final class FrameMonitor {
+    private static final String TAG = FrameMonitor.class.getSimpleName();
+
+    /**
+     * Frames further apart than this missed at least one vsync at 60Hz
+     */
+    private static final int JANK_THRESHOLD_MS = 33;
+    private static final long LOG_INTERVAL_NANOS = 10000000000L;
+
+    private static final LatencyHistogram frameTimes = new LatencyHistogram(256);
+    private static volatile long frameCount = 0;
+    private static volatile long jankyFrames = 0;
+
+    private static boolean running = false;
+    private static long lastFrameNanos = 0;
+    private static long lastLogNanos = 0;
+    private static Choreographer.FrameCallback callback;
+
+    private FrameMonitor() {
+        // No instances.
+    }
+
+    public static void start() {
+        if (running || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            return;
+        running = true;
+        lastFrameNanos = 0;
+        postCallback();
+    }
+
+    public static void stop() {
+        if (!running)
+            return;
+        running = false;
+        removeCallback();
+    }
+
+    /**
+     * @return the time between the recent frames, in milliseconds
+     */
+    public static LatencyHistogram.Snapshot getFrameTimes() {
+        return frameTimes.getSnapshot();
+    }
+
+    public static long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames that came later than {@link #JANK_THRESHOLD_MS} after the one before
+     */
+    public static long getJankyFrames() {
+        return jankyFrames;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postCallback() {
+        if (callback == null) {
+            callback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    onFrame(frameTimeNanos);
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback(callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void removeCallback() {
+        if (callback != null)
+            Choreographer.getInstance().removeFrameCallback(callback);
+    }
+
+    private static void onFrame(long frameTimeNanos) {
+        if (!running)
+            return;
+        if (lastFrameNanos != 0) {
+            int frameTime = (int) ((frameTimeNanos - lastFrameNanos) / 1000000);
+            frameTimes.add(frameTime);
+            frameCount++;
+            if (frameTime > JANK_THRESHOLD_MS)
+                jankyFrames++;
+        }
+        lastFrameNanos = frameTimeNanos;
+
+        if (frameTimeNanos - lastLogNanos > LOG_INTERVAL_NANOS) {
+            lastLogNanos = frameTimeNanos;
+            Log.d(TAG, "Frames: " + frameTimes.getSnapshot() + ", " + jankyFrames + "/" + frameCount + " janky"
+                    + "; state queue: " + StateThread.getQueueDepth() + " waiting, " + StateThread.getMaxQueueDepth() + " max"
+                    + ", dispatch " + StateThread.getDispatchTimes());
+            StateThread.resetMaxQueueDepth();
+        }
+        postCallback();
+    }
+}
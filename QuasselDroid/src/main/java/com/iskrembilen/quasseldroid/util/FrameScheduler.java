@@ -0,0 +1,129 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs work once per UI frame, so several changes that happen within one frame can be handled together
+ */
+public abstract class FrameScheduler {
+    private static FrameScheduler defaultScheduler;
+
+    /**
+     * Run the given callback on the UI thread at the start of the next frame
+     */
+    public abstract void postFrameCallback(Runnable callback);
+
+    public static synchronized FrameScheduler getDefault() {
+        if (defaultScheduler == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                defaultScheduler = new ChoreographerScheduler();
+            else
+                defaultScheduler = new HandlerScheduler();
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Replace the default scheduler, for instance with a {@link ManualScheduler} when running without a UI
+     */
+    public static synchronized void setDefault(FrameScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerScheduler extends FrameScheduler {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postFrameCallback(final Runnable callback) {
+            // The Choreographer belongs to the looper it was fetched on, so always fetch it on the main thread
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            callback.run();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private static class HandlerScheduler extends FrameScheduler {
+        private static final long FRAME_DELAY_MS = 16;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postFrameCallback(Runnable callback) {
+            handler.postDelayed(callback, FRAME_DELAY_MS);
+        }
+    }
+
+    /**
+     * Headless scheduler, the callbacks only run when {@link #runFrame()} is called
+     */
+    public static class ManualScheduler extends FrameScheduler {
+        private List<Runnable> pending = new ArrayList<>();
+        private int frames = 0;
+
+        @Override
+        public synchronized void postFrameCallback(Runnable callback) {
+            pending.add(callback);
+        }
+
+        /**
+         * Runs all callbacks posted before this call, callbacks posted while running go into the next frame
+         */
+        public void runFrame() {
+            List<Runnable> callbacks;
+            synchronized (this) {
+                callbacks = pending;
+                pending = new ArrayList<>();
+                frames++;
+            }
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+
+        public synchronized boolean hasPendingCallbacks() {
+            return !pending.isEmpty();
+        }
+
+        public synchronized int getFrameCount() {
+            return frames;
+        }
+    }
+}
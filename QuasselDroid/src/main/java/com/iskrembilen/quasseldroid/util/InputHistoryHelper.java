@@ -23,59 +23,189 @@
 
 package com.iskrembilen.quasseldroid.util;
 
+import android.content.Context;
+
+import com.iskrembilen.quasseldroid.io.QuasselDbHelper;
+
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * The lines sent in one buffer of one core, newest first. Kept in a fixed size ring so adding
+ * a line never shifts the others, and stored through {@link QuasselDbHelper} so it survives
+ * the app being killed. The stored lines are loaded in the background, all methods are
+ * synchronized as they arrive on the database thread.
+ */
 public class InputHistoryHelper {
-    private static List<String> history = new ArrayList<String>();
-    private static int currentIndex = -1;
-    private static String tempStore;
+    public static final int MAX_ENTRIES = 100;
+
+    private static final Map<String, InputHistoryHelper> histories = new HashMap<>();
+
+    private final QuasselDbHelper dbHelper;
+    private final long coreId;
+    private final int bufferId;
+
+    private final String[] entries = new String[MAX_ENTRIES];
+    /**
+     * Slot of the newest entry
+     */
+    private int newest = -1;
+    private int size = 0;
+    private long nextSequence;
+    /**
+     * Lines added before the stored history was loaded, they are stored once their sequence is
+     * known. Null after loading.
+     */
+    private List<String> unsaved = new ArrayList<>();
+
+    /**
+     * How far back in the history the input field is, -1 while editing a new line
+     */
+    private int currentIndex = -1;
+    /**
+     * The line being edited before moving into the history, only entries starting with it are shown
+     */
+    private String tempStore = "";
+
+    private InputHistoryHelper(QuasselDbHelper dbHelper, long coreId, int bufferId) {
+        this.dbHelper = dbHelper;
+        this.coreId = coreId;
+        this.bufferId = bufferId;
+        dbHelper.loadInputHistory(coreId, bufferId, MAX_ENTRIES, new QuasselDbHelper.InputHistoryCallback() {
+            @Override
+            public void onInputHistoryLoaded(List<String> entries, long nextSequence) {
+                setStoredHistory(entries, nextSequence);
+            }
+        });
+    }
 
-    public static String getNextHistoryEntry() {
-        if (history.size() == 0) {
-            return "";
+    /**
+     * Puts the stored lines before the ones added while loading, those keep their positions
+     * counted from the newest so browsing the history isn't disturbed
+     */
+    private synchronized void setStoredHistory(List<String> stored, long sequence) {
+        newest = -1;
+        size = 0;
+        for (String entry : stored) {
+            push(entry);
         }
-
-        if (currentIndex < history.size() - 1) {
-            currentIndex++;
+        nextSequence = sequence;
+        List<String> added = unsaved;
+        unsaved = null;
+        for (String text : added) {
+            push(text);
+            dbHelper.addInputHistoryEntry(coreId, bufferId, nextSequence++, text, MAX_ENTRIES);
         }
+    }
 
-        return history.get(currentIndex);
+    /**
+     * Get the history of a buffer, it is loaded the first time
+     */
+    public static synchronized InputHistoryHelper getInstance(Context context, long coreId, int bufferId) {
+        String key = coreId + "/" + bufferId;
+        InputHistoryHelper history = histories.get(key);
+        if (history == null) {
+            history = new InputHistoryHelper(QuasselDbHelper.getInstance(context), coreId, bufferId);
+            histories.put(key, history);
+        }
+        return history;
     }
 
-    public static String getPreviousHistoryEntry() {
-        if (history.size() == 0) {
-            return "";
+    /**
+     * Forgets the histories of a deleted core
+     */
+    public static synchronized void deleteCore(long coreId) {
+        String prefix = coreId + "/";
+        for (Iterator<String> it = histories.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix))
+                it.remove();
         }
+    }
+
+    private void push(String text) {
+        newest = (newest + 1) % MAX_ENTRIES;
+        entries[newest] = text;
+        if (size < MAX_ENTRIES)
+            size++;
+    }
+
+    /**
+     * @param index 0 for the newest entry
+     */
+    private String get(int index) {
+        return entries[(newest - index + MAX_ENTRIES) % MAX_ENTRIES];
+    }
 
-        if (currentIndex >= 0) {
-            currentIndex--;
+    /**
+     * Moves to the next older entry that starts with the line that was being edited
+     */
+    public synchronized String getNextHistoryEntry() {
+        for (int i = currentIndex + 1; i < size; i++) {
+            if (get(i).startsWith(tempStore)) {
+                currentIndex = i;
+                return get(i);
+            }
         }
-        if (currentIndex == -1)
-            return tempStore;
+        return currentIndex == -1 ? tempStore : get(currentIndex);
+    }
 
-        return history.get(currentIndex);
+    /**
+     * Moves to the next newer entry that starts with the line that was being edited, and back to
+     * that line after the newest one
+     */
+    public synchronized String getPreviousHistoryEntry() {
+        for (int i = currentIndex - 1; i >= 0; i--) {
+            if (get(i).startsWith(tempStore)) {
+                currentIndex = i;
+                return get(i);
+            }
+        }
+        currentIndex = -1;
+        return tempStore;
     }
 
-    public static void addHistoryEntry(String text) {
-        history.add(0, text);
+    public synchronized void addHistoryEntry(String text) {
+        push(text);
         currentIndex = -1;
+        tempStore = "";
+        if (unsaved != null)
+            unsaved.add(text);
+        else
+            dbHelper.addInputHistoryEntry(coreId, bufferId, nextSequence++, text, MAX_ENTRIES);
     }
 
-    public static void tempStoreCurrentEntry(String text) {
+    public synchronized void tempStoreCurrentEntry(String text) {
         if (currentIndex == -1)
             tempStore = text;
     }
 
-    public static boolean isViewingHistory() {
+    public synchronized boolean isViewingHistory() {
         return (currentIndex >= 0);
     }
 
-    public static String[] getHistory() {
-        return history.toArray(new String[history.size()]);
+    /**
+     * @return all entries, newest first
+     */
+    public synchronized String[] getHistory() {
+        String[] history = new String[size];
+        for (int i = 0; i < size; i++) {
+            history[i] = get(i);
+        }
+        return history;
     }
 
-    public static void removeItem() {
-        history.remove(0);
+    /**
+     * @return the entries starting with the prefix, newest first
+     */
+    public synchronized List<String> findByPrefix(String prefix) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (get(i).startsWith(prefix))
+                found.add(get(i));
+        }
+        return found;
     }
 }
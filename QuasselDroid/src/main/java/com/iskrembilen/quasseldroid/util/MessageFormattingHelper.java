@@ -34,6 +34,7 @@ import android.text.SpannableString;
 import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
+import android.util.LruCache;
 
 import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
@@ -74,40 +75,33 @@ public class MessageFormattingHelper {
 
             }
 
-            static int qChecksum(@NonNull byte[] data) {
-                int crc = 0xffff;
-                int crcHighBitMask = 0x8000;
-
-                for (byte b : data) {
-                    int c = reflect(b, 8);
-                    for (int j = 0x80; j > 0; j >>= 1) {
-                        int highBit = crc & crcHighBitMask;
-                        crc <<= 1;
-                        if ((c & j) > 0) {
-                            highBit ^= crcHighBitMask;
-                        }
-                        if (highBit > 0) {
-                            crc ^= 0x1021;
-                        }
+            /**
+             * Lookup table for the reflected CRC-16/CCITT polynomial (0x1021 reflected is 0x8408)
+             */
+            private static final int[] CRC_TABLE = new int[256];
+
+            static {
+                for (int i = 0; i < 256; i++) {
+                    int crc = i;
+                    for (int j = 0; j < 8; j++) {
+                        if ((crc & 1) != 0)
+                            crc = (crc >>> 1) ^ 0x8408;
+                        else
+                            crc >>>= 1;
                     }
+                    CRC_TABLE[i] = crc;
                 }
-
-                crc = reflect(crc, 16);
-                crc ^= 0xffff;
-                crc &= 0xffff;
-
-                return crc;
             }
 
-            private static int reflect(int crc, int n) {
-                int j = 1, crcout = 0;
-                for (int i = (1 << (n - 1)); i > 0; i >>= 1) {
-                    if ((crc & i) > 0) {
-                        crcout |= j;
-                    }
-                    j <<= 1;
+            /**
+             * Same result as Qt's qChecksum, computed one byte at a time
+             */
+            static int qChecksum(@NonNull byte[] data) {
+                int crc = 0xffff;
+                for (byte b : data) {
+                    crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ b) & 0xff];
                 }
-                return crcout;
+                return (~crc) & 0xffff;
             }
         }
     }
@@ -119,8 +113,15 @@ public class MessageFormattingHelper {
             0xFF006cad, 0xFF0099cc, 0xFFb300cc, 0xFFcc004d,
     };
 
+    private static final LruCache<String, Integer> senderColorCache = new LruCache<>(512);
+
     public static int getSenderColor(String nick) {
-        return senderColors[IrcUserUtils.getSenderColor(nick) % senderColors.length];
+        Integer color = senderColorCache.get(nick);
+        if (color == null) {
+            color = senderColors[IrcUserUtils.getSenderColor(nick) % senderColors.length];
+            senderColorCache.put(nick, color);
+        }
+        return color;
     }
 
     public static class NickFormatter {
@@ -25,14 +25,15 @@ package com.iskrembilen.quasseldroid.util;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.graphics.Typeface;
 import android.preference.PreferenceManager;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
 import android.text.style.UnderlineSpan;
 import android.util.Log;
 
@@ -167,155 +168,61 @@ public class MessageUtil {
      */
     public static SpannableString parseStyleCodes(Context context, String content, boolean parse) {
         if (!parse) {
-            return new SpannableString(content
-                    .replaceAll("\\x02","")
-                    .replaceAll("\\x0F","")
-                    .replaceAll("\\x1D","")
-                    .replaceAll("\\x1F","")
-                    .replaceAll("\\x03[0-9]{1,2}(,[0-9]{1,2})?","")
-                    .replaceAll("\\x03",""));
+            return new SpannableString(MircFormatParser.strip(content));
         }
 
-        final char boldIndicator = 2;
-        final char normalIndicator = 15;
-        final char italicIndicator = 29;
-        final char underlineIndicator = 31;
-        final char colorIndicator = 3;
-
-        if (content.indexOf(boldIndicator) == -1
-                && content.indexOf(italicIndicator) == -1
-                && content.indexOf(underlineIndicator) == -1
-                && content.indexOf(colorIndicator) == -1)
+        if (!MircFormatParser.containsFormatting(content))
             return new SpannableString(content);
 
-        SpannableStringBuilder newString = new SpannableStringBuilder(content);
-
-        int start, end, endSearchOffset, startIndicatorLength, style, fg, bg;
-        while (true) {
-            content = newString.toString();
-            start = -1;
-            end = -1;
-            startIndicatorLength = 1;
-            style = 0;
-            fg = -1;
-            bg = -1;
-
-            // Colors?
-            if (start == -1) {
-                start = content.indexOf(colorIndicator);
-
-                if (start != -1) {
-                    // Note that specifying colour codes here is optional, as the same indicator will cancel existing colours
-                    endSearchOffset = start + 1;
-                    if (endSearchOffset < content.length()) {
-                        if (Character.isDigit(content.charAt(endSearchOffset))) {
-                            if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
-                                fg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 2));
-                                endSearchOffset += 2;
-                            } else {
-                                fg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 1));
-                                endSearchOffset += 1;
-                            }
-
-                            if (endSearchOffset < content.length() && content.charAt(endSearchOffset) == ',') {
-                                if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
-                                    endSearchOffset++;
-                                    if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
-                                        bg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 2));
-                                        endSearchOffset += 2;
-                                    } else {
-                                        bg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 1));
-                                        endSearchOffset += 1;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    startIndicatorLength = endSearchOffset - start;
-
-                    end = content.indexOf(colorIndicator, endSearchOffset);
-                }
-            }
-
-            if (start == -1) {
-                start = content.indexOf(boldIndicator);
-                if (start != -1) {
-                    end = content.indexOf(boldIndicator, start + 1);
-                    style = Typeface.BOLD;
-                }
-            }
-
-            if (start == -1) {
-                start = content.indexOf(italicIndicator);
-                if (start != -1) {
-                    end = content.indexOf(italicIndicator, start + 1);
-                    style = Typeface.ITALIC;
-                }
-            }
-
-            if (start == -1) {
-                start = content.indexOf(underlineIndicator);
-                if (start != -1) {
-                    end = content.indexOf(underlineIndicator, start + 1);
-                    style = -1;
-                }
+        MircFormatParser.Result result = MircFormatParser.parse(content, true);
+        SpannableString newString = new SpannableString(result.text);
+        Resources resources = context.getResources();
+
+        for (MircFormatParser.Run run : result.runs) {
+            int style = 0;
+            if (run.hasFlag(MircFormatParser.BOLD))
+                style |= Typeface.BOLD;
+            if (run.hasFlag(MircFormatParser.ITALIC))
+                style |= Typeface.ITALIC;
+            if (style != 0)
+                newString.setSpan(new StyleSpan(style), run.start, run.end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+
+            if (run.hasFlag(MircFormatParser.UNDERLINE))
+                newString.setSpan(new UnderlineSpan(), run.start, run.end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+
+            if (run.hasFlag(MircFormatParser.MONOSPACE))
+                newString.setSpan(new TypefaceSpan("monospace"), run.start, run.end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+
+            Integer fg = resolveColor(resources, run.fg);
+            Integer bg = resolveColor(resources, run.bg);
+            if (run.hasFlag(MircFormatParser.REVERSE)) {
+                Integer reversedFg = (bg != null) ? bg : ThemeUtil.Color.chatReverse;
+                bg = (fg != null) ? fg : ThemeUtil.Color.chatPlain;
+                fg = reversedFg;
             }
 
-            if (start == -1)
-                break;
-
-            int norm = content.indexOf(normalIndicator, start + 1);
-            if (norm != -1 && (end == -1 || norm < end))
-                end = norm;
-
-            if (end == -1)
-                end = content.length();
-
-            if (end - (start + startIndicatorLength) > 0) {
-                // Only set spans if there's any text between start & end
-                if (style == -1) {
-                    newString.setSpan(new UnderlineSpan(), start, end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                } else {
-                    newString.setSpan(new StyleSpan(style), start, end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                }
-
-                if (fg != -1 && mircCodeToColor(fg)!=android.R.color.transparent) {
-                    newString.setSpan(new ForegroundColorSpan(context.getResources()
-                            .getColor(mircCodeToColor(fg))), start, end,
-                            Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                }
-                if (bg != -1 && mircCodeToColor(fg)!=android.R.color.transparent) {
-                    newString.setSpan(new BackgroundColorSpan(context.getResources()
-                            .getColor(mircCodeToColor(bg))), start, end,
-                            Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                }
-            }
-
-            // Intentionally don't remove "normal" indicators or color here, as they are multi-purpose
-            if (end < content.length() && (content.charAt(end) == boldIndicator
-                    || content.charAt(end) == italicIndicator
-                    || content.charAt(end) == underlineIndicator))
-                newString.delete(end, end + 1);
-
-            newString.delete(start, start + startIndicatorLength);
+            if (fg != null)
+                newString.setSpan(new ForegroundColorSpan(fg), run.start, run.end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+            if (bg != null)
+                newString.setSpan(new BackgroundColorSpan(bg), run.start, run.end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
         }
 
-        // NOW we remove the "normal" and color indicator
-        while (true) {
-            content = newString.toString();
-            int normPos = content.indexOf(normalIndicator);
-            if (normPos != -1)
-                newString.delete(normPos, normPos + 1);
-
-            int colorPos = content.indexOf(colorIndicator);
-            if (colorPos != -1)
-                newString.delete(colorPos, colorPos + 1);
-
-            if (normPos == -1 && colorPos == -1)
-                break;
-        }
+        return newString;
+    }
 
-        return new SpannableString(newString);
+    /**
+     * @return the ARGB value of a color parsed by {@link MircFormatParser}, or null if it should not be drawn
+     */
+    private static Integer resolveColor(Resources resources, int color) {
+        if (color == MircFormatParser.NO_COLOR)
+            return null;
+        if (MircFormatParser.isHexColor(color))
+            return 0xFF000000 | MircFormatParser.hexColorToRgb(color);
+
+        int colorRes = mircCodeToColor(color);
+        if (colorRes == android.R.color.transparent)
+            return null;
+        return resources.getColor(colorRes);
     }
 
     public static int mircCodeToColor(int code) {
@@ -0,0 +1,286 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass parser for mIRC style codes.
+ *
+ * Walks the raw message once, strips every formatting code and records the
+ * runs of text that share the same style, so the caller can turn them into
+ * spans without any further scanning of the string.
+ */
+public class MircFormatParser {
+    public static final char CODE_BOLD = 0x02;
+    public static final char CODE_COLOR = 0x03;
+    public static final char CODE_HEX_COLOR = 0x04;
+    public static final char CODE_NORMAL = 0x0F;
+    public static final char CODE_MONOSPACE = 0x11;
+    public static final char CODE_REVERSE = 0x16;
+    public static final char CODE_ITALIC = 0x1D;
+    public static final char CODE_UNDERLINE = 0x1F;
+
+    public static final int BOLD = 1;
+    public static final int ITALIC = 1 << 1;
+    public static final int UNDERLINE = 1 << 2;
+    public static final int REVERSE = 1 << 3;
+    public static final int MONOSPACE = 1 << 4;
+
+    /**
+     * Colors are either a mIRC color code (0-99) or, if {@link #HEX_COLOR} is set, a 24-bit RGB value
+     */
+    public static final int NO_COLOR = -1;
+    public static final int HEX_COLOR = 1 << 24;
+
+    public static class Run {
+        public final int start;
+        public final int end;
+        public final int flags;
+        public final int fg;
+        public final int bg;
+
+        Run(int start, int end, int flags, int fg, int bg) {
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+            this.fg = fg;
+            this.bg = bg;
+        }
+
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{" + start + "-" + end + ", flags=" + flags + ", fg=" + fg + ", bg=" + bg + "}";
+        }
+    }
+
+    public static class Result {
+        public final String text;
+        public final List<Run> runs;
+
+        Result(String text, List<Run> runs) {
+            this.text = text;
+            this.runs = runs;
+        }
+    }
+
+    public static boolean isHexColor(int color) {
+        return color != NO_COLOR && (color & HEX_COLOR) != 0;
+    }
+
+    public static int hexColorToRgb(int color) {
+        return color & 0xFFFFFF;
+    }
+
+    public static boolean containsFormatting(CharSequence content) {
+        for (int i = 0; i < content.length(); i++) {
+            if (isFormatCode(content.charAt(i)))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isFormatCode(char c) {
+        switch (c) {
+            case CODE_BOLD:
+            case CODE_COLOR:
+            case CODE_HEX_COLOR:
+            case CODE_NORMAL:
+            case CODE_MONOSPACE:
+            case CODE_REVERSE:
+            case CODE_ITALIC:
+            case CODE_UNDERLINE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Removes all formatting codes, without collecting any runs
+     */
+    public static String strip(CharSequence content) {
+        return parse(content, false).text;
+    }
+
+    /**
+     * Parses the content in one pass.
+     *
+     * @param content     the raw message content
+     * @param collectRuns whether to record style runs, or only strip the codes
+     * @return the stripped text and, if requested, the style runs in ascending order
+     */
+    public static Result parse(CharSequence content, boolean collectRuns) {
+        final int length = content.length();
+        StringBuilder out = new StringBuilder(length);
+        List<Run> runs = collectRuns ? new ArrayList<Run>() : null;
+
+        int flags = 0;
+        int fg = NO_COLOR;
+        int bg = NO_COLOR;
+        int runStart = 0;
+
+        int i = 0;
+        while (i < length) {
+            char c = content.charAt(i);
+            if (!isFormatCode(c)) {
+                out.append(c);
+                i++;
+                continue;
+            }
+
+            int newFlags = flags;
+            int newFg = fg;
+            int newBg = bg;
+            i++;
+
+            switch (c) {
+                case CODE_BOLD:
+                    newFlags ^= BOLD;
+                    break;
+                case CODE_ITALIC:
+                    newFlags ^= ITALIC;
+                    break;
+                case CODE_UNDERLINE:
+                    newFlags ^= UNDERLINE;
+                    break;
+                case CODE_REVERSE:
+                    newFlags ^= REVERSE;
+                    break;
+                case CODE_MONOSPACE:
+                    newFlags ^= MONOSPACE;
+                    break;
+                case CODE_NORMAL:
+                    newFlags = 0;
+                    newFg = NO_COLOR;
+                    newBg = NO_COLOR;
+                    break;
+                case CODE_COLOR: {
+                    // Note that specifying color codes is optional, the bare indicator cancels existing colors
+                    int end = scanDecimal(content, i);
+                    if (end == i) {
+                        newFg = NO_COLOR;
+                        newBg = NO_COLOR;
+                        break;
+                    }
+                    newFg = parseDecimal(content, i, end);
+                    i = end;
+                    if (i < length && content.charAt(i) == ',') {
+                        end = scanDecimal(content, i + 1);
+                        if (end != i + 1) {
+                            newBg = parseDecimal(content, i + 1, end);
+                            i = end;
+                        }
+                    }
+                    break;
+                }
+                case CODE_HEX_COLOR: {
+                    if (!isHex(content, i)) {
+                        newFg = NO_COLOR;
+                        newBg = NO_COLOR;
+                        break;
+                    }
+                    newFg = parseHex(content, i) | HEX_COLOR;
+                    i += 6;
+                    if (i < length && content.charAt(i) == ',' && isHex(content, i + 1)) {
+                        newBg = parseHex(content, i + 1) | HEX_COLOR;
+                        i += 7;
+                    }
+                    break;
+                }
+            }
+
+            if (newFlags != flags || newFg != fg || newBg != bg) {
+                if (collectRuns)
+                    addRun(runs, runStart, out.length(), flags, fg, bg);
+                runStart = out.length();
+                flags = newFlags;
+                fg = newFg;
+                bg = newBg;
+            }
+        }
+        if (collectRuns)
+            addRun(runs, runStart, out.length(), flags, fg, bg);
+
+        return new Result(out.toString(), runs);
+    }
+
+    private static void addRun(List<Run> runs, int start, int end, int flags, int fg, int bg) {
+        // Only unstyled text and empty runs are skipped, everything else needs a span
+        if (end > start && (flags != 0 || fg != NO_COLOR || bg != NO_COLOR))
+            runs.add(new Run(start, end, flags, fg, bg));
+    }
+
+    private static int scanDecimal(CharSequence content, int start) {
+        int end = start;
+        while (end < content.length() && end - start < 2) {
+            char c = content.charAt(end);
+            if (c < '0' || c > '9')
+                break;
+            end++;
+        }
+        return end;
+    }
+
+    private static int parseDecimal(CharSequence content, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (content.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static boolean isHex(CharSequence content, int start) {
+        if (start + 6 > content.length())
+            return false;
+        for (int i = start; i < start + 6; i++) {
+            if (hexDigit(content.charAt(i)) == -1)
+                return false;
+        }
+        return true;
+    }
+
+    private static int parseHex(CharSequence content, int start) {
+        int value = 0;
+        for (int i = start; i < start + 6; i++) {
+            value = (value << 4) | hexDigit(content.charAt(i));
+        }
+        return value;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+}
@@ -37,7 +37,8 @@ public class NetsplitHelper {
         String[] splitString = netsplitString.split("#:#");
         for (int i = 0; i < splitString.length; i++) {
             if (i < splitString.length - 1) {
-                nicks.add(splitString[i].split("!")[0]);
+                int nickEnd = splitString[i].indexOf('!');
+                nicks.add((nickEnd == -1 ? splitString[i] : splitString[i].substring(0, nickEnd)).intern());
             } else if (i == splitString.length - 1) {
                 String[] sides = splitString[i].split(" ");
                 if (sides.length > 1) {
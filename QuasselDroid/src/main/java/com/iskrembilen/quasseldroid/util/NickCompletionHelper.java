@@ -26,15 +26,17 @@ package com.iskrembilen.quasseldroid.util;
 import android.widget.EditText;
 import android.widget.Filter;
 
+import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.IrcUser;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
+/**
+ * Completes the nick being typed from the users of a buffer, the users that spoke last come first
+ */
 public class NickCompletionHelper extends Filter {
 
-    private List<IrcUser> users;
+    private final Buffer buffer;
     private int nickStart = 0;
     private EditText inputField;
 
@@ -42,8 +44,8 @@ public class NickCompletionHelper extends Filter {
     private FilterResults lastFilteredResults = null;
     private int lastFilteredIndex = 0;
 
-    public NickCompletionHelper(ArrayList<IrcUser> userList) {
-        users = userList;
+    public NickCompletionHelper(Buffer buffer) {
+        this.buffer = buffer;
     }
 
     @SuppressWarnings("unchecked")
@@ -69,12 +71,9 @@ public class NickCompletionHelper extends Filter {
 
     @Override
     protected FilterResults performFiltering(CharSequence constraint) {
-        List<IrcUser> filteredUsers = new ArrayList<IrcUser>();
-        for (IrcUser user : users) {
-            if (user.nick.toLowerCase(Locale.US).startsWith(((String) constraint).toLowerCase(Locale.US))) {
-                filteredUsers.add(user);
-            }
-        }
+        // The users are kept in a prefix tree that follows the channel, so this doesn't go stale
+        List<IrcUser> filteredUsers = buffer.getUsers().findUsersByNickPrefix(constraint.toString());
+        buffer.getRecentSpeakers().rank(filteredUsers);
         FilterResults filterResults = new FilterResults();
         filterResults.values = filteredUsers;
         filterResults.count = filteredUsers.size();
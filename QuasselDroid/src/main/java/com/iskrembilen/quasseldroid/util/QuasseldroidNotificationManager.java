@@ -32,6 +32,9 @@ import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.text.Spannable;
@@ -39,14 +42,12 @@ import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.style.StyleSpan;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.google.common.base.Optional;
 import com.iskrembilen.quasseldroid.protocol.state.Buffer;
 import com.iskrembilen.quasseldroid.protocol.state.BufferInfo;
 import com.iskrembilen.quasseldroid.protocol.state.Client;
 import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
-import com.iskrembilen.quasseldroid.protocol.state.NetworkCollection;
 import com.iskrembilen.quasseldroid.Quasseldroid;
 import com.iskrembilen.quasseldroid.R;
 import com.iskrembilen.quasseldroid.events.InitProgressEvent;
@@ -55,32 +56,91 @@ import com.iskrembilen.quasseldroid.gui.MainActivity;
 import com.iskrembilen.quasseldroid.service.CoreConnService;
 import com.squareup.otto.Subscribe;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Shows the connection state and the highlights in the persistent notification.
+ * <p>
+ * New highlights only update small per-buffer summaries. The notification itself is built on a
+ * separate thread, at most once per update interval, so a flood of highlights doesn't keep the
+ * thread that applies the session state busy.
+ */
 public class QuasseldroidNotificationManager {
 
     //TODO: lots of duplicate code in this class, clean up
 
+    public static final long DEFAULT_UPDATE_INTERVAL = 1000;
+    /**
+     * The expanded notification only has room for a few lines, older highlights are only counted
+     */
+    private static final int MAX_MESSAGES_PER_BUFFER = 5;
+
+    private static HandlerThread notificationThread;
+
     private Context context;
     private SharedPreferences preferences;
-    private final List<Integer> highlightedBuffers = new ArrayList<>();
-    private final SparseArray<List<IrcMessage>> highlightedMessages = new SparseArray<>();
-    private List<Integer> buffers = new ArrayList<>();
+    // Buffers with highlights in the order they got their first one
+    private final LinkedHashMap<Integer, BufferSummary> highlights = new LinkedHashMap<>();
+    private int highlightedMessageCount = 0;
+    private long activitySequence = 0;
+
+    private final Handler notificationHandler;
+    private boolean updateScheduled = false;
+    private volatile long lastUpdate = 0;
+    private volatile long updateInterval = DEFAULT_UPDATE_INTERVAL;
 
     android.app.NotificationManager notifyManager;
-    private boolean connected = false;
-    private boolean initDone = false;
-    private boolean pendingHighlightNotification;
+    private volatile boolean connected = false;
+    private volatile boolean initDone = false;
+    private volatile boolean pendingHighlightNotification;
     private PendingIntent contentIntent;
     private String init_progress;
 
+    /**
+     * The highlights of one buffer, only the latest few messages are kept
+     */
+    private static class BufferSummary {
+        final ArrayDeque<IrcMessage> messages;
+        BufferInfo info;
+        int count;
+        long lastActivity;
+
+        BufferSummary() {
+            messages = new ArrayDeque<>(MAX_MESSAGES_PER_BUFFER);
+        }
+
+        BufferSummary(BufferSummary other) {
+            messages = new ArrayDeque<>(other.messages);
+            info = other.info;
+            count = other.count;
+            lastActivity = other.lastActivity;
+        }
+
+        /**
+         * @return false if the message was already added
+         */
+        boolean add(IrcMessage message) {
+            for (IrcMessage m : messages) {
+                if (m == message)
+                    return false;
+            }
+            if (messages.size() == MAX_MESSAGES_PER_BUFFER)
+                messages.pollFirst();
+            messages.addLast(message);
+            info = message.bufferInfo;
+            count++;
+            return true;
+        }
+    }
+
     public QuasseldroidNotificationManager(Context context) {
         this.context = context;
         preferences = PreferenceManager.getDefaultSharedPreferences(context);
         notifyManager = (android.app.NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationHandler = new Handler(getNotificationThread().getLooper());
         //Remove any disconnect notification since we are connecting again
         notifyManager.cancel(R.id.NOTIFICATION_DISCONNECTED);
         BusProvider.getInstance().register(this);
@@ -89,7 +149,7 @@ public class QuasseldroidNotificationManager {
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
                 if (key.equals(QuasseldroidNotificationManager.this.context.getResources().getString(R.string.preference_notify_hide_persistence))
                         && connected
-                        && highlightedMessages.size() == 0) {
+                        && getHighlightedMessageCount() == 0) {
                     notifyConnected(false);
                 }
             }
@@ -97,22 +157,51 @@ public class QuasseldroidNotificationManager {
         PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(sharedPreferenceListener);
     }
 
+    private static synchronized HandlerThread getNotificationThread() {
+        if (notificationThread == null) {
+            notificationThread = new HandlerThread("Notifications");
+            notificationThread.start();
+        }
+        return notificationThread;
+    }
+
+    /**
+     * Set the minimum time between two updates of the highlight notification
+     */
+    public void setUpdateInterval(long updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    /**
+     * Notifications are posted from one thread in the order they were requested, so a highlight
+     * update that was built a moment ago can't replace a newer notification
+     */
+    private void post(final int id, final Notification notification) {
+        notificationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyManager.notify(id, notification);
+            }
+        });
+    }
+
     public void notifyHighlightsRead(Integer bufferId) {
         Log.d(getClass().getSimpleName(), String.format("Intent. Setting highlights read for buffer %d", bufferId));
-        synchronized (highlightedBuffers) {
-            if (highlightedBuffers.contains(bufferId)) {
-                highlightedMessages.remove(bufferId);
-                highlightedBuffers.remove(bufferId);
-                buffers.remove((Integer) bufferId);
-                if (highlightedBuffers.size() == 0) {
-                    notifyConnected(false);
-                } else if (!connected) {
-                    notifyConnected(false);
-                    pendingHighlightNotification = true;
-                } else {
-                    notifyHighlights();
-                }
-            }
+        boolean empty;
+        synchronized (highlights) {
+            BufferSummary summary = highlights.remove(bufferId);
+            if (summary == null)
+                return;
+            highlightedMessageCount -= summary.count;
+            empty = highlights.isEmpty();
+        }
+        if (empty) {
+            notifyConnected(false);
+        } else if (!connected) {
+            notifyConnected(false);
+            pendingHighlightNotification = true;
+        } else {
+            notifyHighlights();
         }
     }
 
@@ -166,7 +255,7 @@ public class QuasseldroidNotificationManager {
             builder.addAction(R.drawable.ic_disconnect,context.getString(R.string.action_disconnect),actionIntent);
 
             // Send the notification.
-            notifyManager.notify(R.id.NOTIFICATION, builder.build());
+            post(R.id.NOTIFICATION, builder.build());
         }
     }
 
@@ -209,31 +298,25 @@ public class QuasseldroidNotificationManager {
 
     public void notifyConnecting(Optional<String> status) {
         // Send the notification.
-        notifyManager.notify(R.id.NOTIFICATION, getConnectingNotification(status));
+        post(R.id.NOTIFICATION, getConnectingNotification(status));
     }
 
     public void addMessage(IrcMessage message) {
-        synchronized (highlightedBuffers) {
-
-            Buffer buffer = Client.getInstance().getNetworks().getBufferById(message.bufferInfo.id);
-            if (buffer.getLastSeenMessage() >= message.messageId)
-                return;
-
-            // If the buffer in question isn’t in the list of highlighted buffers, add it
-            if (!highlightedBuffers.contains(message.bufferInfo.id)) {
-                highlightedBuffers.add(message.bufferInfo.id);
-                // If the buffer has had no highlights yet, add a new list of highlights
-                if (highlightedMessages.get(message.bufferInfo.id) == null)
-                    highlightedMessages.put(message.bufferInfo.id, new ArrayList<IrcMessage>());
+        Buffer buffer = Client.getInstance().getNetworks().getBufferById(message.bufferInfo.id);
+        if (buffer != null && buffer.getLastSeenMessage() >= message.messageId)
+            return;
+
+        synchronized (highlights) {
+            BufferSummary summary = highlights.get(message.bufferInfo.id);
+            if (summary == null) {
+                summary = new BufferSummary();
+                highlights.put(message.bufferInfo.id, summary);
             }
-            if (!highlightedMessages.get(message.bufferInfo.id).contains(message))
-                highlightedMessages.get(message.bufferInfo.id).add(message);
-        }
-
-        if (buffers.contains(message.bufferInfo.id)) {
-            buffers.remove((Integer) message.bufferInfo.id);
+            if (!summary.add(message))
+                return;
+            summary.lastActivity = ++activitySequence;
+            highlightedMessageCount++;
         }
-        buffers.add(message.bufferInfo.id);
 
         pendingHighlightNotification = true;
 
@@ -242,209 +325,212 @@ public class QuasseldroidNotificationManager {
     }
 
     int getHighlightedMessageCount() {
-        synchronized (highlightedBuffers) {
-            int res = 0;
-            for (Integer bufferId : highlightedBuffers) {
-                res += highlightedMessages.get(bufferId).size();
-            }
-            return res;
+        synchronized (highlights) {
+            return highlightedMessageCount;
         }
     }
 
+    /**
+     * Schedule an update of the highlight notification. Updates requested while one is
+     * scheduled are merged into it.
+     */
     public void notifyHighlights() {
         if (!connected || !initDone) return;
 
-        synchronized (highlightedBuffers) {
-            boolean displayColors = PreferenceManager.getDefaultSharedPreferences(context).getBoolean(context.getString(R.string.preference_colored_text), true);
+        synchronized (highlights) {
+            if (updateScheduled)
+                return;
+            updateScheduled = true;
+        }
+        long delay = lastUpdate + updateInterval - SystemClock.uptimeMillis();
+        notificationHandler.postDelayed(updateHighlights, Math.max(delay, 0));
+    }
+
+    private final Runnable updateHighlights = new Runnable() {
+        @Override
+        public void run() {
+            List<BufferSummary> summaries;
+            int messageCount;
+            synchronized (highlights) {
+                updateScheduled = false;
+                summaries = new ArrayList<>(highlights.size());
+                for (BufferSummary summary : highlights.values()) {
+                    summaries.add(new BufferSummary(summary));
+                }
+                messageCount = highlightedMessageCount;
+            }
+            lastUpdate = SystemClock.uptimeMillis();
+            // Read or cleared in the meantime, the connected notification replaced it already
+            if (!connected || summaries.isEmpty())
+                return;
+            showHighlights(summaries, messageCount);
+        }
+    };
+
+    private void showHighlights(List<BufferSummary> summaries, int highlightedMessageCount) {
+        boolean displayColors = preferences.getBoolean(context.getString(R.string.preference_colored_text), true);
 
-            int defaults = 0;
+        int defaults = 0;
 
-            Resources res = context.getResources();
+        Resources res = context.getResources();
 
-            int highlightedMessageCount = getHighlightedMessageCount();
+        // Building the base notification
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
+        builder.setSmallIcon(R.drawable.stat_highlight)
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                .setWhen(System.currentTimeMillis())
+                .setNumber(highlightedMessageCount);
 
-            // Building the base notification
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
-            builder.setSmallIcon(R.drawable.stat_highlight)
-                    .setPriority(NotificationCompat.PRIORITY_DEFAULT)
-                    .setWhen(System.currentTimeMillis())
-                    .setNumber(highlightedMessageCount);
+        if (summaries.size() == 1 && summaries.get(0).count == 1) {
+            IrcMessage message = summaries.get(0).messages.getFirst();
 
-            if (highlightedBuffers.size() == 1 && highlightedMessages.get(highlightedBuffers.get(0)).size() == 1) {
-                IrcMessage message = highlightedMessages.get(highlightedBuffers.get(0)).get(0);
+            builder.setContentTitle(message.bufferInfo.name)
+                    .setContentText(MessageUtil.parseStyleCodes(context, String.format("%s: %s", message.getNick(), message.content), displayColors));
+        } else if (summaries.size() == 1) {
+            BufferSummary summary = summaries.get(0);
+            String title = String.format(
+                    res.getString(R.string.notification_hightlights_on_buffers),
+                    res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
+                    summary.info.name);
 
-                builder.setContentTitle(message.bufferInfo.name)
-                        .setContentText(MessageUtil.parseStyleCodes(context, String.format("%s: %s", message.getNick(), message.content), displayColors));
-            } else if (highlightedBuffers.size() == 1) {
-                NetworkCollection networks = Client.getInstance().getNetworks();
-                Buffer buffer = networks.getBufferById(highlightedBuffers.get(0));
-                List<IrcMessage> messages = highlightedMessages.get(highlightedBuffers.get(0));
+            builder.setContentTitle(summary.info.name)
+                    .setContentText(title);
 
-                builder.setContentTitle(buffer.getInfo().name)
-                        .setContentText(
-                                String.format(
-                                        res.getString(R.string.notification_hightlights_on_buffers),
-                                        res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
-                                        buffer.getInfo().name));
+            NotificationCompat.InboxStyle inboxStyle =
+                    new NotificationCompat.InboxStyle();
 
-                NotificationCompat.InboxStyle inboxStyle =
-                        new NotificationCompat.InboxStyle();
+            // Sets a title for the Inbox in expanded layout
+            inboxStyle.setBigContentTitle(title);
 
-                // Sets a title for the Inbox in expanded layout
-                inboxStyle.setBigContentTitle(
-                        String.format(
-                                res.getString(R.string.notification_hightlights_on_buffers),
-                                res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
-                                buffer.getInfo().name));
+            // Moves events into the expanded layout
+            addLines(inboxStyle, summary, displayColors);
 
-                // Moves events into the expanded layout
+            // Moves the expanded layout object into the notification object.
+            builder.setStyle(inboxStyle);
+        } else {
+            String title = String.format(
+                    res.getString(R.string.notification_hightlights_on_buffers),
+                    res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
+                    res.getQuantityString(R.plurals.notification_on_x_buffers, summaries.size(), summaries.size()));
 
-                if (buffer.getInfo().type == BufferInfo.Type.QueryBuffer) {
-                    SpannableString s;
+            builder.setContentTitle(context.getText(R.string.app_name))
+                    .setContentText(title);
 
-                    for (IrcMessage m : messages) {
+            NotificationCompat.InboxStyle inboxStyle =
+                    new NotificationCompat.InboxStyle();
+
+            // Sets a title for the Inbox in expanded layout
+            inboxStyle.setBigContentTitle(title);
+
+            // Moves events into the expanded layout
+            for (BufferSummary summary : summaries) {
+                if (summary.count == 1) {
+                    IrcMessage m = summary.messages.getFirst();
+                    SpannableString s;
+                    if (m.bufferInfo.type == BufferInfo.Type.QueryBuffer) {
                         s = MessageUtil.parseStyleCodes(context, String.format("%s: %s", m.getNick(), m.content), displayColors);
                         s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.getNick().length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                        inboxStyle.addLine(s);
+                    } else {
+                        s = MessageUtil.parseStyleCodes(context, String.format("%s %s: %s", m.bufferInfo.name, m.getNick(), m.content), displayColors);
+                        s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.bufferInfo.name.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
                     }
-                } else {
-                    SpannableStringBuilder s = new SpannableStringBuilder(buffer.getInfo().name);
-                    s.append(":");
-                    s.setSpan(new StyleSpan(Typeface.BOLD), 0, buffer.getInfo().name.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-
                     inboxStyle.addLine(s);
-                    for (IrcMessage m : messages) {
-                        inboxStyle.addLine(String.format("  %s: %s", m.getNick(), m.content));
-                    }
-                }
-
-                // Moves the expanded layout object into the notification object.
-                builder.setStyle(inboxStyle);
-            } else {
-                builder.setContentTitle(context.getText(R.string.app_name))
-                        .setContentText(
-                                String.format(
-                                        res.getString(R.string.notification_hightlights_on_buffers),
-                                        res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
-                                        res.getQuantityString(R.plurals.notification_on_x_buffers, highlightedBuffers.size(), highlightedBuffers.size())));
-
-                NotificationCompat.InboxStyle inboxStyle =
-                        new NotificationCompat.InboxStyle();
-
-                // Sets a title for the Inbox in expanded layout
-                inboxStyle.setBigContentTitle(
-                        String.format(
-                                res.getString(R.string.notification_hightlights_on_buffers),
-                                res.getQuantityString(R.plurals.notification_x_highlights, highlightedMessageCount, highlightedMessageCount),
-                                res.getQuantityString(R.plurals.notification_on_x_buffers, highlightedBuffers.size(), highlightedBuffers.size())));
-
-                synchronized (highlightedBuffers) {
-                    // Moves events into the expanded layout
-                    for (Integer bufferId : highlightedBuffers) {
-                        Buffer buffer = Client.getInstance().getNetworks().getBufferById(bufferId);
-                        List<IrcMessage> messages = highlightedMessages.get(bufferId);
-
-                        if (messages.size() == 1) {
-                            IrcMessage m = messages.get(0);
-                            SpannableString s;
-                            if (m.bufferInfo.type == BufferInfo.Type.QueryBuffer) {
-                                s = MessageUtil.parseStyleCodes(context, String.format("%s: %s", m.getNick(), m.content), displayColors);
-                                s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.getNick().length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                            } else {
-                                s = MessageUtil.parseStyleCodes(context, String.format("%s %s: %s", m.bufferInfo.name, m.getNick(), m.content), displayColors);
-                                s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.bufferInfo.name.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                            }
-                            inboxStyle.addLine(s);
-                        } else if (buffer.getInfo().type == BufferInfo.Type.QueryBuffer) {
-                            SpannableString s;
-
-                            for (IrcMessage m : messages) {
-                                s = MessageUtil.parseStyleCodes(context, String.format("%s: %s", m.getNick(), m.content), displayColors);
-                                s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.getNick().length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                                inboxStyle.addLine(s);
-                            }
-                        } else {
-                            SpannableStringBuilder s = new SpannableStringBuilder(buffer.getInfo().name);
-                            s.append(":");
-                            s.setSpan(new StyleSpan(Typeface.BOLD), 0, buffer.getInfo().name.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-
-                            inboxStyle.addLine(s);
-                            for (IrcMessage m : messages) {
-                                inboxStyle.addLine(String.format("  %s: %s", m.getNick(), m.content));
-                            }
-                        }
-                    }
+                } else {
+                    addLines(inboxStyle, summary, displayColors);
                 }
-                // Moves the expanded layout object into the notification object.
-                builder.setStyle(inboxStyle);
             }
+            // Moves the expanded layout object into the notification object.
+            builder.setStyle(inboxStyle);
+        }
 
-            builder.setColor(ThemeUtil.Color.chatHighlight);
-            if (hasDirectMessage()) {
-                builder.setCategory(NotificationCompat.CATEGORY_MESSAGE);
-            } else {
-                builder.setCategory(NotificationCompat.CATEGORY_SOCIAL);
-            }
+        builder.setColor(ThemeUtil.Color.chatHighlight);
+        if (hasDirectMessage(summaries)) {
+            builder.setCategory(NotificationCompat.CATEGORY_MESSAGE);
+        } else {
+            builder.setCategory(NotificationCompat.CATEGORY_SOCIAL);
+        }
 
-            Intent launch = new Intent(context, MainActivity.class);
-            if (!buffers.isEmpty()) launch.putExtra("extraBufferId", buffers.get(0));
-            launch.putExtra("extraDrawer", false);
+        // Open the buffer that has been waiting the longest
+        BufferSummary oldest = summaries.get(0);
+        for (BufferSummary summary : summaries) {
+            if (summary.lastActivity < oldest.lastActivity)
+                oldest = summary;
+        }
+        Intent launch = new Intent(context, MainActivity.class);
+        launch.putExtra("extraBufferId", oldest.info.id);
+        launch.putExtra("extraDrawer", false);
 
-            Uri.Builder uriBuilder = new Uri.Builder();
-            uriBuilder.scheme("content");
-            uriBuilder.path(Quasseldroid.class.getCanonicalName());
-            uriBuilder.appendPath("open-buffer");
-            launch.setData(uriBuilder.build());
+        Uri.Builder uriBuilder = new Uri.Builder();
+        uriBuilder.scheme("content");
+        uriBuilder.path(Quasseldroid.class.getCanonicalName());
+        uriBuilder.appendPath("open-buffer");
+        launch.setData(uriBuilder.build());
 
-            launch.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            if (contentIntent != null) contentIntent.cancel();
-            contentIntent = PendingIntent.getActivity(context, highlightedMessages.hashCode(), launch, 0);
-            builder.setContentIntent(contentIntent);
+        launch.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        if (contentIntent != null) contentIntent.cancel();
+        contentIntent = PendingIntent.getActivity(context, summaries.hashCode(), launch, 0);
+        builder.setContentIntent(contentIntent);
 
+        if (pendingHighlightNotification) {
+            if (preferences.getBoolean(context.getString(R.string.preference_notification_sound_active), false) &&
+                    !preferences.getBoolean(context.getString(R.string.has_focus), true) &&
+                    preferences.getBoolean(context.getString(R.string.preference_notification_sound), false)) {
 
+                Uri ringtone = Uri.parse(preferences.getString(context.getString(R.string.preference_notification_sound_file), ""));
+                if (ringtone.equals(Uri.EMPTY)) defaults |= Notification.DEFAULT_SOUND;
+                else builder.setSound(ringtone);
+            } else if (!preferences.getBoolean(context.getString(R.string.preference_notification_sound_active), true) &&
+                    preferences.getBoolean(context.getString(R.string.preference_notification_sound), false)) {
 
-            if (pendingHighlightNotification) {
-                if (preferences.getBoolean(context.getString(R.string.preference_notification_sound_active), false) &&
-                        !preferences.getBoolean(context.getString(R.string.has_focus), true) &&
-                        preferences.getBoolean(context.getString(R.string.preference_notification_sound), false)) {
+                Uri ringtone = Uri.parse(preferences.getString(context.getString(R.string.preference_notification_sound_file), ""));
+                if (ringtone.equals(Uri.EMPTY)) defaults |= Notification.DEFAULT_SOUND;
+                else builder.setSound(ringtone);
+            }
+            if (preferences.getBoolean(context.getString(R.string.preference_notification_light), false))
+                defaults |= Notification.DEFAULT_LIGHTS;
+            if (preferences.getBoolean(context.getString(R.string.preference_notification_vibrate), false))
+                defaults |= Notification.DEFAULT_VIBRATE;
 
-                    Uri ringtone = Uri.parse(preferences.getString(context.getString(R.string.preference_notification_sound_file), ""));
-                    if (ringtone.equals(Uri.EMPTY)) defaults |= Notification.DEFAULT_SOUND;
-                    else builder.setSound(ringtone);
-                } else if (!preferences.getBoolean(context.getString(R.string.preference_notification_sound_active), true) &&
-                        preferences.getBoolean(context.getString(R.string.preference_notification_sound), false)) {
+            if (defaults != 0) builder.setDefaults(defaults);
+        }
 
-                    Uri ringtone = Uri.parse(preferences.getString(context.getString(R.string.preference_notification_sound_file), ""));
-                    if (ringtone.equals(Uri.EMPTY)) defaults |= Notification.DEFAULT_SOUND;
-                    else builder.setSound(ringtone);
-                }
-                if (preferences.getBoolean(context.getString(R.string.preference_notification_light), false))
-                    defaults |= Notification.DEFAULT_LIGHTS;
-                if (preferences.getBoolean(context.getString(R.string.preference_notification_vibrate), false))
-                    defaults |= Notification.DEFAULT_VIBRATE;
+        //builder.setColor(Color.parseColor(preferences.getString(context.getString(R.string.preference_notification_light_color), context.getString(R.string.notification_light_color_default))));
 
-                if (defaults != 0) builder.setDefaults(defaults);
-            }
+        // Send the notification.
+        notifyManager.notify(R.id.NOTIFICATION, builder.build());
 
-            //builder.setColor(Color.parseColor(preferences.getString(context.getString(R.string.preference_notification_light_color), context.getString(R.string.notification_light_color_default))));
+        pendingHighlightNotification = false;
+    }
 
-            // Send the notification.
-            notifyManager.notify(R.id.NOTIFICATION, builder.build());
+    /**
+     * Add the kept messages of a buffer with more than one highlight
+     */
+    private void addLines(NotificationCompat.InboxStyle inboxStyle, BufferSummary summary, boolean displayColors) {
+        if (summary.info.type == BufferInfo.Type.QueryBuffer) {
+            SpannableString s;
+
+            for (IrcMessage m : summary.messages) {
+                s = MessageUtil.parseStyleCodes(context, String.format("%s: %s", m.getNick(), m.content), displayColors);
+                s.setSpan(new StyleSpan(Typeface.BOLD), 0, m.getNick().length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+                inboxStyle.addLine(s);
+            }
+        } else {
+            SpannableStringBuilder s = new SpannableStringBuilder(summary.info.name);
+            s.append(":");
+            s.setSpan(new StyleSpan(Typeface.BOLD), 0, summary.info.name.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
 
-            pendingHighlightNotification = false;
+            inboxStyle.addLine(s);
+            for (IrcMessage m : summary.messages) {
+                inboxStyle.addLine(String.format("  %s: %s", m.getNick(), m.content));
+            }
         }
     }
 
-    private boolean hasDirectMessage() {
-        NetworkCollection networks = Client.getInstance().getNetworks();
-        synchronized (highlightedBuffers) {
-            for (Integer bufferId : highlightedBuffers) {
-                Buffer buffer = networks.getBufferById(bufferId);
-
-                // TODO: Maybe add Groupbuffer here as well?
-                if (buffer != null && buffer.getInfo() != null && buffer.getInfo().type == BufferInfo.Type.QueryBuffer)
-                    return true;
-            }
+    private boolean hasDirectMessage(List<BufferSummary> summaries) {
+        for (BufferSummary summary : summaries) {
+            // TODO: Maybe add Groupbuffer here as well?
+            if (summary.info.type == BufferInfo.Type.QueryBuffer)
+                return true;
         }
         return false;
     }
@@ -483,12 +569,13 @@ public class QuasseldroidNotificationManager {
 
         builder.setColor(context.getResources().getColor(R.color.chat_line_error_dark));
         //Send the notification.
-        notifyManager.notify(R.id.NOTIFICATION_DISCONNECTED, builder.build());
+        post(R.id.NOTIFICATION_DISCONNECTED, builder.build());
     }
 
     public void clear() {
-        buffers.clear();
-        highlightedBuffers.clear();
-        highlightedMessages.clear();
+        synchronized (highlights) {
+            highlights.clear();
+            highlightedMessageCount = 0;
+        }
     }
 }
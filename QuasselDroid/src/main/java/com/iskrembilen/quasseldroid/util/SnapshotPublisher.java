@@ -0,0 +1,160 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Copies state owned by the {@link StateThread} into an immutable snapshot there, and hands the
+ * snapshot to the UI thread, so views never read objects the state thread is changing.
+ *
+ * Requests that come in while a build is still queued are folded into it, and only the newest
+ * snapshot is published, at most once per frame. Without focus nothing is built, one snapshot is
+ * built when focus returns, see {@link BackgroundMode}.
+ */
+public abstract class SnapshotPublisher<T> implements Observer {
+    private final FrameScheduler scheduler;
+
+    private boolean buildQueued = false;
+    private boolean deferred = false;
+    private boolean publishScheduled = false;
+    private T pending;
+    private int generation = 0;
+    private int requestedGeneration = 0;
+
+    private final Runnable buildRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int buildGeneration;
+            synchronized (SnapshotPublisher.this) {
+                buildQueued = false;
+                buildGeneration = requestedGeneration;
+                if (buildGeneration != generation)
+                    return;
+            }
+            T snapshot = build();
+            synchronized (SnapshotPublisher.this) {
+                if (buildGeneration != generation)
+                    return;
+                pending = snapshot;
+                if (publishScheduled)
+                    return;
+                publishScheduled = true;
+            }
+            scheduler.postFrameCallback(publishRunnable);
+        }
+    };
+
+    private final Runnable replayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SnapshotPublisher.this) {
+                if (!deferred)
+                    return;
+                deferred = false;
+            }
+            BackgroundMode.recordReplayed(1);
+            request();
+        }
+    };
+
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            T snapshot;
+            synchronized (SnapshotPublisher.this) {
+                publishScheduled = false;
+                snapshot = pending;
+                pending = null;
+            }
+            if (snapshot != null)
+                publish(snapshot);
+        }
+    };
+
+    public SnapshotPublisher() {
+        this(FrameScheduler.getDefault());
+    }
+
+    public SnapshotPublisher(FrameScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Copy the state, called on the state thread
+     */
+    protected abstract T build();
+
+    /**
+     * Show the snapshot, called on the UI thread
+     */
+    protected abstract void publish(T snapshot);
+
+    /**
+     * @return whether a notification with this argument changes what {@link #build()} copies
+     */
+    protected boolean accepts(Object data) {
+        return true;
+    }
+
+    /**
+     * Build a new snapshot and publish it
+     */
+    public void request() {
+        synchronized (this) {
+            if (BackgroundMode.isActive()) {
+                BackgroundMode.recordDeferred();
+                if (!deferred && BackgroundMode.defer(replayRunnable)) {
+                    deferred = true;
+                    return;
+                }
+                if (deferred)
+                    return;
+            }
+            if (buildQueued)
+                return;
+            buildQueued = true;
+            requestedGeneration = generation;
+        }
+        StateThread.post(buildRunnable);
+    }
+
+    /**
+     * Drop the snapshots that are being built or waiting to be published
+     */
+    public synchronized void cancel() {
+        generation++;
+        pending = null;
+        buildQueued = false;
+        deferred = false;
+        BackgroundMode.cancel(replayRunnable);
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        if (accepts(data))
+            request();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.util.List;
+
+/**
+ * Computes the row updates that turn one sorted list into another.
+ *
+ * Both lists have to be sorted in the same order without duplicates, which the backlog of a buffer
+ * always is, so a single merge pass finds the minimal inserts and removals instead of a general
+ * O(N*D) diff. Items that compare equal but are different objects are reported as changed.
+ * Plain Java, so it can be run and tested without Android.
+ */
+public final class SortedListDiff {
+
+    /**
+     * Receives the updates in an order where every position refers to the list as it is after
+     * the updates before it, the same contract RecyclerView's notifyItemRange* methods have
+     */
+    public interface Callback {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onChanged(int position, int count);
+    }
+
+    private SortedListDiff() {
+        // No instances.
+    }
+
+    public static <T extends Comparable<? super T>> void diff(List<? extends T> oldList, List<? extends T> newList, Callback callback) {
+        Batch batch = new Batch(callback);
+        int oldIndex = 0;
+        int newIndex = 0;
+        // Position in the list the callback sees, with all updates so far applied
+        int position = 0;
+        while (oldIndex < oldList.size() || newIndex < newList.size()) {
+            int order;
+            if (oldIndex == oldList.size())
+                order = 1;
+            else if (newIndex == newList.size())
+                order = -1;
+            else
+                order = oldList.get(oldIndex).compareTo(newList.get(newIndex));
+
+            if (order < 0) {
+                batch.add(Batch.REMOVED, position);
+                oldIndex++;
+            } else if (order > 0) {
+                batch.add(Batch.INSERTED, position);
+                newIndex++;
+                position++;
+            } else {
+                if (oldList.get(oldIndex) != newList.get(newIndex))
+                    batch.add(Batch.CHANGED, position);
+                oldIndex++;
+                newIndex++;
+                position++;
+            }
+        }
+        batch.flush();
+    }
+
+    /**
+     * Merges runs of the same update into one range
+     */
+    private static class Batch {
+        static final int NONE = 0;
+        static final int INSERTED = 1;
+        static final int REMOVED = 2;
+        static final int CHANGED = 3;
+
+        private final Callback callback;
+        private int type = NONE;
+        private int start;
+        private int count;
+
+        Batch(Callback callback) {
+            this.callback = callback;
+        }
+
+        void add(int type, int position) {
+            // Removals stay at the same position, inserts and changes move on by one
+            boolean continues = this.type == type
+                    && (type == REMOVED ? position == start : position == start + count);
+            if (continues) {
+                count++;
+                return;
+            }
+            flush();
+            this.type = type;
+            this.start = position;
+            this.count = 1;
+        }
+
+        void flush() {
+            switch (type) {
+                case INSERTED:
+                    callback.onInserted(start, count);
+                    break;
+                case REMOVED:
+                    callback.onRemoved(start, count);
+                    break;
+                case CHANGED:
+                    callback.onChanged(start, count);
+                    break;
+            }
+            type = NONE;
+        }
+    }
+}
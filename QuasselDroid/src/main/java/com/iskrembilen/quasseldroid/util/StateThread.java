@@ -0,0 +1,213 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iskrembilen.quasseldroid.io.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread that owns the client state, the NetworkCollection and everything below it is only
+ * changed from here so protocol updates don't compete with scrolling and input on the UI thread.
+ *
+ * Keeps track of how many messages wait in its queue and how long they take to handle, so a
+ * state thread that can't keep up shows in the logs instead of as a sluggish UI.
+ */
+public final class StateThread {
+    private static final String TAG = StateThread.class.getSimpleName();
+
+    /**
+     * Messages that take longer than this to handle are logged
+     */
+    private static final long SLOW_DISPATCH_MS = 100;
+
+    private static HandlerThread thread;
+    private static StateHandler handler;
+    private static Handler mainHandler;
+
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+    private static final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private static final LatencyHistogram dispatchTimes = new LatencyHistogram();
+
+    private StateThread() {
+        // No instances.
+    }
+
+    public static synchronized Looper getLooper() {
+        if (thread == null) {
+            thread = new HandlerThread("CoreState");
+            thread.start();
+        }
+        return thread.getLooper();
+    }
+
+    public static synchronized Handler getHandler() {
+        if (handler == null) {
+            handler = new StateHandler();
+        }
+        return handler;
+    }
+
+    /**
+     * Run the runnable on the state thread, after everything that is queued already
+     */
+    public static void post(Runnable runnable) {
+        getHandler().post(runnable);
+    }
+
+    /**
+     * Reads from the state, called on the state thread. The result is handed to the UI thread,
+     * so it should be a copy and not one of the live objects
+     */
+    public interface Query<T> {
+        T read();
+    }
+
+    public interface Callback<T> {
+        /**
+         * Called on the UI thread
+         */
+        void onResult(T result);
+    }
+
+    /**
+     * Run the query on the state thread, after everything that is queued already, and pass its
+     * result to the callback on the UI thread. Queries and their callbacks run in the order
+     * they were made
+     */
+    public static <T> void query(final Query<T> query, final Callback<T> callback) {
+        final Handler main = getMainHandler();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final T result = query.read();
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    public static boolean isCurrentThread() {
+        return Looper.myLooper() == getLooper();
+    }
+
+    /**
+     * @return the number of messages waiting to be handled on the state thread
+     */
+    public static int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the deepest the queue has been since the last {@link #resetMaxQueueDepth()}
+     */
+    public static int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public static void resetMaxQueueDepth() {
+        maxQueueDepth.set(queueDepth.get());
+    }
+
+    /**
+     * @return how long the recent messages took to handle, in milliseconds
+     */
+    public static LatencyHistogram.Snapshot getDispatchTimes() {
+        return dispatchTimes.getSnapshot();
+    }
+
+    private static void enqueued(int count) {
+        int depth = queueDepth.addAndGet(count);
+        int max;
+        while (depth > (max = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(max, depth))
+                break;
+        }
+    }
+
+    /**
+     * Handler on the state thread that counts its messages towards the queue depth
+     */
+    public static class StateHandler extends Handler {
+        private final AtomicInteger pending = new AtomicInteger();
+
+        public StateHandler() {
+            super(getLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            pending.incrementAndGet();
+            enqueued(1);
+            boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (!queued) {
+                pending.decrementAndGet();
+                enqueued(-1);
+            }
+            return queued;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            pending.decrementAndGet();
+            enqueued(-1);
+            int what = msg.what;
+            long start = SystemClock.uptimeMillis();
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                long duration = SystemClock.uptimeMillis() - start;
+                dispatchTimes.add((int) duration);
+                if (duration > SLOW_DISPATCH_MS)
+                    Log.w(TAG, "Handling message " + what + " took " + duration + "ms, " + queueDepth.get() + " messages waiting");
+            }
+        }
+
+        /**
+         * Drop everything this handler still has queued
+         */
+        public void removeAll() {
+            removeCallbacksAndMessages(null);
+            enqueued(-pending.getAndSet(0));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Maps the raw bytes of short protocol strings to String instances, so class names, slot names,
+ * nicks and hostmasks that arrive over and over are only decoded once.
+ * <p>
+ * A lookup hashes and compares the bytes in place and allocates nothing. The known strings given
+ * to the constructor stay in the pool for good, other strings are kept in a bounded
+ * least recently used list. Not thread safe, the caller synchronizes.
+ */
+public class StringPool {
+    /**
+     * Longer strings are message contents and the like which rarely repeat
+     */
+    public static final int MAX_LENGTH = 64;
+
+    private static class Entry {
+        final byte[] bytes;
+        final int hash;
+        final String value;
+        final boolean pinned;
+        Entry nextInBucket;
+        Entry newer;
+        Entry older;
+
+        Entry(byte[] bytes, int hash, String value, boolean pinned) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = value;
+            this.pinned = pinned;
+        }
+    }
+
+    private final Entry[] buckets;
+    private final int capacity;
+    private int size = 0;
+    private Entry newest;
+    private Entry oldest;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param charset  the charset the strings are encoded in on the wire
+     * @param capacity how many strings besides the known ones to keep
+     * @param known    strings that are never evicted
+     */
+    public StringPool(String charset, int capacity, String... known) {
+        this.capacity = capacity;
+        int tableSize = Integer.highestOneBit(Math.max(capacity + known.length, 8) * 2 - 1) << 1;
+        buckets = new Entry[tableSize];
+        Charset cs = Charset.forName(charset);
+        for (String string : known) {
+            byte[] bytes = string.getBytes(cs);
+            if (bytes.length <= MAX_LENGTH && find(bytes, bytes.length, hash(bytes, bytes.length)) == null)
+                insert(new Entry(bytes, hash(bytes, bytes.length), string, true));
+        }
+    }
+
+    /**
+     * @return the pooled string for the first length bytes of the buffer, or null if there is none
+     */
+    public String lookup(byte[] buffer, int length) {
+        Entry entry = find(buffer, length, hash(buffer, length));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (!entry.pinned && entry != newest) {
+            unlink(entry);
+            pushNewest(entry);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Add a decoded string after a failed {@link #lookup}, evicting the least recently used one if the pool is full
+     *
+     * @return the value
+     */
+    public String add(byte[] buffer, int length, String value) {
+        if (length > MAX_LENGTH || capacity == 0)
+            return value;
+        if (size == capacity)
+            remove(oldest);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        Entry entry = new Entry(bytes, hash(bytes, length), value, false);
+        insert(entry);
+        pushNewest(entry);
+        size++;
+        return value;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private Entry find(byte[] buffer, int length, int hash) {
+        for (Entry entry = buckets[hash & (buckets.length - 1)]; entry != null; entry = entry.nextInBucket) {
+            if (entry.hash == hash && sameBytes(entry.bytes, buffer, length))
+                return entry;
+        }
+        return null;
+    }
+
+    private void insert(Entry entry) {
+        int index = entry.hash & (buckets.length - 1);
+        entry.nextInBucket = buckets[index];
+        buckets[index] = entry;
+    }
+
+    private void remove(Entry entry) {
+        int index = entry.hash & (buckets.length - 1);
+        if (buckets[index] == entry) {
+            buckets[index] = entry.nextInBucket;
+        } else {
+            Entry previous = buckets[index];
+            while (previous.nextInBucket != entry)
+                previous = previous.nextInBucket;
+            previous.nextInBucket = entry.nextInBucket;
+        }
+        unlink(entry);
+        size--;
+    }
+
+    private void pushNewest(Entry entry) {
+        entry.older = newest;
+        entry.newer = null;
+        if (newest != null)
+            newest.newer = entry;
+        newest = entry;
+        if (oldest == null)
+            oldest = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.newer != null)
+            entry.newer.older = entry.older;
+        else
+            newest = entry.older;
+        if (entry.older != null)
+            entry.older.newer = entry.newer;
+        else
+            oldest = entry.newer;
+        entry.newer = null;
+        entry.older = null;
+    }
+
+    private static int hash(byte[] buffer, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + buffer[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameBytes(byte[] known, byte[] buffer, int length) {
+        if (known.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (known[i] != buffer[i])
+                return false;
+        }
+        return true;
+    }
+}
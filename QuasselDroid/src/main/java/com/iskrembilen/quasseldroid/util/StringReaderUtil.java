@@ -41,10 +41,15 @@ import java.nio.charset.CharsetDecoder;
 public class StringReaderUtil {
     private static final String TAG = StringReaderUtil.class.getSimpleName();
 
-    int buflen = -1;
-    ByteBuffer buf;
+    /**
+     * The bytes are read into a buffer of the reading thread, so a slow stream doesn't hold the
+     * lock; only the pool and the decoder are shared
+     */
+    private final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<>();
+    int charBufferLength = -1;
     CharsetDecoder decoder;
     CharBuffer charBuffer;
+    StringPool pool;
 
     /**
      * Create a new StringReader util
@@ -52,30 +57,58 @@ public class StringReaderUtil {
      * @param charset name of the charset to decode
      */
     public StringReaderUtil(String charset) {
+        this(charset, null);
+    }
+
+    /**
+     * Create a new StringReader util that returns pooled instances for short strings
+     *
+     * @param charset name of the charset to decode
+     * @param pool    pool for strings in that charset, or null
+     */
+    public StringReaderUtil(String charset, StringPool pool) {
         decoder = Charset.forName(charset).newDecoder();
+        this.pool = pool;
     }
 
     public String readString(QDataInputStream stream, int len) throws IOException {
-        if (len > buflen) { // If the buffers we have are to small, make them bigger
+        ByteBuffer buf = readBuffer.get();
+        if (buf == null || len > buf.capacity()) { // If the buffer we have is to small, make it bigger
             buf = ByteBuffer.allocate(len);
-            charBuffer = CharBuffer.allocate(len);
-            buflen = len;
+            readBuffer.set(buf);
         }
 
-        //reset buffers, so we start from the beginning of them
-        buf.clear();
-        charBuffer.clear();
-
-        //mark the start so we can reset back after we have read in the string
-        charBuffer.mark();
-
         // Set the limit of the byte buffer, so we know where to stop the string.
         // Or else you get characters from old strings that was longer then this one
+        buf.clear();
         buf.limit(len);
 
         //Read the string
         stream.readFully(buf.array(), 0, len);
 
+        synchronized (this) {
+            if (pool != null && len <= StringPool.MAX_LENGTH) {
+                String pooled = pool.lookup(buf.array(), len);
+                if (pooled != null)
+                    return pooled;
+                return pool.add(buf.array(), len, decode(buf));
+            }
+            return decode(buf);
+        }
+    }
+
+    private String decode(ByteBuffer buf) {
+        if (buf.limit() > charBufferLength) { // If the char buffer is to small, make it bigger
+            charBuffer = CharBuffer.allocate(buf.limit());
+            charBufferLength = buf.limit();
+        }
+
+        //reset buffer, so we start from the beginning of it
+        charBuffer.clear();
+
+        //mark the start so we can reset back after we have read in the string
+        charBuffer.mark();
+
         //Decode it with correct encoding
         try {
             decoder.decode(buf, charBuffer, false);
@@ -77,6 +77,7 @@ public class ThemeUtil {
             Color.chatServer = resources.getColor(R.color.chat_line_server_light);
             Color.chatTimestamp = resources.getColor(R.color.chat_line_timestamp_light);
             Color.chatHighlight = resources.getColor(R.color.chat_line_highlight_light);
+            Color.chatReverse = resources.getColor(R.color.ircmessage_white);
 
             Color.chatServerBg = resources.getColor(R.color.chat_bg_action_light);
             Color.chatPlainBg = resources.getColor(android.R.color.transparent);
@@ -118,6 +119,7 @@ public class ThemeUtil {
             Color.chatServer = resources.getColor(R.color.chat_line_server_dark);
             Color.chatTimestamp = resources.getColor(R.color.chat_line_timestamp_dark);
             Color.chatHighlight = resources.getColor(R.color.chat_line_highlight_dark);
+            Color.chatReverse = resources.getColor(R.color.ircmessage_black);
 
             Color.chatServerBg = resources.getColor(R.color.chat_bg_action_dark);
             Color.chatPlainBg = resources.getColor(android.R.color.transparent);
@@ -160,6 +162,7 @@ public class ThemeUtil {
                 chatError,
                 chatHighlight,
                 chatTimestamp,
+                chatReverse,
                 chatServerBg,
                 chatPlainBg;
 
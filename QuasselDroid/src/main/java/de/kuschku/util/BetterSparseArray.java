@@ -55,7 +55,7 @@ public class BetterSparseArray<E> extends SparseArray<E> implements Map<Integer,
         if (value==null)
             return false;
 
-        return indexOfValue((E) value) > 0;
+        return indexOfValue((E) value) >= 0;
     }
 
     /**
@@ -119,7 +119,7 @@ public class BetterSparseArray<E> extends SparseArray<E> implements Map<Integer,
     }
 
     public boolean containsKey(int key) {
-        return indexOfKey(key)>0;
+        return indexOfKey(key) >= 0;
     }
 
     /**
@@ -57,7 +57,7 @@ public class BetterSparseBooleanArray extends SparseBooleanArray implements Map<
         if (value==null)
             return false;
 
-        return indexOfValue((Boolean) value) > 0;
+        return indexOfValue((Boolean) value) >= 0;
     }
 
     /**
@@ -121,7 +121,7 @@ public class BetterSparseBooleanArray extends SparseBooleanArray implements Map<
     }
 
     public boolean containsKey(int key) {
-        return indexOfKey(key)>0;
+        return indexOfKey(key) >= 0;
     }
 
     /**
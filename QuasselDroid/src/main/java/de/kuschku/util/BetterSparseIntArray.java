@@ -57,7 +57,7 @@ public class BetterSparseIntArray extends SparseIntArray implements Map<Integer,
         if (value==null)
             return false;
 
-        return indexOfValue((Integer) value) > 0;
+        return indexOfValue((Integer) value) >= 0;
     }
 
     /**
@@ -121,7 +121,7 @@ public class BetterSparseIntArray extends SparseIntArray implements Map<Integer,
     }
 
     public boolean containsKey(int key) {
-        return indexOfKey(key)>0;
+        return indexOfKey(key) >= 0;
     }
 
     /**
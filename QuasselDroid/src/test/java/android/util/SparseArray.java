@@ -0,0 +1,130 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * The android.jar the unit tests run against has no implementation of SparseArray, this one
+ * comes first on the test classpath so code using it (like the protocol type lookups) can be
+ * tested on the JVM. Same behaviour, keys are kept sorted and found by binary search.
+ */
+public class SparseArray<E> {
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public SparseArray() {
+        this(10);
+    }
+
+    public SparseArray(int initialCapacity) {
+        keys = new int[Math.max(initialCapacity, 1)];
+        values = new Object[keys.length];
+    }
+
+    public E get(int key) {
+        return get(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int key, E valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        return i < 0 ? valueIfKeyNotFound : (E) values[i];
+    }
+
+    public void put(int key, E value) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = ~i;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    public void append(int key, E value) {
+        put(key, value);
+    }
+
+    public void delete(int key) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0)
+            removeAt(i);
+    }
+
+    public void remove(int key) {
+        delete(key);
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        values[size] = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int keyAt(int index) {
+        return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) values[index];
+    }
+
+    public void setValueAt(int index, E value) {
+        values[index] = value;
+    }
+
+    public int indexOfKey(int key) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        return i < 0 ? -1 : i;
+    }
+
+    public int indexOfValue(E value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Plain Java SparseIntArray for the unit tests, see {@link SparseArray}.
+ */
+public class SparseIntArray {
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    public SparseIntArray() {
+        this(10);
+    }
+
+    public SparseIntArray(int initialCapacity) {
+        keys = new int[Math.max(initialCapacity, 1)];
+        values = new int[keys.length];
+    }
+
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    public int get(int key, int valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        return i < 0 ? valueIfKeyNotFound : values[i];
+    }
+
+    public void put(int key, int value) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = ~i;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    public void append(int key, int value) {
+        put(key, value);
+    }
+
+    public void delete(int key) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0)
+            removeAt(i);
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int keyAt(int index) {
+        return keys[index];
+    }
+
+    public int valueAt(int index) {
+        return values[index];
+    }
+
+    public int indexOfKey(int key) {
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        return i < 0 ? -1 : i;
+    }
+
+    public int indexOfValue(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
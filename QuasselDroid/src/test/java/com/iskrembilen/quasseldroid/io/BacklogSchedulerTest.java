@@ -0,0 +1,231 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.io;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the scheduler against a fake core that answers like Quassel: requestBacklog with the
+ * newest messages of one buffer older than lastMsgId, requestBacklogAll with the newest
+ * messages of all buffers together.
+ */
+public class BacklogSchedulerTest {
+    private static final int AMOUNT = 50;
+
+    private static class FakeCore implements BacklogScheduler.Requester {
+        /**
+         * Message ids by buffer, ascending, ids are unique over all buffers like in the core
+         */
+        final Map<Integer, List<Integer>> messages = new HashMap<>();
+        final Map<Integer, List<Integer>> received = new HashMap<>();
+        final List<int[]> requests = new ArrayList<>();
+        final List<Integer> backlogAllAmounts = new ArrayList<>();
+        int requestsSent;
+        BacklogScheduler scheduler;
+
+        FakeCore(int[] messagesPerBuffer) {
+            // Interleave the buffers by how busy they are, the busiest gets most of the recent ids
+            int id = 1;
+            int[] left = messagesPerBuffer.clone();
+            boolean any = true;
+            while (any) {
+                any = false;
+                for (int buffer = 0; buffer < left.length; buffer++) {
+                    int burst = Math.min(left[buffer], Math.max(1, messagesPerBuffer[buffer] / 100));
+                    for (int i = 0; i < burst; i++) {
+                        list(messages, buffer).add(id++);
+                    }
+                    left[buffer] -= burst;
+                    any |= left[buffer] > 0;
+                }
+            }
+        }
+
+        @Override
+        public void sendBacklogRequest(int bufferId, int firstMsgId, int lastMsgId, int amount) {
+            requests.add(new int[]{bufferId, firstMsgId, lastMsgId, amount});
+            requestsSent++;
+        }
+
+        @Override
+        public void sendBacklogAllRequest(int firstMsgId, int lastMsgId, int amount) {
+            backlogAllAmounts.add(amount);
+        }
+
+        /**
+         * Answers everything that was asked, until the scheduler has nothing left
+         */
+        void run() {
+            while (!requests.isEmpty() || !backlogAllAmounts.isEmpty()) {
+                if (!backlogAllAmounts.isEmpty()) {
+                    int amount = backlogAllAmounts.remove(0);
+                    List<int[]> all = new ArrayList<>();
+                    for (Map.Entry<Integer, List<Integer>> buffer : messages.entrySet()) {
+                        for (int id : buffer.getValue()) {
+                            all.add(new int[]{id, buffer.getKey()});
+                        }
+                    }
+                    java.util.Collections.sort(all, new java.util.Comparator<int[]>() {
+                        @Override
+                        public int compare(int[] lhs, int[] rhs) {
+                            return rhs[0] - lhs[0];
+                        }
+                    });
+                    for (int[] message : all.subList(0, Math.min(amount, all.size()))) {
+                        receive(message[1], message[0]);
+                        scheduler.onBacklogAllMessage(message[1], message[0]);
+                    }
+                    scheduler.onBacklogAllReceived();
+                    continue;
+                }
+                int[] request = requests.remove(0);
+                List<Integer> ids = list(messages, request[0]);
+                int count = 0;
+                for (int i = ids.size() - 1; i >= 0 && count < request[3]; i--) {
+                    if (request[2] != -1 && ids.get(i) >= request[2])
+                        continue;
+                    receive(request[0], ids.get(i));
+                    count++;
+                }
+                scheduler.onBacklogReceived(request[0]);
+            }
+        }
+
+        void receive(int bufferId, int id) {
+            List<Integer> ids = list(received, bufferId);
+            if (!ids.contains(id))
+                ids.add(id);
+        }
+
+        static List<Integer> list(Map<Integer, List<Integer>> map, int bufferId) {
+            List<Integer> list = map.get(bufferId);
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(bufferId, list);
+            }
+            return list;
+        }
+    }
+
+    private static FakeCore connect(int[] messagesPerBuffer, boolean backlogAllSupported) {
+        FakeCore core = new FakeCore(messagesPerBuffer);
+        BacklogScheduler scheduler = new BacklogScheduler(core);
+        core.scheduler = scheduler;
+        scheduler.setBacklogAllSupported(backlogAllSupported);
+        for (int buffer = 0; buffer < messagesPerBuffer.length; buffer++) {
+            scheduler.enqueue(buffer, -1, -1, AMOUNT, BacklogScheduler.PRIORITY_NORMAL);
+        }
+        scheduler.start();
+        return core;
+    }
+
+    /**
+     * Two very busy channels and many quiet ones
+     */
+    private static int[] busyAndQuiet() {
+        int[] messagesPerBuffer = new int[20];
+        messagesPerBuffer[0] = 20000;
+        messagesPerBuffer[1] = 10000;
+        for (int i = 2; i < messagesPerBuffer.length; i++) {
+            messagesPerBuffer[i] = i * 5;
+        }
+        return messagesPerBuffer;
+    }
+
+    private static void assertEveryBufferGotItsAmount(FakeCore core, int[] messagesPerBuffer) {
+        for (int buffer = 0; buffer < messagesPerBuffer.length; buffer++) {
+            List<Integer> ids = FakeCore.list(core.messages, buffer);
+            List<Integer> got = FakeCore.list(core.received, buffer);
+            int expected = Math.min(AMOUNT, messagesPerBuffer[buffer]);
+            // Busy buffers may get more than their share of requestBacklogAll, never less
+            assertTrue("buffer " + buffer + " got " + got.size(), got.size() >= expected);
+            for (int id : ids.subList(ids.size() - expected, ids.size())) {
+                assertTrue("buffer " + buffer + " is missing " + id, got.contains(id));
+            }
+        }
+    }
+
+    @Test
+    public void backlogAllIsToppedUpForQuietBuffers() {
+        int[] messagesPerBuffer = busyAndQuiet();
+        FakeCore core = connect(messagesPerBuffer, true);
+        assertEquals(1, core.backlogAllAmounts.size());
+        core.run();
+
+        assertEveryBufferGotItsAmount(core, messagesPerBuffer);
+        assertTrue(core.scheduler.isIdle());
+    }
+
+    @Test
+    public void perBufferRequestsWithoutBacklogAll() {
+        int[] messagesPerBuffer = busyAndQuiet();
+        FakeCore core = connect(messagesPerBuffer, false);
+        assertTrue(core.backlogAllAmounts.isEmpty());
+        core.run();
+
+        assertEveryBufferGotItsAmount(core, messagesPerBuffer);
+        assertTrue(core.scheduler.isIdle());
+    }
+
+    @Test
+    public void evenlyBusyBuffersNeedNoTopUp() {
+        int[] messagesPerBuffer = new int[20];
+        java.util.Arrays.fill(messagesPerBuffer, 1000);
+        FakeCore core = connect(messagesPerBuffer, true);
+        int sent = core.requestsSent;
+        core.run();
+
+        // Nothing is asked per buffer once the one requestBacklogAll arrived
+        assertEquals(sent, core.requestsSent);
+        assertEveryBufferGotItsAmount(core, messagesPerBuffer);
+    }
+
+    @Test
+    public void batchedBufferCanStillBePromoted() {
+        int[] messagesPerBuffer = busyAndQuiet();
+        FakeCore core = connect(messagesPerBuffer, true);
+        assertEquals(1, core.backlogAllAmounts.size());
+        int sent = core.requests.size();
+
+        core.scheduler.promote(15);
+        assertEquals(sent + 1, core.requests.size());
+        int[] request = core.requests.get(core.requests.size() - 1);
+        assertEquals(15, request[0]);
+        assertEquals(AMOUNT, request[3]);
+        assertFalse(core.scheduler.isIdle());
+
+        core.run();
+        assertEveryBufferGotItsAmount(core, messagesPerBuffer);
+        assertTrue(core.scheduler.isIdle());
+    }
+}
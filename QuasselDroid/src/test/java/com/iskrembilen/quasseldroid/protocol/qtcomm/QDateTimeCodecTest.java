@@ -0,0 +1,135 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.qtcomm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The julian days are the ones QDate::toJulianDay() returns for the same dates.
+ */
+public class QDateTimeCodecTest {
+    private static final long JD_1970_01_01 = 2440588L;
+    private static final long JD_1969_12_31 = 2440587L;
+    private static final long JD_2000_01_01 = 2451545L;
+    private static final long JD_2038_01_19 = 2465443L;
+
+    private static final long MILLIS_2000_01_01 = 946684800000L;
+    private static final long MILLIS_2038_01_19_031407 = 2147483647000L;
+
+    private final TimeZone defaultZone = TimeZone.getDefault();
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void convertsReferenceDates() {
+        assertEquals(0L, QDateTimeCodec.toEpochMillis(JD_1970_01_01, 0, QDateTimeCodec.UTC));
+        assertEquals(MILLIS_2000_01_01, QDateTimeCodec.toEpochMillis(JD_2000_01_01, 0, QDateTimeCodec.UTC));
+        assertEquals(MILLIS_2038_01_19_031407, QDateTimeCodec.toEpochMillis(JD_2038_01_19, (3 * 3600 + 14 * 60 + 7) * 1000L, QDateTimeCodec.UTC));
+        assertEquals(-1L, QDateTimeCodec.toEpochMillis(JD_1969_12_31, QDateTimeCodec.MSECS_PER_DAY - 1, QDateTimeCodec.UTC));
+
+        assertEquals(JD_2000_01_01, QDateTimeCodec.toJulianDay(MILLIS_2000_01_01));
+        assertEquals(0L, QDateTimeCodec.toMsecsOfDay(MILLIS_2000_01_01));
+        assertEquals(JD_1969_12_31, QDateTimeCodec.toJulianDay(-1));
+        assertEquals(QDateTimeCodec.MSECS_PER_DAY - 1, QDateTimeCodec.toMsecsOfDay(-1));
+    }
+
+    @Test
+    public void rejectsNullDateTimes() {
+        assertEquals(QDateTimeCodec.INVALID, QDateTimeCodec.toEpochMillis(0, 0, QDateTimeCodec.UTC));
+        assertEquals(QDateTimeCodec.INVALID, QDateTimeCodec.toEpochMillis(JD_2000_01_01, 0xFFFFFFFFL, QDateTimeCodec.UTC));
+    }
+
+    @Test
+    public void convertsLocalTime() {
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Oslo"));
+        // Midnight in Oslo is 23:00 UTC in winter and 22:00 UTC in summer
+        assertEquals(MILLIS_2000_01_01 - 3600000L, QDateTimeCodec.toEpochMillis(JD_2000_01_01, 0, QDateTimeCodec.LOCAL_TIME));
+        long jd2000_07_01 = JD_2000_01_01 + 182;
+        assertEquals(962402400000L, QDateTimeCodec.toEpochMillis(jd2000_07_01, 0, QDateTimeCodec.LOCAL_TIME));
+    }
+
+    @Test
+    public void timeIsPutOnTheClosestDay() {
+        long reference = MILLIS_2000_01_01 + 1000;
+        // Just before midnight belongs to the previous day
+        assertEquals(MILLIS_2000_01_01 - 1000, QDateTimeCodec.timeToEpochMillis(QDateTimeCodec.MSECS_PER_DAY - 1000, reference));
+        assertEquals(MILLIS_2000_01_01 + 500, QDateTimeCodec.timeToEpochMillis(500, reference));
+        reference = MILLIS_2000_01_01 - 1000;
+        assertEquals(MILLIS_2000_01_01 + 500, QDateTimeCodec.timeToEpochMillis(500, reference));
+        assertEquals(QDateTimeCodec.INVALID, QDateTimeCodec.timeToEpochMillis(QDateTimeCodec.MSECS_PER_DAY, reference));
+    }
+
+    @Test
+    public void writesQtDateTimeBytes() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QDataOutputStream stream = new QDataOutputStream(bytes);
+        QDateTimeCodec.writeDateTime(stream, MILLIS_2000_01_01 + 12345);
+        stream.flush();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeInt((int) JD_2000_01_01);
+        out.writeInt(12345);
+        out.writeByte(QDateTimeCodec.UTC);
+        assertArrayEquals(expected.toByteArray(), bytes.toByteArray());
+    }
+
+    @Test
+    public void dateTimeRoundTrip() throws Exception {
+        long[] times = {0L, -1L, MILLIS_2000_01_01, MILLIS_2038_01_19_031407, 1445000000123L, QDateTimeCodec.INVALID};
+        for (long time : times) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            QDataOutputStream out = new QDataOutputStream(bytes);
+            QDateTimeCodec.writeDateTime(out, time);
+            out.flush();
+            QDataInputStream in = new QDataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(time, QDateTimeCodec.readDateTime(in));
+        }
+    }
+
+    @Test
+    public void timeRoundTrip() throws Exception {
+        long time = 1445000000123L;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QDataOutputStream out = new QDataOutputStream(bytes);
+        QDateTimeCodec.writeTime(out, time);
+        QDateTimeCodec.writeTime(out, QDateTimeCodec.INVALID);
+        out.flush();
+        QDataInputStream in = new QDataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(QDateTimeCodec.toMsecsOfDay(time), QDateTimeCodec.readTime(in));
+        assertEquals(QDateTimeCodec.INVALID, QDateTimeCodec.readTime(in));
+    }
+}
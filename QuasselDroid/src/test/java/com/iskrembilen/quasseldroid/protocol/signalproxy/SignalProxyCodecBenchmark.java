@@ -0,0 +1,104 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encode and decode throughput of both codecs on a stream shaped like a busy session, mostly
+ * Sync messages with a few string and int parameters. Prints the numbers, the assertion only
+ * catches a pathological slowdown.
+ */
+public class SignalProxyCodecBenchmark {
+    private static final int MESSAGES = 50000;
+
+    @Test
+    public void legacyThroughput() throws Exception {
+        throughput("Legacy", SignalProxyCodec.LEGACY);
+    }
+
+    @Test
+    public void dataStreamThroughput() throws Exception {
+        throughput("DataStream", SignalProxyCodec.DATASTREAM);
+    }
+
+    private static void throughput(String name, SignalProxyCodec codec) throws Exception {
+        SignalProxyMessage[] messages = new SignalProxyMessage[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i % 10 == 0) {
+                messages[i] = new RpcCall("2displayStatusMsg(QString,QString)",
+                        new QVariant<>("freenode", QVariantType.String),
+                        new QVariant<>("Connecting to chat.freenode.net:6697...", QVariantType.String));
+            } else {
+                messages[i] = new SyncMessage("IrcUser", "1/nick" + (i % 500), "setAway",
+                        new QVariant<>(i % 2 == 0, QVariantType.Bool),
+                        new QVariant<>(i, QVariantType.Int));
+            }
+        }
+        // Warm up
+        decode(codec, encode(codec, messages));
+
+        long start = System.nanoTime();
+        byte[] bytes = encode(codec, messages);
+        long encodeMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        start = System.nanoTime();
+        decode(codec, bytes);
+        long decodeMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        System.out.println(String.format("%s codec: %d messages, %d bytes, encode %d ms (%d msg/ms), decode %d ms (%d msg/ms)",
+                name, MESSAGES, bytes.length, encodeMillis, MESSAGES / encodeMillis, decodeMillis, MESSAGES / decodeMillis));
+
+        assertTrue("encoding took " + encodeMillis + " ms", encodeMillis < 10000);
+        assertTrue("decoding took " + decodeMillis + " ms", decodeMillis < 10000);
+    }
+
+    private static byte[] encode(SignalProxyCodec codec, SignalProxyMessage[] messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QDataOutputStream stream = new QDataOutputStream(bytes);
+        for (SignalProxyMessage message : messages) {
+            codec.write(stream, message);
+        }
+        stream.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(SignalProxyCodec codec, byte[] bytes) throws Exception {
+        QDataInputStream stream = SignalProxyCodecTest.input(bytes);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertNotNull(codec.read(stream));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.signalproxy;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.EmptyQVariantException;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataOutputStream;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaType;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QMetaTypeRegistry;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariant;
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QVariantType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SignalProxyCodecTest {
+    private static final SignalProxyCodec[] CODECS = {SignalProxyCodec.LEGACY, SignalProxyCodec.DATASTREAM};
+
+    @Test
+    public void syncRoundTrip() throws Exception {
+        for (SignalProxyCodec codec : CODECS) {
+            SyncMessage sync = (SyncMessage) roundTrip(codec, new SyncMessage("IrcChannel", "1/#quassel", "setTopic",
+                    new QVariant<>("a topic", QVariantType.String), new QVariant<>(42, QVariantType.Int)));
+            assertEquals("IrcChannel", sync.className);
+            assertEquals("1/#quassel", sync.objectName);
+            assertEquals("setTopic", sync.slotName);
+            assertEquals(2, sync.remaining());
+            assertEquals("a topic", sync.next().getData());
+            assertEquals(42, sync.next().getData());
+        }
+    }
+
+    @Test
+    public void rpcCallRoundTrip() throws Exception {
+        for (SignalProxyCodec codec : CODECS) {
+            RpcCall rpcCall = (RpcCall) roundTrip(codec, new RpcCall("2sendInput(BufferInfo,QString)",
+                    new QVariant<>("/join #quassel", QVariantType.String)));
+            assertEquals("2sendInput(BufferInfo,QString)", rpcCall.slotName);
+            assertEquals(1, rpcCall.remaining());
+            assertEquals("/join #quassel", rpcCall.next().getData());
+        }
+    }
+
+    @Test
+    public void initRequestRoundTrip() throws Exception {
+        for (SignalProxyCodec codec : CODECS) {
+            InitRequest initRequest = (InitRequest) roundTrip(codec, new InitRequest("Network", "3"));
+            assertEquals("Network", initRequest.className);
+            assertEquals("3", initRequest.objectName);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void initDataRoundTrip() throws Exception {
+        Map<String, QVariant<?>> properties = new HashMap<>();
+        properties.put("networkName", new QVariant<>("freenode", QVariantType.String));
+        properties.put("latency", new QVariant<>(120, QVariantType.Int));
+        for (SignalProxyCodec codec : CODECS) {
+            InitData initData = (InitData) roundTrip(codec, new InitData("Network", "3",
+                    new QVariant<Map<String, QVariant<?>>>(properties, QVariantType.Map)));
+            assertEquals("Network", initData.className);
+            assertEquals("3", initData.objectName);
+            assertEquals(1, initData.remaining());
+            Map<String, QVariant<?>> decoded = (Map<String, QVariant<?>>) initData.next().getData();
+            assertEquals(2, decoded.size());
+            assertEquals("freenode", decoded.get("networkName").getData());
+            assertEquals(120, decoded.get("latency").getData());
+        }
+    }
+
+    @Test
+    public void heartBeatRoundTrip() throws Exception {
+        // DataStream sends a full QDateTime, so the timestamp survives exactly
+        long timestamp = 1445000000123L;
+        HeartBeat heartBeat = (HeartBeat) roundTrip(SignalProxyCodec.DATASTREAM, new HeartBeat(timestamp, true));
+        assertEquals(timestamp, heartBeat.timestamp);
+        assertTrue(heartBeat.reply);
+
+        // Legacy only sends the time of day, which is put back on the closest day
+        long now = System.currentTimeMillis();
+        heartBeat = (HeartBeat) roundTrip(SignalProxyCodec.LEGACY, new HeartBeat(now, false));
+        assertEquals(now, heartBeat.timestamp);
+        assertFalse(heartBeat.reply);
+    }
+
+    @Test
+    public void handshakeRoundTrip() throws Exception {
+        Map<String, QVariant<?>> message = new HashMap<>();
+        message.put("MsgType", new QVariant<>("ClientInit", QVariantType.String));
+        message.put("ProtocolVersion", new QVariant<>(10, QVariantType.Int));
+        for (SignalProxyCodec codec : CODECS) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            codec.writeHandshake(new QDataOutputStream(bytes), message);
+            Map<String, QVariant<?>> decoded = codec.readHandshake(input(bytes.toByteArray()));
+            assertEquals(2, decoded.size());
+            assertEquals("ClientInit", decoded.get("MsgType").getData());
+            assertEquals(10, decoded.get("ProtocolVersion").getData());
+        }
+    }
+
+    /**
+     * An InitRequest as a DataStream core puts it on the wire, built by hand from the Qt
+     * serialization format rather than by the codec under test.
+     */
+    @Test
+    public void decodesCapturedDataStreamInitRequest() throws Exception {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(captured);
+        out.writeInt(3);                                // Element count
+        out.writeInt(QVariantType.Short.getValue());    // Request type as a qint16 QVariant
+        out.writeByte(0);
+        out.writeShort(RequestType.InitRequest.getValue());
+        writeRawByteArray(out, "Network");
+        writeRawByteArray(out, "3");
+
+        InitRequest initRequest = (InitRequest) SignalProxyCodec.DATASTREAM.read(input(captured.toByteArray()));
+        assertEquals("Network", initRequest.className);
+        assertEquals("3", initRequest.objectName);
+
+        // And the codec writes exactly those bytes back
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        SignalProxyCodec.DATASTREAM.write(new QDataOutputStream(written), initRequest);
+        assertArrayEquals(captured.toByteArray(), written.toByteArray());
+    }
+
+    /**
+     * A legacy heartbeat, a QVariantList of an int and a QTime.
+     */
+    @Test
+    public void decodesCapturedLegacyHeartBeat() throws Exception {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(captured);
+        out.writeInt(QVariantType.List.getValue());
+        out.writeByte(0);
+        out.writeInt(2);
+        out.writeInt(QVariantType.Int.getValue());
+        out.writeByte(0);
+        out.writeInt(RequestType.HeartBeat.getValue());
+        out.writeInt(QVariantType.Time.getValue());
+        out.writeByte(0);
+        out.writeInt(12 * 3600000 + 34 * 60000 + 56789); // 12:34:56.789
+
+        HeartBeat heartBeat = (HeartBeat) SignalProxyCodec.LEGACY.read(input(captured.toByteArray()));
+        assertFalse(heartBeat.reply);
+        assertEquals(12 * 3600000 + 34 * 60000 + 56789, heartBeat.timestamp % 86400000L);
+    }
+
+    @Test
+    public void skipsUnknownRequestTypes() throws Exception {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(captured);
+        out.writeInt(2);
+        out.writeInt(QVariantType.Short.getValue());
+        out.writeByte(0);
+        out.writeShort(42);
+        out.writeInt(QVariantType.Int.getValue());
+        out.writeByte(0);
+        out.writeInt(7);
+        // A second message right behind it must still be readable
+        SignalProxyCodec.DATASTREAM.write(new QDataOutputStream(captured), new InitRequest("Network", "1"));
+
+        QDataInputStream stream = input(captured.toByteArray());
+        assertNull(SignalProxyCodec.DATASTREAM.read(stream));
+        InitRequest initRequest = (InitRequest) SignalProxyCodec.DATASTREAM.read(stream);
+        assertEquals("1", initRequest.objectName);
+    }
+
+    @Test
+    public void typeLookupsFindEveryValue() {
+        for (QVariantType type : QVariantType.values()) {
+            assertEquals(type.getValue(), QVariantType.getByValue(type.getValue()).getValue());
+        }
+        for (RequestType type : RequestType.values()) {
+            assertEquals(type, RequestType.getForVal(type.getValue()));
+        }
+        assertEquals(RequestType.Invalid, RequestType.getForVal(42));
+        // The lowest id is the first key of the sparse array
+        QMetaTypeRegistry registry = QMetaTypeRegistry.instance();
+        assertSame(registry.getTypeForName("void"), registry.getTypeForId(QMetaType.Type.Void.getValue()));
+        assertSame(registry.getTypeForName("bool"), registry.getTypeForId(QMetaType.Type.Bool.getValue()));
+    }
+
+    static SignalProxyMessage roundTrip(SignalProxyCodec codec, SignalProxyMessage message) throws IOException, EmptyQVariantException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(new QDataOutputStream(bytes), message);
+        QDataInputStream stream = input(bytes.toByteArray());
+        SignalProxyMessage decoded = codec.read(stream);
+        assertEquals(message.getType(), decoded.getType());
+        assertEquals("trailing bytes", -1, stream.read());
+        return decoded;
+    }
+
+    static QDataInputStream input(byte[] bytes) {
+        return new QDataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void writeRawByteArray(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(QVariantType.ByteArray.getValue());
+        out.writeByte(0);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
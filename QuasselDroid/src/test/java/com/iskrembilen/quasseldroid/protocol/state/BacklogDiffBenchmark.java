@@ -0,0 +1,99 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import com.iskrembilen.quasseldroid.util.SortedListDiff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrolling back through a 50k message backlog: every backlog page is prepended while live
+ * messages keep arriving at the end, and the chat list diffs each new snapshot against the one
+ * it shows. Compares the positional snapshot diff with the merge diff it falls back to after a
+ * reset. Prints the numbers, the assertions only catch a return to per-message work.
+ */
+public class BacklogDiffBenchmark {
+    private static final int MESSAGES = 50000;
+    private static final int PAGE = 100;
+
+    @Test
+    public void scrollBack() {
+        BacklogList list = new BacklogList();
+        int nextNew = MESSAGES;
+        int nextOld = MESSAGES - 1;
+        BacklogSnapshot shown = list.snapshot();
+        long prepended = 0;
+        long appended = 0;
+        int pages = 0;
+
+        long start = System.nanoTime();
+        while (list.size() < MESSAGES) {
+            for (int i = 0; i < PAGE; i++) {
+                list.add(0, BacklogListTest.message(nextOld--));
+            }
+            list.add(BacklogListTest.message(nextNew++));
+            BacklogSnapshot snapshot = list.snapshot();
+            BacklogSnapshot.Diff diff = snapshot.diffFrom(shown);
+            prepended += diff.prepended;
+            appended += diff.appended;
+            shown = snapshot;
+            pages++;
+        }
+        long snapshotMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(list.size(), prepended + appended);
+
+        // The fallback, a full merge of the last two states
+        List<IrcMessage> before = new ArrayList<IrcMessage>(shown);
+        list.add(BacklogListTest.message(nextNew));
+        List<IrcMessage> after = new ArrayList<IrcMessage>(list.snapshot());
+        final int[] inserted = new int[1];
+        start = System.nanoTime();
+        SortedListDiff.diff(before, after, new SortedListDiff.Callback() {
+            @Override
+            public void onInserted(int position, int count) {
+                inserted[0] += count;
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+            }
+        });
+        long mergeMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(1, inserted[0]);
+
+        System.out.println(String.format("Backlog diff: %d messages in %d pages, snapshots and diffs %d ms, one full merge diff %d us",
+                list.size(), pages, snapshotMillis, mergeMicros));
+        assertTrue("scrolling back took " + snapshotMillis + " ms", snapshotMillis < 5000);
+    }
+}
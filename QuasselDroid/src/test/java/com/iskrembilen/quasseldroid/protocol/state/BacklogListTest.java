@@ -0,0 +1,126 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BacklogListTest {
+
+    @Test
+    public void unchangedListDiffsToNothing() {
+        BacklogList list = listOf(1, 2, 3);
+        BacklogSnapshot snapshot = list.snapshot();
+        assertSame(BacklogSnapshot.Diff.NONE, list.snapshot().diffFrom(snapshot));
+        assertSame(BacklogSnapshot.Diff.RESET, snapshot.diffFrom(null));
+    }
+
+    @Test
+    public void appendsAndPrependsAreCounted() {
+        BacklogList list = listOf(10, 11, 12);
+        BacklogSnapshot older = list.snapshot();
+        list.add(message(13));
+        list.add(message(14));
+        list.add(0, message(9));
+        BacklogSnapshot.Diff diff = list.snapshot().diffFrom(older);
+        assertFalse(diff.reset);
+        assertEquals(1, diff.prepended);
+        assertEquals(2, diff.appended);
+    }
+
+    @Test
+    public void growingKeepsOlderSnapshotsIntact() {
+        BacklogList list = new BacklogList();
+        list.add(message(1000));
+        BacklogSnapshot older = list.snapshot();
+        // Far past the initial capacity on both ends
+        for (int i = 1; i <= 200; i++) {
+            list.add(message(1000 + i));
+            list.add(0, message(1000 - i));
+        }
+        assertEquals(1, older.size());
+        assertEquals(1000, older.get(0).messageId);
+
+        BacklogSnapshot newer = list.snapshot();
+        BacklogSnapshot.Diff diff = newer.diffFrom(older);
+        assertEquals(200, diff.prepended);
+        assertEquals(200, diff.appended);
+        for (int i = 0; i < newer.size(); i++) {
+            assertEquals(800 + i, newer.get(i).messageId);
+        }
+    }
+
+    @Test
+    public void insertInTheMiddleResets() {
+        BacklogList list = listOf(1, 3);
+        BacklogSnapshot older = list.snapshot();
+        list.add(1, message(2));
+        assertTrue(list.snapshot().diffFrom(older).reset);
+        // The older snapshot still shows what it saw
+        assertEquals(2, older.size());
+        assertEquals(3, older.get(1).messageId);
+    }
+
+    @Test
+    public void removeAndClearReset() {
+        BacklogList list = listOf(1, 2, 3);
+        BacklogSnapshot older = list.snapshot();
+        list.remove(1);
+        BacklogSnapshot afterRemove = list.snapshot();
+        assertTrue(afterRemove.diffFrom(older).reset);
+        assertEquals(3, afterRemove.get(1).messageId);
+
+        list.clear();
+        assertTrue(list.snapshot().diffFrom(afterRemove).reset);
+        assertEquals(0, list.snapshot().size());
+    }
+
+    @Test
+    public void findsMessagesById() {
+        BacklogSnapshot snapshot = listOf(2, 4, 6, 8).snapshot();
+        assertEquals(2, snapshot.indexOfMessage(6));
+        assertEquals(-1, snapshot.indexOfMessage(5));
+        assertEquals(1, snapshot.floorIndex(5));
+        assertEquals(-1, snapshot.floorIndex(1));
+        assertEquals(3, snapshot.floorIndex(100));
+    }
+
+    static BacklogList listOf(int... ids) {
+        BacklogList list = new BacklogList();
+        for (int id : ids) {
+            list.add(message(id));
+        }
+        return list;
+    }
+
+    static IrcMessage message(int id) {
+        IrcMessage message = new IrcMessage();
+        message.messageId = id;
+        return message;
+    }
+}
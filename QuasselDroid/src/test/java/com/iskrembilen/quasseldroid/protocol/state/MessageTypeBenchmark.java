@@ -0,0 +1,122 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decoding the type of a million messages and checking them against the hidden events of a
+ * buffer, with the bit position table and filter mask next to the old loop over
+ * Type.values() and ArrayList.contains. Prints the numbers, the assertions only catch a return
+ * to the loops.
+ */
+public class MessageTypeBenchmark {
+    private static final int MESSAGES = 1000000;
+    private static final int REPETITIONS = 5;
+
+    @Test
+    public void decodeAndFilter() {
+        // Mostly chat, with the usual joins, parts and quits
+        IrcMessage.Type[] common = {IrcMessage.Type.Plain, IrcMessage.Type.Plain, IrcMessage.Type.Plain,
+                IrcMessage.Type.Action, IrcMessage.Type.Notice, IrcMessage.Type.Join, IrcMessage.Type.Part,
+                IrcMessage.Type.Quit, IrcMessage.Type.Nick, IrcMessage.Type.Mode, IrcMessage.Type.NetsplitQuit};
+        Random random = new Random(4);
+        int[] values = new int[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            values[i] = common[random.nextInt(common.length)].getValue();
+        }
+
+        EnumSet<IrcMessage.Type> hidden = EnumSet.of(IrcMessage.Type.Join, IrcMessage.Type.Part,
+                IrcMessage.Type.Quit, IrcMessage.Type.NetsplitQuit);
+        int mask = IrcMessage.Type.toMask(hidden);
+        List<IrcMessage.Type> hiddenList = new ArrayList<>(hidden);
+
+        for (IrcMessage.Type type : IrcMessage.Type.values()) {
+            assertSame(legacyGetForValue(type.getValue()), IrcMessage.Type.getForValue(type.getValue()));
+        }
+
+        long decodeNanos = Long.MAX_VALUE;
+        long legacyDecodeNanos = Long.MAX_VALUE;
+        long filterNanos = Long.MAX_VALUE;
+        long legacyFilterNanos = Long.MAX_VALUE;
+        IrcMessage.Type[] decoded = new IrcMessage.Type[MESSAGES];
+        int filtered = 0;
+        int legacyFiltered = 0;
+        for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                decoded[i] = IrcMessage.Type.getForValue(values[i]);
+            }
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                decoded[i] = legacyGetForValue(values[i]);
+            }
+            legacyDecodeNanos = Math.min(legacyDecodeNanos, System.nanoTime() - start);
+
+            filtered = 0;
+            start = System.nanoTime();
+            for (IrcMessage.Type type : decoded) {
+                if ((mask & type.value) != 0)
+                    filtered++;
+            }
+            filterNanos = Math.min(filterNanos, System.nanoTime() - start);
+
+            legacyFiltered = 0;
+            start = System.nanoTime();
+            for (IrcMessage.Type type : decoded) {
+                if (hiddenList.contains(type))
+                    legacyFiltered++;
+            }
+            legacyFilterNanos = Math.min(legacyFilterNanos, System.nanoTime() - start);
+        }
+        assertEquals(legacyFiltered, filtered);
+
+        System.out.println(String.format("%d messages: decoding %d us (loop over values() %d us), filtering %d us (ArrayList.contains %d us), %d hidden",
+                MESSAGES, decodeNanos / 1000, legacyDecodeNanos / 1000, filterNanos / 1000, legacyFilterNanos / 1000, filtered));
+        assertTrue("decoding was not faster than the loop", decodeNanos < legacyDecodeNanos);
+        assertTrue("filtering was not faster than the list", filterNanos < legacyFilterNanos);
+    }
+
+    /**
+     * What IrcMessage.Type.getForValue did before the table
+     */
+    private static IrcMessage.Type legacyGetForValue(int value) {
+        for (IrcMessage.Type type : IrcMessage.Type.values()) {
+            if (type.value == value)
+                return type;
+        }
+        return IrcMessage.Type.Plain;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NickTrieTest {
+
+    @Test
+    public void findsNicksByPrefixIgnoringCase() {
+        NickTrie trie = new NickTrie();
+        IrcUser alice = user("Alice");
+        IrcUser alan = user("alan");
+        IrcUser bob = user("Bob");
+        trie.add(bob);
+        trie.add(alice);
+        trie.add(alan);
+
+        assertEquals(nicks(alan, alice), nicks(trie.find("AL")));
+        assertEquals(nicks(alice), nicks(trie.find("ali")));
+        assertEquals(nicks(bob), nicks(trie.find("b")));
+        assertTrue(trie.find("c").isEmpty());
+        assertTrue(trie.find("alicex").isEmpty());
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    public void emptyPrefixReturnsEveryoneInOrder() {
+        NickTrie trie = new NickTrie();
+        IrcUser[] users = {user("zed"), user("Mike"), user("[away]"), user("anna"), user("anna_")};
+        for (IrcUser user : users) {
+            trie.add(user);
+        }
+        // Ordered by the folded characters, so brackets come before letters
+        assertEquals(nicks(users[2], users[3], users[4], users[1], users[0]), nicks(trie.find("")));
+    }
+
+    @Test
+    public void nicksThatFoldTheSameAreKeptApart() {
+        NickTrie trie = new NickTrie();
+        IrcUser upper = user("Nick");
+        IrcUser lower = user("nick");
+        trie.add(upper);
+        trie.add(lower);
+        assertEquals(2, trie.find("nick").size());
+
+        trie.remove(upper);
+        assertEquals(nicks(lower), nicks(trie.find("nick")));
+        assertFalse(trie.contains(upper));
+    }
+
+    @Test
+    public void addingTwiceKeepsOneEntry() {
+        NickTrie trie = new NickTrie();
+        IrcUser user = user("dupe");
+        trie.add(user);
+        trie.add(user);
+        assertEquals(1, trie.size());
+        assertEquals(1, trie.find("d").size());
+    }
+
+    @Test
+    public void renamedUsersMove() {
+        NickTrie trie = new NickTrie();
+        IrcUser user = user("before");
+        trie.add(user);
+        user.nick = "after";
+        trie.update(user);
+
+        assertTrue(trie.find("before").isEmpty());
+        assertEquals(nicks(user), nicks(trie.find("aft")));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void updateIgnoresUsersNotInTheTree() {
+        NickTrie trie = new NickTrie();
+        trie.update(user("stranger"));
+        assertEquals(0, trie.size());
+        assertTrue(trie.find("").isEmpty());
+    }
+
+    @Test
+    public void removingPrunesEmptyBranches() {
+        NickTrie trie = new NickTrie();
+        IrcUser longNick = user("abcdef");
+        IrcUser shortNick = user("abc");
+        trie.add(longNick);
+        trie.add(shortNick);
+
+        trie.remove(longNick);
+        assertEquals(nicks(shortNick), nicks(trie.find("abc")));
+        assertTrue(trie.find("abcd").isEmpty());
+        trie.remove(shortNick);
+        assertTrue(trie.find("").isEmpty());
+
+        // Removed nodes can be added again
+        trie.add(longNick);
+        assertEquals(nicks(longNick), nicks(trie.find("a")));
+    }
+
+    @Test
+    public void usersWithoutNickAreIgnored() {
+        NickTrie trie = new NickTrie();
+        trie.add(new IrcUser());
+        assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void manyChildrenStaySorted() {
+        NickTrie trie = new NickTrie();
+        List<IrcUser> expected = new ArrayList<>();
+        for (char c = 'z'; c >= 'a'; c--) {
+            trie.add(user("x" + c));
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            expected.add(user("x" + c));
+        }
+        assertEquals(nicks(expected), nicks(trie.find("x")));
+    }
+
+    static IrcUser user(String nick) {
+        IrcUser user = new IrcUser();
+        user.nick = nick;
+        return user;
+    }
+
+    private static List<String> nicks(IrcUser... users) {
+        List<String> nicks = new ArrayList<>();
+        for (IrcUser user : users) {
+            nicks.add(user.nick);
+        }
+        return nicks;
+    }
+
+    private static List<String> nicks(List<IrcUser> users) {
+        return nicks(users.toArray(new IrcUser[users.size()]));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.iskrembilen.quasseldroid.protocol.state.NickTrieTest.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RecentSpeakersTest {
+
+    @Test
+    public void latestSpeakerComesFirst() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        speakers.add(message(1, "alice", IrcMessage.Type.Plain));
+        speakers.add(message(2, "bob", IrcMessage.Type.Action));
+        speakers.add(message(3, "carol", IrcMessage.Type.Notice));
+
+        IrcUser alice = user("alice");
+        IrcUser bob = user("bob");
+        IrcUser carol = user("carol");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(alice, bob, carol));
+        speakers.rank(users);
+        assertEquals(Arrays.asList(carol, bob, alice), users);
+    }
+
+    @Test
+    public void silentUsersKeepTheirOrderAfterSpeakers() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        speakers.add(message(5, "dave", IrcMessage.Type.Plain));
+
+        IrcUser anna = user("anna");
+        IrcUser ben = user("ben");
+        IrcUser dave = user("dave");
+        IrcUser eve = user("eve");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(anna, ben, dave, eve));
+        speakers.rank(users);
+        assertEquals(Arrays.asList(dave, anna, ben, eve), users);
+    }
+
+    @Test
+    public void olderMessagesDontOverrideNewerOnes() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        speakers.add(message(10, "alice", IrcMessage.Type.Plain));
+        speakers.add(message(8, "bob", IrcMessage.Type.Plain));
+        // Backlog arriving after the live message
+        speakers.add(message(5, "alice", IrcMessage.Type.Plain));
+
+        IrcUser alice = user("alice");
+        IrcUser bob = user("bob");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(bob, alice));
+        speakers.rank(users);
+        assertEquals(Arrays.asList(alice, bob), users);
+    }
+
+    @Test
+    public void nicksMatchIgnoringCase() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        speakers.add(message(1, "Alice", IrcMessage.Type.Plain));
+        speakers.add(message(2, "BOB", IrcMessage.Type.Plain));
+
+        IrcUser alice = user("alice");
+        IrcUser bob = user("Bob");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(alice, bob));
+        speakers.rank(users);
+        assertEquals(Arrays.asList(bob, alice), users);
+    }
+
+    @Test
+    public void eventsAreNotSpeech() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        speakers.add(message(1, "alice", IrcMessage.Type.Plain));
+        speakers.add(message(2, "bob", IrcMessage.Type.Join));
+        speakers.add(message(3, "bob", IrcMessage.Type.Nick));
+
+        IrcUser alice = user("alice");
+        IrcUser bob = user("bob");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(bob, alice));
+        speakers.rank(users);
+        assertEquals(Arrays.asList(alice, bob), users);
+    }
+
+    @Test
+    public void nothingRecordedLeavesTheListAlone() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        IrcUser zed = user("zed");
+        IrcUser amy = user("amy");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(zed, amy));
+        speakers.rank(users);
+        assertSame(zed, users.get(0));
+        assertSame(amy, users.get(1));
+    }
+
+    @Test
+    public void oldestSpeakersAreForgotten() {
+        RecentSpeakers speakers = new RecentSpeakers();
+        // Enough speakers to make it forget, the first one spoke longest ago
+        for (int i = 0; i <= 100; i++) {
+            speakers.add(message(i, "user" + i, IrcMessage.Type.Plain));
+        }
+
+        IrcUser first = user("user0");
+        IrcUser last = user("user100");
+        IrcUser silent = user("silent");
+        List<IrcUser> users = new ArrayList<>(Arrays.asList(first, silent, last));
+        speakers.rank(users);
+        // The first speaker now counts as silent and keeps its place among the silent users
+        assertEquals(Arrays.asList(last, first, silent), users);
+    }
+
+    private static IrcMessage message(int id, String nick, IrcMessage.Type type) {
+        IrcMessage message = new IrcMessage();
+        message.messageId = id;
+        message.type = type;
+        message.setSender(nick + "!user@host");
+        return message;
+    }
+}
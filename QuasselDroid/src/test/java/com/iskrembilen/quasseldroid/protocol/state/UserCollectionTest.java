@@ -0,0 +1,204 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.protocol.state;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+
+import static com.iskrembilen.quasseldroid.protocol.state.NickTrieTest.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the published {@link UserListChange}s on a copy of the lists, like the nick list does,
+ * and counts the rows each operation touches. Users are added through addUser, the Pair based
+ * methods can't be used with the stubbed android.util.Pair.
+ */
+public class UserCollectionTest {
+
+    private UserCollection collection;
+    /**
+     * The users of every mode as the replayed changes say they are, by the ordinal of the mode
+     */
+    private List<List<IrcUser>> mirror;
+    private int notifications;
+    private int rowChanges;
+
+    @Before
+    public void setUp() {
+        collection = new UserCollection();
+        mirror = new ArrayList<>();
+        for (int i = 0; i < IrcMode.values().length; i++) {
+            mirror.add(new ArrayList<IrcUser>());
+        }
+        collection.addObserver(new Observer() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void update(Observable observable, Object data) {
+                notifications++;
+                for (UserListChange change : (List<UserListChange>) data) {
+                    apply(change);
+                }
+            }
+        });
+    }
+
+    private void apply(UserListChange change) {
+        switch (change.type) {
+            case ADDED:
+                mirror.get(change.toMode.ordinal()).add(change.toIndex, change.user);
+                rowChanges++;
+                break;
+            case REMOVED:
+                assertSame(change.user, mirror.get(change.fromMode.ordinal()).remove(change.fromIndex));
+                rowChanges++;
+                break;
+            case MOVED:
+                assertSame(change.user, mirror.get(change.fromMode.ordinal()).remove(change.fromIndex));
+                mirror.get(change.toMode.ordinal()).add(change.toIndex, change.user);
+                rowChanges += change.fromMode == change.toMode ? 1 : 2;
+                break;
+            case CHANGED:
+                assertSame(change.user, mirror.get(change.toMode.ordinal()).get(change.toIndex));
+                rowChanges++;
+                break;
+        }
+    }
+
+    private void assertMirrored() {
+        for (IrcMode mode : IrcMode.values()) {
+            assertEquals(mode.name(), collection.getUniqueUsersWithMode(mode), mirror.get(mode.ordinal()));
+        }
+    }
+
+    @Test
+    public void joinPartAndModesTouchOneRow() {
+        for (int i = 0; i < 500; i++) {
+            collection.addUser(user(String.format("user%03d", i)), i % 10 == 0 ? "o" : "");
+        }
+        assertMirrored();
+        notifications = 0;
+        rowChanges = 0;
+
+        IrcUser joined = user("user251a");
+        collection.addUser(joined, "");
+        assertEquals(1, notifications);
+        assertEquals(1, rowChanges);
+        List<IrcUser> plain = collection.getUniqueUsersWithMode(IrcMode.USER);
+        assertEquals("user251", plain.get(plain.indexOf(joined) - 1).nick);
+
+        collection.addModeToUser(joined, "v");
+        assertEquals(2, notifications);
+        assertEquals(3, rowChanges);
+        assertEquals(IrcMode.VOICE, collection.getMode(joined));
+
+        collection.removeModeFromUser(joined, "v");
+        collection.removeUser(joined);
+        assertEquals(4, notifications);
+        assertEquals(6, rowChanges);
+        assertMirrored();
+    }
+
+    @Test
+    public void modesThatDontChangeTheTopModeArePublishedAsNothing() {
+        IrcUser op = user("op");
+        collection.addUser(op, "o");
+        notifications = 0;
+
+        collection.addModeToUser(op, "v");
+        collection.removeModeFromUser(op, "v");
+        collection.removeModeFromUser(op, "");
+        assertEquals(0, notifications);
+        assertEquals(IrcMode.OPERATOR, collection.getMode(op));
+
+        collection.removeModeFromUser(op, "o");
+        assertEquals(1, notifications);
+        assertEquals(IrcMode.USER, collection.getMode(op));
+        assertMirrored();
+    }
+
+    @Test
+    public void renamedUsersAreSortedInAgain() {
+        IrcUser alice = user("alice");
+        IrcUser bob = user("bob");
+        IrcUser carol = user("carol");
+        collection.addUser(alice, "");
+        collection.addUser(bob, "");
+        collection.addUser(carol, "");
+        rowChanges = 0;
+
+        alice.nick = "dave";
+        alice.changed();
+        assertEquals(1, rowChanges);
+        assertSame(alice, mirror.get(IrcMode.USER.ordinal()).get(2));
+        assertEquals(1, collection.findUsersByNickPrefix("dav").size());
+        assertTrue(collection.findUsersByNickPrefix("ali").isEmpty());
+
+        // Something else changed, the user stays where they are
+        bob.away = true;
+        bob.changed();
+        assertEquals(2, rowChanges);
+        assertMirrored();
+    }
+
+    @Test
+    public void removeByNick() {
+        collection.addUser(user("alice"), "o");
+        collection.addUser(user("bob"), "");
+        collection.removeUserByNick("alice");
+        collection.removeUserByNick("nobody");
+        assertEquals(1, collection.getUniqueUsers().size());
+        assertMirrored();
+    }
+
+    @Test
+    public void randomOperationsReplayOntoTheCopy() {
+        Random random = new Random(42);
+        String[] modes = {"", "v", "h", "o", "a", "q", "ov", "qo"};
+        List<IrcUser> joined = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(10);
+            if (joined.isEmpty() || operation < 4) {
+                IrcUser user = user("nick" + random.nextInt(1000));
+                collection.addUser(user, modes[random.nextInt(modes.length)]);
+                joined.add(user);
+            } else if (operation < 6) {
+                collection.removeUser(joined.remove(random.nextInt(joined.size())));
+            } else if (operation < 8) {
+                collection.addModeToUser(joined.get(random.nextInt(joined.size())), modes[1 + random.nextInt(5)]);
+            } else {
+                collection.removeModeFromUser(joined.get(random.nextInt(joined.size())), modes[1 + random.nextInt(5)]);
+            }
+            assertMirrored();
+        }
+        assertEquals(joined.size(), collection.getUniqueUsers().size());
+    }
+}
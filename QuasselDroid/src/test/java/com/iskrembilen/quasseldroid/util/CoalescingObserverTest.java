@@ -0,0 +1,215 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the notifications of a login through a {@link CoalescingObserver} on a
+ * {@link FrameScheduler.ManualScheduler}, and counts what comes in and what is delivered.
+ */
+public class CoalescingObserverTest {
+    private static final int NETWORKS = 3;
+    private static final int BUFFERS_PER_NETWORK = 20;
+    private static final int BACKLOG_PER_BUFFER = 200;
+    /**
+     * Messages that arrive within one frame during the backlog flood
+     */
+    private static final int MESSAGES_PER_FRAME = 250;
+
+    /**
+     * Stands in for a Buffer, BufferCollection, Network or NetworkCollection, which pass every
+     * change on to their parent like the state classes do
+     */
+    private static class Node extends Observable implements Observer {
+        private final Node parent;
+
+        Node(Node parent) {
+            this.parent = parent;
+            if (parent != null)
+                addObserver(parent);
+        }
+
+        void changed(Object data) {
+            setChanged();
+            notifyObservers(data);
+        }
+
+        @Override
+        public void update(Observable observable, Object data) {
+            changed(data);
+        }
+    }
+
+    private static class CountingObserver implements Observer {
+        int updates;
+
+        @Override
+        public void update(Observable observable, Object data) {
+            updates++;
+        }
+    }
+
+    @Test
+    public void loginIsDeliveredOncePerObservablePerFrame() {
+        FrameScheduler.ManualScheduler scheduler = new FrameScheduler.ManualScheduler();
+        CountingObserver adapter = new CountingObserver();
+        CoalescingObserver observer = new CoalescingObserver(adapter, scheduler);
+
+        // The UI watches the network collection and every buffer, like the buffer list and chat do
+        Node networkCollection = new Node(null);
+        networkCollection.addObserver(observer);
+        List<Node> buffers = new ArrayList<>();
+        for (int n = 0; n < NETWORKS; n++) {
+            Node network = new Node(networkCollection);
+            Node bufferCollection = new Node(network);
+            network.changed("init");
+            for (int b = 0; b < BUFFERS_PER_NETWORK; b++) {
+                Node buffer = new Node(bufferCollection);
+                buffer.addObserver(observer);
+                buffers.add(buffer);
+                bufferCollection.changed("buffer added");
+            }
+        }
+        scheduler.runFrame();
+
+        // Backlog, round robin over the buffers like the core answers the requests
+        int messages = 0;
+        for (int i = 0; i < BACKLOG_PER_BUFFER; i++) {
+            for (Node buffer : buffers) {
+                buffer.changed("message");
+                messages++;
+                if (messages % MESSAGES_PER_FRAME == 0)
+                    scheduler.runFrame();
+            }
+        }
+        scheduler.runFrame();
+        assertFalse(scheduler.hasPendingCallbacks());
+
+        int setup = NETWORKS * (1 + BUFFERS_PER_NETWORK);
+        // Every message reaches the observer through its buffer and through the network collection
+        long expectedReceived = setup + 2L * messages;
+        int frames = scheduler.getFrameCount();
+        assertEquals(expectedReceived, observer.getReceivedCount());
+        assertEquals(observer.getDeliveredCount(), adapter.updates);
+        // The setup frame delivers the network collection with its two arguments. Every backlog
+        // frame reaches all buffers round robin, so it delivers every buffer and the network
+        // collection once, however many messages it had.
+        int backlogFrames = messages / MESSAGES_PER_FRAME;
+        assertEquals(2 + backlogFrames * (buffers.size() + 1), observer.getDeliveredCount());
+        assertEquals(2 + backlogFrames, frames);
+        System.out.println(String.format("Login replay: %d notifications received, %d delivered in %d frames",
+                observer.getReceivedCount(), observer.getDeliveredCount(), frames));
+    }
+
+    @Test
+    public void distinctArgumentsAreDeliveredInOrder() {
+        FrameScheduler.ManualScheduler scheduler = new FrameScheduler.ManualScheduler();
+        final List<Object> received = new ArrayList<>();
+        CoalescingObserver observer = new CoalescingObserver(new Observer() {
+            @Override
+            public void update(Observable observable, Object data) {
+                received.add(data);
+            }
+        }, scheduler);
+        Node node = new Node(null);
+        node.addObserver(observer);
+        node.changed("a");
+        node.changed("b");
+        node.changed("a");
+        node.changed(null);
+        scheduler.runFrame();
+
+        List<Object> expected = new ArrayList<>();
+        expected.add("a");
+        expected.add("b");
+        expected.add(null);
+        assertEquals(expected, received);
+        assertEquals(4, observer.getReceivedCount());
+        assertEquals(3, observer.getDeliveredCount());
+    }
+
+    @Test
+    public void clearedObserverSchedulesAgainAfterADroppedFlush() {
+        final List<Runnable> posted = new ArrayList<>();
+        FrameScheduler dropping = new FrameScheduler() {
+            @Override
+            public void postFrameCallback(Runnable callback) {
+                posted.add(callback);
+            }
+        };
+        CountingObserver adapter = new CountingObserver();
+        CoalescingObserver observer = new CoalescingObserver(adapter, dropping);
+        Node node = new Node(null);
+        node.addObserver(observer);
+
+        node.changed("before");
+        assertEquals(1, posted.size());
+        observer.clear();
+        // The view went away and its frame callback with it
+        posted.clear();
+
+        node.changed("after");
+        assertEquals(1, posted.size());
+        posted.get(0).run();
+        assertEquals(1, adapter.updates);
+    }
+
+    @Test
+    public void clearedObserverIsNotReplayedWhenFocusReturns() {
+        FrameScheduler.ManualScheduler scheduler = new FrameScheduler.ManualScheduler();
+        CountingObserver adapter = new CountingObserver();
+        CoalescingObserver observer = new CoalescingObserver(adapter, scheduler);
+        CountingObserver otherAdapter = new CountingObserver();
+        CoalescingObserver other = new CoalescingObserver(otherAdapter, scheduler);
+        Node node = new Node(null);
+        node.addObserver(observer);
+        node.addObserver(other);
+
+        BackgroundMode.setFocused(false);
+        try {
+            node.changed("while unfocused");
+            assertEquals(2, BackgroundMode.getPendingCount());
+            node.deleteObserver(observer);
+            observer.clear();
+            // Nothing keeps the cleared observer and its adapter alive until focus returns
+            assertEquals(1, BackgroundMode.getPendingCount());
+        } finally {
+            BackgroundMode.setFocused(true);
+        }
+        scheduler.runFrame();
+
+        assertEquals(0, adapter.updates);
+        assertEquals(1, otherAdapter.updates);
+    }
+}
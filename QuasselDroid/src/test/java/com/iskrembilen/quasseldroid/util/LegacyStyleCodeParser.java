@@ -0,0 +1,176 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The style code parser MessageUtil.parseStyleCodes had before MircFormatParser, kept as the
+ * baseline of the benchmark. The Android spans are replaced by {start, end, style, fg, bg} arrays,
+ * the loop is unchanged: it copies the whole text and searches it again from the start for every
+ * code it removes, so it takes quadratic time in the number of codes.
+ */
+class LegacyStyleCodeParser {
+    static final int BOLD = 1;
+    static final int ITALIC = 2;
+    static final int UNDERLINE = -1;
+
+    final String text;
+    final List<int[]> spans;
+
+    private LegacyStyleCodeParser(String text, List<int[]> spans) {
+        this.text = text;
+        this.spans = spans;
+    }
+
+    static LegacyStyleCodeParser parse(String content) {
+        final char boldIndicator = 2;
+        final char normalIndicator = 15;
+        final char italicIndicator = 29;
+        final char underlineIndicator = 31;
+        final char colorIndicator = 3;
+
+        List<int[]> spans = new ArrayList<>();
+        if (content.indexOf(boldIndicator) == -1
+                && content.indexOf(italicIndicator) == -1
+                && content.indexOf(underlineIndicator) == -1
+                && content.indexOf(colorIndicator) == -1)
+            return new LegacyStyleCodeParser(content, spans);
+
+        StringBuilder newString = new StringBuilder(content);
+
+        int start, end, endSearchOffset, startIndicatorLength, style, fg, bg;
+        while (true) {
+            content = newString.toString();
+            start = -1;
+            end = -1;
+            startIndicatorLength = 1;
+            style = 0;
+            fg = -1;
+            bg = -1;
+
+            // Colors?
+            if (start == -1) {
+                start = content.indexOf(colorIndicator);
+
+                if (start != -1) {
+                    // Note that specifying colour codes here is optional, as the same indicator will cancel existing colours
+                    endSearchOffset = start + 1;
+                    if (endSearchOffset < content.length()) {
+                        if (Character.isDigit(content.charAt(endSearchOffset))) {
+                            if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
+                                fg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 2));
+                                endSearchOffset += 2;
+                            } else {
+                                fg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 1));
+                                endSearchOffset += 1;
+                            }
+
+                            if (endSearchOffset < content.length() && content.charAt(endSearchOffset) == ',') {
+                                if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
+                                    endSearchOffset++;
+                                    if (endSearchOffset + 1 < content.length() && Character.isDigit(content.charAt(endSearchOffset + 1))) {
+                                        bg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 2));
+                                        endSearchOffset += 2;
+                                    } else {
+                                        bg = Integer.parseInt(content.substring(endSearchOffset, endSearchOffset + 1));
+                                        endSearchOffset += 1;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    startIndicatorLength = endSearchOffset - start;
+
+                    end = content.indexOf(colorIndicator, endSearchOffset);
+                }
+            }
+
+            if (start == -1) {
+                start = content.indexOf(boldIndicator);
+                if (start != -1) {
+                    end = content.indexOf(boldIndicator, start + 1);
+                    style = BOLD;
+                }
+            }
+
+            if (start == -1) {
+                start = content.indexOf(italicIndicator);
+                if (start != -1) {
+                    end = content.indexOf(italicIndicator, start + 1);
+                    style = ITALIC;
+                }
+            }
+
+            if (start == -1) {
+                start = content.indexOf(underlineIndicator);
+                if (start != -1) {
+                    end = content.indexOf(underlineIndicator, start + 1);
+                    style = UNDERLINE;
+                }
+            }
+
+            if (start == -1)
+                break;
+
+            int norm = content.indexOf(normalIndicator, start + 1);
+            if (norm != -1 && (end == -1 || norm < end))
+                end = norm;
+
+            if (end == -1)
+                end = content.length();
+
+            if (end - (start + startIndicatorLength) > 0) {
+                // Only set spans if there's any text between start & end
+                spans.add(new int[]{start, end, style, fg, bg});
+            }
+
+            // Intentionally don't remove "normal" indicators or color here, as they are multi-purpose
+            if (end < content.length() && (content.charAt(end) == boldIndicator
+                    || content.charAt(end) == italicIndicator
+                    || content.charAt(end) == underlineIndicator))
+                newString.delete(end, end + 1);
+
+            newString.delete(start, start + startIndicatorLength);
+        }
+
+        // NOW we remove the "normal" and color indicator
+        while (true) {
+            content = newString.toString();
+            int normPos = content.indexOf(normalIndicator);
+            if (normPos != -1)
+                newString.delete(normPos, normPos + 1);
+
+            int colorPos = content.indexOf(colorIndicator);
+            if (colorPos != -1)
+                newString.delete(colorPos, colorPos + 1);
+
+            if (normPos == -1 && colorPos == -1)
+                break;
+        }
+
+        return new LegacyStyleCodeParser(newString.toString(), spans);
+    }
+}
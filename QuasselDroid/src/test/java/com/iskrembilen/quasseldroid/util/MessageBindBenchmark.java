@@ -0,0 +1,162 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import com.iskrembilen.quasseldroid.protocol.state.IrcMessage;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binding 10k chat rows: every bind reads the nick, the hostmask for detailed actions and the
+ * sender color. Compared with the old way of splitting the sender on every call and running the
+ * bitwise CRC, kept below. The old and new values are checked to be the same. Under the JVM
+ * android.util.LruCache is a stub that stores nothing, so here the color always comes from the
+ * table CRC. Prints the numbers, the assertion only catches a return to per-bind parsing.
+ */
+public class MessageBindBenchmark {
+    private static final int ROWS = 10000;
+    private static final int SENDERS = 300;
+    /**
+     * How often every row is bound, like scrolling through the backlog a few times
+     */
+    private static final int PASSES = 5;
+    private static final int REPETITIONS = 5;
+
+    @Test
+    public void bindRows() {
+        Random random = new Random(3);
+        String[] senders = new String[SENDERS];
+        for (int i = 0; i < SENDERS; i++) {
+            senders[i] = "nick" + i + (random.nextBoolean() ? "_" : "") + "!~user" + i + "@host-" + random.nextInt(100000) + ".example.org";
+        }
+        IrcMessage[] rows = new IrcMessage[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new IrcMessage();
+            rows[i].setSender(senders[random.nextInt(SENDERS)]);
+        }
+
+        for (IrcMessage row : rows) {
+            String sender = row.getSender();
+            assertEquals(sender.split("!")[0], row.getNick());
+            assertEquals(legacyHostmask(sender), row.getHostmask());
+            assertEquals(legacySenderColor(sender.split("!")[0]), MessageFormattingHelper.getSenderColor(row.getNick()));
+        }
+
+        long bindNanos = Long.MAX_VALUE;
+        long legacyNanos = Long.MAX_VALUE;
+        int sink = 0;
+        for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+            long start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (IrcMessage row : rows) {
+                    sink += row.getNick().length() + row.getHostmask().length() + row.getSenderColor();
+                }
+            }
+            bindNanos = Math.min(bindNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (IrcMessage row : rows) {
+                    String nick = row.getSender().split("!")[0];
+                    sink += nick.length() + legacyHostmask(row.getSender()).length() + legacySenderColor(nick);
+                }
+            }
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("Binding %d rows %d times: %d us, splitting and bitwise CRC %d us, %.1fx (%d)",
+                ROWS, PASSES, bindNanos / 1000, legacyNanos / 1000, (double) legacyNanos / Math.max(1, bindNanos), sink));
+        assertTrue("binding was not faster than splitting the sender", bindNanos < legacyNanos);
+    }
+
+    private static String legacyHostmask(String sender) {
+        try {
+            return sender.split("!")[1];
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            return "";
+        }
+    }
+
+    private static final int[] SENDER_COLORS = {
+            0xFFcc0000, 0xFF006cad, 0xFF4d9900, 0xFF6600cc,
+            0xFFa67d00, 0xFF009927, 0xFF0030c0, 0xFFcc009a,
+            0xFFb94600, 0xFF869900, 0xFF149900, 0xFF009960,
+            0xFF006cad, 0xFF0099cc, 0xFFb300cc, 0xFFcc004d,
+    };
+
+    private static int legacySenderColor(String nick) {
+        int end = nick.length();
+        while (end > 0 && nick.charAt(end - 1) == '_') {
+            end--;
+        }
+        byte[] data = nick.substring(0, end).toLowerCase(Locale.US).getBytes(Charset.forName("ISO-8859-1"));
+        return SENDER_COLORS[(0xf & legacyChecksum(data)) % SENDER_COLORS.length];
+    }
+
+    /**
+     * The bitwise qChecksum MessageFormattingHelper had before the table
+     */
+    private static int legacyChecksum(byte[] data) {
+        int crc = 0xffff;
+        int crcHighBitMask = 0x8000;
+
+        for (byte b : data) {
+            int c = reflect(b, 8);
+            for (int j = 0x80; j > 0; j >>= 1) {
+                int highBit = crc & crcHighBitMask;
+                crc <<= 1;
+                if ((c & j) > 0) {
+                    highBit ^= crcHighBitMask;
+                }
+                if (highBit > 0) {
+                    crc ^= 0x1021;
+                }
+            }
+        }
+
+        crc = reflect(crc, 16);
+        crc ^= 0xffff;
+        crc &= 0xffff;
+
+        return crc;
+    }
+
+    private static int reflect(int crc, int n) {
+        int j = 1, crcout = 0;
+        for (int i = (1 << (n - 1)); i > 0; i >>= 1) {
+            if ((crc & i) > 0) {
+                crcout |= j;
+            }
+            j <<= 1;
+        }
+        return crcout;
+    }
+}
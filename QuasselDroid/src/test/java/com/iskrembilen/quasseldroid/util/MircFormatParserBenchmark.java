@@ -0,0 +1,121 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of the style code parser on long, heavily formatted lines, next to the old parser
+ * from {@link LegacyStyleCodeParser}. Doubling the line length doubles the time of the new
+ * parser and roughly quadruples that of the old one. Prints the numbers, the assertions only
+ * catch a return to quadratic behaviour.
+ */
+public class MircFormatParserBenchmark {
+    private static final int LINES = 2000;
+    private static final int[] LENGTHS = {250, 500, 1000, 2000};
+    /**
+     * The old parser gets fewer lines, it would take minutes otherwise
+     */
+    private static final int LEGACY_LINES = 200;
+    private static final int REPETITIONS = 5;
+
+    @Test
+    public void throughput() {
+        Random random = new Random(1);
+        String[] lines = new String[LINES];
+        long chars = 0;
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = MircFormatParserTest.randomInput(random, 2000);
+            chars += lines[i].length();
+        }
+        // Warm up
+        for (String line : lines) {
+            MircFormatParser.parse(line, true);
+        }
+
+        long start = System.nanoTime();
+        int runs = 0;
+        for (String line : lines) {
+            runs += MircFormatParser.parse(line, true).runs.size();
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(String.format("MircFormatParser: %d lines, %d chars, %d runs in %d ms, %d chars/ms",
+                LINES, chars, runs, millis, chars / millis));
+
+        assertTrue("parsing took " + millis + " ms", millis < 10000);
+    }
+
+    @Test
+    public void linearAgainstLegacy() {
+        Random random = new Random(2);
+        String[][] lines = new String[LENGTHS.length][LEGACY_LINES];
+        for (int l = 0; l < LENGTHS.length; l++) {
+            for (int i = 0; i < LEGACY_LINES; i++) {
+                lines[l][i] = MircFormatParserTest.randomInput(random, LENGTHS[l]);
+            }
+        }
+        // Warm up both on every length before timing anything
+        for (int pass = 0; pass < 3; pass++) {
+            for (String[] sized : lines) {
+                for (String line : sized) {
+                    MircFormatParser.parse(line, true);
+                    LegacyStyleCodeParser.parse(line);
+                }
+            }
+        }
+
+        // Best of a few repetitions, so a collection in the middle doesn't skew one length
+        long[] parserNanos = new long[LENGTHS.length];
+        long[] legacyNanos = new long[LENGTHS.length];
+        for (int l = 0; l < LENGTHS.length; l++) {
+            parserNanos[l] = Long.MAX_VALUE;
+            legacyNanos[l] = Long.MAX_VALUE;
+            for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+                long start = System.nanoTime();
+                for (String line : lines[l]) {
+                    MircFormatParser.parse(line, true);
+                }
+                parserNanos[l] = Math.min(parserNanos[l], Math.max(1, System.nanoTime() - start));
+                start = System.nanoTime();
+                for (String line : lines[l]) {
+                    LegacyStyleCodeParser.parse(line);
+                }
+                legacyNanos[l] = Math.min(legacyNanos[l], Math.max(1, System.nanoTime() - start));
+            }
+            System.out.println(String.format("%d lines of %d chars: MircFormatParser %d us, legacy parser %d us, %.1fx",
+                    LEGACY_LINES, LENGTHS[l], parserNanos[l] / 1000, legacyNanos[l] / 1000,
+                    (double) legacyNanos[l] / parserNanos[l]));
+        }
+
+        int last = LENGTHS.length - 1;
+        assertTrue("legacy parser was not slower on the longest lines", legacyNanos[last] > parserNanos[last]);
+        // Eight times longer lines, linear is about 8x, quadratic about 64x
+        long growth = parserNanos[last] / parserNanos[0];
+        assertTrue("parser time grew " + growth + "x for 8x longer lines", growth < 32);
+    }
+}
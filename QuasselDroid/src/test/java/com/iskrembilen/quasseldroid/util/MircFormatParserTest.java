@@ -0,0 +1,143 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MircFormatParserTest {
+    private static final char[] CODES = {
+            MircFormatParser.CODE_BOLD, MircFormatParser.CODE_COLOR, MircFormatParser.CODE_HEX_COLOR,
+            MircFormatParser.CODE_NORMAL, MircFormatParser.CODE_MONOSPACE, MircFormatParser.CODE_REVERSE,
+            MircFormatParser.CODE_ITALIC, MircFormatParser.CODE_UNDERLINE
+    };
+    private static final String FILLER = "abc ,0123456789ABCDEFxyz";
+
+    @Test
+    public void stripsAllCodes() {
+        assertEquals("bold red hex plain", MircFormatParser.strip("\u0002bold\u0002 \u00034,12red\u0003 \u0004ff0000hex\u000f plain"));
+    }
+
+    @Test
+    public void recordsStyleRuns() {
+        MircFormatParser.Result result = MircFormatParser.parse("a\u0002b\u001dc\u000fd", true);
+        assertEquals("abcd", result.text);
+        assertEquals(2, result.runs.size());
+        assertRun(result.runs.get(0), 1, 2, MircFormatParser.BOLD);
+        assertRun(result.runs.get(1), 2, 3, MircFormatParser.BOLD | MircFormatParser.ITALIC);
+    }
+
+    @Test
+    public void parsesColors() {
+        MircFormatParser.Result result = MircFormatParser.parse("\u000304,12x\u0003y", true);
+        assertEquals("xy", result.text);
+        assertEquals(1, result.runs.size());
+        assertEquals(4, result.runs.get(0).fg);
+        assertEquals(12, result.runs.get(0).bg);
+    }
+
+    @Test
+    public void colorCodeTakesAtMostTwoDigits() {
+        MircFormatParser.Result result = MircFormatParser.parse("\u00031234", true);
+        assertEquals("34", result.text);
+        assertEquals(12, result.runs.get(0).fg);
+    }
+
+    @Test
+    public void parsesHexColors() {
+        MircFormatParser.Result result = MircFormatParser.parse("\u0004FF8000,000000x", true);
+        assertEquals("x", result.text);
+        MircFormatParser.Run run = result.runs.get(0);
+        assertTrue(MircFormatParser.isHexColor(run.fg));
+        assertEquals(0xFF8000, MircFormatParser.hexColorToRgb(run.fg));
+        assertEquals(0x000000, MircFormatParser.hexColorToRgb(run.bg));
+    }
+
+    @Test
+    public void invalidHexColorResetsColors() {
+        MircFormatParser.Result result = MircFormatParser.parse("\u00034a\u0004zzb", true);
+        assertEquals("azzb", result.text);
+        assertEquals(1, result.runs.size());
+        assertRun(result.runs.get(0), 0, 1, 0);
+    }
+
+    @Test
+    public void reverseAndMonospaceToggle() {
+        MircFormatParser.Result result = MircFormatParser.parse("\u0016a\u0011b\u0016c\u0011d", true);
+        assertEquals("abcd", result.text);
+        assertRun(result.runs.get(0), 0, 1, MircFormatParser.REVERSE);
+        assertRun(result.runs.get(1), 1, 2, MircFormatParser.REVERSE | MircFormatParser.MONOSPACE);
+        assertRun(result.runs.get(2), 2, 3, MircFormatParser.MONOSPACE);
+    }
+
+    /**
+     * Random mixes of codes, digits and commas, the output must never contain a code and the runs
+     * must cover the text in order without overlapping
+     */
+    @Test
+    public void fuzz() {
+        Random random = new Random(26);
+        for (int round = 0; round < 20000; round++) {
+            String input = randomInput(random, random.nextInt(80));
+            MircFormatParser.Result result = MircFormatParser.parse(input, true);
+
+            assertFalse(input, MircFormatParser.containsFormatting(result.text));
+            assertEquals(input, result.text, MircFormatParser.strip(input));
+            assertTrue(input, result.text.length() <= input.length());
+            if (!MircFormatParser.containsFormatting(input))
+                assertEquals(input, input, result.text);
+
+            int end = 0;
+            for (MircFormatParser.Run run : result.runs) {
+                assertTrue(input, run.start >= end);
+                assertTrue(input, run.end > run.start);
+                assertTrue(input, run.end <= result.text.length());
+                end = run.end;
+            }
+        }
+    }
+
+    static String randomInput(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(4) == 0)
+                builder.append(CODES[random.nextInt(CODES.length)]);
+            else
+                builder.append(FILLER.charAt(random.nextInt(FILLER.length())));
+        }
+        return builder.toString();
+    }
+
+    private static void assertRun(MircFormatParser.Run run, int start, int end, int flags) {
+        assertEquals(start, run.start);
+        assertEquals(end, run.end);
+        assertEquals(flags, run.flags);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SortedListDiffTest {
+
+    @Test
+    public void identicalListsProduceNoUpdates() {
+        List<Item> list = items(1, 2, 3);
+        Recorder recorder = diff(list, new ArrayList<Item>(list));
+        assertEquals(0, recorder.updates);
+    }
+
+    @Test
+    public void mergesRunsIntoRanges() {
+        List<Item> oldList = items(5, 6);
+        List<Item> newList = items(1, 2, 3);
+        newList.addAll(oldList);
+        newList.addAll(items(7, 8));
+        Recorder recorder = diff(oldList, newList);
+        assertEquals("+0x3 +5x2 ", recorder.log.toString());
+
+        oldList = items(1, 2, 3, 4, 5);
+        recorder = diff(oldList, new ArrayList<Item>(oldList.subList(3, 5)));
+        assertEquals("-0x3 ", recorder.log.toString());
+    }
+
+    @Test
+    public void reportsReplacedObjectsAsChanged() {
+        List<Item> oldList = items(1, 2, 3);
+        List<Item> newList = new ArrayList<Item>(oldList);
+        newList.set(1, new Item(2));
+        newList.set(2, new Item(3));
+        Recorder recorder = diff(oldList, newList);
+        assertEquals("~1x2 ", recorder.log.toString());
+    }
+
+    @Test
+    public void randomListsReplayToTheNewList() {
+        Random random = new Random(3);
+        for (int run = 0; run < 500; run++) {
+            List<Item> oldList = randomItems(random);
+            List<Item> newList = new ArrayList<Item>();
+            // Keep some of the old objects so there are unchanged, changed, removed and inserted items
+            int oldIndex = 0;
+            for (int key = 0; key < 60; key++) {
+                Item old = oldIndex < oldList.size() && oldList.get(oldIndex).key == key ? oldList.get(oldIndex++) : null;
+                int choice = random.nextInt(4);
+                if (choice == 0)
+                    continue;
+                if (old != null && choice != 1)
+                    newList.add(old);
+                else
+                    newList.add(new Item(key));
+            }
+            diff(oldList, newList);
+        }
+    }
+
+    /**
+     * Diffs the lists and checks that applying the updates to a copy of the old list gives the new one
+     */
+    private static Recorder diff(List<Item> oldList, List<Item> newList) {
+        Recorder recorder = new Recorder(oldList, newList);
+        SortedListDiff.diff(oldList, newList, recorder);
+        assertEquals(newList.size(), recorder.mirror.size());
+        for (int i = 0; i < newList.size(); i++) {
+            assertSame(newList.get(i), recorder.mirror.get(i));
+        }
+        return recorder;
+    }
+
+    private static List<Item> items(int... keys) {
+        List<Item> items = new ArrayList<Item>();
+        for (int key : keys) {
+            items.add(new Item(key));
+        }
+        return items;
+    }
+
+    private static List<Item> randomItems(Random random) {
+        List<Item> items = new ArrayList<Item>();
+        for (int key = 0; key < 60; key++) {
+            if (random.nextBoolean())
+                items.add(new Item(key));
+        }
+        return items;
+    }
+
+    private static class Item implements Comparable<Item> {
+        final int key;
+
+        Item(int key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            return key < other.key ? -1 : (key == other.key ? 0 : 1);
+        }
+    }
+
+    /**
+     * Applies the updates to a copy of the old list, taking inserted and changed items from the new
+     * list, which is valid because every position refers to the list with the earlier updates applied
+     */
+    private static class Recorder implements SortedListDiff.Callback {
+        final List<Item> mirror;
+        final List<Item> newList;
+        final StringBuilder log = new StringBuilder();
+        int updates;
+
+        Recorder(List<Item> oldList, List<Item> newList) {
+            this.mirror = new ArrayList<Item>(oldList);
+            this.newList = newList;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            mirror.addAll(position, newList.subList(position, position + count));
+            record('+', position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mirror.subList(position, position + count).clear();
+            record('-', position, count);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            for (int i = position; i < position + count; i++) {
+                mirror.set(i, newList.get(i));
+            }
+            record('~', position, count);
+        }
+
+        private void record(char type, int position, int count) {
+            updates++;
+            log.append(type).append(position).append('x').append(count).append(' ');
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+    QuasselDroid - Quassel client for Android
+    Copyright (C) 2015 Ken Børge Viktil
+    Copyright (C) 2015 Magnus Fjell
+    Copyright (C) 2015 Martin Sandsmark <martin.sandsmark@kde.org>
+
+    This program is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by the Free
+    Software Foundation, either version 3 of the License, or (at your option)
+    any later version, or under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either version 2.1 of
+    the License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License and the
+    GNU Lesser General Public License along with this program.  If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.iskrembilen.quasseldroid.util;
+
+import com.iskrembilen.quasseldroid.protocol.qtcomm.QDataInputStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringReaderUtilTest {
+    private static QDataInputStream input(String value) {
+        return new QDataInputStream(new ByteArrayInputStream(value.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    @Test
+    public void readsAndPoolsShortStrings() throws IOException {
+        StringReaderUtil reader = new StringReaderUtil("UTF-8", new StringPool("UTF-8", 16));
+        String first = reader.readString(input("#quassel"), 8);
+        assertEquals("#quassel", first);
+        assertSame(first, reader.readString(input("#quassel"), 8));
+        // A shorter string after a longer one doesn't keep its tail
+        assertEquals("#qd", reader.readString(input("#qd"), 3));
+        assertEquals("ünïcödé", reader.readString(input("ünïcödé"), "ünïcödé".getBytes("UTF-8").length));
+    }
+
+    @Test
+    public void blockedReadDoesNotHoldOtherReaders() throws Exception {
+        final StringReaderUtil reader = new StringReaderUtil("UTF-8", new StringPool("UTF-8", 16));
+        final PipedOutputStream slowCore = new PipedOutputStream();
+        final QDataInputStream slowStream = new QDataInputStream(new PipedInputStream(slowCore));
+        final String[] slowResult = new String[1];
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                slowStarted.countDown();
+                try {
+                    slowResult[0] = reader.readString(slowStream, 5);
+                } catch (IOException e) {
+                    slowResult[0] = e.toString();
+                }
+            }
+        });
+        slow.start();
+        slowStarted.await();
+        Thread.sleep(50);
+
+        // The slow thread is waiting for its bytes, this one must not wait for it
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        final String[] fastResult = new String[1];
+        Thread fast = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fastResult[0] = reader.readString(input("fast"), 4);
+                } catch (IOException e) {
+                    fastResult[0] = e.toString();
+                }
+                fastDone.countDown();
+            }
+        });
+        fast.start();
+        assertTrue(fastDone.await(2, TimeUnit.SECONDS));
+        assertEquals("fast", fastResult[0]);
+
+        slowCore.write("slow!".getBytes("UTF-8"));
+        slowCore.flush();
+        slow.join(2000);
+        assertEquals("slow!", slowResult[0]);
+    }
+}